@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.Result;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// compares reading the slowest trace points over the last 7 days using TraceDao (capture time
+// slices) against a single query over the whole capture time range (which is how trace points were
+// read before slicing)
+//
+// this does not need to be run with the javaagent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class TracePointReadBenchmark {
+
+    private static final long TO = DAYS.toMillis(30);
+    private static final long FROM = TO - DAYS.toMillis(7);
+
+    @Param({"10", "1000"})
+    private int tracesPerHour;
+
+    @Param({"500"})
+    private int limit;
+
+    private File cappedFile;
+    private DataSource dataSource;
+    private CappedDatabase cappedDatabase;
+    private TraceDao traceDao;
+
+    private TraceQuery query;
+    private TracePointFilter filter;
+
+    @Setup
+    public void setup() throws Exception {
+        dataSource = new DataSource();
+        cappedFile = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        cappedDatabase = new CappedDatabase(cappedFile, 1024, null, Ticker.systemTicker());
+        traceDao = new TraceDao(dataSource, cappedDatabase, new TransactionTypeDao(dataSource),
+                new FullQueryTextDao(dataSource), new TraceAttributeNameDao(dataSource));
+        final Random random = new Random(0);
+        final long intervalMillis = HOURS.toMillis(1) / tracesPerHour;
+        for (long hour = FROM; hour < TO; hour += HOURS.toMillis(1)) {
+            final long hourStart = hour;
+            dataSource.batchUpdate(new JdbcUpdate() {
+                @Override
+                public String getSql() {
+                    return "insert into trace (id, partial, slow, error, start_time, capture_time,"
+                            + " duration_nanos, transaction_type, transaction_name, headline)"
+                            + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) throws SQLException {
+                    for (int i = 0; i < tracesPerHour; i++) {
+                        long captureTime = hourStart + i * intervalMillis + 1;
+                        // long tail of durations, so the slowest trace points are spread out
+                        // over the whole capture time range
+                        long durationNanos =
+                                (long) (-Math.log(1 - random.nextDouble()) * 100000000);
+                        int j = 1;
+                        preparedStatement.setString(j++, hourStart + "-" + i);
+                        preparedStatement.setBoolean(j++, false);
+                        preparedStatement.setBoolean(j++, true);
+                        preparedStatement.setBoolean(j++, false);
+                        preparedStatement.setLong(j++, captureTime - durationNanos / 1000000);
+                        preparedStatement.setLong(j++, captureTime);
+                        preparedStatement.setLong(j++, durationNanos);
+                        preparedStatement.setString(j++, "Web");
+                        preparedStatement.setString(j++, "/abc" + random.nextInt(10));
+                        preparedStatement.setString(j++, "/abc");
+                        preparedStatement.addBatch();
+                    }
+                }
+            });
+        }
+        query = ImmutableTraceQuery.builder()
+                .transactionType("Web")
+                .from(FROM)
+                .to(TO)
+                .build();
+        filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, SQLException {
+        dataSource.close();
+        cappedDatabase.close();
+        cappedFile.delete();
+    }
+
+    @Benchmark
+    public Result<TracePoint> slices() throws Exception {
+        return traceDao.readSlowPoints("", query, filter, limit);
+    }
+
+    @Benchmark
+    public Result<TracePoint> singleQuery() throws Exception {
+        ParameterizedSql parameterizedSql =
+                new TracePointQueryBuilder(TraceKind.SLOW, query, filter, limit)
+                        .getParameterizedSql();
+        List<TracePoint> points = dataSource.query(new TracePointRowQuery(parameterizedSql));
+        return Result.create(points, limit);
+    }
+
+    private static class TracePointRowQuery implements JdbcRowQuery<TracePoint> {
+
+        private final ParameterizedSql parameterizedSql;
+
+        private TracePointRowQuery(ParameterizedSql parameterizedSql) {
+            this.parameterizedSql = parameterizedSql;
+        }
+
+        @Override
+        public String getSql() {
+            return parameterizedSql.sql();
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            for (Object obj : parameterizedSql.args()) {
+                preparedStatement.setObject(i++, obj);
+            }
+        }
+
+        @Override
+        public TracePoint mapRow(ResultSet resultSet) throws SQLException {
+            int i = 1;
+            return ImmutableTracePoint.builder()
+                    .agentId("")
+                    .traceId(resultSet.getString(i++))
+                    .captureTime(resultSet.getLong(i++))
+                    .durationNanos(resultSet.getLong(i++))
+                    .partial(resultSet.getBoolean(i++))
+                    .error(resultSet.getBoolean(i++))
+                    .checkLiveTraces(false)
+                    .build();
+        }
+    }
+}
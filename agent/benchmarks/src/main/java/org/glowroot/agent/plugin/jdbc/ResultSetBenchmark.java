@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -42,11 +43,16 @@ import org.glowroot.microbenchmarks.support.TransactionWorthy;
 @State(Scope.Thread)
 public class ResultSetBenchmark extends TransactionWorthy {
 
+    private static final int BIND_BATCH_SIZE = 1000;
+
     @Param
     private Database database;
 
     private Connection connection;
     private PreparedStatement preparedStatement;
+    private PreparedStatement bindPreparedStatement;
+
+    private boolean bindBatch;
 
     @Setup
     public void setup() throws SQLException {
@@ -59,6 +65,8 @@ public class ResultSetBenchmark extends TransactionWorthy {
                     for (int i = 0; i < 10000; i++) {
                         statement.execute("insert into mock (name) values ('mock" + 1 + "')");
                     }
+                    statement.execute("create table mock_bind (name varchar(100), id bigint,"
+                            + " amount double, active boolean)");
                 } finally {
                     statement.close();
                 }
@@ -68,27 +76,65 @@ public class ResultSetBenchmark extends TransactionWorthy {
                 break;
         }
         preparedStatement = connection.prepareStatement("select * from mock");
+        bindPreparedStatement = connection.prepareStatement(
+                "insert into mock_bind (name, id, amount, active) values (?, ?, ?, ?)");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws SQLException {
+        if (database == Database.HSQLDB) {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("truncate table mock_bind");
+            } finally {
+                statement.close();
+            }
+        }
     }
 
     @TearDown
     public void tearDown() throws SQLException {
         preparedStatement.close();
+        bindPreparedStatement.close();
         connection.close();
     }
 
     @Benchmark
     @OperationsPerInvocation(10000)
     public void next() throws Exception {
+        bindBatch = false;
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BIND_BATCH_SIZE)
+    public void bindBatch() throws Exception {
+        bindBatch = true;
         doSomethingTransactionWorthy();
     }
 
     @Override
     public void doSomethingTransactionWorthy() throws SQLException {
-        ResultSet resultSet = preparedStatement.executeQuery();
-        for (int i = 0; i < 10000; i++) {
-            resultSet.next();
+        if (bindBatch) {
+            executeBindBatch();
+        } else {
+            ResultSet resultSet = preparedStatement.executeQuery();
+            for (int i = 0; i < 10000; i++) {
+                resultSet.next();
+            }
+            resultSet.close();
+        }
+    }
+
+    private void executeBindBatch() throws SQLException {
+        for (int i = 0; i < BIND_BATCH_SIZE; i++) {
+            bindPreparedStatement.setString(1, "mock");
+            bindPreparedStatement.setLong(2, i);
+            bindPreparedStatement.setDouble(3, i * 1.5);
+            bindPreparedStatement.setBoolean(4, (i & 1) == 0);
+            bindPreparedStatement.addBatch();
         }
-        resultSet.close();
+        bindPreparedStatement.executeBatch();
     }
 
     public enum Database {
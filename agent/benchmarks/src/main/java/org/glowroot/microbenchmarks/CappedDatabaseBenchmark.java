@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// compares write throughput and compressed bytes per trace of the capped database codecs
+//
+// this does not need to be run with the javaagent
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class CappedDatabaseBenchmark {
+
+    private static final int TRACE_COUNT = 100;
+
+    @Param
+    private CappedDatabaseCodec codec;
+
+    private File file;
+    private CappedDatabase cappedDatabase;
+
+    private List<List<Trace.Entry>> traceEntries;
+    private List<Profile> profiles;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        cappedDatabase = new CappedDatabase(file, 100 * 1024, codec, null, Ticker.systemTicker());
+        Random random = new Random(0);
+        traceEntries = Lists.newArrayList();
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < TRACE_COUNT; i++) {
+            traceEntries.add(createEntries(random));
+            profiles.add(createProfile(random));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        file.delete();
+        new File(file.getPath() + ".dict").delete();
+    }
+
+    @Benchmark
+    public void writeTrace(CompressionRatios compressionRatios) throws IOException {
+        index = (index + 1) % TRACE_COUNT;
+        cappedDatabase.writeMessages(traceEntries.get(index), "trace entries");
+        cappedDatabase.writeMessage(profiles.get(index), "trace profiles");
+        compressionRatios.entries = cappedDatabase.getStats("trace entries").getCompressionRatio();
+        compressionRatios.profiles =
+                cappedDatabase.getStats("trace profiles").getCompressionRatio();
+    }
+
+    private static List<Trace.Entry> createEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(random.nextInt(5))
+                    .setStartOffsetNanos(i * 1000000L + random.nextInt(1000000))
+                    .setDurationNanos(random.nextInt(1000000))
+                    .setMessage("jdbc query: select id, name, description from table"
+                            + random.nextInt(20) + " where id = ? => " + random.nextInt(100)
+                            + " rows")
+                    .build());
+        }
+        return entries;
+    }
+
+    private static Profile createProfile(Random random) {
+        Profile.Builder profile = Profile.newBuilder();
+        for (int i = 0; i < 20; i++) {
+            profile.addPackageName("org.glowroot.microbenchmarks.package" + random.nextInt(50));
+            profile.addClassName("SomeClass" + random.nextInt(100));
+            profile.addMethodName("someMethod" + random.nextInt(100));
+            profile.addFileName("SomeClass" + random.nextInt(100) + ".java");
+        }
+        for (int i = 0; i < 200; i++) {
+            profile.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(i % 20)
+                    .setPackageNameIndex(random.nextInt(20))
+                    .setClassNameIndex(random.nextInt(20))
+                    .setMethodNameIndex(random.nextInt(20))
+                    .setFileNameIndex(random.nextInt(20))
+                    .setLineNumber(random.nextInt(1000))
+                    .setSampleCount(random.nextInt(10) + 1)
+                    .build());
+        }
+        return profile.build();
+    }
+
+    // reported alongside the throughput score (as writeTrace:entries and writeTrace:profiles)
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CompressionRatios {
+
+        // fraction of bytes saved by compression (see CappedDatabaseStats), cumulative since setup
+        public double entries;
+        public double profiles;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            entries = 0;
+            profiles = 0;
+        }
+    }
+}
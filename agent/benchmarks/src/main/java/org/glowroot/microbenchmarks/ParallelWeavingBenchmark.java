@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// simulates the class loading storm during application startup, where many threads load classes
+// (with many shared super types) at the same time
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ParallelWeavingBenchmark {
+
+    private static final int MAX_CLASSES = 10000;
+    private static final int THREADS = 16;
+
+    private List<List<String>> classNamesPerThread;
+
+    @Setup
+    public void setup() throws IOException {
+        Set<String> classNames = new TreeSet<String>();
+        for (String path : getClassPath()) {
+            if (!path.endsWith(".jar")) {
+                continue;
+            }
+            JarFile jarFile = new JarFile(path);
+            try {
+                Enumeration<JarEntry> e = jarFile.entries();
+                while (e.hasMoreElements()) {
+                    JarEntry jarEntry = e.nextElement();
+                    String name = jarEntry.getName();
+                    // excluding module-info, package-info and multi-release (META-INF/versions)
+                    if (name.endsWith(".class") && !name.contains("-")
+                            && !name.startsWith("META-INF/") && !name.startsWith("org/glowroot/")) {
+                        name = name.replace('/', '.');
+                        name = name.substring(0, name.length() - ".class".length());
+                        classNames.add(name);
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        classNamesPerThread = Lists.newArrayList();
+        for (int i = 0; i < THREADS; i++) {
+            classNamesPerThread.add(Lists.<String>newArrayList());
+        }
+        int i = 0;
+        for (String className : classNames) {
+            if (i == MAX_CLASSES) {
+                break;
+            }
+            // interleave so that each thread loads classes from the same packages (and so with
+            // the same super types) at the same time
+            classNamesPerThread.get(i++ % THREADS).add(className);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        MILLISECONDS.sleep(100);
+    }
+
+    @Benchmark
+    public void execute() throws InterruptedException {
+        List<Thread> threads = Lists.newArrayList();
+        for (final List<String> classNames : classNamesPerThread) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (String className : classNames) {
+                        try {
+                            Class.forName(className, false,
+                                    ParallelWeavingBenchmark.class.getClassLoader());
+                        } catch (ClassNotFoundException e) {
+                            // should not happen since the class names came from the class path
+                            throw new IllegalStateException(e);
+                        } catch (LinkageError e) {
+                            // optional dependencies are not transitively included
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static List<String> getClassPath() {
+        String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
+        return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// measures profile merge throughput on synthetic deep profiles, where every sample passes through
+// a common dispatcher frame that fans out to many different handler frames (similar to servlet
+// dispatchers and thread pools)
+//
+// this does not need to be run with the javaagent
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ProfileMergeBenchmark {
+
+    private static final int SAMPLE_COUNT = 1000;
+    private static final int PROFILE_COUNT = 10;
+
+    @Param({"100"})
+    private int depth;
+
+    @Param({"10", "1000"})
+    private int fanOut;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private List<Profile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        stackTraces = Lists.newArrayList();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            stackTraces.add(createStackTrace(random));
+        }
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < PROFILE_COUNT; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < SAMPLE_COUNT / PROFILE_COUNT; j++) {
+                profile.merge(createStackTrace(random), Thread.State.RUNNABLE);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public MutableProfile mergeStackTraces() {
+        MutableProfile profile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            profile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMergedProfile : profiles) {
+            profile.merge(toBeMergedProfile);
+        }
+        return profile;
+    }
+
+    // leaf first, same as Thread.getStackTrace()
+    private List<StackTraceElement> createStackTrace(Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        int handler = random.nextInt(fanOut);
+        int handlerDepth = depth / 2;
+        for (int i = 0; i < handlerDepth; i++) {
+            // some variation near the leaf
+            int lineNumber = i < 5 ? random.nextInt(3) : i;
+            stackTrace.add(new StackTraceElement(
+                    "org.glowroot.microbenchmarks.handler" + handler + ".SomeHandler" + handler,
+                    "handle" + i, "SomeHandler" + handler + ".java", lineNumber));
+        }
+        stackTrace.add(new StackTraceElement("org.glowroot.microbenchmarks.dispatch.Dispatcher",
+                "dispatch", "Dispatcher.java", 100));
+        for (int i = handlerDepth + 1; i < depth; i++) {
+            stackTrace.add(new StackTraceElement("org.glowroot.microbenchmarks.container.Frame" + i,
+                    "invoke", "Frame" + i + ".java", i));
+        }
+        return stackTrace;
+    }
+}
@@ -26,6 +26,7 @@ import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 
+import org.glowroot.microbenchmarks.support.TimerWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
 @BenchmarkMode(Mode.AverageTime)
@@ -37,10 +38,12 @@ public class TransactionBenchmark {
     private PointcutType pointcutType;
 
     private TransactionWorthy transactionWorthy;
+    private NestedTimerTransactionWorthy nestedTimerTransactionWorthy;
 
     @Setup
     public void setup() {
         transactionWorthy = new TransactionWorthy();
+        nestedTimerTransactionWorthy = new NestedTimerTransactionWorthy();
     }
 
     @Benchmark
@@ -54,4 +57,74 @@ public class TransactionBenchmark {
                 break;
         }
     }
+
+    // transactions with deep (alternating) timer nesting, similar to deep Spring/Hibernate call
+    // stacks, run with "-prof gc" to see the allocation rate per transaction
+    @Benchmark
+    public void executeWithNestedTimers(NestedTimers nestedTimers) throws Exception {
+        nestedTimerTransactionWorthy.timerDepth = nestedTimers.timerDepth;
+        nestedTimerTransactionWorthy.timerIterations = nestedTimers.timerIterations;
+        switch (pointcutType) {
+            case API:
+                nestedTimerTransactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                nestedTimerTransactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class NestedTimers {
+
+        @Param({"10", "100"})
+        private int timerDepth;
+
+        @Param({"1", "10"})
+        private int timerIterations;
+    }
+
+    private static class NestedTimerTransactionWorthy extends TransactionWorthy {
+
+        private final NestedTimerWorthy nestedTimerWorthy = new NestedTimerWorthy();
+
+        private int timerDepth;
+        private int timerIterations;
+
+        @Override
+        public void doSomethingTransactionWorthy() {
+            doSomethingTimerWorthy();
+        }
+
+        @Override
+        public void doSomethingTransactionWorthy2() {
+            doSomethingTimerWorthy();
+        }
+
+        private void doSomethingTimerWorthy() {
+            for (int i = 0; i < timerIterations; i++) {
+                nestedTimerWorthy.remaining = timerDepth;
+                nestedTimerWorthy.doSomethingTimerWorthy();
+            }
+        }
+    }
+
+    private static class NestedTimerWorthy extends TimerWorthy {
+
+        private int remaining;
+
+        @Override
+        public void doSomethingTimerWorthy() {
+            if (--remaining > 0) {
+                doSomethingTimerWorthyB();
+            }
+        }
+
+        @Override
+        public void doSomethingTimerWorthyB() {
+            if (--remaining > 0) {
+                doSomethingTimerWorthy();
+            }
+        }
+    }
 }
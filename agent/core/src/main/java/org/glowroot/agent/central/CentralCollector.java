@@ -22,11 +22,14 @@ import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
 import io.grpc.stub.StreamObserver;
@@ -35,12 +38,15 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.central.CentralCollectorSpool.SpooledRecord;
+import org.glowroot.agent.central.CentralCollectorSpoolDrainer.SpooledRecordSender;
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -64,6 +70,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent.Level;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Entries;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Queries;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
@@ -73,6 +80,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -89,6 +97,11 @@ public class CentralCollector implements Collector {
         SKIP_DELAY = Integer.getInteger("glowroot.internal.rollup.0.intervalMillis", 60000) < 10000;
     }
 
+    // trace entries are sent in batches of up to this many serialized bytes per stream message
+    // (when supported by the central collector), instead of one stream message per entry
+    private static final int TRACE_ENTRY_BATCH_MAX_BYTES =
+            Integer.getInteger("glowroot.collector.traceEntryBatchMaxBytes", 65536);
+
     private final String agentId;
     private final String collectorAddress;
     private final ConfigService configService;
@@ -102,14 +115,22 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    // holds data that could not be sent while the central collector was unavailable
+    private final @Nullable CentralCollectorSpool spool;
+    private final @Nullable ScheduledExecutorService spoolDrainExecutor;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
+    // zero means the central collector has not assigned a flush slot (e.g. older central collector)
+    private volatile int aggregateFlushOffsetMillis;
+    // false until connected to a central collector that understands batched trace entries
+    private volatile boolean traceEntryBatching;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
-            ConfigService configService) throws Exception {
+            @Nullable String collectorAuthority, List<File> confDirs, File tmpDir,
+            boolean configReadOnly, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, ConfigService configService) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (agentId == null) {
@@ -139,6 +160,19 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, configReadOnly, liveJvmService, liveWeavingService,
                 liveTraceRepository, agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        int spoolMaxSizeMb = getSpoolMaxSizeMb(properties);
+        if (spoolMaxSizeMb > 0) {
+            spool = new CentralCollectorSpool(new File(tmpDir, "central-collector-spool"),
+                    spoolMaxSizeMb * 1024 * 1024);
+            spoolDrainExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactories.create("Glowroot-Central-Spool-Drainer"));
+            new CentralCollectorSpoolDrainer(spool, new SpooledRecordSenderImpl())
+                    .scheduleWithFixedDelay(spoolDrainExecutor, 5, 5, SECONDS);
+        } else {
+            spool = null;
+            spoolDrainExecutor = null;
+        }
     }
 
     @Override
@@ -166,6 +200,9 @@ public class CentralCollector implements Collector {
             @Override
             void doWithResponse(InitResponse response) {
                 CentralCollector.this.environment = environment;
+                // Math.min is just for safety
+                aggregateFlushOffsetMillis =
+                        Math.min(response.getAggregateFlushOffsetMillis(), 30000);
                 // don't need to suppress sending this log message to the central collector because
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
@@ -176,6 +213,8 @@ public class CentralCollector implements Collector {
                     startupLogger.warn("the central collector version is older than the agent"
                             + " version which could cause unpredictable issues");
                 }
+                traceEntryBatching = TRACE_ENTRY_BATCH_MAX_BYTES > 0
+                        && isCentralVersionAtLeast(response.getGlowrootCentralVersion(), "0.13.4");
                 if (response.hasAgentConfig() && !configReadOnly) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -199,11 +238,20 @@ public class CentralCollector implements Collector {
     // collecting even when no aggregates since collection triggers transaction-based alerts
     @Override
     public void collectAggregates(AggregateReader aggregateReader) throws InterruptedException {
+        if (spool != null && !spool.isEmpty()) {
+            // queue up behind the data that is already waiting to be replayed, in order to preserve
+            // capture time ordering
+            spoolAggregates(spool, aggregateReader);
+            return;
+        }
         if (!SKIP_DELAY) {
-            MILLISECONDS.sleep(nextAggregateDelayMillis);
+            MILLISECONDS.sleep(getAggregateDelayMillis(aggregateReader.captureTime()));
         }
-        centralConnection
+        boolean sent = centralConnection
                 .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        if (!sent && spool != null) {
+            spoolAggregates(spool, aggregateReader);
+        }
     }
 
     @Override
@@ -213,29 +261,15 @@ public class CentralCollector implements Collector {
                 .addAllGaugeValue(gaugeValues)
                 .setPostV09(true)
                 .build();
-        centralConnection.blockingCallWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
-            @Override
-            public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
-                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
-            }
-            @Override
-            public void doWithResponse(GaugeValueResponseMessage response) {
-                if (response.getResendInit() && environment != null) {
-                    final InitMessage initMessage = InitMessage.newBuilder()
-                            .setAgentId(agentId)
-                            .setEnvironment(environment)
-                            .setAgentConfig(configService.getAgentConfig())
-                            .build();
-                    // only once, since resendInit will continue to be sent back until it succeeds
-                    centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
-                        @Override
-                        void call(StreamObserver<InitResponse> responseObserver) {
-                            collectorServiceStub.collectInit(initMessage, responseObserver);
-                        }
-                    });
-                }
-            }
-        });
+        if (spool != null && !spool.isEmpty()) {
+            spoolGaugeValues(spool, gaugeValueMessage);
+            return;
+        }
+        boolean sent = centralConnection
+                .blockingCallWithAFewRetries(new GaugeValuesGrpcCall(gaugeValueMessage));
+        if (!sent && spool != null) {
+            spoolGaugeValues(spool, gaugeValueMessage);
+        }
     }
 
     @Override
@@ -243,9 +277,19 @@ public class CentralCollector implements Collector {
         if (traceReader.partial()) {
             // do not retry partial transactions since they are live and reading from the trace
             // reader will not be idempotent, so could lead to confusing results
+            //
+            // for the same reason, partial transactions are never spooled
             centralConnection.blockingCallOnce(new CollectTraceGrpcCall(traceReader));
-        } else {
-            centralConnection.blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+            return;
+        }
+        if (spool != null && !spool.isEmpty()) {
+            spoolTrace(spool, traceReader);
+            return;
+        }
+        boolean sent = centralConnection
+                .blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+        if (!sent && spool != null) {
+            spoolTrace(spool, traceReader);
         }
     }
 
@@ -273,15 +317,166 @@ public class CentralCollector implements Collector {
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        if (spoolDrainExecutor != null) {
+            spoolDrainExecutor.shutdown();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
 
     @OnlyUsedByTests
     public void awaitClose() throws InterruptedException {
+        if (spoolDrainExecutor != null
+                && !spoolDrainExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         centralConnection.awaitClose();
     }
 
+    private long getAggregateDelayMillis(long captureTime) {
+        int flushOffsetMillis = aggregateFlushOffsetMillis;
+        if (flushOffsetMillis == 0) {
+            return nextAggregateDelayMillis;
+        }
+        // the slot is relative to the end of the aggregate interval (which is the capture time),
+        // so if aggregation took a while (or is backlogged) then the delay is reduced accordingly
+        return Math.max(0, captureTime + flushOffsetMillis - System.currentTimeMillis());
+    }
+
+    private void spoolAggregates(CentralCollectorSpool spool, AggregateReader aggregateReader) {
+        RecordingStreamObserver<AggregateStreamMessage> requestObserver =
+                new RecordingStreamObserver<AggregateStreamMessage>();
+        try {
+            // the shared query text sha1s are discarded since there is no way to know if/when the
+            // full texts will be successfully sent from the spool
+            writeAggregateStream(aggregateReader, requestObserver, Lists.<String>newArrayList());
+            spool.append(CentralCollectorSpool.AGGREGATES, aggregateReader.captureTime(),
+                    requestObserver.messages);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void spoolGaugeValues(CentralCollectorSpool spool,
+            GaugeValueMessage gaugeValueMessage) {
+        long captureTime = 0;
+        if (gaugeValueMessage.getGaugeValueCount() > 0) {
+            captureTime = gaugeValueMessage.getGaugeValue(0).getCaptureTime();
+        }
+        try {
+            spool.append(CentralCollectorSpool.GAUGE_VALUES, captureTime,
+                    ImmutableList.of(gaugeValueMessage));
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void spoolTrace(CentralCollectorSpool spool, TraceReader traceReader) {
+        RecordingStreamObserver<TraceStreamMessage> requestObserver =
+                new RecordingStreamObserver<TraceStreamMessage>();
+        try {
+            writeTraceStream(traceReader, requestObserver, Lists.<String>newArrayList());
+            spool.append(CentralCollectorSpool.TRACE, traceReader.captureTime(),
+                    requestObserver.messages);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    // returns false if the record could not be sent and should be retried later
+    private boolean sendSpooledRecord(SpooledRecord record) throws Exception {
+        switch (record.kind()) {
+            case CentralCollectorSpool.AGGREGATES:
+                final List<AggregateStreamMessage> aggregateStreamMessages =
+                        record.messages(AggregateStreamMessage.parser());
+                return centralConnection
+                        .blockingCallWithAFewRetries(new GrpcCall<AggregateResponseMessage>() {
+                            @Override
+                            void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                                replay(collectorServiceStub.collectAggregateStream(
+                                        responseObserver), aggregateStreamMessages);
+                            }
+                        });
+            case CentralCollectorSpool.TRACE:
+                final List<TraceStreamMessage> traceStreamMessages =
+                        record.messages(TraceStreamMessage.parser());
+                return centralConnection.blockingCallWithAFewRetries(new GrpcCall<EmptyMessage>() {
+                    @Override
+                    void call(StreamObserver<EmptyMessage> responseObserver) {
+                        replay(collectorServiceStub.collectTraceStream(responseObserver),
+                                traceStreamMessages);
+                    }
+                });
+            case CentralCollectorSpool.GAUGE_VALUES:
+                List<GaugeValueMessage> gaugeValueMessages =
+                        record.messages(GaugeValueMessage.parser());
+                if (gaugeValueMessages.isEmpty()) {
+                    return true;
+                }
+                return centralConnection.blockingCallWithAFewRetries(
+                        new GaugeValuesGrpcCall(gaugeValueMessages.get(0)));
+            default:
+                logger.warn("unexpected spooled record kind: {}", record.kind());
+                return true;
+        }
+    }
+
+    private void writeAggregateStream(AggregateReader aggregateReader,
+            StreamObserver<AggregateStreamMessage> requestObserver, List<String> fullTextSha1s)
+            throws Exception {
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setCaptureTime(aggregateReader.captureTime())
+                        .setPostV09(true))
+                .build());
+        aggregateReader.accept(
+                new AggregateVisitorImpl(aggregateReader, requestObserver, fullTextSha1s));
+    }
+
+    private void writeTraceStream(TraceReader traceReader,
+            StreamObserver<TraceStreamMessage> requestObserver, List<String> fullTextSha1s)
+            throws Exception {
+        requestObserver.onNext(TraceStreamMessage.newBuilder()
+                .setStreamHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentId)
+                        .setTraceId(traceReader.traceId())
+                        .setUpdate(traceReader.update())
+                        .setPostV09(true))
+                .build());
+        TraceVisitorImpl traceVisitor =
+                new TraceVisitorImpl(requestObserver, fullTextSha1s, traceEntryBatching);
+        traceReader.accept(traceVisitor);
+        traceVisitor.flushEntries();
+        requestObserver.onNext(TraceStreamMessage.newBuilder()
+                .setStreamCounts(TraceStreamCounts.newBuilder()
+                        .setEntryCount(traceVisitor.entryCount)
+                        .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
+                .build());
+    }
+
+    private static <T> void replay(StreamObserver<T> requestObserver, List<T> messages) {
+        for (T message : messages) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onCompleted();
+    }
+
+    private static int getSpoolMaxSizeMb(Map<String, String> properties) {
+        String value = properties.get("glowroot.collector.spool.maxSizeMb");
+        if (value == null) {
+            return 50;
+        }
+        try {
+            // capped to keep the memory-mapped file size within int range
+            return Math.min(Integer.parseInt(value.trim()), 1024);
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            startupLogger.warn("invalid glowroot.collector.spool.maxSizeMb value: {}", value);
+            return 50;
+        }
+    }
+
     @VisibleForTesting
     static String escapeHostname(String hostname) {
         hostname = hostname.replace("\\", "\\\\");
@@ -342,6 +537,15 @@ public class CentralCollector implements Collector {
         return agentPatch > centralPatch;
     }
 
+    @VisibleForTesting
+    static boolean isCentralVersionAtLeast(String centralVersion, String version) {
+        if (!Pattern.matches("\\d+\\.\\d+\\.\\d+\\b.*", centralVersion)) {
+            // e.g. unknown version, assume older central collector
+            return false;
+        }
+        return !isAgentVersionGreaterThanCentralVersion(version, centralVersion);
+    }
+
     private static String readConfigSyncedAgentId(File file) throws IOException {
         if (file.exists()) {
             Properties properties = PropertiesFiles.load(file);
@@ -393,16 +597,10 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
-            requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                    .setStreamHeader(AggregateStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime())
-                            .setPostV09(true))
-                    .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                writeAggregateStream(aggregateReader, requestObserver, fullTextSha1s);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -415,52 +613,41 @@ public class CentralCollector implements Collector {
         public void doWithResponse(AggregateResponseMessage response) {
             // Math.min is just for safety
             nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            aggregateFlushOffsetMillis = Math.min(response.getAggregateFlushOffsetMillis(), 30000);
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
         }
+    }
 
-        private class AggregateVisitorImpl implements AggregateVisitor {
+    private class GaugeValuesGrpcCall extends GrpcCall<GaugeValueResponseMessage> {
 
-            private final StreamObserver<AggregateStreamMessage> requestObserver;
+        private final GaugeValueMessage gaugeValueMessage;
 
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
-                this.requestObserver = requestObserver;
-            }
+        private GaugeValuesGrpcCall(GaugeValueMessage gaugeValueMessage) {
+            this.gaugeValueMessage = gaugeValueMessage;
+        }
 
-            @Override
-            public void visitOverallAggregate(String transactionType,
-                    List<String> sharedQueryTexts, Aggregate overallAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                            .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s);
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(aggregateSharedQueryText)
-                            .build());
-                }
-                requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
-                        .build());
-            }
+        @Override
+        public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
+            collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+        }
 
-            @Override
-            public void visitTransactionAggregate(String transactionType,
-                    String transactionName, List<String> sharedQueryTexts,
-                    Aggregate transactionAggregate) {
-                for (String sharedQueryText : sharedQueryTexts) {
-                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                            .setSharedQueryText(sharedQueryTextLimiter
-                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
-                            .build());
-                }
-                requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
-                        .build());
+        @Override
+        public void doWithResponse(GaugeValueResponseMessage response) {
+            if (response.getResendInit() && environment != null) {
+                final InitMessage initMessage = InitMessage.newBuilder()
+                        .setAgentId(agentId)
+                        .setEnvironment(environment)
+                        .setAgentConfig(configService.getAgentConfig())
+                        .build();
+                // only once, since resendInit will continue to be sent back until it succeeds
+                centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
+                    @Override
+                    void call(StreamObserver<InitResponse> responseObserver) {
+                        collectorServiceStub.collectInit(initMessage, responseObserver);
+                    }
+                });
             }
         }
     }
@@ -479,28 +666,15 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
-            requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setStreamHeader(TraceStreamHeader.newBuilder()
-                            .setAgentId(agentId)
-                            .setTraceId(traceReader.traceId())
-                            .setUpdate(traceReader.update())
-                            .setPostV09(true))
-                    .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
-            TraceVisitorImpl traceVisitor = new TraceVisitorImpl(requestObserver, fullTextSha1s);
             try {
-                traceReader.accept(traceVisitor);
+                writeTraceStream(traceReader, requestObserver, fullTextSha1s);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
                 return;
             }
-            requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setStreamCounts(TraceStreamCounts.newBuilder()
-                            .setEntryCount(traceVisitor.entryCount)
-                            .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
-                    .build());
             requestObserver.onCompleted();
         }
 
@@ -512,26 +686,103 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private class AggregateVisitorImpl implements AggregateVisitor {
+
+        private final AggregateReader aggregateReader;
+        private final StreamObserver<AggregateStreamMessage> requestObserver;
+        private final List<String> fullTextSha1s;
+
+        private AggregateVisitorImpl(AggregateReader aggregateReader,
+                StreamObserver<AggregateStreamMessage> requestObserver,
+                List<String> fullTextSha1s) {
+            this.aggregateReader = aggregateReader;
+            this.requestObserver = requestObserver;
+            this.fullTextSha1s = fullTextSha1s;
+        }
+
+        @Override
+        public void visitOverallAggregate(String transactionType,
+                List<String> sharedQueryTexts, Aggregate overallAggregate) {
+            for (String sharedQueryText : sharedQueryTexts) {
+                Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
+                        .buildAggregateSharedQueryText(sharedQueryText,
+                                aggregateReader.getFullTextSha1(sharedQueryText), fullTextSha1s);
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setSharedQueryText(aggregateSharedQueryText)
+                        .build());
+            }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setOverallAggregate(OverallAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setAggregate(overallAggregate))
+                    .build());
+        }
+
+        @Override
+        public void visitTransactionAggregate(String transactionType,
+                String transactionName, List<String> sharedQueryTexts,
+                Aggregate transactionAggregate) {
+            for (String sharedQueryText : sharedQueryTexts) {
+                requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                        .setSharedQueryText(sharedQueryTextLimiter.buildAggregateSharedQueryText(
+                                sharedQueryText, aggregateReader.getFullTextSha1(sharedQueryText),
+                                fullTextSha1s))
+                        .build());
+            }
+            requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(TransactionAggregate.newBuilder()
+                            .setTransactionType(transactionType)
+                            .setTransactionName(transactionName)
+                            .setAggregate(transactionAggregate))
+                    .build());
+        }
+    }
+
     private class TraceVisitorImpl implements TraceVisitor {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
         private final List<String> fullTextSha1s;
+        private final boolean entryBatching;
+
+        private final Entries.Builder entryBatch = Entries.newBuilder();
+        private int entryBatchBytes;
 
         private int entryCount;
         private int sharedQueryTextCount;
 
         private TraceVisitorImpl(StreamObserver<TraceStreamMessage> requestObserver,
-                List<String> fullTextSha1s) {
+                List<String> fullTextSha1s, boolean entryBatching) {
             this.requestObserver = requestObserver;
             this.fullTextSha1s = fullTextSha1s;
+            this.entryBatching = entryBatching;
         }
 
         @Override
         public void visitEntry(Trace.Entry entry) {
+            entryCount++;
+            if (!entryBatching) {
+                requestObserver.onNext(TraceStreamMessage.newBuilder()
+                        .setEntry(entry)
+                        .build());
+                return;
+            }
+            entryBatch.addEntry(entry);
+            // serialized size is memoized, so this doesn't add to the cost of sending the entry
+            entryBatchBytes += entry.getSerializedSize();
+            if (entryBatchBytes >= TRACE_ENTRY_BATCH_MAX_BYTES) {
+                flushEntries();
+            }
+        }
+
+        private void flushEntries() {
+            if (entryBatch.getEntryCount() == 0) {
+                return;
+            }
             requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setEntry(entry)
+                    .setEntries(entryBatch)
                     .build());
-            entryCount++;
+            entryBatch.clear();
+            entryBatchBytes = 0;
         }
 
         @Override
@@ -575,4 +826,33 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class SpooledRecordSenderImpl implements SpooledRecordSender {
+
+        @Override
+        public boolean isConnected() {
+            return environment != null && !centralConnection.isInConnectionFailure();
+        }
+
+        @Override
+        public boolean send(SpooledRecord record) throws Exception {
+            return sendSpooledRecord(record);
+        }
+    }
+
+    private static class RecordingStreamObserver<T> implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
 }
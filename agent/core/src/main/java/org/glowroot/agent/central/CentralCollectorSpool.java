@@ -0,0 +1,295 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// bounded, append-only ring buffer (backed by a memory-mapped file) that holds data which could not
+// be sent to the central collector, so that it can be replayed (in the same order that it was
+// captured) once the connection to the central collector recovers
+//
+// head and tail indexes are ever-increasing, and are mapped onto the ring by modulo capacity
+//
+// when the spool is full, the oldest records are dropped to make room for the newest ones
+class CentralCollectorSpool {
+
+    static final byte AGGREGATES = 1;
+    static final byte TRACE = 2;
+    static final byte GAUGE_VALUES = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralCollectorSpool.class);
+
+    private static final int MAGIC = 0x474C5350;
+
+    // magic (int), capacity (int), head index (long), tail index (long)
+    private static final int HEADER_SIZE = 24;
+    private static final int HEAD_INDEX_OFFSET = 8;
+    private static final int TAIL_INDEX_OFFSET = 16;
+
+    // record length (int), kind (byte), capture time (long)
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private final File file;
+    private final int capacity;
+
+    private final RateLimitedLogger droppingLogger =
+            new RateLimitedLogger(CentralCollectorSpool.class);
+
+    // the file is only created the first time data needs to be spooled
+    @GuardedBy("this")
+    private @Nullable MappedByteBuffer buffer;
+    @GuardedBy("this")
+    private long headIndex;
+    @GuardedBy("this")
+    private long tailIndex;
+    @GuardedBy("this")
+    private long droppedRecordCount;
+
+    CentralCollectorSpool(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        if (file.exists()) {
+            openExisting();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return headIndex == tailIndex;
+    }
+
+    // returns false if the record was too large to be spooled
+    synchronized boolean append(byte kind, long captureTime, List<? extends MessageLite> messages)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        // placeholder for the record length
+        out.writeInt(0);
+        out.writeByte(kind);
+        out.writeLong(captureTime);
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(out);
+        }
+        byte[] record = baos.toByteArray();
+        int recordLength = record.length;
+        // limit single record to half of the capacity so that a single large trace doesn't wipe
+        // out everything else in the spool
+        if (recordLength > capacity / 2) {
+            droppingLogger.warn("data is too large to be spooled while the central collector is"
+                    + " unavailable ({} bytes), dropping it", recordLength);
+            return false;
+        }
+        ByteBuffer.wrap(record).putInt(0, recordLength);
+        MappedByteBuffer buffer = getOrCreateBuffer();
+        int droppedCount = 0;
+        while (tailIndex - headIndex + recordLength > capacity) {
+            headIndex += readInt(buffer, headIndex);
+            droppedCount++;
+        }
+        if (droppedCount > 0) {
+            droppedRecordCount += droppedCount;
+            droppingLogger.warn("spool for data that could not be sent to the central collector is"
+                    + " full, dropped the oldest {} record(s)", droppedCount);
+        }
+        write(buffer, tailIndex, record);
+        tailIndex += recordLength;
+        writeIndexes(buffer);
+        return true;
+    }
+
+    synchronized @Nullable SpooledRecord peek() {
+        MappedByteBuffer buffer = this.buffer;
+        if (headIndex == tailIndex || buffer == null) {
+            return null;
+        }
+        byte[] record = new byte[readInt(buffer, headIndex)];
+        read(buffer, headIndex, record);
+        return new SpooledRecord(headIndex, record);
+    }
+
+    synchronized void remove(SpooledRecord record) {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer == null || record.index != headIndex) {
+            // the record has already been dropped to make room for newer data
+            return;
+        }
+        headIndex += record.bytes.length;
+        writeIndexes(buffer);
+    }
+
+    synchronized long getDroppedRecordCount() {
+        return droppedRecordCount;
+    }
+
+    @OnlyUsedByTests
+    synchronized long getSize() {
+        return tailIndex - headIndex;
+    }
+
+    @GuardedBy("this")
+    private void openExisting() throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != HEADER_SIZE + capacity || raf.readInt() != MAGIC
+                    || raf.readInt() != capacity) {
+                // from a different version, or the configured capacity has changed
+                logger.warn("discarding unrecognized spool file: {}", file.getAbsolutePath());
+                raf.setLength(0);
+                return;
+            }
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        this.buffer = buffer;
+        headIndex = buffer.getLong(HEAD_INDEX_OFFSET);
+        tailIndex = buffer.getLong(TAIL_INDEX_OFFSET);
+        if (!isValid(buffer)) {
+            // e.g. torn writes from an operating system crash
+            logger.warn("discarding corrupt spool file: {}", file.getAbsolutePath());
+            headIndex = 0;
+            tailIndex = 0;
+            writeIndexes(buffer);
+        }
+    }
+
+    @GuardedBy("this")
+    private boolean isValid(MappedByteBuffer buffer) {
+        if (headIndex < 0 || tailIndex < headIndex || tailIndex - headIndex > capacity) {
+            return false;
+        }
+        long index = headIndex;
+        while (index < tailIndex) {
+            int recordLength = readInt(buffer, index);
+            if (recordLength < RECORD_HEADER_SIZE || index + recordLength > tailIndex) {
+                return false;
+            }
+            index += recordLength;
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private MappedByteBuffer getOrCreateBuffer() throws IOException {
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer != null) {
+            return buffer;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, capacity);
+        writeIndexes(buffer);
+        this.buffer = buffer;
+        return buffer;
+    }
+
+    @GuardedBy("this")
+    private void writeIndexes(MappedByteBuffer buffer) {
+        buffer.putLong(HEAD_INDEX_OFFSET, headIndex);
+        buffer.putLong(TAIL_INDEX_OFFSET, tailIndex);
+    }
+
+    private int readInt(MappedByteBuffer buffer, long index) {
+        byte[] bytes = new byte[4];
+        read(buffer, index, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private void write(MappedByteBuffer buffer, long index, byte[] bytes) {
+        int pos = (int) (index % capacity);
+        int firstLength = Math.min(bytes.length, capacity - pos);
+        buffer.position(HEADER_SIZE + pos);
+        buffer.put(bytes, 0, firstLength);
+        if (firstLength < bytes.length) {
+            // wrap around
+            buffer.position(HEADER_SIZE);
+            buffer.put(bytes, firstLength, bytes.length - firstLength);
+        }
+    }
+
+    private void read(MappedByteBuffer buffer, long index, byte[] bytes) {
+        int pos = (int) (index % capacity);
+        int firstLength = Math.min(bytes.length, capacity - pos);
+        buffer.position(HEADER_SIZE + pos);
+        buffer.get(bytes, 0, firstLength);
+        if (firstLength < bytes.length) {
+            // wrap around
+            buffer.position(HEADER_SIZE);
+            buffer.get(bytes, firstLength, bytes.length - firstLength);
+        }
+    }
+
+    static class SpooledRecord {
+
+        private final long index;
+        private final byte[] bytes;
+
+        SpooledRecord(long index, byte[] bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+
+        long index() {
+            return index;
+        }
+
+        byte kind() {
+            return bytes[4];
+        }
+
+        long captureTime() {
+            return ByteBuffer.wrap(bytes).getLong(5);
+        }
+
+        <T extends MessageLite> List<T> messages(Parser<T> parser) throws IOException {
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes, RECORD_HEADER_SIZE,
+                    bytes.length - RECORD_HEADER_SIZE);
+            List<T> messages = Lists.newArrayList();
+            T message;
+            while ((message = parser.parseDelimitedFrom(in)) != null) {
+                messages.add(message);
+            }
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.central.CentralCollectorSpool.SpooledRecord;
+import org.glowroot.common.util.ScheduledRunnable;
+
+class CentralCollectorSpoolDrainer extends ScheduledRunnable {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CentralCollectorSpoolDrainer.class);
+
+    // a spooled record that the central collector fails to accept this many times in a row while
+    // the connection itself is healthy is dropped, so that it does not block the records behind it
+    private static final int MAX_ATTEMPTS =
+            Integer.getInteger("glowroot.collector.spool.maxAttempts", 3);
+
+    private final CentralCollectorSpool spool;
+    private final SpooledRecordSender sender;
+    private final int maxAttempts;
+
+    private long failedRecordIndex = -1;
+    private int failedAttempts;
+
+    CentralCollectorSpoolDrainer(CentralCollectorSpool spool, SpooledRecordSender sender) {
+        this(spool, sender, MAX_ATTEMPTS);
+    }
+
+    @VisibleForTesting
+    CentralCollectorSpoolDrainer(CentralCollectorSpool spool, SpooledRecordSender sender,
+            int maxAttempts) {
+        this.spool = spool;
+        this.sender = sender;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        // records are replayed in the order they were spooled, which is capture time order
+        SpooledRecord record;
+        while (sender.isConnected() && (record = spool.peek()) != null) {
+            if (send(record)) {
+                spool.remove(record);
+                failedRecordIndex = -1;
+                continue;
+            }
+            if (!sender.isConnected()) {
+                // the central collector is unreachable, which says nothing about the record itself,
+                // so try again on next run without counting this attempt
+                return;
+            }
+            if (record.index() == failedRecordIndex) {
+                failedAttempts++;
+            } else {
+                failedRecordIndex = record.index();
+                failedAttempts = 1;
+            }
+            if (failedAttempts < maxAttempts) {
+                // try again on next run
+                return;
+            }
+            logger.warn("dropping spooled data (captured at {}) after the central collector failed"
+                    + " to accept it {} times", record.captureTime(), failedAttempts);
+            spool.remove(record);
+            failedRecordIndex = -1;
+        }
+    }
+
+    private boolean send(SpooledRecord record) throws InterruptedException {
+        try {
+            return sender.send(record);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // e.g. the record could not be parsed, which is not going to get any better by waiting
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    interface SpooledRecordSender {
+
+        // false while there is no established connection to the central collector
+        boolean isConnected();
+
+        // returns false if the record could not be sent
+        boolean send(SpooledRecord record) throws Exception;
+    }
+}
@@ -148,30 +148,40 @@ class CentralConnection {
         return channel;
     }
 
-    <T extends /*@NonNull*/ Object> void blockingCallOnce(GrpcCall<T> call)
+    boolean isInConnectionFailure() {
+        return inConnectionFailure.get();
+    }
+
+    <T extends /*@NonNull*/ Object> boolean blockingCallOnce(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(-1, call);
+        return blockingCallWithAFewRetries(-1, call);
     }
 
     // important that these calls are idempotent
-    <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(GrpcCall<T> call)
+    //
+    // returns false if the data could not be sent to the central collector (e.g. the connection is
+    // down or the central collector is refusing data), in which case the caller may want to hold on
+    // to the data and try again later
+    <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(30000, call);
+        return blockingCallWithAFewRetries(30000, call);
     }
 
     // important that these calls are idempotent
-    private <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(int maxTotalMillis,
-            GrpcCall<T> call) throws InterruptedException {
+    private <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(
+            int maxTotalMillis, GrpcCall<T> call) throws InterruptedException {
         if (closed) {
-            return;
+            // nothing to hold on to since the agent is shutting down
+            return true;
         }
         if (inConnectionFailure.get()) {
-            return;
+            return false;
         }
         RetryingStreamObserver<T> responseObserver =
                 new RetryingStreamObserver<T>(call, maxTotalMillis, maxTotalMillis, false);
         call.call(responseObserver);
         responseObserver.waitForFinish();
+        return responseObserver.completed;
     }
 
     <T extends /*@NonNull*/ Object> void asyncCallOnce(GrpcCall<T> call) {
@@ -312,6 +322,7 @@ class CentralConnection {
         private final Stopwatch stopwatch = Stopwatch.createStarted();
 
         private volatile long nextDelayMillis = 2000;
+        private volatile boolean completed;
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
@@ -342,6 +353,7 @@ class CentralConnection {
                 inMaybeInitFailure = false;
                 initCallSucceeded = true;
             }
+            completed = true;
             latch.countDown();
         }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,6 +21,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -39,10 +40,12 @@ class SharedQueryTextLimiter {
             .maximumSize(10000)
             .build();
 
+    // knownFullTextSha1 is the sha1 that was already computed while aggregating, if available
     Aggregate.SharedQueryText buildAggregateSharedQueryText(String fullText,
-            List<String> fullTextSha1s) {
+            @Nullable String knownFullTextSha1, List<String> fullTextSha1s) {
         if (fullText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-            String fullTextSha1 = Hashing.sha1().hashString(fullText, UTF_8).toString();
+            String fullTextSha1 = knownFullTextSha1 == null
+                    ? Hashing.sha1().hashString(fullText, UTF_8).toString() : knownFullTextSha1;
             if (sentInThePastDay.getIfPresent(fullTextSha1) == null) {
                 // need to send full text
                 fullTextSha1s.add(fullTextSha1);
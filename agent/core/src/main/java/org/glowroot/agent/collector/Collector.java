@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -47,6 +49,9 @@ public interface Collector {
 
     public interface AggregateReader {
         long captureTime();
+        // returns the sha1 of the full query text if it was already computed while aggregating,
+        // so that collectors don't need to re-hash it
+        @Nullable String getFullTextSha1(String fullText);
         void accept(AggregateVisitor aggregateVisitor) throws Exception;
     }
 
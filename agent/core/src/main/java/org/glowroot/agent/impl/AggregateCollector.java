@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,6 +23,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.impl.Transaction.RootTimerCollector;
 import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
+import org.glowroot.agent.model.FullQueryTextIndex;
 import org.glowroot.agent.model.MutableAggregateTimer;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.ServiceCallCollector;
@@ -80,13 +81,14 @@ class AggregateCollector {
     private final Object lock = new Object();
 
     AggregateCollector(@Nullable String transactionName, int maxQueryAggregates,
-            int maxServiceCallAggregates) {
+            int maxServiceCallAggregates, FullQueryTextIndex fullQueryTextIndex) {
         this.transactionName = transactionName;
 
         int queriesHardLimitMultiplierWhileBuilding = transactionName == null
                 ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
                 : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
-        queries = new QueryCollector(maxQueryAggregates, queriesHardLimitMultiplierWhileBuilding);
+        queries = new QueryCollector(maxQueryAggregates, queriesHardLimitMultiplierWhileBuilding,
+                fullQueryTextIndex);
 
         int serviceCallsHardLimitMultiplierWhileBuilding = transactionName == null
                 ? AdvancedConfig.OVERALL_AGGREGATE_SERVICE_CALLS_HARD_LIMIT_MULTIPLIER
@@ -95,7 +97,9 @@ class AggregateCollector {
                 serviceCallsHardLimitMultiplierWhileBuilding);
     }
 
-    void mergeDataFrom(Transaction transaction) {
+    // when degraded is true (see TransactionProcessor), the transaction still counts toward the
+    // totals, timers and histogram, but its queries, service calls and profiles are not merged
+    void mergeDataFrom(Transaction transaction, boolean degraded) {
         synchronized (lock) {
             long totalDurationNanos = transaction.getDurationNanos();
             this.totalDurationNanos += totalDurationNanos;
@@ -125,6 +129,9 @@ class AggregateCollector {
                 transaction.mergeAsyncTimersInto(asyncTimers);
             }
             durationNanosHistogram.add(totalDurationNanos);
+            if (degraded) {
+                return;
+            }
             transaction.mergeQueriesInto(queries);
             transaction.mergeServiceCallsInto(serviceCalls);
             ThreadProfile toBeMergedMainThreadProfile = transaction.getMainThreadProfile();
@@ -144,6 +151,54 @@ class AggregateCollector {
         }
     }
 
+    // used to combine the collectors from different aggregate processing shards
+    void mergeFrom(AggregateCollector collector) {
+        synchronized (collector.lock) {
+            synchronized (lock) {
+                totalDurationNanos += collector.totalDurationNanos;
+                transactionCount += collector.transactionCount;
+                errorCount += collector.errorCount;
+                if (collector.asyncTransactions) {
+                    asyncTransactions = true;
+                }
+                mainThreadStats.merge(collector.mainThreadStats);
+                mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+                if (collector.auxThreadRootTimer != null) {
+                    if (auxThreadRootTimer == null) {
+                        auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+                    }
+                    auxThreadRootTimer.merge(collector.auxThreadRootTimer);
+                    if (auxThreadStats == null) {
+                        auxThreadStats = new ThreadStatsCollectorImpl();
+                    }
+                    // aux thread stats is non-null when aux thread root timer is non-null
+                    auxThreadStats.merge(checkNotNull(collector.auxThreadStats));
+                }
+                if (collector.asyncTimers != null) {
+                    if (asyncTimers == null) {
+                        asyncTimers = new RootTimerCollectorImpl();
+                    }
+                    asyncTimers.merge(collector.asyncTimers);
+                }
+                durationNanosHistogram.merge(collector.durationNanosHistogram);
+                collector.queries.mergeQueriesInto(queries);
+                collector.serviceCalls.mergeServiceCallsInto(serviceCalls);
+                if (collector.mainThreadProfile != null) {
+                    if (mainThreadProfile == null) {
+                        mainThreadProfile = new MutableProfile();
+                    }
+                    mainThreadProfile.merge(collector.mainThreadProfile);
+                }
+                if (collector.auxThreadProfile != null) {
+                    if (auxThreadProfile == null) {
+                        auxThreadProfile = new MutableProfile();
+                    }
+                    auxThreadProfile.merge(collector.auxThreadProfile);
+                }
+            }
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
         synchronized (lock) {
@@ -249,16 +304,6 @@ class AggregateCollector {
         }
     }
 
-    @Nullable
-    String getFullQueryText(String fullQueryTextSha1) {
-        if (queries == null) {
-            return null;
-        }
-        synchronized (lock) {
-            return queries.getFullQueryText(fullQueryTextSha1);
-        }
-    }
-
     void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
         if (queries != null) {
             synchronized (lock) {
@@ -310,6 +355,25 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = new MutableAggregateTimer(toBeMergedRootTimer.getName(),
+                            toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -338,6 +402,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
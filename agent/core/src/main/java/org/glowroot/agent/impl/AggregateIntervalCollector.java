@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,18 +15,27 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.model.FullQueryTextIndex;
+import org.glowroot.agent.model.FullQueryTextPool;
 import org.glowroot.agent.model.SharedQueryTextCollection;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
@@ -43,82 +52,109 @@ import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 public class AggregateIntervalCollector {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateIntervalCollector.class);
+
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
+    // upper bound on how long flush() waits for the shard threads to finish adding transactions to
+    // this interval (e.g. in case a shard thread has died or has been interrupted at shutdown)
+    private static final long SHARD_ADD_WAIT_MILLIS =
+            Long.getLong("glowroot.aggregate.processing.shardWaitMillis", 30000);
+
     private final long captureTime;
     private final int maxTransactionAggregates;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
-            Maps.newConcurrentMap();
+    // when aggregate processing is sharded, each shard has its own type collectors which are only
+    // written to by that shard's thread, and the shards are merged at flush time
+    private final List<ConcurrentMap<String, IntervalTypeCollector>> shards;
+
+    // number of transactions handed off to shard threads that have not been added yet
+    private final AtomicInteger pendingShardAdds = new AtomicInteger();
+    // set when flush() gives up waiting on pendingShardAdds, after which late shard adds are
+    // dropped since the interval is already being (or has been) flushed
+    private volatile boolean shardAddsAbandoned;
+
+    // shared by all of the query collectors in this interval (across all shards)
+    private final FullQueryTextIndex fullQueryTextIndex;
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            int shardCount, FullQueryTextPool fullQueryTextPool, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        List<ConcurrentMap<String, IntervalTypeCollector>> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Maps.<String, IntervalTypeCollector>newConcurrentMap());
+        }
+        this.shards = ImmutableList.copyOf(shards);
+        fullQueryTextIndex = new FullQueryTextIndex(fullQueryTextPool);
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
-        if (typeCollector == null) {
-            // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transaction.getTransactionType(), typeCollector);
-        }
-        typeCollector.add(transaction);
+    public void add(Transaction transaction, boolean degraded) {
+        add(transaction, degraded, shards.get(0));
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
     }
 
     public void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            Collection<AggregateCollector> transactionAggregateCollectors =
+                    typeCollector.transactionAggregateCollectors.values();
+            for (AggregateCollector aggregateCollector : transactionAggregateCollectors) {
+                aggregateCollector.mergeTransactionNameSummariesInto(collector);
+            }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector != null) {
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+            }
         }
-        typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
     }
 
     public void mergeTransactionNameErrorSummariesInto(
             TransactionNameErrorSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                continue;
+            }
+            Collection<AggregateCollector> transactionAggregateCollectors =
+                    typeCollector.transactionAggregateCollectors.values();
+            for (AggregateCollector aggregateCollector : transactionAggregateCollectors) {
+                aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+            }
         }
     }
 
@@ -156,81 +192,212 @@ public class AggregateIntervalCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-            if (fullQueryText != null) {
-                return fullQueryText;
-            }
-        }
-        return null;
+        return fullQueryTextIndex.getFullText(fullQueryTextSha1);
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeQueriesInto(collector);
         }
-        aggregateCollector.mergeQueriesInto(collector);
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeServiceCallsInto(collector);
         }
-        aggregateCollector.mergeServiceCallsInto(collector);
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
-        aggregateCollector.mergeMainThreadProfilesInto(collector);
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
-        aggregateCollector.mergeAuxThreadProfilesInto(collector);
     }
 
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        return typeCollectors.keySet();
+        if (shards.size() == 1) {
+            return shards.get(0).keySet();
+        }
+        Set<String> transactionTypes = Sets.newHashSet();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            transactionTypes.addAll(typeCollectors.keySet());
+        }
+        return transactionTypes;
+    }
+
+    // called from the shard thread
+    void add(Transaction transaction, boolean degraded, int shardIndex) {
+        try {
+            if (!shardAddsAbandoned) {
+                add(transaction, degraded, shards.get(shardIndex));
+            }
+        } finally {
+            shardAddDone();
+        }
+    }
+
+    // called from the TransactionProcessorLoop prior to handing off the transaction to the shard
+    // thread
+    void beforeShardAdd() {
+        pendingShardAdds.incrementAndGet();
+    }
+
+    // called from the TransactionProcessorLoop when the shard thread rejected the transaction
+    void cancelShardAdd() {
+        shardAddDone();
     }
 
     void flush(Collector collector) throws Exception {
-        collector.collectAggregates(new AggregateReaderImpl(captureTime));
+        flush(collector, SHARD_ADD_WAIT_MILLIS);
+    }
+
+    @VisibleForTesting
+    void flush(Collector collector, long shardAddWaitMillis) throws Exception {
+        try {
+            // wait for the shard threads to finish adding transactions to this interval (no new
+            // transactions can be handed off since this is no longer the active interval)
+            if (!awaitShardAdds(shardAddWaitMillis)) {
+                shardAddsAbandoned = true;
+                logger.warn("timed out after {} milliseconds waiting for aggregate processing"
+                        + " shards, flushing aggregate without {} pending transactions",
+                        shardAddWaitMillis, pendingShardAdds.get());
+            }
+            collector.collectAggregates(new AggregateReaderImpl(captureTime));
+        } finally {
+            // this interval is no longer visible to the UI once it has been handed off for flushing
+            fullQueryTextIndex.release();
+        }
+    }
+
+    // called instead of flush() when this interval is dropped because of an excessive backlog
+    void discard() {
+        fullQueryTextIndex.release();
     }
 
     void clear() {
-        typeCollectors.clear();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            typeCollectors.clear();
+        }
+        fullQueryTextIndex.clear();
+    }
+
+    private void shardAddDone() {
+        if (pendingShardAdds.decrementAndGet() == 0) {
+            synchronized (pendingShardAdds) {
+                pendingShardAdds.notifyAll();
+            }
+        }
+    }
+
+    // returns false if timed out
+    private boolean awaitShardAdds(long maxWaitMillis) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(maxWaitMillis);
+        synchronized (pendingShardAdds) {
+            while (pendingShardAdds.get() > 0) {
+                long remainingMillis =
+                        NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                pendingShardAdds.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    static int getShardIndex(Transaction transaction, int shardCount) {
+        int hash = 31 * transaction.getTransactionType().hashCode()
+                + transaction.getTransactionName().hashCode();
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    private void add(Transaction transaction, boolean degraded,
+            ConcurrentMap<String, IntervalTypeCollector> typeCollectors) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
+        if (typeCollector == null) {
+            // don't need to worry about race condition here because each shard is only added to
+            // from a single thread (TransactionProcessorLoop or the shard's own thread)
+            typeCollector = new IntervalTypeCollector();
+            typeCollectors.put(transaction.getTransactionType(), typeCollector);
+        }
+        typeCollector.add(transaction, degraded);
     }
 
     // can be called without lock
     private @Nullable AggregateCollector getAggregateCollector(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
+        List<AggregateCollector> aggregateCollectors =
+                getAggregateCollectors(transactionType, transactionName);
+        if (aggregateCollectors.isEmpty()) {
             return null;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        if (aggregateCollectors.size() == 1) {
+            return aggregateCollectors.get(0);
         }
+        AggregateCollector mergedAggregateCollector =
+                new AggregateCollector(transactionName, maxQueryAggregates,
+                        maxServiceCallAggregates, fullQueryTextIndex);
+        for (AggregateCollector aggregateCollector : aggregateCollectors) {
+            mergedAggregateCollector.mergeFrom(aggregateCollector);
+        }
+        return mergedAggregateCollector;
+    }
+
+    // can be called without lock
+    private List<AggregateCollector> getAggregateCollectors(String transactionType,
+            @Nullable String transactionName) {
+        List<AggregateCollector> aggregateCollectors = Lists.newArrayList();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                continue;
+            }
+            AggregateCollector aggregateCollector;
+            if (transactionName == null) {
+                aggregateCollector = intervalTypeCollector.overallAggregateCollector;
+            } else {
+                aggregateCollector =
+                        intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+            if (aggregateCollector != null) {
+                aggregateCollectors.add(aggregateCollector);
+            }
+        }
+        return aggregateCollectors;
+    }
+
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newLinkedHashMap();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (Map.Entry<String, IntervalTypeCollector> entry : typeCollectors.entrySet()) {
+                IntervalTypeCollector mergedTypeCollector =
+                        mergedTypeCollectors.get(entry.getKey());
+                if (mergedTypeCollector == null) {
+                    mergedTypeCollector = new IntervalTypeCollector();
+                    mergedTypeCollectors.put(entry.getKey(), mergedTypeCollector);
+                }
+                mergedTypeCollector.mergeFrom(entry.getValue());
+            }
+        }
+        return mergedTypeCollectors;
     }
 
     private class IntervalTypeCollector {
@@ -241,11 +408,12 @@ public class AggregateIntervalCollector {
 
         private IntervalTypeCollector() {
             overallAggregateCollector =
-                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates,
+                            fullQueryTextIndex);
         }
 
-        private void add(Transaction transaction) {
-            merge(transaction, overallAggregateCollector);
+        private void add(Transaction transaction, boolean degraded) {
+            merge(transaction, degraded, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
@@ -263,32 +431,47 @@ public class AggregateIntervalCollector {
                     }
                 }
             }
-            merge(transaction, transactionAggregateCollector);
+            merge(transaction, degraded, transactionAggregateCollector);
         }
 
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
-                    transactionName, maxQueryAggregates, maxServiceCallAggregates);
+                    transactionName, maxQueryAggregates, maxServiceCallAggregates,
+                    fullQueryTextIndex);
             transactionAggregateCollectors.put(transactionName, transactionAggregateCollector);
             return transactionAggregateCollector;
         }
 
-        private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
-            aggregateCollector.mergeDataFrom(transaction);
+        private void merge(Transaction transaction, boolean degraded,
+                AggregateCollector aggregateCollector) {
+            aggregateCollector.mergeDataFrom(transaction, degraded);
         }
 
-        private @Nullable String getFullQueryText(String fullQueryTextSha1) {
-            String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
-            if (fullQueryText != null) {
-                return fullQueryText;
-            }
-            for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
-                fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        // only called at flush time, after all shard threads have finished adding to this interval
+        private void mergeFrom(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.mergeFrom(typeCollector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : typeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    if (transactionAggregateCollectors.size() < maxTransactionAggregates
+                            && !transactionName.equals(LIMIT_EXCEEDED_BUCKET)) {
+                        // transaction names are partitioned across shards, so this collector is
+                        // not part of any other shard and can be used as is
+                        transactionAggregateCollectors.put(transactionName, entry.getValue());
+                        continue;
+                    }
+                    transactionAggregateCollector =
+                            transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
+                    if (transactionAggregateCollector == null) {
+                        transactionAggregateCollector =
+                                createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
+                    }
                 }
+                transactionAggregateCollector.mergeFrom(entry.getValue());
             }
-            return null;
         }
     }
 
@@ -305,12 +488,18 @@ public class AggregateIntervalCollector {
             return captureTime;
         }
 
+        @Override
+        public @Nullable String getFullTextSha1(String fullText) {
+            return fullQueryTextIndex.getSha1(fullText);
+        }
+
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
             SharedQueryTextCollectionImpl sharedQueryTextCollector =
                     new SharedQueryTextCollectionImpl();
             ScratchBuffer scratchBuffer = new ScratchBuffer();
-            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+            for (Map.Entry<String, IntervalTypeCollector> e : getMergedTypeCollectors()
+                    .entrySet()) {
                 String transactionType = e.getKey();
                 IntervalTypeCollector intervalTypeCollector = e.getValue();
                 Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Queues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// aggregates a partition (by transaction type and transaction name) of the completed transactions
+// on its own thread, see TransactionProcessor
+class AggregateProcessingShard implements AggregateProcessingShardMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateProcessingShard.class);
+
+    private final int shardIndex;
+    private final Clock clock;
+
+    private final BlockingQueue<PendingAdd> queue;
+
+    private final ExecutorService executor;
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    AggregateProcessingShard(int shardIndex, int queueLimit, Clock clock) {
+        this.shardIndex = shardIndex;
+        this.clock = clock;
+        queue = Queues.newArrayBlockingQueue(queueLimit);
+        executor = Executors.newSingleThreadExecutor(
+                ThreadFactories.create("Glowroot-Aggregate-Processing-Shard-" + shardIndex));
+        executor.execute(new ShardLoop());
+    }
+
+    @Override
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    @Override
+    public long getLagMillis() {
+        PendingAdd pendingAdd = queue.peek();
+        if (pendingAdd == null) {
+            return 0;
+        }
+        return Math.max(0, clock.currentTimeMillis() - pendingAdd.transaction.getCaptureTime());
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // returns false if the transaction was dropped because of an excessive backlog
+    boolean add(AggregateIntervalCollector intervalCollector, Transaction transaction,
+            boolean degraded) {
+        intervalCollector.beforeShardAdd();
+        if (queue.offer(new PendingAdd(intervalCollector, transaction, degraded))) {
+            return true;
+        }
+        intervalCollector.cancelShardAdd();
+        droppedCount.getAndIncrement();
+        return false;
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        closed = true;
+        // shutdownNow() is needed here to send interrupt to shard thread
+        executor.shutdownNow();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private class ShardLoop implements Runnable {
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    PendingAdd pendingAdd = queue.take();
+                    pendingAdd.intervalCollector.add(pendingAdd.transaction, pendingAdd.degraded,
+                            shardIndex);
+                    processedCount.getAndIncrement();
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static class PendingAdd {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private final Transaction transaction;
+        private final boolean degraded;
+
+        private PendingAdd(AggregateIntervalCollector intervalCollector, Transaction transaction,
+                boolean degraded) {
+            this.intervalCollector = intervalCollector;
+            this.transaction = transaction;
+            this.degraded = degraded;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.util.Clock;
+
+// lock free multi-producer/single-consumer linked list, producers swap in the new tail and then
+// link the previous tail to it, and the consumer is the only one that advances head (the consumed
+// node becomes the new head)
+//
+// all methods other than offer() must only be called by the (single) consumer thread
+class CompletionQueue<T> {
+
+    private final int limit;
+    private final Clock clock;
+
+    private Node<T> head = new Node<T>(null);
+    private final AtomicReference<Node<T>> tail = new AtomicReference<Node<T>>(head);
+    private final AtomicInteger size = new AtomicInteger();
+
+    // non-null only while the consumer thread is parked (or about to park) waiting for work
+    private volatile @Nullable Thread parkedConsumer;
+
+    CompletionQueue(int limit, Clock clock) {
+        this.limit = limit;
+        this.clock = clock;
+    }
+
+    // returns false (without adding) if the queue is already at its limit
+    boolean offer(T item) {
+        if (size.incrementAndGet() > limit) {
+            size.decrementAndGet();
+            return false;
+        }
+        Node<T> newTail = new Node<T>(item);
+        Node<T> prevTail = tail.getAndSet(newTail);
+        // capture time is read after swapping in the new tail so that it cannot be prior to the
+        // current time that the consumer read before it last observed an empty queue (so that the
+        // consumer can assume if captureTime indicates time to flush, then no new items will come
+        // in with prior captureTime, see TransactionProcessor.maybeEndOfInterval)
+        newTail.captureTime = clock.currentTimeMillis();
+        prevTail.next = newTail;
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    // returns null if the queue is empty, or if a producer has swapped in the new tail but has not
+    // linked it yet (see isEmpty())
+    @Nullable
+    T peek() {
+        Node<T> next = head.next;
+        return next == null ? null : next.item;
+    }
+
+    // must only be called after peek() returned non-null
+    long peekCaptureTime() {
+        Node<T> next = head.next;
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        return next.captureTime;
+    }
+
+    // must only be called after peek() returned non-null
+    void remove() {
+        Node<T> next = head.next;
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        next.item = null;
+        head = next;
+        size.decrementAndGet();
+    }
+
+    // unlike peek() == null, this returns false if a producer has swapped in the new tail but has
+    // not linked it yet
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    // returns when an item is offered, when the timeout expires, when unparkConsumer() is called,
+    // or spuriously
+    void parkConsumer(long timeoutNanos) {
+        parkedConsumer = Thread.currentThread();
+        // re-check after publishing parkedConsumer so that a producer which linked an item before
+        // seeing parkedConsumer is not missed
+        if (isEmpty()) {
+            LockSupport.parkNanos(timeoutNanos);
+        }
+        parkedConsumer = null;
+    }
+
+    // can be called from any thread
+    void unparkConsumer() {
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private static class Node<T> {
+
+        private @Nullable T item; // only null for head
+        private volatile long captureTime;
+        private volatile @Nullable Node<T> next;
+
+        private Node(@Nullable T item) {
+            this.item = item;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,11 +17,16 @@ package org.glowroot.agent.impl;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,22 +38,39 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-public class StackTraceCollector {
+public class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // each ThreadMXBean.getThreadInfo() call brings the JVM to a safepoint for a duration that
+    // grows with the number of threads and their stack depth, so capturing in smaller batches
+    // bounds the length of each pause (0 means all threads are captured in a single call)
+    private static final int BATCH_SIZE = Integer.getInteger("glowroot.profiling.batch.size", 0);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
+    private final Ticker ticker;
+
+    // the following are only written by the processing thread
+    private volatile long cycleCount;
+    private volatile int lastCycleThreadCount;
+    private volatile int lastCycleBatchCount;
+    private volatile int lastCycleDistinctStackTraceCount;
+    private volatile long lastCycleCaptureNanos;
+    private volatile long lastCycleProcessNanos;
+    private volatile long totalCaptureNanos;
+    private volatile long totalProcessNanos;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
     public StackTraceCollector(TransactionRegistry transactionRegistry,
-            final ConfigService configService, Random random) {
+            final ConfigService configService, Random random, Ticker ticker) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        this.ticker = ticker;
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -78,26 +100,104 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
-    static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+    @Override
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    @Override
+    public int getLastCycleThreadCount() {
+        return lastCycleThreadCount;
+    }
+
+    @Override
+    public int getLastCycleBatchCount() {
+        return lastCycleBatchCount;
+    }
+
+    @Override
+    public int getLastCycleDistinctStackTraceCount() {
+        return lastCycleDistinctStackTraceCount;
+    }
+
+    @Override
+    public long getLastCycleCaptureNanos() {
+        return lastCycleCaptureNanos;
+    }
+
+    @Override
+    public long getLastCycleProcessNanos() {
+        return lastCycleProcessNanos;
+    }
+
+    @Override
+    public long getTotalCaptureNanos() {
+        return totalCaptureNanos;
+    }
+
+    @Override
+    public long getTotalProcessNanos() {
+        return totalProcessNanos;
+    }
+
+    private void captureStackTraces(List<ThreadContextImpl> threadContexts) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
-        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        int batchSize = BATCH_SIZE <= 0 ? threadContexts.size() : BATCH_SIZE;
         @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        ThreadInfo[] threadInfos = new ThreadInfo[threadContexts.size()];
+        int batchCount = 0;
+        long captureNanos = 0;
+        for (int from = 0; from < threadContexts.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, threadContexts.size());
+            long[] threadIds = new long[to - from];
+            for (int i = from; i < to; i++) {
+                threadIds[i - from] = threadContexts.get(i).getThreadId();
+            }
+            long startTick = ticker.read();
+            @Nullable
+            ThreadInfo[] batchThreadInfos = threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
+            captureNanos += ticker.read() - startTick;
+            System.arraycopy(batchThreadInfos, 0, threadInfos, from, batchThreadInfos.length);
+            batchCount++;
+        }
+        long startTick = ticker.read();
+        // identical stack traces for the same transaction profile (e.g. from multiple auxiliary
+        // threads of the same transaction) are added to the profile only once, along with a count
+        Map<ProfileSample, ProfileSample> samples = Maps.newLinkedHashMap();
         for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
-            if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo);
+            if (threadInfo == null) {
+                continue;
+            }
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            ProfileSample sample = new ProfileSample(threadContext,
+                    Arrays.asList(threadInfo.getStackTrace()), threadInfo.getThreadState());
+            ProfileSample existing = samples.get(sample);
+            if (existing == null) {
+                samples.put(sample, sample);
+            } else {
+                existing.count++;
             }
         }
+        for (ProfileSample sample : samples.keySet()) {
+            sample.threadContext.captureStackTrace(sample.stackTrace, sample.threadState,
+                    sample.count);
+        }
+        long processNanos = ticker.read() - startTick;
+
+        cycleCount++;
+        lastCycleThreadCount = threadContexts.size();
+        lastCycleBatchCount = batchCount;
+        lastCycleDistinctStackTraceCount = samples.size();
+        lastCycleCaptureNanos = captureNanos;
+        lastCycleProcessNanos = processNanos;
+        totalCaptureNanos += captureNanos;
+        totalProcessNanos += processNanos;
     }
 
     private class InternalRunnable implements Runnable {
@@ -162,4 +262,40 @@ public class StackTraceCollector {
             captureStackTraces(activeThreadContexts);
         }
     }
+
+    private static class ProfileSample {
+
+        private final ThreadContextImpl threadContext;
+        private final List<StackTraceElement> stackTrace;
+        private final Thread.State threadState;
+        private final int hashCode;
+
+        private int count = 1;
+
+        private ProfileSample(ThreadContextImpl threadContext, List<StackTraceElement> stackTrace,
+                Thread.State threadState) {
+            this.threadContext = threadContext;
+            this.stackTrace = stackTrace;
+            this.threadState = threadState;
+            hashCode = 31 * (31 * System.identityHashCode(threadContext.getTransaction())
+                    + (threadContext.isAuxiliary() ? 1 : 0)) + stackTrace.hashCode();
+        }
+
+        // samples are equal if they would be added to the same transaction profile
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof ProfileSample)) {
+                return false;
+            }
+            ProfileSample that = (ProfileSample) obj;
+            return threadContext.getTransaction() == that.threadContext.getTransaction()
+                    && threadContext.isAuxiliary() == that.threadContext.isAuxiliary()
+                    && threadState == that.threadState && stackTrace.equals(that.stackTrace);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
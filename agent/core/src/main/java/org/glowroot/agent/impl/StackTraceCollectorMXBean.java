@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public interface StackTraceCollectorMXBean {
+
+    long getCycleCount();
+    int getLastCycleThreadCount();
+    int getLastCycleBatchCount();
+    int getLastCycleDistinctStackTraceCount();
+    // time spent in ThreadMXBean.getThreadInfo(), which includes time to reach the safepoint
+    long getLastCycleCaptureNanos();
+    // time spent adding the captured stack traces to the transaction profiles
+    long getLastCycleProcessNanos();
+    long getTotalCaptureNanos();
+    long getTotalProcessNanos();
+}
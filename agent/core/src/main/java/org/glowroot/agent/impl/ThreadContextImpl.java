@@ -15,8 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -422,8 +422,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    // count is the number of identical stack traces captured for this transaction (and for the
+    // same main/auxiliary thread type) in the same profiling cycle
+    void captureStackTrace(List<StackTraceElement> stackTrace, Thread.State threadState,
+            int count) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState, count);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -1050,7 +1053,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         }
     }
 
-    private boolean isAuxiliary() {
+    boolean isAuxiliary() {
         return parentTraceEntry != null;
     }
 
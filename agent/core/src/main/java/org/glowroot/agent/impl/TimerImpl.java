@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,18 +15,12 @@
  */
 package org.glowroot.agent.impl;
 
-import java.util.List;
-
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Ticker;
-import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.model.AggregatedTimer;
-import org.glowroot.agent.model.ImmutableTransactionTimerSnapshot;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.model.TransactionTimer;
 import org.glowroot.agent.plugin.api.Timer;
@@ -35,14 +29,17 @@ import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-// instances are updated by a single thread, but can be read by other threads
+// instances are thin handles into the TimerTree of the thread context, which holds all of the
+// timer state in primitive arrays, see TimerTree
+//
+// the timer state is updated by a single thread, but can be read by other threads
 // memory visibility is therefore an issue for the reading threads
 //
-// memory visibility could be guaranteed by making selfNestingLevel volatile
+// memory visibility could be guaranteed by making the self nesting levels volatile
 //
-// selfNestingLevel is written after other fields are written and it is read before
-// other fields are read, so it could be used to create a memory barrier and make the latest values
-// of the other fields visible to the reading thread
+// the self nesting level is written after other slots are written and it is read before
+// other slots are read, so it could be used to create a memory barrier and make the latest values
+// of the other slots visible to the reading thread
 //
 // but benchmarking shows making selfNestingLevel non-volatile reduces timer capture overhead
 // from 88 nanoseconds down to 41 nanoseconds, which is very good since System.nanoTime() takes 17
@@ -59,93 +56,35 @@ public class TimerImpl implements Timer, TransactionTimer {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
+    private final TimerTree tree;
+    private final int index;
     private final TimerNameImpl timerName;
 
-    // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
-    private long totalNanos;
-    private long count;
-
-    private long startTick;
-    private int selfNestingLevel;
-
-    // nestedTimers is only accessed by the transaction thread so no need for volatile or
-    // synchronized access during timer capture which is important
-    //
-    // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
-
-    // separate linked list for safe iterating by other threads (e.g. partial trace capture and
-    // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
-
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return new TimerTree(threadContext).createRoot(timerName);
     }
 
-    private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
-            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
-        this.timerName = timerName;
-        this.parent = parent;
-        this.nextSibling = nextSibling;
-        this.threadContext = threadContext;
+    // only called by TimerTree
+    TimerImpl(TimerTree tree, int index) {
+        this.tree = tree;
+        this.index = index;
+        timerName = tree.getTimerName(index);
     }
 
     // safe to be called from another thread when transaction is still active transaction
     @JsonIgnore
     Trace.Timer toProto() {
-        Trace.Timer.Builder builder = Trace.Timer.newBuilder();
-        builder.setName(timerName.name());
-        builder.setExtended(timerName.extended());
-
-        TransactionTimerSnapshot snapshot = getSnapshot();
-        builder.setTotalNanos(snapshot.totalNanos());
-        builder.setCount(snapshot.count());
-        builder.setActive(snapshot.active());
-
-        if (headChild != null) {
-            List<Trace.Timer> nestedTimers = Lists.newArrayList();
-            TimerImpl curr = headChild;
-            while (curr != null) {
-                nestedTimers.add(curr.toProto());
-                curr = curr.nextSibling;
-            }
-            builder.addAllChildTimer(nestedTimers);
-        }
-        return builder.build();
+        return tree.toProto(this);
     }
 
     @Override
     public TransactionTimerSnapshot getSnapshot() {
-        if (selfNestingLevel > 0) {
-            // try to grab a quick, consistent view, but no guarantee on consistency since the
-            // transaction is active
-            //
-            // grab total before curr, to avoid case where total is updated in between
-            // these two lines and then "total + curr" would overstate the correct value
-            // (it seems better to understate the correct value if there is an update to the
-            // timer values in between these two lines)
-            long theTotalNanos = totalNanos;
-            // capture startTick before ticker.read() so curr is never < 0
-            long theStartTick = startTick;
-            long curr = ticker.read() - theStartTick;
-            if (theTotalNanos == 0) {
-                return ImmutableTransactionTimerSnapshot.of(curr, 1, true);
-            } else {
-                return ImmutableTransactionTimerSnapshot.of(theTotalNanos + curr, count + 1, true);
-            }
-        } else {
-            return ImmutableTransactionTimerSnapshot.of(totalNanos, count, false);
-        }
+        return tree.getSnapshot(index);
     }
 
     @Override
     public void stop() {
-        if (--selfNestingLevel == 0) {
-            endInternal(ticker.read());
-        }
+        tree.end(index, ticker.read());
     }
 
     public Timer extend(TimerImpl currentTimer) {
@@ -153,9 +92,7 @@ public class TimerImpl implements Timer, TransactionTimer {
     }
 
     void end(long endTick) {
-        if (--selfNestingLevel == 0) {
-            endInternal(endTick);
-        }
+        tree.end(index, endTick);
     }
 
     @Override
@@ -171,67 +108,42 @@ public class TimerImpl implements Timer, TransactionTimer {
     // only called after transaction completion
     @Override
     public long getTotalNanos() {
-        return totalNanos;
+        return tree.getTotalNanos(index);
     }
 
     // only called after transaction completion
     @Override
     public long getCount() {
-        return count;
+        return tree.getCount(index);
     }
 
     // only called after transaction completion
     @Override
     public void mergeChildTimersInto(AggregatedTimer timer) {
-        TimerImpl curr = headChild;
-        while (curr != null) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            AggregatedTimer matchingChildTimer = null;
-            for (AggregatedTimer childTimer : timer.getChildTimers()) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = timer.newChildTimer(curr.getName(), curr.isExtended());
-            }
-            matchingChildTimer.addDataFrom(curr);
-            curr = curr.nextSibling;
-        }
+        tree.mergeChildTimersInto(index, timer);
     }
 
     // only called by transaction thread
     public TimerImpl startNestedTimer(TimerName timerName, long startTick) {
-        // timer names are guaranteed one instance per name so pointer equality can be used
-        if (this.timerName == timerName) {
-            selfNestingLevel++;
-            return this;
-        }
-        return startNestedTimerInternal(timerName, startTick);
+        return tree.startNested(index, (TimerNameImpl) timerName, startTick);
     }
 
     // only called by transaction thread
     TimerImpl startNestedTimer(TimerName timerName) {
         // timer names are guaranteed one instance per name so pointer equality can be used
         if (this.timerName == timerName) {
-            selfNestingLevel++;
+            tree.incrementSelfNestingLevel(index);
             return this;
         }
-        long nestedTimerStartTick = ticker.read();
-        return startNestedTimerInternal(timerName, nestedTimerStartTick);
+        return tree.startNested(index, (TimerNameImpl) timerName, ticker.read());
     }
 
     TimerImpl extend(long startTick, TimerImpl currentTimer) {
-        if (currentTimer == parent) {
-            // restarting a previously stopped execution, so need to decrement count
-            count--;
-            start(startTick);
+        if (tree.restartIfParent(index, currentTimer, startTick)) {
             return this;
         }
         if (currentTimer == this) {
-            selfNestingLevel++;
+            tree.incrementSelfNestingLevel(index);
             return this;
         }
         // otherwise can't just restart timer, so need to start an "extended" timer under the
@@ -245,31 +157,14 @@ public class TimerImpl implements Timer, TransactionTimer {
     }
 
     void start(long startTick) {
-        this.startTick = startTick;
-        selfNestingLevel++;
-        threadContext.setCurrentTimer(this);
+        tree.start(index, startTick);
     }
 
-    private void endInternal(long endTick) {
-        totalNanos += endTick - startTick;
-        count++;
-        threadContext.setCurrentTimer(parent);
+    int getIndex() {
+        return index;
     }
 
-    private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
-        if (nestedTimers == null) {
-            nestedTimers = new NestedTimerMap();
-        }
-        TimerNameImpl timerNameImpl = (TimerNameImpl) timerName;
-        TimerImpl nestedTimer = nestedTimers.get(timerNameImpl);
-        if (nestedTimer != null) {
-            nestedTimer.start(nestedTimerStartTick);
-            return nestedTimer;
-        }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
-        nestedTimer.start(nestedTimerStartTick);
-        nestedTimers.put(timerNameImpl, nestedTimer);
-        headChild = nestedTimer;
-        return nestedTimer;
+    TimerNameImpl getTimerName() {
+        return timerName;
     }
 }
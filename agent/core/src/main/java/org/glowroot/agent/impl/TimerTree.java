@@ -0,0 +1,444 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.AggregatedTimer;
+import org.glowroot.agent.model.ImmutableTransactionTimerSnapshot;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.model.TransactionTimer.TransactionTimerSnapshot;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// struct-of-arrays timer tree, one per thread context
+//
+// each timer node is an index into parallel primitive arrays, so starting and stopping a timer
+// only touches primitive slots, and the nested timers are found via a single open addressing
+// table (keyed by parent index and timer name) that is shared by all nodes in the tree, instead
+// of each node allocating its own map of nested timers (timers with a single nested timer, which
+// is the common case in deep call stacks, don't use the table at all, see findOrAddChild())
+//
+// the tree is updated by a single thread (the thread context's thread), but can be read by other
+// threads (e.g. partial trace capture and active trace viewer), see comment in TimerImpl regarding
+// memory visibility
+//
+// the arrays are split into fixed size chunks, and growing the tree only adds a new chunk, so the
+// existing slots are never copied (copying all of the arrays on every doubling ended up allocating
+// more than the per-timer objects that the tree replaced), and readers on other threads just see
+// a node whose chunk they cannot see yet as not being there yet
+//
+// all timing data is in nanoseconds
+class TimerTree {
+
+    private static final Ticker ticker = Tickers.getTicker();
+
+    // chunk size must be a power of 2 (see chunk() and offset())
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int NONE = -1;
+
+    private final ThreadContextImpl threadContext;
+
+    private @Nullable Slots[] chunks = new Slots[] {new Slots()};
+    private int size;
+
+    // child lookup table is only accessed by the thread context's thread
+    //
+    // each entry is the node index + 1 (so that zero means empty)
+    //
+    // length must always be a power of 2 (see getChild() and putChild())
+    private int[] childTable = new int[CHUNK_SIZE];
+    private int childTableSize;
+
+    TimerTree(ThreadContextImpl threadContext) {
+        this.threadContext = threadContext;
+    }
+
+    TimerImpl createRoot(TimerNameImpl timerName) {
+        return handle(addNode(NONE, timerName));
+    }
+
+    // only called by the thread context's thread
+    TimerImpl startNested(int index, TimerNameImpl timerName, long startTick) {
+        Slots slots = chunk(index);
+        int offset = offset(index);
+        // timer names are guaranteed one instance per name so pointer equality can be used
+        if (slots.timerNames[offset] == timerName) {
+            slots.selfNestingLevels[offset]++;
+            return checkNotNull(slots.handles[offset]);
+        }
+        int childIndex = findOrAddChild(index, timerName);
+        start(childIndex, startTick);
+        return handle(childIndex);
+    }
+
+    // only called by the thread context's thread
+    void start(int index, long startTick) {
+        Slots slots = chunk(index);
+        int offset = offset(index);
+        slots.startTicks[offset] = startTick;
+        slots.selfNestingLevels[offset]++;
+        threadContext.setCurrentTimer(checkNotNull(slots.handles[offset]));
+    }
+
+    // only called by the thread context's thread
+    void end(int index, long endTick) {
+        Slots slots = chunk(index);
+        int offset = offset(index);
+        if (--slots.selfNestingLevels[offset] == 0) {
+            slots.totalNanos[offset] += endTick - slots.startTicks[offset];
+            slots.counts[offset]++;
+            int parentIndex = slots.parents[offset];
+            threadContext.setCurrentTimer(parentIndex == NONE ? null : handle(parentIndex));
+        }
+    }
+
+    // only called by the thread context's thread
+    // returns true if the timer was restarted
+    boolean restartIfParent(int index, TimerImpl currentTimer, long startTick) {
+        Slots slots = chunk(index);
+        int offset = offset(index);
+        int parentIndex = slots.parents[offset];
+        if (parentIndex == NONE || currentTimer != handle(parentIndex)) {
+            return false;
+        }
+        // restarting a previously stopped execution, so need to decrement count
+        slots.counts[offset]--;
+        start(index, startTick);
+        return true;
+    }
+
+    // only called by the thread context's thread
+    void incrementSelfNestingLevel(int index) {
+        chunk(index).selfNestingLevels[offset(index)]++;
+    }
+
+    TimerNameImpl getTimerName(int index) {
+        return chunk(index).timerNames[offset(index)];
+    }
+
+    // only called after transaction completion
+    long getTotalNanos(int index) {
+        return chunk(index).totalNanos[offset(index)];
+    }
+
+    // only called after transaction completion
+    long getCount(int index) {
+        return chunk(index).counts[offset(index)];
+    }
+
+    // safe to be called from another thread when transaction is still active transaction
+    TransactionTimerSnapshot getSnapshot(int index) {
+        Slots slots = getChunkIfVisible(index);
+        if (slots == null) {
+            // reading thread does not see the latest chunk yet
+            return ImmutableTransactionTimerSnapshot.of(0, 0, false);
+        }
+        int offset = offset(index);
+        if (slots.selfNestingLevels[offset] > 0) {
+            // try to grab a quick, consistent view, but no guarantee on consistency since the
+            // transaction is active
+            //
+            // grab total before curr, to avoid case where total is updated in between
+            // these two lines and then "total + curr" would overstate the correct value
+            // (it seems better to understate the correct value if there is an update to the
+            // timer values in between these two lines)
+            long theTotalNanos = slots.totalNanos[offset];
+            // capture startTick before ticker.read() so curr is never < 0
+            long theStartTick = slots.startTicks[offset];
+            long curr = ticker.read() - theStartTick;
+            if (theTotalNanos == 0) {
+                return ImmutableTransactionTimerSnapshot.of(curr, 1, true);
+            } else {
+                return ImmutableTransactionTimerSnapshot.of(theTotalNanos + curr,
+                        slots.counts[offset] + 1, true);
+            }
+        } else {
+            return ImmutableTransactionTimerSnapshot.of(slots.totalNanos[offset],
+                    slots.counts[offset], false);
+        }
+    }
+
+    // only called after transaction completion
+    //
+    // walks the sibling links directly instead of going through getChildTimers(), since this is
+    // called for every timer of every transaction and would otherwise allocate a list per timer
+    void mergeChildTimersInto(int index, AggregatedTimer timer) {
+        int childIndex = chunk(index).headChildren[offset(index)];
+        while (childIndex != NONE) {
+            TimerImpl curr = handle(childIndex);
+            String currName = curr.getName();
+            boolean extended = curr.isExtended();
+            AggregatedTimer matchingChildTimer = null;
+            for (AggregatedTimer childTimer : timer.getChildTimers()) {
+                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = timer.newChildTimer(currName, extended);
+            }
+            matchingChildTimer.addDataFrom(curr);
+            childIndex = chunk(childIndex).nextSiblings[offset(childIndex)];
+        }
+    }
+
+    // safe to be called from another thread when transaction is still active transaction
+    @VisibleForTesting
+    List<TimerImpl> getChildTimers(int index) {
+        List<TimerImpl> childTimers = Lists.newArrayList();
+        int childIndex = getHeadChildIfVisible(index);
+        while (childIndex != NONE) {
+            Slots slots = getChunkIfVisible(childIndex);
+            if (slots == null) {
+                // reading thread does not see the latest chunk yet
+                break;
+            }
+            int offset = offset(childIndex);
+            // handles are written prior to being linked in, but without memory barrier
+            TimerImpl childTimer = slots.handles[offset];
+            if (childTimer != null) {
+                childTimers.add(childTimer);
+            }
+            childIndex = slots.nextSiblings[offset];
+        }
+        return childTimers;
+    }
+
+    // safe to be called from another thread when transaction is still active transaction
+    Trace.Timer toProto(TimerImpl timer) {
+        int index = timer.getIndex();
+        TimerNameImpl timerName = timer.getTimerName();
+        Trace.Timer.Builder builder = Trace.Timer.newBuilder();
+        builder.setName(timerName.name());
+        builder.setExtended(timerName.extended());
+
+        TransactionTimerSnapshot snapshot = getSnapshot(index);
+        builder.setTotalNanos(snapshot.totalNanos());
+        builder.setCount(snapshot.count());
+        builder.setActive(snapshot.active());
+
+        // not using getChildTimers() here to avoid allocating a list per timer
+        int childIndex = getHeadChildIfVisible(index);
+        while (childIndex != NONE) {
+            Slots slots = getChunkIfVisible(childIndex);
+            if (slots == null) {
+                // reading thread does not see the latest chunk yet
+                break;
+            }
+            int offset = offset(childIndex);
+            // handles are written prior to being linked in, but without memory barrier
+            TimerImpl childTimer = slots.handles[offset];
+            if (childTimer != null) {
+                builder.addChildTimer(toProto(childTimer));
+            }
+            childIndex = slots.nextSiblings[offset];
+        }
+        return builder.build();
+    }
+
+    private TimerImpl handle(int index) {
+        return checkNotNull(chunk(index).handles[offset(index)]);
+    }
+
+    // only called by the thread context's thread, or after transaction completion
+    private Slots chunk(int index) {
+        return checkNotNull(chunks[index >>> CHUNK_SHIFT]);
+    }
+
+    private @Nullable Slots getChunkIfVisible(int index) {
+        @Nullable
+        Slots[] chunks = this.chunks;
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        return chunkIndex < chunks.length ? chunks[chunkIndex] : null;
+    }
+
+    private int getHeadChildIfVisible(int index) {
+        Slots slots = getChunkIfVisible(index);
+        return slots == null ? NONE : slots.headChildren[offset(index)];
+    }
+
+    private int addNode(int parentIndex, TimerNameImpl timerName) {
+        int index = size++;
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        Slots slots;
+        if (chunkIndex == chunks.length) {
+            slots = new Slots();
+            // only the (small) array of chunk references is copied, never the chunks themselves
+            @Nullable
+            Slots[] newChunks = Arrays.copyOf(chunks, chunkIndex << 1);
+            newChunks[chunkIndex] = slots;
+            chunks = newChunks;
+        } else if (chunks[chunkIndex] == null) {
+            slots = new Slots();
+            chunks[chunkIndex] = slots;
+        } else {
+            slots = chunk(index);
+        }
+        int offset = offset(index);
+        slots.timerNames[offset] = timerName;
+        slots.parents[offset] = parentIndex;
+        slots.headChildren[offset] = NONE;
+        slots.handles[offset] = new TimerImpl(this, index);
+        if (parentIndex == NONE) {
+            slots.nextSiblings[offset] = NONE;
+        } else {
+            Slots parentSlots = chunk(parentIndex);
+            int parentOffset = offset(parentIndex);
+            // link in last, so that the node is fully initialized before other threads can reach it
+            slots.nextSiblings[offset] = parentSlots.headChildren[parentOffset];
+            parentSlots.headChildren[parentOffset] = index;
+        }
+        return index;
+    }
+
+    // deep call stacks mostly have a single nested timer per timer, so the head child is checked
+    // first, and children only go into the child lookup table once their parent has more than one
+    private int findOrAddChild(int parentIndex, TimerNameImpl timerName) {
+        int headChildIndex = chunk(parentIndex).headChildren[offset(parentIndex)];
+        if (headChildIndex == NONE) {
+            return addNode(parentIndex, timerName);
+        }
+        Slots headChildSlots = chunk(headChildIndex);
+        int headChildOffset = offset(headChildIndex);
+        // ok to use "==" because TimerNameImpl instances are always unique
+        if (headChildSlots.timerNames[headChildOffset] == timerName) {
+            return headChildIndex;
+        }
+        if (headChildSlots.nextSiblings[headChildOffset] == NONE) {
+            // adding the second child, so both children go into the child lookup table
+            putChild(headChildIndex, parentIndex, headChildSlots.timerNames[headChildOffset]);
+            int childIndex = addNode(parentIndex, timerName);
+            putChild(childIndex, parentIndex, timerName);
+            return childIndex;
+        }
+        int childIndex = getChild(parentIndex, timerName);
+        if (childIndex == NONE) {
+            childIndex = addNode(parentIndex, timerName);
+            putChild(childIndex, parentIndex, timerName);
+        }
+        return childIndex;
+    }
+
+    private int getChild(int parentIndex, TimerNameImpl timerName) {
+        int[] childTable = this.childTable;
+        // this mask requires length to be a power of 2
+        int mask = childTable.length - 1;
+        int bucket = hash(parentIndex, timerName) & mask;
+        while (true) {
+            int entry = childTable[bucket];
+            if (entry == 0) {
+                return NONE;
+            }
+            int childIndex = entry - 1;
+            Slots slots = chunk(childIndex);
+            int offset = offset(childIndex);
+            // ok to use "==" because TimerNameImpl instances are always unique
+            if (slots.timerNames[offset] == timerName && slots.parents[offset] == parentIndex) {
+                return childIndex;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    // IMPORTANT putChild assumes getChild was already called and child is not present
+    private void putChild(int childIndex, int parentIndex, TimerNameImpl timerName) {
+        // keep load factor at or below 0.5, since linear probing is used
+        if (++childTableSize > childTable.length >> 1) {
+            rehashChildTable();
+        }
+        putChildWithoutRehashCheck(childTable, childIndex, hash(parentIndex, timerName));
+    }
+
+    private void rehashChildTable() {
+        int[] existingChildTable = childTable;
+        int[] newChildTable = new int[existingChildTable.length << 1];
+        for (int entry : existingChildTable) {
+            if (entry != 0) {
+                int childIndex = entry - 1;
+                Slots slots = chunk(childIndex);
+                int offset = offset(childIndex);
+                putChildWithoutRehashCheck(newChildTable, childIndex,
+                        hash(slots.parents[offset], slots.timerNames[offset]));
+            }
+        }
+        childTable = newChildTable;
+    }
+
+    private static void putChildWithoutRehashCheck(int[] childTable, int childIndex, int hash) {
+        // this mask requires length to be a power of 2
+        int mask = childTable.length - 1;
+        int bucket = hash & mask;
+        while (childTable[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        childTable[bucket] = childIndex + 1;
+    }
+
+    private static int offset(int index) {
+        return index & CHUNK_MASK;
+    }
+
+    private static int hash(int parentIndex, TimerNameImpl timerName) {
+        // specialHashCode is a small sequential id, so spread both out before masking
+        int h = (parentIndex + 1) * 0x9E3779B9 + timerName.specialHashCode() * 0x85EBCA6B;
+        return h ^ (h >>> 15);
+    }
+
+    private static class Slots {
+
+        // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
+        private final long[] totalNanos;
+        private final long[] counts;
+        private final long[] startTicks;
+        private final int[] selfNestingLevels;
+
+        // parents, head children and next siblings are tree-wide node indexes (not chunk offsets)
+        private final int[] parents;
+        // separate linked list (of indexes) for safe iterating by other threads (e.g. partial
+        // trace capture and active trace viewer)
+        private final int[] headChildren;
+        private final int[] nextSiblings;
+
+        private final TimerNameImpl[] timerNames;
+        // one (immutable) handle per node, so that starting an existing timer does not allocate
+        private final @Nullable TimerImpl[] handles;
+
+        Slots() {
+            totalNanos = new long[CHUNK_SIZE];
+            counts = new long[CHUNK_SIZE];
+            startTicks = new long[CHUNK_SIZE];
+            selfNestingLevels = new int[CHUNK_SIZE];
+            parents = new int[CHUNK_SIZE];
+            headChildren = new int[CHUNK_SIZE];
+            nextSiblings = new int[CHUNK_SIZE];
+            timerNames = new TimerNameImpl[CHUNK_SIZE];
+            handles = new TimerImpl[CHUNK_SIZE];
+        }
+    }
+}
@@ -19,11 +19,13 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -55,6 +57,20 @@ public class TraceCollector {
     // back pressure on writing captured data to disk/network
     private static final int PENDING_LIMIT = 50;
 
+    // max number of completed traces stored per transaction name per sampling interval, beyond
+    // which traces are sampled (see TraceSampler), 0 means no sampling
+    private static final int SAMPLING_LIMIT =
+            Integer.getInteger("glowroot.trace.sampling.limit", 0);
+
+    private static final long SAMPLING_INTERVAL_SECONDS =
+            Long.getLong("glowroot.trace.sampling.intervalSeconds", 60);
+
+    // max number of traces held back by the trace sampler at any one time (across all transaction
+    // names), beyond which traces for transaction names without any held back traces are stored
+    // immediately
+    private static final int SAMPLING_MAX_HELD_TRACES =
+            Integer.getInteger("glowroot.trace.sampling.maxHeldTraces", 500);
+
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Clock clock;
@@ -66,6 +82,8 @@ public class TraceCollector {
     private final AtomicInteger partialCompletePendingCount = new AtomicInteger();
     private final AtomicInteger partialIncompletePendingCount = new AtomicInteger();
 
+    private final @Nullable TraceSampler traceSampler;
+
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TraceCollector.class);
 
@@ -78,9 +96,22 @@ public class TraceCollector {
 
     public TraceCollector(final ConfigService configService, Collector collector, Clock clock,
             Ticker ticker) {
+        this(configService, collector, clock, ticker, SAMPLING_LIMIT,
+                SECONDS.toNanos(SAMPLING_INTERVAL_SECONDS));
+    }
+
+    @VisibleForTesting
+    TraceCollector(final ConfigService configService, Collector collector, Clock clock,
+            Ticker ticker, int samplingLimit, long samplingIntervalNanos) {
         this.collector = collector;
         this.clock = clock;
         this.ticker = ticker;
+        if (samplingLimit > 0) {
+            traceSampler = new TraceSampler(samplingLimit, SAMPLING_MAX_HELD_TRACES,
+                    samplingIntervalNanos, new Random(), ticker);
+        } else {
+            traceSampler = null;
+        }
         dedicatedExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
         dedicatedExecutor.execute(new TraceCollectorLoop());
@@ -145,6 +176,9 @@ public class TraceCollector {
         for (PendingTrace pendingTrace : pendingTraces) {
             pendingTransactions.add(pendingTrace.transaction());
         }
+        if (traceSampler != null) {
+            pendingTransactions.addAll(traceSampler.getHeldTransactions());
+        }
         return pendingTransactions;
     }
 
@@ -163,6 +197,16 @@ public class TraceCollector {
         if (!slow && !shouldStoreError(transaction)) {
             return;
         }
+        // partially stored traces are never sampled, since the partial trace has already been
+        // stored (and counted)
+        if (traceSampler != null && !transaction.isPartiallyStored()
+                && !traceSampler.offer(transaction, slow)) {
+            return;
+        }
+        collectTrace(transaction, slow, 0);
+    }
+
+    private void collectTrace(Transaction transaction, boolean slow, double sampleWeight) {
         // don't need to worry about race condition since only ever called from a single thread
         if (transaction.isPartiallyStored()
                 && partialCompletePendingCount.get() >= PENDING_LIMIT) {
@@ -180,6 +224,7 @@ public class TraceCollector {
                 .transaction(transaction)
                 .slow(slow)
                 .partial(false)
+                .sampleWeight(sampleWeight)
                 .build();
         if (!pendingTraces.offer(pendingTransaction)) {
             // this should never happen
@@ -199,6 +244,7 @@ public class TraceCollector {
                 .transaction(transaction)
                 .slow(false)
                 .partial(true)
+                .sampleWeight(0)
                 .build();
         if (!pendingTraces.offer(pendingTransaction)) {
             // this should never happen
@@ -289,12 +335,18 @@ public class TraceCollector {
         public void run() {
             while (!closed) {
                 try {
-                    PendingTrace pendingTrace = pendingTraces.take();
-                    if (pendingTrace.partial()) {
-                        collectPartial(pendingTrace.transaction());
-                    } else {
-                        collectCompleted(pendingTrace.transaction(), pendingTrace.slow());
+                    // polling (instead of blocking indefinitely) so that traces held back by the
+                    // trace sampler are flushed even when no other transactions are completing
+                    PendingTrace pendingTrace = pendingTraces.poll(1, SECONDS);
+                    if (pendingTrace != null) {
+                        if (pendingTrace.partial()) {
+                            collectPartial(pendingTrace.transaction());
+                        } else {
+                            collectCompleted(pendingTrace.transaction(), pendingTrace.slow(),
+                                    pendingTrace.sampleWeight());
+                        }
                     }
+                    flushTraceSampler();
                 } catch (InterruptedException e) {
                     // probably shutdown requested (see close method above)
                     logger.debug(e.getMessage(), e);
@@ -305,6 +357,24 @@ public class TraceCollector {
             }
         }
 
+        // traces held back by the trace sampler are stored directly from here (instead of being
+        // offered to pendingTraces, which is bounded and is only drained by this thread), so that
+        // none of them (and their sample weights) are dropped when the reservoirs are flushed
+        private void flushTraceSampler() {
+            if (traceSampler == null) {
+                return;
+            }
+            for (PendingTrace pendingTrace : traceSampler.flushIfIntervalEnded()) {
+                try {
+                    collectCompleted(pendingTrace.transaction(), pendingTrace.slow(),
+                            pendingTrace.sampleWeight());
+                } catch (Exception e) {
+                    // log and continue storing the rest of the sampled traces
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
         private void collectPartial(Transaction transaction) throws Exception {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
@@ -315,9 +385,10 @@ public class TraceCollector {
             }
         }
 
-        private void collectCompleted(Transaction transaction, boolean slow) throws Exception {
+        private void collectCompleted(Transaction transaction, boolean slow, double sampleWeight)
+                throws Exception {
             TraceReader traceReader = TraceCreator.createTraceReaderForCompleted(
-                    transaction, slow);
+                    transaction, slow, sampleWeight);
             collector.collectTrace(traceReader);
         }
     }
@@ -327,6 +398,8 @@ public class TraceCollector {
         Transaction transaction();
         boolean slow();
         boolean partial();
+        // see TraceSampler
+        double sampleWeight();
     }
 
     @Value.Immutable
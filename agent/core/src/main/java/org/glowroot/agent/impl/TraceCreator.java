@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -44,13 +44,19 @@ public class TraceCreator {
     public static TraceReader createTraceReaderForPartial(Transaction transaction, long captureTime,
             long captureTick) {
         return new TraceReaderImpl(transaction, true, captureTime, captureTick,
-                transaction.getTraceId(), true, transaction.isPartiallyStored());
+                transaction.getTraceId(), true, transaction.isPartiallyStored(), 0);
     }
 
     public static TraceReader createTraceReaderForCompleted(Transaction transaction, boolean slow) {
+        return createTraceReaderForCompleted(transaction, slow, 0);
+    }
+
+    // sampleWeight is only non-zero for traces that are sampled (see TraceSampler)
+    static TraceReader createTraceReaderForCompleted(Transaction transaction, boolean slow,
+            double sampleWeight) {
         return new TraceReaderImpl(transaction, slow, transaction.getCaptureTime(),
                 transaction.getEndTick(), transaction.getTraceId(), false,
-                transaction.isPartiallyStored());
+                transaction.isPartiallyStored(), sampleWeight);
     }
 
     public static Trace.Header createPartialTraceHeader(Transaction transaction, long captureTime,
@@ -61,7 +67,8 @@ public class TraceCreator {
         long auxThreadProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
         return createTraceHeader(transaction, true, true, captureTime, captureTick,
-                entryCount, queryCount, mainThreadProfileSampleCount, auxThreadProfileSampleCount);
+                entryCount, queryCount, mainThreadProfileSampleCount, auxThreadProfileSampleCount,
+                0);
     }
 
     public static Trace.Header createCompletedTraceHeader(Transaction transaction) {
@@ -72,7 +79,7 @@ public class TraceCreator {
         // only slow transactions reach this point, so setting slow=true (second arg below)
         return createTraceHeader(transaction, true, false, transaction.getCaptureTime(),
                 transaction.getEndTick(), entryCount, queryCount, mainProfileSampleCount,
-                auxProfileSampleCount);
+                auxProfileSampleCount, 0);
     }
 
     public static List<Trace.SharedQueryText> toProto(List<String> sharedQueryTexts) {
@@ -87,7 +94,8 @@ public class TraceCreator {
 
     private static Trace.Header createTraceHeader(Transaction transaction, boolean slow,
             boolean partial, long captureTime, long captureTick, int entryCount,
-            int queryCount, long mainThreadProfileSampleCount, long auxThreadProfileSampleCount) {
+            int queryCount, long mainThreadProfileSampleCount, long auxThreadProfileSampleCount,
+            double sampleWeight) {
         Trace.Header.Builder builder = Trace.Header.newBuilder();
         builder.setPartial(partial);
         builder.setSlow(slow);
@@ -145,6 +153,7 @@ public class TraceCreator {
         builder.addAllAsyncTimer(asyncTimers.toProto());
         addCounts(builder, transaction, entryCount, queryCount,
                 mainThreadProfileSampleCount, auxThreadProfileSampleCount);
+        builder.setSampleWeight(sampleWeight);
         return builder.build();
     }
 
@@ -172,11 +181,13 @@ public class TraceCreator {
         private final String traceId;
         private final boolean partial;
         private final boolean update;
+        private final double sampleWeight;
 
         private Trace. /*@Nullable*/ Header header;
 
         private TraceReaderImpl(Transaction transaction, boolean slow, long captureTime,
-                long captureTick, String traceId, boolean partial, boolean update) {
+                long captureTick, String traceId, boolean partial, boolean update,
+                double sampleWeight) {
             this.transaction = transaction;
             this.slow = slow;
             this.captureTime = captureTime;
@@ -184,6 +195,7 @@ public class TraceCreator {
             this.traceId = traceId;
             this.partial = partial;
             this.update = update;
+            this.sampleWeight = sampleWeight;
         }
 
         @Override
@@ -220,7 +232,7 @@ public class TraceCreator {
             if (header == null) {
                 traceVisitor.visitHeader(createTraceHeader(transaction, slow, partial, captureTime,
                         captureTick, entryCount, queryCount, mainThreadProfileSampleCount,
-                        auxThreadProfileSampleCount));
+                        auxThreadProfileSampleCount, sampleWeight));
             } else {
                 Trace.Header.Builder builder = header.toBuilder();
                 addCounts(builder, transaction, entryCount, queryCount,
@@ -233,7 +245,7 @@ public class TraceCreator {
         public Trace.Header readHeader() {
             if (header == null) {
                 header = createTraceHeader(transaction, true, partial, captureTime, captureTick, 0,
-                        0, 0, 0);
+                        0, 0, 0, sampleWeight);
             }
             return header;
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -61,13 +61,9 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private final @Nullable TraceEntryImpl parentTraceEntry;
     private final @Nullable Object messageSupplier;
 
-    // volatile so it can be set from another thread (needed for async trace entries)
-    private volatile @Nullable ErrorMessage errorMessage;
-
     private final long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
-    private long revisedStartTick;
     private int selfNestingLevel;
     private long endTick;
     private boolean initialComplete;
@@ -78,13 +74,16 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // only null for trace entries added using addEntryEntry()
     private final @Nullable TimerImpl syncTimer;
     private final @Nullable AsyncTimer asyncTimer;
-    // not volatile, so depends on memory barrier in Transaction for visibility
-    private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
-    // only used by transaction thread
-    private long locationStackTraceThreshold;
-    // only used by transaction thread
-    private @Nullable TimerImpl extendedTimer;
+    // fields that are only needed by a small percentage of trace entries (errors, extensions,
+    // location stack traces) are kept in a separate lazily created object, in order to reduce the
+    // heap retained by transactions with large numbers of trace entries
+    //
+    // for async trace entries this is created up front, since those can be ended (and extended)
+    // by threads other than the transaction thread
+    //
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private @Nullable Extras extras;
 
     static TraceEntryImpl createCompletedErrorEntry(ThreadContextImpl threadContext,
             TraceEntryImpl parentTraceEntry, @Nullable Object messageSupplier,
@@ -95,7 +94,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // the queryData in the constructor below
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, parentTraceEntry,
                 messageSupplier, queryData, -1, startTick, null, null);
-        entry.errorMessage = errorMessage;
+        entry.getOrCreateExtras().errorMessage = errorMessage;
         entry.endTick = endTick;
         entry.selfNestingLevel = 0;
         entry.initialComplete = true;
@@ -113,8 +112,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.startTick = startTick;
         this.syncTimer = syncTimer;
         this.asyncTimer = asyncTimer;
-        revisedStartTick = startTick;
         selfNestingLevel = 1;
+        if (asyncTimer != null) {
+            extras = new Extras(startTick);
+        }
     }
 
     @Override
@@ -124,17 +125,21 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     @Nullable
     ErrorMessage getErrorMessage() {
-        return errorMessage;
+        Extras extras = this.extras;
+        return extras == null ? null : extras.errorMessage;
     }
 
     @Nullable
     List<StackTraceElement> getLocationStackTrace() {
-        return locationStackTrace;
+        Extras extras = this.extras;
+        return extras == null ? null : extras.locationStackTrace;
     }
 
     void accept(int depth, long transactionStartTick, long captureTick,
             TraceEntryVisitor entryVisitor, SharedQueryTextCollection sharedQueryTextCollection) {
         long offsetNanos = startTick - transactionStartTick;
+        Extras extras = this.extras;
+        long revisedStartTick = extras == null ? startTick : extras.revisedStartTick;
         long durationNanos;
         boolean active;
         if (isCompleted() && Tickers.lessThanOrEqual(endTick, captureTick)) {
@@ -181,7 +186,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             builder.addAllDetailEntry(DetailMapWriter.toProto(readableQueryMessage.getDetail()));
         }
 
-        ErrorMessage errorMessage = this.errorMessage;
+        ErrorMessage errorMessage = extras == null ? null : extras.errorMessage;
         if (errorMessage != null) {
             Trace.Error.Builder errorBuilder = builder.getErrorBuilder();
             errorBuilder.setMessage(errorMessage.message());
@@ -191,6 +196,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             }
             errorBuilder.build();
         }
+        List<StackTraceElement> locationStackTrace =
+                extras == null ? null : extras.locationStackTrace;
         if (locationStackTrace != null) {
             for (StackTraceElement stackTraceElement : locationStackTrace) {
                 builder.addLocationStackTraceElementBuilder()
@@ -315,9 +322,10 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         // entries are not returned from plugin api so no way for extend() to be called when
         // syncTimer is null
         checkNotNull(syncTimer);
-        long priorDurationNanos = endTick - revisedStartTick;
-        revisedStartTick = currTick - priorDurationNanos;
-        extendedTimer = syncTimer.extend(currTick, currentTimer);
+        Extras extras = getOrCreateExtras();
+        long priorDurationNanos = endTick - extras.revisedStartTick;
+        extras.revisedStartTick = currTick - priorDurationNanos;
+        extras.extendedTimer = syncTimer.extend(currTick, currentTimer);
         extendQueryData(currTick);
     }
 
@@ -333,7 +341,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             extendSync(currTick, checkNotNull(threadContext.getCurrentTimer()));
         } else {
             // set to null since its value is checked in stopAsync()
-            extendedTimer = null;
+            checkNotNull(extras).extendedTimer = null;
             extendQueryData(currTick);
         }
         asyncTimer.extend(currTick);
@@ -353,13 +361,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
     private void stopSync(long endTick) {
         this.endTick = endTick;
+        // extras is always non-null here since it is created in extendSync()
+        Extras extras = checkNotNull(this.extras);
         // the timer interface for this class is only expose through return value of extend()
-        checkNotNull(extendedTimer).end(endTick);
+        checkNotNull(extras.extendedTimer).end(endTick);
         endQueryData(endTick);
         // it is not helpful to capture stack trace at end of async trace entry since it is
         // ended by a different thread (and by not capturing, it reduces thread safety needs)
-        if (locationStackTrace == null && locationStackTraceThreshold != 0
-                && endTick - revisedStartTick >= locationStackTraceThreshold) {
+        if (extras.locationStackTrace == null && extras.locationStackTraceThreshold != 0
+                && endTick - extras.revisedStartTick >= extras.locationStackTraceThreshold) {
             StackTraceElement[] locationStackTrace = Thread.currentThread().getStackTrace();
             // strip up through this method, plus 1 additional method (the plugin advice method)
             int index =
@@ -372,7 +382,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     @RequiresNonNull("asyncTimer")
     private void stopAsync() {
         long endTick = ticker.read();
-        if (extendedTimer == null) {
+        if (checkNotNull(extras).extendedTimer == null) {
             endQueryData(endTick);
         } else {
             stopSync(endTick);
@@ -381,11 +391,11 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     }
 
     boolean hasLocationStackTrace() {
-        return locationStackTrace != null;
+        return getLocationStackTrace() != null;
     }
 
     void setLocationStackTrace(ImmutableList<StackTraceElement> locationStackTrace) {
-        this.locationStackTrace = locationStackTrace;
+        getOrCreateExtras().locationStackTrace = locationStackTrace;
     }
 
     ThreadContextImpl getThreadContext() {
@@ -446,7 +456,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
                     locationStackTrace.length));
         } else {
             // store threshold in case this trace entry is extended, see extend() below
-            locationStackTraceThreshold = thresholdNanos;
+            getOrCreateExtras().locationStackTraceThreshold = thresholdNanos;
         }
         endInternal(endTick, null);
     }
@@ -467,7 +477,11 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             syncTimer.end(endTick);
         }
         endQueryData(endTick);
-        this.errorMessage = errorMessage;
+        if (errorMessage != null) {
+            // for async trace entries, extras is created up front, so this does not race with
+            // the transaction thread
+            getOrCreateExtras().errorMessage = errorMessage;
+        }
         this.endTick = endTick;
         if (isAsync()) {
             threadContext.getTransaction().memoryBarrierWrite();
@@ -526,9 +540,39 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
             return readableQueryMessage.getPrefix() + checkNotNull(getQueryText())
                     + readableQueryMessage.getSuffix();
         }
+        ErrorMessage errorMessage = getErrorMessage();
         if (errorMessage != null) {
             return errorMessage.message();
         }
         return checkNotNull(super.toString());
     }
+
+    private Extras getOrCreateExtras() {
+        Extras extras = this.extras;
+        if (extras == null) {
+            extras = new Extras(startTick);
+            this.extras = extras;
+        }
+        return extras;
+    }
+
+    private static class Extras {
+
+        // volatile so it can be set from another thread (needed for async trace entries)
+        private volatile @Nullable ErrorMessage errorMessage;
+
+        // not volatile, so depends on memory barrier in Transaction for visibility
+        private long revisedStartTick;
+        // not volatile, so depends on memory barrier in Transaction for visibility
+        private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
+
+        // only used by transaction thread
+        private long locationStackTraceThreshold;
+        // only used by transaction thread
+        private @Nullable TimerImpl extendedTimer;
+
+        Extras(long startTick) {
+            revisedStartTick = startTick;
+        }
+    }
 }
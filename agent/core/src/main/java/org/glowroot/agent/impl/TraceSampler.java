@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Doubles;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.impl.TraceCollector.PendingTrace;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.Styles;
+
+// adaptive tail-based sampling of completed traces, per transaction type / transaction name
+//
+// within each interval, the first "limit" traces for a given transaction name are stored
+// immediately, after that the traces are held back in a reservoir (also of size "limit") using
+// priority sampling (Duffield, Lund and Thorup), which prefers slower traces, error traces and
+// especially traces with an error message that has not been seen yet during the interval
+//
+// at the end of the interval the reservoir is flushed, and each trace in the reservoir is given a
+// sample weight (the inverse of its inclusion probability) so that the sum of the sample weights is
+// an unbiased estimate of the number of traces that were held back, which keeps the slow/error
+// trace counts statistically correct
+//
+// the total number of held back traces (across all transaction names) is also capped, since each
+// one retains its full transaction (including trace entries and profile) until the end of the
+// interval, and with high cardinality transaction names the per-name limit alone doesn't bound that
+class TraceSampler {
+
+    private static final double ERROR_IMPORTANCE_FACTOR = 10;
+    private static final double DISTINCT_ERROR_IMPORTANCE_FACTOR = 100;
+
+    // cap on the number of distinct error messages tracked per transaction name per interval
+    private static final int MAX_ERROR_MESSAGES = 100;
+
+    private final RateLimitedLogger maxHeldTracesLogger =
+            new RateLimitedLogger(TraceSampler.class);
+
+    private final int limit;
+    private final int maxHeldTraces;
+    private final long intervalNanos;
+    private final Random random;
+    private final Ticker ticker;
+
+    @GuardedBy("this")
+    private final Map<SamplerKey, Reservoir> reservoirs = Maps.newHashMap();
+    @GuardedBy("this")
+    private int heldTraceCount;
+    @GuardedBy("this")
+    private long intervalStartTick;
+
+    TraceSampler(int limit, int maxHeldTraces, long intervalNanos, Random random, Ticker ticker) {
+        this.limit = limit;
+        this.maxHeldTraces = maxHeldTraces;
+        this.intervalNanos = intervalNanos;
+        this.random = random;
+        this.ticker = ticker;
+        intervalStartTick = ticker.read();
+    }
+
+    // returns true if the trace should be stored immediately, otherwise the trace has been either
+    // held back (to be returned later by flushIfIntervalEnded()) or discarded
+    synchronized boolean offer(Transaction transaction, boolean slow) {
+        SamplerKey key = ImmutableSamplerKey.of(transaction.getTransactionType(),
+                transaction.getTransactionName());
+        Reservoir reservoir = reservoirs.get(key);
+        if (reservoir == null) {
+            reservoir = new Reservoir();
+            reservoirs.put(key, reservoir);
+        }
+        ErrorMessage errorMessage = transaction.getErrorMessage();
+        boolean distinctError = false;
+        if (errorMessage != null && reservoir.errorMessages.size() < MAX_ERROR_MESSAGES) {
+            distinctError = reservoir.errorMessages.add(errorMessage.message());
+        }
+        if (reservoir.storedCount < limit) {
+            reservoir.storedCount++;
+            return true;
+        }
+        double importance = Math.max(1, transaction.getDurationNanos());
+        if (errorMessage != null) {
+            importance *= ERROR_IMPORTANCE_FACTOR;
+        }
+        if (distinctError) {
+            importance *= DISTINCT_ERROR_IMPORTANCE_FACTOR;
+        }
+        boolean maxHeldTracesReached = heldTraceCount >= maxHeldTraces;
+        if (maxHeldTracesReached && reservoir.heldTraces.isEmpty()) {
+            // nothing to displace, so fall back to storing the trace immediately (with no sample
+            // weight, so it is still counted exactly once)
+            maxHeldTracesLogger.warn("storing a trace without sampling because the max of {} held"
+                    + " back traces has been reached", maxHeldTraces);
+            return true;
+        }
+        // 1 - nextDouble() is in the range (0, 1]
+        double priority = importance / (1 - random.nextDouble());
+        reservoir.heldTraces.add(new HeldTrace(transaction, slow, importance, priority));
+        if (maxHeldTracesReached || reservoir.heldTraces.size() > limit) {
+            // the reservoir can't grow any further this interval, so (as with any reservoir that
+            // has stopped growing) the sample weights remain unbiased
+            HeldTrace discarded = reservoir.heldTraces.remove();
+            reservoir.threshold = Math.max(reservoir.threshold, discarded.priority);
+        } else {
+            heldTraceCount++;
+        }
+        return false;
+    }
+
+    synchronized List<PendingTrace> flushIfIntervalEnded() {
+        long currentTick = ticker.read();
+        if (currentTick - intervalStartTick < intervalNanos) {
+            return ImmutableList.of();
+        }
+        intervalStartTick = currentTick;
+        List<PendingTrace> pendingTraces = Lists.newArrayList();
+        for (Reservoir reservoir : reservoirs.values()) {
+            for (HeldTrace heldTrace : reservoir.heldTraces) {
+                double sampleWeight;
+                if (reservoir.threshold == 0) {
+                    // nothing was discarded
+                    sampleWeight = 0;
+                } else {
+                    // inverse of the inclusion probability min(1, importance / threshold)
+                    sampleWeight = Math.max(1, reservoir.threshold / heldTrace.importance);
+                }
+                pendingTraces.add(ImmutablePendingTrace.builder()
+                        .transaction(heldTrace.transaction)
+                        .slow(heldTrace.slow)
+                        .partial(false)
+                        .sampleWeight(sampleWeight)
+                        .build());
+            }
+        }
+        reservoirs.clear();
+        heldTraceCount = 0;
+        return pendingTraces;
+    }
+
+    synchronized Collection<Transaction> getHeldTransactions() {
+        List<Transaction> transactions = Lists.newArrayList();
+        for (Reservoir reservoir : reservoirs.values()) {
+            for (HeldTrace heldTrace : reservoir.heldTraces) {
+                transactions.add(heldTrace.transaction);
+            }
+        }
+        return transactions;
+    }
+
+    private static class Reservoir {
+
+        private int storedCount;
+        // lowest priority is at the head
+        private final PriorityQueue<HeldTrace> heldTraces = new PriorityQueue<HeldTrace>();
+        // highest priority of all discarded traces
+        private double threshold;
+        private final Set<String> errorMessages = Sets.newHashSet();
+    }
+
+    private static class HeldTrace implements Comparable<HeldTrace> {
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final double importance;
+        private final double priority;
+
+        private HeldTrace(Transaction transaction, boolean slow, double importance,
+                double priority) {
+            this.transaction = transaction;
+            this.slow = slow;
+            this.importance = importance;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(HeldTrace other) {
+            return Doubles.compare(priority, other.priority);
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SamplerKey {
+        String transactionType();
+        String transactionName();
+    }
+}
@@ -16,41 +16,56 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.FullQueryTextPool;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class TransactionProcessor {
+public class TransactionProcessor implements TransactionProcessorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
     // back pressure on transaction collection
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
+    // when the backlog of transactions exceeds this threshold, an increasing fraction of
+    // transactions (reaching all transactions at TRANSACTION_PENDING_LIMIT) are aggregated in
+    // degraded mode, where they still count toward the overall and transaction name totals and
+    // histograms, but their queries, service calls and profiles are not merged (which is the bulk
+    // of the aggregation cost)
+    private static final int TRANSACTION_DEGRADED_THRESHOLD = TRANSACTION_PENDING_LIMIT / 4;
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // upper bound on how long the processing thread parks while waiting for the end of the active
+    // interval (protects against wall clock adjustments)
+    private static final long MAX_PARK_MILLIS = 100;
+
+    // number of threads to shard aggregate processing across (by transaction type and transaction
+    // name), with the default of 1 aggregate processing is performed on the
+    // Glowroot-Aggregate-Processing thread itself
+    private static final int AGGREGATE_PROCESSING_SHARDS =
+            Math.max(1, Integer.getInteger("glowroot.aggregate.processing.shards", 1));
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
 
     // need to guarantee these are processed in order (at least when running embedded collector
@@ -60,6 +75,8 @@ public class TransactionProcessor {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    // empty when aggregate processing is not sharded
+    private final ImmutableList<AggregateProcessingShard> processingShards;
     private final Collector collector;
     private final TraceCollector traceCollector;
     private final ConfigService configService;
@@ -67,14 +84,13 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    // the processing thread is the only consumer
+    private final CompletionQueue<Transaction> transactionQueue;
+
+    private final FullQueryTextPool fullQueryTextPool = new FullQueryTextPool();
+
+    private final AtomicLong degradedTransactionCount = new AtomicLong();
+    private final AtomicLong droppedTransactionCount = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -88,19 +104,49 @@ public class TransactionProcessor {
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        transactionQueue = new CompletionQueue<Transaction>(TRANSACTION_PENDING_LIMIT, clock);
         processingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        if (AGGREGATE_PROCESSING_SHARDS == 1) {
+            processingShards = ImmutableList.of();
+        } else {
+            List<AggregateProcessingShard> processingShards = Lists.newArrayList();
+            for (int i = 0; i < AGGREGATE_PROCESSING_SHARDS; i++) {
+                processingShards.add(
+                        new AggregateProcessingShard(i, TRANSACTION_PENDING_LIMIT, clock));
+            }
+            this.processingShards = ImmutableList.copyOf(processingShards);
+        }
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
 
+    public List<? extends AggregateProcessingShardMXBean> getProcessingShards() {
+        return processingShards;
+    }
+
+    @Override
+    public int getPendingTransactionCount() {
+        return transactionQueue.size();
+    }
+
+    @Override
+    public long getDegradedTransactionCount() {
+        return degradedTransactionCount.get();
+    }
+
+    @Override
+    public long getDroppedTransactionCount() {
+        long droppedTransactionCount = this.droppedTransactionCount.get();
+        for (AggregateProcessingShard processingShard : processingShards) {
+            droppedTransactionCount += processingShard.getDroppedCount();
+        }
+        return droppedTransactionCount;
+    }
+
     public Set<String> getTransactionTypes() {
         Set<String> transactionTypes = Sets.newHashSet();
         transactionTypes.addAll(activeIntervalCollector.getTransactionTypes());
@@ -126,27 +172,17 @@ public class TransactionProcessor {
     public void clearInMemoryData() {
         activeIntervalCollector.clear();
         synchronized (pendingIntervalCollectors) {
+            for (AggregateIntervalCollector pendingIntervalCollector : pendingIntervalCollectors) {
+                // releases pooled query texts
+                pendingIntervalCollector.clear();
+            }
             pendingIntervalCollectors.clear();
         }
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (exceededLimit) {
+        if (!transactionQueue.offer(transaction)) {
+            droppedTransactionCount.getAndIncrement();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
@@ -154,6 +190,14 @@ public class TransactionProcessor {
         }
     }
 
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(),
+                Math.max(1, processingShards.size()), fullQueryTextPool, clock);
+    }
+
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
@@ -173,10 +217,14 @@ public class TransactionProcessor {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        transactionQueue.unparkConsumer();
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        for (AggregateProcessingShard processingShard : processingShards) {
+            processingShard.close();
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -186,6 +234,13 @@ public class TransactionProcessor {
 
     private class TransactionProcessorLoop implements Runnable {
 
+        // producers read the capture time just after (not atomically with) linking into the
+        // queue, so capture times can be very slightly out of order in the queue, this is used to
+        // keep the capture times seen by the queue reader monotonic
+        private long lastCaptureTime;
+
+        private final Random random = new Random();
+
         @Override
         public void run() {
             while (!closed) {
@@ -198,22 +253,25 @@ public class TransactionProcessor {
             }
         }
 
-        private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
-            if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+        private void processOne() {
+            Transaction transaction = transactionQueue.peek();
+            if (transaction == null) {
+                if (!transactionQueue.isEmpty()) {
+                    // a producer has swapped in the new tail but has not linked it yet
+                    Thread.yield();
+                } else if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    MILLISECONDS.sleep(1);
+                    parkUntilNextTransactionOrEndOfInterval();
                 }
                 return;
             }
+            long captureTime = Math.max(transactionQueue.peekCaptureTime(), lastCaptureTime);
+            lastCaptureTime = captureTime;
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
-            transaction.setCaptureTime(pendingTransaction.captureTime);
+            transaction.setCaptureTime(captureTime);
 
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
@@ -222,48 +280,70 @@ public class TransactionProcessor {
 
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
+            transactionQueue.remove();
+            if (captureTime > activeIntervalCollector.getCaptureTime()) {
+                flushAndResetActiveIntervalCollector(captureTime);
+            }
+            if (processingShards.isEmpty()) {
+                activeIntervalCollector.add(transaction, isDegraded(transactionQueue.size()));
+            } else {
+                int shardIndex = AggregateIntervalCollector.getShardIndex(transaction,
+                        processingShards.size());
+                AggregateProcessingShard processingShard = processingShards.get(shardIndex);
+                int backlog = Math.max(transactionQueue.size(), processingShard.getQueueLength());
+                if (!processingShard.add(activeIntervalCollector, transaction,
+                        isDegraded(backlog))) {
+                    backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                            + " backlog of {} transactions already waiting to be aggregated by"
+                            + " aggregate processing shard {}", TRANSACTION_PENDING_LIMIT,
+                            shardIndex);
                 }
-                queueLength--;
             }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+        }
+
+        private boolean isDegraded(int backlog) {
+            if (backlog <= TRANSACTION_DEGRADED_THRESHOLD) {
+                return false;
+            }
+            // ramp up gradually so that aggregate detail degrades smoothly with backlog
+            double degradedFraction = (backlog - TRANSACTION_DEGRADED_THRESHOLD)
+                    / (double) (TRANSACTION_PENDING_LIMIT - TRANSACTION_DEGRADED_THRESHOLD);
+            if (random.nextDouble() < degradedFraction) {
+                degradedTransactionCount.getAndIncrement();
+                return true;
             }
-            activeIntervalCollector.add(transaction);
+            return false;
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+            // current time must be read before checking that the queue is empty
+            long currentTime = clock.currentTimeMillis();
+            if (!transactionQueue.isEmpty()) {
+                // something just crept into the queue, possibly still something from active
+                // interval, it will get picked up right away and if it is in next interval it
+                // will force active aggregate to be flushed anyways
+                return;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
+            if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                // safe to flush, no other pending transactions can enter queue with prior time
+                // (since producers read the capture time after swapping in the new tail, and the
+                // check above observed no new tail)
+                lastCaptureTime = Math.max(currentTime, lastCaptureTime);
                 flushAndResetActiveIntervalCollector(currentTime);
             }
         }
 
+        private void parkUntilNextTransactionOrEndOfInterval() {
+            long parkMillis = activeIntervalCollector.getCaptureTime() - clock.currentTimeMillis();
+            parkMillis = Math.max(1, Math.min(parkMillis + 1, MAX_PARK_MILLIS));
+            if (!closed) {
+                transactionQueue.parkConsumer(MILLISECONDS.toNanos(parkMillis));
+            }
+        }
+
         private void flushAndResetActiveIntervalCollector(long currentTime) {
             flushActiveIntervalCollector();
-            activeIntervalCollector =
-                    new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
-                            configService.getAdvancedConfig().maxTransactionAggregates(),
-                            configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            activeIntervalCollector = createIntervalCollector(currentTime);
         }
 
         private void flushActiveIntervalCollector() {
@@ -275,6 +355,9 @@ public class TransactionProcessor {
                 }
             }
             if (!accepted) {
+                // the rejected interval will never be flushed, so release its full query texts
+                // back to the shared pool here
+                activeIntervalCollector.discard();
                 // don't log under synchronized lock
                 logger.warn("not storing an aggregate because of an excessive backlog of {}"
                         + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
@@ -306,15 +389,4 @@ public class TransactionProcessor {
             }
         }
     }
-
-    private static class PendingTransaction {
-
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
-        private volatile @Nullable PendingTransaction next;
-
-        private PendingTransaction(@Nullable Transaction transaction) {
-            this.transaction = transaction;
-        }
-    }
 }
@@ -39,6 +39,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
 import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.AggregateProcessingShardMXBean;
 import org.glowroot.agent.impl.BytecodeServiceImpl;
 import org.glowroot.agent.impl.BytecodeServiceImpl.OnEnteringMain;
 import org.glowroot.agent.impl.ConfigServiceImpl;
@@ -71,6 +72,7 @@ import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -92,6 +94,11 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    // persist "no weaving required" outcomes across JVM restarts to reduce startup time (see
+    // WeavingCache), this is opt-in since the cache key does not cover changes to super types
+    // that are loaded from a different code source
+    private static final boolean WEAVING_CACHE = Boolean.getBoolean("glowroot.weaving.cache");
+
     private final Clock clock;
     private final Ticker ticker;
 
@@ -99,6 +106,7 @@ public class AgentModule {
     private final TransactionRegistry transactionRegistry;
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
+    private final @Nullable WeavingCache weavingCache;
     private final AnalyzedWorld analyzedWorld;
     private final Weaver weaver;
     private final Random random;
@@ -150,14 +158,21 @@ public class AgentModule {
         }
         preloadSomeSuperTypesCache = new PreloadSomeSuperTypesCache(
                 new File(tmpDir, "preload-some-super-types-cache"), 50000, clock);
+        if (WEAVING_CACHE) {
+            weavingCache = new WeavingCache(new File(tmpDir, "weaving-cache"), 100000,
+                    adviceCache.getAdvisorsSupplier().get(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        } else {
+            weavingCache = null;
+        }
         analyzedWorld =
                 new AnalyzedWorld(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                         adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
         TimerNameCache timerNameCache = new TimerNameCache();
 
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                adviceCache.getMixinTypes(), analyzedWorld, weavingCache, transactionRegistry,
+                ticker, timerNameCache, configService);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -277,12 +292,26 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(weaver, "org.glowroot:type=Weaver");
+        lazyPlatformMBeanServer.lazyRegisterMBean(analyzedWorld,
+                "org.glowroot:type=AnalyzedWorld");
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionProcessor,
+                "org.glowroot:type=TransactionProcessor");
+        List<? extends AggregateProcessingShardMXBean> processingShards =
+                transactionProcessor.getProcessingShards();
+        for (int i = 0; i < processingShards.size(); i++) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(processingShards.get(i),
+                    "org.glowroot:type=AggregateProcessingShard,name=" + i);
+        }
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
-        stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, random, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, traceCollector, configService, ticker);
@@ -300,6 +329,9 @@ public class AgentModule {
                 glowrootJarFile, clock);
 
         preloadSomeSuperTypesCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (weavingCache != null) {
+            weavingCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        }
     }
 
     public ConfigService getConfigService() {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.FullQueryTextPool.PooledFullQueryText;
+
+// index of the long query texts (see Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) in a single aggregate
+// interval, which is shared by all of the query collectors in that interval so that full query
+// text lookups by sha1 (e.g. the UI's "show full query") don't need to re-hash every query text
+//
+// this is written to by the aggregate processing thread(s) and read by the UI and by the central
+// collector's downstream requests
+public class FullQueryTextIndex {
+
+    private final FullQueryTextPool pool;
+
+    @GuardedBy("this")
+    private final Map<String, PooledFullQueryText> byFullText = Maps.newHashMap();
+    @GuardedBy("this")
+    private final Map<String, PooledFullQueryText> bySha1 = Maps.newHashMap();
+    @GuardedBy("this")
+    private boolean released;
+
+    public FullQueryTextIndex(FullQueryTextPool pool) {
+        this.pool = pool;
+    }
+
+    // returns the pooled instance of the full text, so that query collectors across intervals
+    // share the same instance
+    synchronized String add(String fullText) {
+        if (released) {
+            // this can happen when the UI merges aggregate collectors from an interval that is in
+            // the process of being flushed
+            return fullText;
+        }
+        PooledFullQueryText pooledFullQueryText = byFullText.get(fullText);
+        if (pooledFullQueryText == null) {
+            pooledFullQueryText = pool.acquire(fullText);
+            byFullText.put(pooledFullQueryText.fullText, pooledFullQueryText);
+            bySha1.put(pooledFullQueryText.sha1, pooledFullQueryText);
+        }
+        return pooledFullQueryText.fullText;
+    }
+
+    public synchronized @Nullable String getSha1(String fullText) {
+        PooledFullQueryText pooledFullQueryText = byFullText.get(fullText);
+        return pooledFullQueryText == null ? null : pooledFullQueryText.sha1;
+    }
+
+    public synchronized @Nullable String getFullText(String sha1) {
+        PooledFullQueryText pooledFullQueryText = bySha1.get(sha1);
+        return pooledFullQueryText == null ? null : pooledFullQueryText.fullText;
+    }
+
+    // the index can continue to be used after clear()
+    public synchronized void clear() {
+        for (PooledFullQueryText pooledFullQueryText : byFullText.values()) {
+            pool.release(pooledFullQueryText);
+        }
+        byFullText.clear();
+        bySha1.clear();
+    }
+
+    // called once the interval has been flushed
+    public synchronized void release() {
+        clear();
+        released = true;
+    }
+}
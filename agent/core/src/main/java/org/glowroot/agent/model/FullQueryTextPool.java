@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// reference counted pool of long query texts (see Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) along
+// with their sha1, so that a long query text that appears in multiple aggregate intervals is only
+// hashed once and only retained once
+public class FullQueryTextPool {
+
+    @GuardedBy("this")
+    private final Map<String, PooledFullQueryText> pooledFullQueryTexts = Maps.newHashMap();
+
+    synchronized PooledFullQueryText acquire(String fullText) {
+        PooledFullQueryText pooledFullQueryText = pooledFullQueryTexts.get(fullText);
+        if (pooledFullQueryText == null) {
+            pooledFullQueryText = new PooledFullQueryText(fullText,
+                    Hashing.sha1().hashString(fullText, UTF_8).toString());
+            pooledFullQueryTexts.put(fullText, pooledFullQueryText);
+        }
+        pooledFullQueryText.refCount++;
+        return pooledFullQueryText;
+    }
+
+    synchronized void release(PooledFullQueryText pooledFullQueryText) {
+        if (--pooledFullQueryText.refCount == 0) {
+            pooledFullQueryTexts.remove(pooledFullQueryText.fullText);
+        }
+    }
+
+    @OnlyUsedByTests
+    synchronized int size() {
+        return pooledFullQueryTexts.size();
+    }
+
+    static class PooledFullQueryText {
+
+        final String fullText;
+        final String sha1;
+
+        // guarded by the pool
+        private int refCount;
+
+        private PooledFullQueryText(String fullText, String sha1) {
+            this.fullText = fullText;
+            this.sha1 = sha1;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -70,6 +70,27 @@ public class MutableAggregateTimer implements AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended);
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.merge(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -40,12 +40,20 @@ public class QueryCollector {
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
     private final int limit;
     private final int hardLimitMultiplierWhileBuilding;
+    // null for query collectors that are not part of an aggregate interval
+    private final @Nullable FullQueryTextIndex fullQueryTextIndex;
 
     private int queryCount;
 
     public QueryCollector(int limit, int hardLimitMultiplierWhileBuilding) {
+        this(limit, hardLimitMultiplierWhileBuilding, null);
+    }
+
+    public QueryCollector(int limit, int hardLimitMultiplierWhileBuilding,
+            @Nullable FullQueryTextIndex fullQueryTextIndex) {
         this.limit = limit;
         this.hardLimitMultiplierWhileBuilding = hardLimitMultiplierWhileBuilding;
+        this.fullQueryTextIndex = fullQueryTextIndex;
     }
 
     public List<Aggregate.Query> toAggregateProto(
@@ -102,6 +110,10 @@ public class QueryCollector {
         if (aggregateQuery == null) {
             if (queryCount < limit * hardLimitMultiplierWhileBuilding) {
                 aggregateQuery = new MutableQuery();
+                if (fullQueryTextIndex != null
+                        && queryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                    queryText = fullQueryTextIndex.add(queryText);
+                }
                 queriesForType.put(queryText, aggregateQuery);
                 queryCount++;
             } else {
@@ -139,7 +151,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = getFullQueryTextSha1(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -159,19 +171,14 @@ public class QueryCollector {
         }
     }
 
-    public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Map.Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
-                if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    continue;
-                }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
-                    return fullQueryText;
-                }
+    private String getFullQueryTextSha1(String fullQueryText) {
+        if (fullQueryTextIndex != null) {
+            String sha1 = fullQueryTextIndex.getSha1(fullQueryText);
+            if (sha1 != null) {
+                return sha1;
             }
         }
-        return null;
+        return Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
     }
 
     private void mergeLimitExceededBucket(String queryType, MutableQuery limitExceededBucket) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -84,13 +84,21 @@ public class ThreadProfile {
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
     public void addStackTrace(ThreadInfo threadInfo) {
+        addStackTrace(Arrays.asList(threadInfo.getStackTrace()), threadInfo.getThreadState(), 1);
+    }
+
+    // count is the number of identical stack traces captured in the same profiling cycle (e.g.
+    // from multiple auxiliary threads of the same transaction)
+    public void addStackTrace(List<StackTraceElement> stackTrace, Thread.State threadState,
+            int count) {
         synchronized (lock) {
-            if (++sampleCount > maxSamples) {
+            long remaining = maxSamples - sampleCount;
+            sampleCount += count;
+            if (remaining <= 0) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
+            int mergeCount = (int) Math.min(count, remaining);
+            if (profile == null && mergeCount == 1) {
                 unmergedStackTraces.add(stackTrace);
                 unmergedStackTraceThreadStates.add(threadState);
                 if (unmergedStackTraces.size() >= 10) {
@@ -101,7 +109,13 @@ public class ThreadProfile {
                     unmergedStackTraceThreadStates.clear();
                 }
             } else {
-                profile.merge(stackTrace, threadState);
+                if (profile == null) {
+                    profile = new MutableProfile();
+                    mergeTheUnmergedInto(profile);
+                    unmergedStackTraces.clear();
+                    unmergedStackTraceThreadStates.clear();
+                }
+                profile.merge(stackTrace, threadState, mergeCount);
             }
         }
     }
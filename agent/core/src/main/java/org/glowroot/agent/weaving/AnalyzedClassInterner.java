@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// reduces the memory footprint of AnalyzedWorld, which can be large in app servers with many
+// redeployed wars and osgi bundles, where many class loaders load the same classes
+//
+// class and method names are interned, and analyzed classes (and methods) without any advice are
+// shared across class loaders when they are equal, since they are immutable
+//
+// analyzed classes with advice are rare, and are left alone, since they are expensive to hash
+class AnalyzedClassInterner {
+
+    private final WeakInterner<AnalyzedClass> analyzedClasses = new WeakInterner<AnalyzedClass>();
+    private final WeakInterner<AnalyzedMethod> analyzedMethods =
+            new WeakInterner<AnalyzedMethod>();
+    private final WeakInterner<PublicFinalMethod> publicFinalMethods =
+            new WeakInterner<PublicFinalMethod>();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    AnalyzedClass intern(AnalyzedClass analyzedClass) {
+        if (hasAdvice(analyzedClass)) {
+            return analyzedClass;
+        }
+        AnalyzedClass existingAnalyzedClass = analyzedClasses.get(analyzedClass);
+        if (existingAnalyzedClass != null) {
+            if (existingAnalyzedClass != analyzedClass) {
+                sharedCount.getAndIncrement();
+            }
+            return existingAnalyzedClass;
+        }
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(analyzedClass.modifiers())
+                .name(analyzedClass.name().intern())
+                .superName(intern(analyzedClass.superName()))
+                .interfaceNames(intern(analyzedClass.interfaceNames()))
+                .ejbRemote(false);
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            builder.addAnalyzedMethods(intern(analyzedMethod));
+        }
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            builder.addPublicFinalMethods(intern(publicFinalMethod));
+        }
+        return analyzedClasses.intern(builder.build());
+    }
+
+    int getAnalyzedClassCount() {
+        return analyzedClasses.size();
+    }
+
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    // analyzed classes without advice can always be re-derived from the class bytes
+    static boolean hasAdvice(AnalyzedClass analyzedClass) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()
+                || analyzedClass.ejbRemote()) {
+            return true;
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!analyzedMethod.advisors().isEmpty()
+                    || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // only called for methods without advice (see above)
+    private AnalyzedMethod intern(AnalyzedMethod analyzedMethod) {
+        AnalyzedMethod existingAnalyzedMethod = analyzedMethods.get(analyzedMethod);
+        if (existingAnalyzedMethod != null) {
+            return existingAnalyzedMethod;
+        }
+        return analyzedMethods.intern(ImmutableAnalyzedMethod.builder()
+                .name(analyzedMethod.name().intern())
+                .parameterTypes(intern(analyzedMethod.parameterTypes()))
+                .returnType(analyzedMethod.returnType().intern())
+                .modifiers(analyzedMethod.modifiers())
+                .signature(intern(analyzedMethod.signature()))
+                .exceptions(intern(analyzedMethod.exceptions()))
+                .build());
+    }
+
+    private PublicFinalMethod intern(PublicFinalMethod publicFinalMethod) {
+        PublicFinalMethod existingPublicFinalMethod = publicFinalMethods.get(publicFinalMethod);
+        if (existingPublicFinalMethod != null) {
+            return existingPublicFinalMethod;
+        }
+        return publicFinalMethods.intern(ImmutablePublicFinalMethod.builder()
+                .name(publicFinalMethod.name().intern())
+                .parameterTypes(intern(publicFinalMethod.parameterTypes()))
+                .build());
+    }
+
+    private static @Nullable String intern(@Nullable String str) {
+        return str == null ? null : str.intern();
+    }
+
+    private static ImmutableList<String> intern(List<String> strs) {
+        if (strs.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<String> interned = Lists.newArrayListWithCapacity(strs.size());
+        for (String str : strs) {
+            interned.add(str.intern());
+        }
+        return ImmutableList.copyOf(interned);
+    }
+
+    // not using guava Interners.newWeakInterner() since it uses many additional classes that must
+    // then be pre-initialized since this is called from inside ClassFileTransformer.transform()
+    // (see PreInitializeClasses)
+    //
+    // lock-striped for the same reason as AnalyzedWorld
+    private static class WeakInterner<T> {
+
+        // must be power of 2
+        private static final int STRIPES = 16;
+
+        private final ImmutableList<Map<T, WeakReference<T>>> stripes;
+
+        private WeakInterner() {
+            List<Map<T, WeakReference<T>>> stripes = Lists.newArrayList();
+            for (int i = 0; i < STRIPES; i++) {
+                stripes.add(Collections.synchronizedMap(new WeakHashMap<T, WeakReference<T>>()));
+            }
+            this.stripes = ImmutableList.copyOf(stripes);
+        }
+
+        private @Nullable T get(T value) {
+            WeakReference<T> ref = getStripe(value).get(value);
+            return ref == null ? null : ref.get();
+        }
+
+        private T intern(T value) {
+            Map<T, WeakReference<T>> stripe = getStripe(value);
+            // this synchronization is for atomicity of get/put
+            synchronized (stripe) {
+                WeakReference<T> ref = stripe.get(value);
+                T existingValue = ref == null ? null : ref.get();
+                if (existingValue != null) {
+                    return existingValue;
+                }
+                stripe.put(value, new WeakReference<T>(value));
+                return value;
+            }
+        }
+
+        private int size() {
+            int size = 0;
+            for (Map<T, WeakReference<T>> stripe : stripes) {
+                size += stripe.size();
+            }
+            return size;
+        }
+
+        private Map<T, WeakReference<T>> getStripe(T value) {
+            int hash = value.hashCode();
+            hash ^= hash >>> 16;
+            return stripes.get(hash & (STRIPES - 1));
+        }
+    }
+}
@@ -17,6 +17,8 @@ package org.glowroot.agent.weaving;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
@@ -26,8 +28,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -48,13 +55,19 @@ import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.util.Styles;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-public class AnalyzedWorld {
+public class AnalyzedWorld implements AnalyzedWorldMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
     private static final Method findLoadedClassMethod;
 
+    // only one of these is non-null, depending on the jvm version (and neither on java 6 where
+    // class loaders cannot be parallel capable)
+    private static final @Nullable Method isRegisteredAsParallelCapableMethod;
+    private static final @Nullable Field parallelLockMapField;
+
     static {
         try {
             findLoadedClassMethod =
@@ -64,8 +77,28 @@ public class AnalyzedWorld {
             // unrecoverable error
             throw new AssertionError(e);
         }
+        isRegisteredAsParallelCapableMethod = getIsRegisteredAsParallelCapableMethod();
+        if (isRegisteredAsParallelCapableMethod == null) {
+            parallelLockMapField = getParallelLockMapField();
+        } else {
+            parallelLockMapField = null;
+        }
     }
 
+    // waiting on another thread's analysis of the same type is only an optimization, so this is
+    // kept short in case the other thread is blocked on a class loading lock held by this thread
+    private static final long IN_FLIGHT_ANALYSIS_WAIT_MILLIS = 100;
+
+    // must be power of 2
+    private static final int WORLD_STRIPES = 16;
+
+    // analyzed classes without advice can be re-derived from their .class resource, so they can
+    // optionally be evicted (oldest first) beyond this limit, which can help in app servers with
+    // many redeployed wars and osgi bundles (zero or negative disables eviction, which is the
+    // default since re-deriving evicted classes costs extra class file reads during weaving)
+    private static final int MAX_EVICTABLE_CLASSES =
+            Integer.getInteger("glowroot.weaving.maxEvictableAnalyzedClasses", 0);
+
     // weak keys to prevent retention of class loaders
     // it's important that the weak keys point directly to the class loaders themselves (as opposed
     // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
@@ -74,8 +107,16 @@ public class AnalyzedWorld {
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    //
+    // lock-striped by class loader identity so that concurrent class loading in different class
+    // loaders (e.g. during app server startup) does not all serialize on a single lock
+    private final ImmutableList<Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>>> world;
+
+    // analyzed classes that are currently being created, so that when multiple threads need the
+    // same super type at the same time (which is common during class loading storms), only one of
+    // them does the work (this only holds strong references to class loaders while in flight)
+    private final ConcurrentMap<InFlightKey, InFlightAnalysis> inFlightAnalyses =
+            new ConcurrentHashMap<InFlightKey, InFlightAnalysis>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -86,6 +127,14 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    private final AnalyzedClassInterner interner = new AnalyzedClassInterner();
+
+    // not using access order (true LRU) since that would require locking on every lookup
+    private final ConcurrentLinkedQueue<EvictableClass> evictableClasses =
+            new ConcurrentLinkedQueue<EvictableClass>();
+    private final AtomicInteger evictableClassCount = new AtomicInteger();
+    private final AtomicLong evictionCount = new AtomicLong();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -93,13 +142,31 @@ public class AnalyzedWorld {
     // only null for tests
     private final @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
 
+    private final int maxEvictableClasses;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes,
             @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache) {
+        this(advisors, shimTypes, mixinTypes, preloadSomeSuperTypesCache, MAX_EVICTABLE_CLASSES);
+    }
+
+    @VisibleForTesting
+    AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes,
+            @Nullable PreloadSomeSuperTypesCache preloadSomeSuperTypesCache,
+            int maxEvictableClasses) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.preloadSomeSuperTypesCache = preloadSomeSuperTypesCache;
+        this.maxEvictableClasses = maxEvictableClasses;
+        List<Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>>> world =
+                Lists.newArrayList();
+        for (int i = 0; i < WORLD_STRIPES; i++) {
+            world.add(Collections.synchronizedMap(
+                    new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>()));
+        }
+        this.world = ImmutableList.copyOf(world);
     }
 
     public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
@@ -123,14 +190,54 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        List<ClassLoader> loaders = Lists.newArrayList();
+        for (Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> stripe : world) {
+            synchronized (stripe) {
+                loaders.addAll(stripe.keySet());
+            }
         }
+        return ImmutableList.copyOf(loaders);
+    }
+
+    @Override
+    public int getClassLoaderCount() {
+        return getClassLoaders().size() + 1;
+    }
+
+    @Override
+    public long getAnalyzedClassCount() {
+        long count = bootstrapLoaderWorld.size();
+        for (Map<String, AnalyzedClass> map : getWorldValues()) {
+            count += map.size();
+        }
+        return count;
+    }
+
+    @Override
+    public int getDistinctAnalyzedClassWithoutAdviceCount() {
+        return interner.getAnalyzedClassCount();
+    }
+
+    @Override
+    public long getSharedAnalyzedClassCount() {
+        return interner.getSharedCount();
+    }
+
+    @Override
+    public int getEvictableClassCount() {
+        return evictableClassCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
+        analyzedClass = interner.intern(analyzedClass);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        trackEvictable(loader, analyzedClass);
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -237,12 +344,46 @@ public class AnalyzedWorld {
                         subClassName, analyzedClassLoader.getClass().getName(),
                         analyzedClassLoader.hashCode());
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass =
+                    createAnalyzedClassOnce(className, analyzedClassLoader, loaderAnalyzedClasses);
         }
         return ImmutableAnalyzedClassAndLoader.of(analyzedClass, analyzedClassLoader);
     }
 
+    private AnalyzedClass createAnalyzedClassOnce(String className, @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        InFlightKey key = new InFlightKey(className, loader);
+        InFlightAnalysis inFlightAnalysis = new InFlightAnalysis();
+        InFlightAnalysis existingInFlightAnalysis =
+                inFlightAnalyses.putIfAbsent(key, inFlightAnalysis);
+        if (existingInFlightAnalysis != null) {
+            // not waiting on analysis in class loaders that are not parallel capable, since the
+            // other thread may need the class loader lock (e.g. see createAnalyzedClassPlanB()),
+            // which this thread may be holding while loading one of its classes
+            if (isParallelCapable(loader)) {
+                AnalyzedClass analyzedClass = existingInFlightAnalysis.await();
+                if (analyzedClass != null) {
+                    return analyzedClass;
+                }
+            }
+            // the other thread failed (or is taking too long, or is this same thread, or is in a
+            // class loader that is not parallel capable), so just create it here, there is no harm
+            // in creating it twice
+            return putAnalyzedClass(loader, loaderAnalyzedClasses,
+                    createAnalyzedClass(className, loader));
+        }
+        try {
+            AnalyzedClass analyzedClass = putAnalyzedClass(loader, loaderAnalyzedClasses,
+                    createAnalyzedClass(className, loader));
+            inFlightAnalysis.analyzedClass = analyzedClass;
+            return analyzedClass;
+        } finally {
+            inFlightAnalyses.remove(key);
+            inFlightAnalysis.latch.countDown();
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -363,36 +504,99 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
+            Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> stripe = getWorldStripe(loader);
             // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            synchronized (stripe) {
+                ConcurrentMap<String, AnalyzedClass> map = stripe.get(loader);
                 if (map == null) {
                     map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
+                    stripe.put(loader, map);
                 }
                 return map;
             }
         }
     }
 
+    private Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> getWorldStripe(
+            ClassLoader loader) {
+        int hash = System.identityHashCode(loader);
+        // spread the higher bits since identity hash codes are not always well distributed
+        hash ^= hash >>> 16;
+        return world.get(hash & (WORLD_STRIPES - 1));
+    }
+
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+        List<ConcurrentMap<String, AnalyzedClass>> values = Lists.newArrayList();
+        for (Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> stripe : world) {
+            synchronized (stripe) {
+                values.addAll(stripe.values());
+            }
         }
+        return ImmutableList.copyOf(values);
     }
 
-    private static AnalyzedClass putAnalyzedClass(
+    private AnalyzedClass putAnalyzedClass(@Nullable ClassLoader loader,
             ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
+        analyzedClass = interner.intern(analyzedClass);
         AnalyzedClass existingAnalyzedClass =
                 loaderAnalyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
         if (existingAnalyzedClass != null) {
             // (rare) concurrent AnalyzedClass creation, use the one that made it into the map
             return existingAnalyzedClass;
         }
+        trackEvictable(loader, analyzedClass);
         return analyzedClass;
     }
 
+    private void trackEvictable(@Nullable ClassLoader loader, AnalyzedClass analyzedClass) {
+        if (maxEvictableClasses <= 0 || AnalyzedClassInterner.hasAdvice(analyzedClass)) {
+            return;
+        }
+        evictableClasses.add(new EvictableClass(loader, analyzedClass));
+        if (evictableClassCount.incrementAndGet() <= maxEvictableClasses) {
+            return;
+        }
+        // entries that turn out not to be evictable are dropped from tracking, so keep going until
+        // one is evicted or until back under the limit
+        while (evictableClassCount.get() > maxEvictableClasses) {
+            EvictableClass eldest = evictableClasses.poll();
+            if (eldest == null) {
+                return;
+            }
+            evictableClassCount.decrementAndGet();
+            if (evict(eldest)) {
+                return;
+            }
+        }
+    }
+
+    private boolean evict(EvictableClass evictableClass) {
+        ClassLoader loader = null;
+        if (evictableClass.loaderRef != null) {
+            loader = evictableClass.loaderRef.get();
+            if (loader == null) {
+                // the class loader has been collected, along with its analyzed classes
+                return false;
+            }
+        }
+        AnalyzedClass analyzedClass = evictableClass.analyzedClass;
+        // only analyzed classes that can be re-derived from their .class resource are evicted,
+        // since otherwise re-deriving falls back to createAnalyzedClassPlanB(), which loads the
+        // class outside of weaving
+        String path = ClassNames.toInternalName(analyzedClass.name()) + ".class";
+        URL url = loader == null ? ClassLoader.getSystemResource(path) : loader.getResource(path);
+        if (url == null) {
+            return false;
+        }
+        // only remove if it hasn't since been replaced (e.g. by re-weaving)
+        if (getAnalyzedClasses(loader).remove(analyzedClass.name(), analyzedClass)) {
+            evictionCount.getAndIncrement();
+            return true;
+        }
+        return false;
+    }
+
     private @Nullable ClassLoader getAnalyzedLoader(String className, @Nullable ClassLoader loader,
             String subClassName) {
         if (loader == null) {
@@ -424,6 +628,46 @@ public class AnalyzedWorld {
         }
     }
 
+    private static boolean isParallelCapable(@Nullable ClassLoader loader) {
+        if (loader == null) {
+            // the bootstrap class loader does not lock on class loading
+            return true;
+        }
+        try {
+            if (isRegisteredAsParallelCapableMethod != null) {
+                return (Boolean) isRegisteredAsParallelCapableMethod.invoke(loader);
+            }
+            if (parallelLockMapField != null) {
+                return parallelLockMapField.get(loader) != null;
+            }
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
+        return false;
+    }
+
+    private static @Nullable Method getIsRegisteredAsParallelCapableMethod() {
+        try {
+            // java 9+
+            return ClassLoader.class.getDeclaredMethod("isRegisteredAsParallelCapable");
+        } catch (NoSuchMethodException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static @Nullable Field getParallelLockMapField() {
+        try {
+            // java 7 and 8
+            Field field = ClassLoader.class.getDeclaredField("parallelLockMap");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
     // now that the type has been loaded anyways, build the analyzed class via reflection
     private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
@@ -575,6 +819,72 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    // this only weakly references the class loader (and not its map of analyzed classes) so it
+    // doesn't prevent the class loader, or its analyzed classes, from being collected
+    private static class EvictableClass {
+
+        // null for the bootstrap class loader
+        private final @Nullable WeakReference<ClassLoader> loaderRef;
+        private final AnalyzedClass analyzedClass;
+
+        private EvictableClass(@Nullable ClassLoader loader, AnalyzedClass analyzedClass) {
+            loaderRef = loader == null ? null : new WeakReference<ClassLoader>(loader);
+            this.analyzedClass = analyzedClass;
+        }
+    }
+
+    // not using immutables here since the class loader needs to be compared by identity
+    private static class InFlightKey {
+
+        private final String className;
+        private final @Nullable ClassLoader loader;
+
+        private InFlightKey(String className, @Nullable ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey that = (InFlightKey) obj;
+            return className.equals(that.className) && loader == that.loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * className.hashCode() + System.identityHashCode(loader);
+        }
+    }
+
+    private static class InFlightAnalysis {
+
+        private final Thread thread = Thread.currentThread();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile @Nullable AnalyzedClass analyzedClass;
+
+        // returns null if the analysis failed, or did not complete in a reasonable amount of time
+        // (e.g. if the analyzing thread is blocked on a class loading lock that this thread holds)
+        private @Nullable AnalyzedClass await() {
+            if (thread == Thread.currentThread()) {
+                // re-entrant analysis of the same type (shouldn't happen, but can't wait on self)
+                return null;
+            }
+            try {
+                if (!latch.await(IN_FLIGHT_ANALYSIS_WAIT_MILLIS, MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                // restore interrupt status
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return analyzedClass;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
@@ -252,12 +252,13 @@ public class PreInitializeWeavingClasses {
 
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
-        types.add("org.glowroot.agent.impl.NestedTimerMap");
         types.add("org.glowroot.agent.impl.PreloadSomeSuperTypesCache");
         types.add("org.glowroot.agent.impl.PreloadSomeSuperTypesCache$1");
         types.add("org.glowroot.agent.impl.PreloadSomeSuperTypesCache$CacheValue");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
+        types.add("org.glowroot.agent.impl.TimerTree");
+        types.add("org.glowroot.agent.impl.TimerTree$Slots");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
         types.add("org.glowroot.agent.model.TimerNameImpl");
         types.add("org.glowroot.agent.model.TransactionTimer");
@@ -314,10 +315,18 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
+        types.add("org.glowroot.agent.weaving.AnalyzedClassInterner");
+        types.add("org.glowroot.agent.weaving.AnalyzedClassInterner$1");
+        types.add("org.glowroot.agent.weaving.AnalyzedClassInterner$WeakInterner");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$1");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalyzedClassAndLoader");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$EvictableClass");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightAnalysis");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightKey");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldMXBean");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -408,12 +417,16 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
         types.add("org.glowroot.agent.weaving.Weaver");
+        types.add("org.glowroot.agent.weaving.WeaverMXBean");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$1");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.agent.weaving.WeavingPreScreen");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$Builder");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$InitShim");
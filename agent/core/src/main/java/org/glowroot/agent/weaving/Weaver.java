@@ -26,6 +26,7 @@ import java.security.CodeSource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
@@ -63,7 +64,7 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM7;
 import static org.objectweb.asm.Opcodes.V1_6;
 
-public class Weaver {
+public class Weaver implements WeaverMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(Weaver.class);
 
@@ -79,10 +80,14 @@ public class Weaver {
         }
     }
 
+    private static final boolean PRE_SCREEN_DISABLED =
+            Boolean.getBoolean("glowroot.weaving.preScreenDisabled");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable WeavingCache weavingCache;
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
@@ -93,17 +98,24 @@ public class Weaver {
 
     private volatile boolean weavingDisabledForLoggingDeadlock;
 
+    private volatile @Nullable WeavingPreScreen preScreen;
+
+    private final AtomicLong transformCount = new AtomicLong();
+    private final AtomicLong preScreenRejectCount = new AtomicLong();
+    private final AtomicLong totalTransformNanos = new AtomicLong();
+
     private final IterableWithSelfRemovableEntries<ActiveWeaving> activeWeavings =
             new IterableWithSelfRemovableEntries<ActiveWeaving>();
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
-            TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            @Nullable WeavingCache weavingCache, TransactionRegistry transactionRegistry,
+            Ticker ticker, TimerNameCache timerNameCache, final ConfigService configService) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.weavingCache = weavingCache;
         this.transactionRegistry = transactionRegistry;
         this.ticker = ticker;
         configService.addConfigListener(new ConfigListener() {
@@ -119,6 +131,30 @@ public class Weaver {
         noLongerNeedToWeaveMainMethods = true;
     }
 
+    @Override
+    public long getTransformCount() {
+        return transformCount.get();
+    }
+
+    @Override
+    public long getPreScreenRejectCount() {
+        return preScreenRejectCount.get();
+    }
+
+    @Override
+    public double getPreScreenRejectRate() {
+        long transformCount = this.transformCount.get();
+        if (transformCount == 0) {
+            return 0;
+        }
+        return preScreenRejectCount.get() / (double) transformCount;
+    }
+
+    @Override
+    public long getTotalTransformNanos() {
+        return totalTransformNanos.get();
+    }
+
     public void checkForDeadlockedActiveWeaving() {
         long currTick = ticker.read();
         List<Long> threadIds = Lists.newArrayList();
@@ -155,6 +191,8 @@ public class Weaver {
             if (weavingTimer != null) {
                 weavingTimer.stop();
             }
+            transformCount.getAndIncrement();
+            totalTransformNanos.getAndAdd(ticker.read() - startTick);
         }
     }
 
@@ -177,8 +215,35 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> currentAdvisors = this.advisors.get();
+        // the pre-screen only builds the same analyzed class that ClassAnalyzer would build when
+        // there is no main method weaving (and no re-weaving)
+        if (!PRE_SCREEN_DISABLED && noLongerNeedToWeaveMainMethods
+                && classBeingRedefined == null) {
+            AnalyzedClass analyzedClass = getPreScreen(currentAdvisors).screen(classBytes, loader,
+                    codeSource, analyzedWorld);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                preScreenRejectCount.getAndIncrement();
+                return null;
+            }
+        }
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(currentAdvisors,
                 classBytes, loader, className);
+        WeavingCache weavingCache = this.weavingCache;
+        long weavingCacheKey = 0;
+        if (weavingCache != null && isWeavingCacheApplicable(weavingCache, currentAdvisors,
+                advisors, classBeingRedefined, codeSource, loader)) {
+            weavingCacheKey = weavingCache.getKey(className, codeSource, classBytes,
+                    noLongerNeedToWeaveMainMethods);
+            AnalyzedClass analyzedClass = weavingCache.getNoWeavingRequired(weavingCacheKey);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                return null;
+            }
+        } else {
+            weavingCache = null;
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         boolean frames = accv.getMajorVersion() >= V1_6;
@@ -216,7 +281,11 @@ public class Weaver {
             return null;
         }
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null && maybeProcessedBytes == null) {
+                weavingCache.putNoWeavingRequired(weavingCacheKey, analyzedClass);
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -305,6 +374,26 @@ public class Weaver {
         return transformedBytes;
     }
 
+    private WeavingPreScreen getPreScreen(List<Advice> currentAdvisors) {
+        WeavingPreScreen preScreen = this.preScreen;
+        if (preScreen == null || !preScreen.isFor(currentAdvisors)) {
+            // races here are harmless, since pre-screens for the same advisors are equivalent
+            preScreen = WeavingPreScreen.create(currentAdvisors, shimTypes, mixinTypes);
+            this.preScreen = preScreen;
+        }
+        return preScreen;
+    }
+
+    private static boolean isWeavingCacheApplicable(WeavingCache weavingCache,
+            List<Advice> currentAdvisors, List<Advice> advisors,
+            @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
+            @Nullable ClassLoader loader) {
+        // advisors are different from currentAdvisors when the class has @Instrumentation
+        // annotations, whose generated advice is not covered by the weaving cache fingerprint
+        return weavingCache.isValidFor(currentAdvisors) && advisors == currentAdvisors
+                && classBeingRedefined == null && codeSource != null && loader != null;
+    }
+
     private void checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         long[] deadlockedThreadIds = threadBean.findDeadlockedThreads();
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.io.LineProcessor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common.util.Version;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persists the (by far most common) weaving outcome, that a class does not need to be woven, across
+// JVM restarts, along with the analyzed class summary needed to populate AnalyzedWorld, so that on
+// subsequent startups these classes do not need to be parsed and analyzed again
+//
+// only analyzed classes without any advice, shim or mixin state are cached, since those can be
+// fully restored from their summary, and classes that do need to be woven are always re-woven
+//
+// the cache key is derived from the class name, code source location and class bytes, and the
+// whole file is discarded on startup if the agent version, advice, shim types or mixin types have
+// changed (e.g. due to instrumentation config changes)
+public class WeavingCache extends ScheduledRunnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final String FINGERPRINT_PREFIX = "fingerprint:";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final int maxSize;
+    private final List<Advice> advisors;
+    private final String fingerprint;
+
+    // values are the encoded analyzed class summaries, which are only decoded on cache hit
+    private final ConcurrentMap<Long, String> cache;
+    private volatile int linesInFile;
+
+    private final Set<Long> needsToBeWritten = Sets.newConcurrentHashSet();
+
+    private static final AtomicBoolean isWritingFile = new AtomicBoolean();
+
+    public WeavingCache(File file, int maxSize, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this(file, maxSize, advisors, getFingerprint(Version.getVersion(WeavingCache.class),
+                advisors, shimTypes, mixinTypes));
+    }
+
+    @VisibleForTesting
+    WeavingCache(File file, int maxSize, List<Advice> advisors, String fingerprint) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.advisors = advisors;
+        this.fingerprint = fingerprint;
+        cache = Maps.newConcurrentMap();
+        linesInFile = loadFromFile(file, fingerprint, cache);
+    }
+
+    // the cache is only valid for the advisors that it was fingerprinted with, advisors are
+    // replaced (not mutated) when instrumentation config changes at runtime
+    boolean isValidFor(List<Advice> advisors) {
+        return advisors == this.advisors;
+    }
+
+    long getKey(String className, @Nullable CodeSource codeSource, byte[] classBytes,
+            boolean noLongerNeedToWeaveMainMethods) {
+        long hash = hash(FNV_OFFSET_BASIS, className);
+        URL location = codeSource == null ? null : codeSource.getLocation();
+        if (location != null) {
+            hash = hash(hash, location.toExternalForm());
+        }
+        hash = hash(hash, noLongerNeedToWeaveMainMethods ? 1 : 0);
+        for (byte b : classBytes) {
+            hash = hash(hash, b & 0xff);
+        }
+        return hash;
+    }
+
+    @Nullable
+    AnalyzedClass getNoWeavingRequired(long key) {
+        String value = cache.get(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return decode(value);
+        } catch (RuntimeException e) {
+            // e.g. NumberFormatException due to corrupt file
+            logger.debug(e.getMessage(), e);
+            cache.remove(key);
+            return null;
+        }
+    }
+
+    void putNoWeavingRequired(long key, AnalyzedClass analyzedClass) {
+        if (cache.size() >= maxSize) {
+            return;
+        }
+        String value = encode(analyzedClass);
+        if (value != null && cache.putIfAbsent(key, value) == null) {
+            needsToBeWritten.add(key);
+        }
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        if (needsToBeWritten.size() > 10) {
+            writeToFileAsync();
+        }
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    private void writeToFileAsync() {
+        if (isWritingFile.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeToFile();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                    isWritingFile.set(false);
+                }
+            });
+            thread.setName("Glowroot-Weaving-Cache-Writer");
+            thread.start();
+        }
+    }
+
+    @VisibleForTesting
+    void writeToFile() throws FileNotFoundException, IOException {
+        if (linesInFile == 0) {
+            // this also (re-)writes the fingerprint header
+            writeAllToFile();
+        } else {
+            appendNewLinesToFile();
+        }
+        // race condition on clearing is ok, worst case miss writing a few entries that were just
+        // added during writing/appending above, and will likely catch them on next JVM start
+        needsToBeWritten.clear();
+    }
+
+    private void writeAllToFile() throws FileNotFoundException, IOException {
+        BufferedWriter out = Files.newWriter(file, UTF_8);
+        try {
+            out.write(FINGERPRINT_PREFIX);
+            out.write(fingerprint);
+            out.write("\n");
+            int lineCount = 0;
+            for (Map.Entry<Long, String> entry : cache.entrySet()) {
+                writeLine(out, entry.getKey(), entry.getValue());
+                lineCount++;
+            }
+            linesInFile = lineCount;
+        } finally {
+            out.close();
+        }
+    }
+
+    private void appendNewLinesToFile() throws FileNotFoundException, IOException {
+        BufferedWriter out =
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+        try {
+            int lineCount = 0;
+            Iterator<Long> i = needsToBeWritten.iterator();
+            while (i.hasNext()) {
+                Long key = i.next();
+                String value = cache.get(key);
+                if (value != null) {
+                    writeLine(out, key, value);
+                    lineCount++;
+                }
+            }
+            linesInFile += lineCount;
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeLine(BufferedWriter out, long key, String value) throws IOException {
+        out.write(Long.toString(key));
+        out.write(",");
+        out.write(value);
+        out.write("\n");
+    }
+
+    // returns number of lines loaded, or zero if the file does not exist or has a different
+    // fingerprint, in which case the file will be overwritten on the next write
+    private static int loadFromFile(File file, String fingerprint,
+            ConcurrentMap<Long, String> cache) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            return Files.readLines(file, UTF_8, new LoadFromFile(file, fingerprint, cache));
+        } catch (IOException e) {
+            logger.error("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+            cache.clear();
+            return 0;
+        }
+    }
+
+    @VisibleForTesting
+    static String getFingerprint(String version, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        long hash = hash(FNV_OFFSET_BASIS, version);
+        for (Advice advice : advisors) {
+            hash = hash(hash, advice.adviceType().getInternalName());
+            hash = hash(hash, advice.pointcut().toString());
+            hash = hash(hash, advice.reweavable() ? 1 : 0);
+        }
+        for (ShimType shimType : shimTypes) {
+            hash = hash(hash, shimType.iface().getInternalName());
+            hash = hash(hash, shimType.targets().toString());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (Type iface : mixinType.interfaces()) {
+                hash = hash(hash, iface.getInternalName());
+            }
+            hash = hash(hash, mixinType.targets().toString());
+        }
+        return Long.toHexString(hash);
+    }
+
+    // encoded as modifiers,ejbRemote,name,superName,interfaceNames,publicFinalMethods
+    // with list items separated by '|' and public final method parameter types separated by ':'
+    @VisibleForTesting
+    static @Nullable String encode(AnalyzedClass analyzedClass) {
+        if (!analyzedClass.analyzedMethods().isEmpty() || !analyzedClass.shimTypes().isEmpty()
+                || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(analyzedClass.modifiers());
+        sb.append(',');
+        sb.append(analyzedClass.ejbRemote() ? '1' : '0');
+        sb.append(',');
+        if (!appendToken(sb, analyzedClass.name())) {
+            return null;
+        }
+        sb.append(',');
+        String superName = analyzedClass.superName();
+        if (superName != null && !appendToken(sb, superName)) {
+            return null;
+        }
+        sb.append(',');
+        boolean first = true;
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            if (!first) {
+                sb.append('|');
+            }
+            if (!appendToken(sb, interfaceName)) {
+                return null;
+            }
+            first = false;
+        }
+        sb.append(',');
+        first = true;
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            if (!first) {
+                sb.append('|');
+            }
+            if (!appendToken(sb, publicFinalMethod.name())) {
+                return null;
+            }
+            for (String parameterType : publicFinalMethod.parameterTypes()) {
+                sb.append(':');
+                if (!appendToken(sb, parameterType)) {
+                    return null;
+                }
+            }
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    @VisibleForTesting
+    static @Nullable AnalyzedClass decode(String value) {
+        List<String> parts = split(value, ',');
+        if (parts.size() != 6) {
+            return null;
+        }
+        String superName = parts.get(3);
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(Integer.parseInt(parts.get(0)))
+                .ejbRemote(parts.get(1).equals("1"))
+                .name(parts.get(2))
+                .superName(superName.isEmpty() ? null : superName);
+        String interfaceNames = parts.get(4);
+        if (!interfaceNames.isEmpty()) {
+            builder.addAllInterfaceNames(split(interfaceNames, '|'));
+        }
+        String publicFinalMethods = parts.get(5);
+        if (!publicFinalMethods.isEmpty()) {
+            for (String publicFinalMethod : split(publicFinalMethods, '|')) {
+                List<String> methodParts = split(publicFinalMethod, ':');
+                builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name(methodParts.get(0))
+                        .addAllParameterTypes(methodParts.subList(1, methodParts.size()))
+                        .build());
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean appendToken(StringBuilder sb, String token) {
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == ',' || c == '|' || c == ':' || c == '\n' || c == '\r') {
+                // not valid in java source, but possible in bytecode, so just don't cache
+                return false;
+            }
+        }
+        sb.append(token);
+        return true;
+    }
+
+    private static List<String> split(String value, char separator) {
+        List<String> parts = Lists.newArrayList();
+        int start = 0;
+        int index;
+        while ((index = value.indexOf(separator, start)) != -1) {
+            parts.add(value.substring(start, index));
+            start = index + 1;
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+
+    private static long hash(long hash, String value) {
+        long h = hash;
+        for (int i = 0; i < value.length(); i++) {
+            h = hash(h, value.charAt(i));
+        }
+        return h;
+    }
+
+    // FNV-1a
+    private static long hash(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private static class LoadFromFile implements LineProcessor<Integer> {
+
+        private final File file;
+        private final String fingerprint;
+        private final ConcurrentMap<Long, String> cache;
+
+        private boolean fingerprintMatches;
+        private int linesInFile;
+
+        private boolean errorLogged;
+
+        private LoadFromFile(File file, String fingerprint, ConcurrentMap<Long, String> cache) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+            this.cache = cache;
+        }
+
+        @Override
+        public boolean processLine(String line) {
+            if (!fingerprintMatches) {
+                // stop reading if advice, shim types or mixin types have changed
+                fingerprintMatches = line.equals(FINGERPRINT_PREFIX + fingerprint);
+                return fingerprintMatches;
+            }
+            linesInFile++;
+            int index = line.indexOf(',');
+            try {
+                cache.put(Long.parseLong(line.substring(0, index)), line.substring(index + 1));
+            } catch (Exception e) {
+                // e.g. StringIndexOutOfBoundsException or NumberFormatException
+                if (!errorLogged) {
+                    logger.error("error parsing {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+                }
+                errorLogged = true;
+            }
+            return true;
+        }
+
+        @Override
+        public Integer getResult() {
+            return linesInFile;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.security.CodeSource;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+
+// screens raw class bytes (without any ASM parsing) to identify classes that cannot possibly
+// require weaving, by matching the class name against the class name and super type patterns of
+// all advice, and the constant pool against the class and method annotations of all advice (using
+// a small bloom filter so that the common case doesn't need to decode any strings)
+//
+// a class that passes the screen still has its super types checked via the analyzed world, since
+// advice, shims and mixins can be inherited, and only then is it rejected
+class WeavingPreScreen {
+
+    private static final byte[] INSTRUMENTATION_MARKER =
+            "Lorg/glowroot/agent/api/Instrumentation$".getBytes(UTF_8);
+
+    // 2048 bits is plenty for the number of annotations referenced by advice
+    private static final int BLOOM_FILTER_MASK = 2047;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    // only used for identity comparison, to know when the advisors have changed
+    private final List<Advice> advisors;
+
+    // false if there is any advice that could match any class
+    private final boolean enabled;
+
+    // matched against the class name only
+    private final ImmutableSet<String> classNames;
+    private final ImmutableList<Pattern> classNamePatterns;
+
+    // matched against the class name and the names of all of its super types
+    private final ImmutableSet<String> superTypeNames;
+    private final ImmutableList<Pattern> superTypeNamePatterns;
+
+    // matched against the constant pool
+    private final ImmutableSet<String> annotationDescriptors;
+    private final ImmutableList<Pattern> annotationPatterns;
+    private final long[] annotationBloomFilter;
+
+    private WeavingPreScreen(List<Advice> advisors, boolean enabled, Set<String> classNames,
+            List<Pattern> classNamePatterns, Set<String> superTypeNames,
+            List<Pattern> superTypeNamePatterns, Set<String> annotationDescriptors,
+            List<Pattern> annotationPatterns) {
+        this.advisors = advisors;
+        this.enabled = enabled;
+        this.classNames = ImmutableSet.copyOf(classNames);
+        this.classNamePatterns = ImmutableList.copyOf(classNamePatterns);
+        this.superTypeNames = ImmutableSet.copyOf(superTypeNames);
+        this.superTypeNamePatterns = ImmutableList.copyOf(superTypeNamePatterns);
+        this.annotationDescriptors = ImmutableSet.copyOf(annotationDescriptors);
+        this.annotationPatterns = ImmutableList.copyOf(annotationPatterns);
+        annotationBloomFilter = new long[(BLOOM_FILTER_MASK + 1) / 64];
+        for (String annotationDescriptor : annotationDescriptors) {
+            byte[] bytes = annotationDescriptor.getBytes(UTF_8);
+            int hash = hash(bytes, 0, bytes.length);
+            setBit(hash & BLOOM_FILTER_MASK);
+            setBit((hash >>> 16) & BLOOM_FILTER_MASK);
+        }
+    }
+
+    static WeavingPreScreen create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        boolean enabled = true;
+        Set<String> classNames = Sets.newHashSet();
+        List<Pattern> classNamePatterns = Lists.newArrayList();
+        Set<String> superTypeNames = Sets.newHashSet();
+        List<Pattern> superTypeNamePatterns = Lists.newArrayList();
+        Set<String> annotationDescriptors = Sets.newHashSet();
+        List<Pattern> annotationPatterns = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            Pointcut pointcut = advice.pointcut();
+            // an advice can only match a class if all of its restrictions are met, so it is enough
+            // to capture any one of them, but capturing all of them keeps this simple
+            boolean restricted = false;
+            Pattern classNamePattern = advice.pointcutClassNamePattern();
+            if (classNamePattern != null) {
+                classNamePatterns.add(classNamePattern);
+                restricted = true;
+            } else if (!pointcut.className().isEmpty()) {
+                classNames.add(pointcut.className());
+                restricted = true;
+            }
+            Pattern superTypeRestrictionPattern = advice.pointcutSuperTypeRestrictionPattern();
+            if (superTypeRestrictionPattern != null) {
+                superTypeNamePatterns.add(superTypeRestrictionPattern);
+                restricted = true;
+            } else if (!pointcut.superTypeRestriction().isEmpty()) {
+                superTypeNames.add(pointcut.superTypeRestriction());
+                restricted = true;
+            }
+            restricted |= addAnnotation(advice.pointcutClassAnnotationPattern(),
+                    pointcut.classAnnotation(), annotationDescriptors, annotationPatterns);
+            restricted |= addAnnotation(advice.pointcutMethodAnnotationPattern(),
+                    pointcut.methodAnnotation(), annotationDescriptors, annotationPatterns);
+            if (!restricted) {
+                enabled = false;
+            }
+        }
+        for (ShimType shimType : shimTypes) {
+            classNames.addAll(shimType.targets());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            classNames.addAll(mixinType.targets());
+        }
+        // these are woven by Weaver regardless of advice
+        classNames.add(ClassNames.fromInternalName(ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME));
+        classNames.add(ClassLoader.class.getName());
+        annotationDescriptors.add(Type.getDescriptor(Pointcut.class));
+        annotationDescriptors.add("Ljavax/ejb/Remote;");
+        annotationDescriptors.add("Ljavax/ejb/Stateless;");
+        for (String annotationDescriptor : annotationDescriptors) {
+            if (!isAscii(annotationDescriptor)) {
+                // bloom filter hashing assumes one byte per char
+                enabled = false;
+            }
+        }
+        return new WeavingPreScreen(advisors, enabled, classNames, classNamePatterns,
+                superTypeNames, superTypeNamePatterns, annotationDescriptors, annotationPatterns);
+    }
+
+    boolean isFor(List<Advice> advisors) {
+        return this.advisors == advisors;
+    }
+
+    // returns the analyzed class if the class does not require weaving, otherwise returns null
+    // (null does not imply that weaving is required, only that the class needs full analysis)
+    @Nullable
+    AnalyzedClass screen(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, AnalyzedWorld analyzedWorld) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            return screenInternal(classBytes, loader, codeSource, analyzedWorld);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // malformed class bytes, leave it to ASM to report
+            return null;
+        }
+    }
+
+    private @Nullable AnalyzedClass screenInternal(byte[] b, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, AnalyzedWorld analyzedWorld) {
+        int constantPoolCount = readUnsignedShort(b, 8);
+        int[] constantOffsets = new int[constantPoolCount];
+        int offset = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            constantOffsets[i] = offset;
+            switch (b[offset]) {
+                case CONSTANT_UTF8:
+                    int length = readUnsignedShort(b, offset + 1);
+                    if (isPossibleAnnotationMatch(b, offset + 3, length)) {
+                        return null;
+                    }
+                    offset += 3 + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    offset += 9;
+                    // these take up two constant pool entries
+                    i++;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        int access = readUnsignedShort(b, offset);
+        if ((access & ACC_INTERFACE) != 0) {
+            // interfaces track all of their methods in the analyzed world
+            return null;
+        }
+        String className = readClassName(b, constantOffsets, readUnsignedShort(b, offset + 2));
+        int superIndex = readUnsignedShort(b, offset + 4);
+        if (className == null || superIndex == 0) {
+            return null;
+        }
+        String superName = readClassName(b, constantOffsets, superIndex);
+        if (superName == null || isClassNameMatch(className) || isSuperTypeNameMatch(className)) {
+            return null;
+        }
+        int interfacesCount = readUnsignedShort(b, offset + 6);
+        offset += 8;
+        List<String> interfaceNames = Lists.newArrayList();
+        for (int i = 0; i < interfacesCount; i++) {
+            String interfaceName = readClassName(b, constantOffsets, readUnsignedShort(b, offset));
+            if (interfaceName == null) {
+                return null;
+            }
+            interfaceNames.add(interfaceName);
+            offset += 2;
+        }
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        for (String interfaceName : interfaceNames) {
+            if (isAnyRelevant(analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, className,
+                    parseContext))) {
+                return null;
+            }
+        }
+        if (isAnyRelevant(
+                analyzedWorld.getAnalyzedHierarchy(superName, loader, className, parseContext))) {
+            return null;
+        }
+        ImmutableAnalyzedClass.Builder analyzedClassBuilder = ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(className)
+                .superName(superName)
+                .addAllInterfaceNames(interfaceNames)
+                .ejbRemote(false);
+        // skip fields
+        int fieldsCount = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < fieldsCount; i++) {
+            offset = skipAttributes(b, offset + 6);
+        }
+        int methodsCount = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < methodsCount; i++) {
+            int methodAccess = readUnsignedShort(b, offset);
+            if ((methodAccess & (ACC_PUBLIC | ACC_FINAL)) == (ACC_PUBLIC | ACC_FINAL)) {
+                String name = readUtf8(b, constantOffsets, readUnsignedShort(b, offset + 2));
+                String descriptor = readUtf8(b, constantOffsets, readUnsignedShort(b, offset + 4));
+                if (name == null || descriptor == null) {
+                    return null;
+                }
+                ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
+                        .name(name);
+                for (Type parameterType : Type.getArgumentTypes(descriptor)) {
+                    builder.addParameterTypes(parameterType.getClassName());
+                }
+                analyzedClassBuilder.addPublicFinalMethods(builder.build());
+            }
+            offset = skipAttributes(b, offset + 6);
+        }
+        return analyzedClassBuilder.build();
+    }
+
+    private boolean isPossibleAnnotationMatch(byte[] b, int start, int length) {
+        if (length < 3 || b[start] != 'L' || b[start + length - 1] != ';') {
+            return false;
+        }
+        if (startsWith(b, start, length, INSTRUMENTATION_MARKER)) {
+            return true;
+        }
+        int hash = hash(b, start, length);
+        if (isBitSet(hash & BLOOM_FILTER_MASK) && isBitSet((hash >>> 16) & BLOOM_FILTER_MASK)) {
+            String descriptor = decodeAscii(b, start, length);
+            if (descriptor != null && annotationDescriptors.contains(descriptor)) {
+                return true;
+            }
+        }
+        if (annotationPatterns.isEmpty()) {
+            return false;
+        }
+        String descriptor = decodeAscii(b, start, length);
+        if (descriptor == null) {
+            // be conservative
+            return true;
+        }
+        String annotation = descriptor.substring(1, length - 1).replace('/', '.');
+        for (Pattern annotationPattern : annotationPatterns) {
+            if (annotationPattern.matcher(annotation).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyRelevant(List<AnalyzedClass> analyzedClasses) {
+        for (AnalyzedClass analyzedClass : analyzedClasses) {
+            if (isRelevant(analyzedClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRelevant(AnalyzedClass analyzedClass) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()) {
+            return true;
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!analyzedMethod.advisors().isEmpty()
+                    || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                return true;
+            }
+        }
+        String name = analyzedClass.name();
+        return name.equals(ClassLoader.class.getName()) || isSuperTypeNameMatch(name);
+    }
+
+    private boolean isClassNameMatch(String className) {
+        if (classNames.contains(className)) {
+            return true;
+        }
+        for (Pattern classNamePattern : classNamePatterns) {
+            if (classNamePattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSuperTypeNameMatch(String className) {
+        if (superTypeNames.contains(className)) {
+            return true;
+        }
+        for (Pattern superTypeNamePattern : superTypeNamePatterns) {
+            if (superTypeNamePattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setBit(int bit) {
+        annotationBloomFilter[bit >>> 6] |= 1L << bit;
+    }
+
+    private boolean isBitSet(int bit) {
+        return (annotationBloomFilter[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private static boolean addAnnotation(@Nullable Pattern pattern, String annotation,
+            Set<String> annotationDescriptors, List<Pattern> annotationPatterns) {
+        boolean added = false;
+        if (pattern != null) {
+            annotationPatterns.add(pattern);
+            added = true;
+        }
+        if (!annotation.isEmpty()) {
+            annotationDescriptors.add("L" + ClassNames.toInternalName(annotation) + ";");
+            added = true;
+        }
+        return added;
+    }
+
+    private static @Nullable String readClassName(byte[] b, int[] constantOffsets, int index) {
+        if (b[constantOffsets[index]] != CONSTANT_CLASS) {
+            return null;
+        }
+        String internalName =
+                readUtf8(b, constantOffsets, readUnsignedShort(b, constantOffsets[index] + 1));
+        return ClassNames.fromInternalName(internalName);
+    }
+
+    private static @Nullable String readUtf8(byte[] b, int[] constantOffsets, int index) {
+        int offset = constantOffsets[index];
+        if (b[offset] != CONSTANT_UTF8) {
+            return null;
+        }
+        return decodeAscii(b, offset + 3, readUnsignedShort(b, offset + 1));
+    }
+
+    // returns null if there are any non-ascii characters, which are rare enough in class names
+    // and descriptors that it isn't worth decoding modified utf-8 here
+    private static @Nullable String decodeAscii(byte[] b, int start, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte c = b[start + i];
+            if (c <= 0) {
+                return null;
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+
+    private static int skipAttributes(byte[] b, int offset) {
+        int attributesCount = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < attributesCount; i++) {
+            offset += 6 + readInt(b, offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean startsWith(byte[] b, int start, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a
+    private static int hash(byte[] b, int start, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            hash ^= b[i];
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralCollectorSpool.SpooledRecord;
+import org.glowroot.agent.central.CentralCollectorSpoolDrainer.SpooledRecordSender;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralCollectorSpoolDrainerTest {
+
+    private File file;
+    private CentralCollectorSpool spool;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".spool");
+        file.delete();
+        spool = new CentralCollectorSpool(file, 1024 * 1024);
+        for (int i = 1; i <= 3; i++) {
+            spool.append(CentralCollectorSpool.GAUGE_VALUES, i,
+                    ImmutableList.of(GaugeValueMessage.getDefaultInstance()));
+        }
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldDropRecordThatIsAlwaysRejected() throws Exception {
+        // given
+        RecordingSender sender = new RecordingSender(2);
+        CentralCollectorSpoolDrainer drainer = new CentralCollectorSpoolDrainer(spool, sender, 3);
+        // when
+        drainer.run();
+        drainer.run();
+        // then
+        assertThat(sender.sentCaptureTimes).containsExactly(1L);
+        assertThat(spool.peek().captureTime()).isEqualTo(2);
+        // when
+        drainer.run();
+        // then
+        assertThat(sender.sentCaptureTimes).containsExactly(1L, 3L);
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldNotCountAttemptsWhileDisconnected() throws Exception {
+        // given
+        RecordingSender sender = new RecordingSender(2);
+        CentralCollectorSpoolDrainer drainer = new CentralCollectorSpoolDrainer(spool, sender, 3);
+        sender.connected = false;
+        // when
+        for (int i = 0; i < 10; i++) {
+            drainer.run();
+        }
+        // then
+        assertThat(sender.sentCaptureTimes).isEmpty();
+        assertThat(spool.peek().captureTime()).isEqualTo(1);
+        // when
+        sender.connected = true;
+        drainer.run();
+        drainer.run();
+        // then
+        assertThat(sender.sentCaptureTimes).containsExactly(1L);
+        assertThat(spool.peek().captureTime()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDropRecordThatCannotBeRead() throws Exception {
+        // given
+        RecordingSender sender = new RecordingSender(-1);
+        sender.throwOnCaptureTime = 1;
+        CentralCollectorSpoolDrainer drainer = new CentralCollectorSpoolDrainer(spool, sender, 1);
+        // when
+        drainer.run();
+        // then
+        assertThat(sender.sentCaptureTimes).containsExactly(2L, 3L);
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    private static class RecordingSender implements SpooledRecordSender {
+
+        private final long rejectedCaptureTime;
+        private long throwOnCaptureTime = -1;
+        private volatile boolean connected = true;
+
+        private final List<Long> sentCaptureTimes = Lists.newArrayList();
+
+        private RecordingSender(long rejectedCaptureTime) {
+            this.rejectedCaptureTime = rejectedCaptureTime;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean send(SpooledRecord record) throws Exception {
+            if (record.captureTime() == throwOnCaptureTime) {
+                throw new IllegalStateException("unreadable record");
+            }
+            if (record.captureTime() == rejectedCaptureTime) {
+                return false;
+            }
+            sentCaptureTimes.add(record.captureTime());
+            return true;
+        }
+    }
+}
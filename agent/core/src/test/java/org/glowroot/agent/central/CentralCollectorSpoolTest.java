@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralCollectorSpool.SpooledRecord;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralCollectorSpoolTest {
+
+    private File file;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".spool");
+        file.delete();
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 1024 * 1024);
+        // when
+        for (int i = 1; i <= 3; i++) {
+            spool.append(CentralCollectorSpool.GAUGE_VALUES, i, ImmutableList.of(message(i)));
+        }
+        // then
+        assertThat(file.exists()).isTrue();
+        for (int i = 1; i <= 3; i++) {
+            SpooledRecord record = spool.peek();
+            assertThat(record).isNotNull();
+            assertThat(record.kind()).isEqualTo(CentralCollectorSpool.GAUGE_VALUES);
+            assertThat(record.captureTime()).isEqualTo(i);
+            List<GaugeValueMessage> messages = record.messages(GaugeValueMessage.parser());
+            assertThat(messages).containsExactly(message(i));
+            spool.remove(record);
+        }
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+    }
+
+    @Test
+    public void shouldNotCreateFileUntilNeeded() throws Exception {
+        // when
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 1024 * 1024);
+        // then
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(file.exists()).isFalse();
+    }
+
+    @Test
+    public void shouldDropOldestWhenFull() throws Exception {
+        // given
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 1000);
+        // when
+        for (int i = 1; i <= 100; i++) {
+            spool.append(CentralCollectorSpool.GAUGE_VALUES, i, ImmutableList.of(message(i)));
+        }
+        // then
+        assertThat(spool.getDroppedRecordCount()).isGreaterThan(0);
+        assertThat(spool.getSize()).isLessThanOrEqualTo(1000);
+        long expectedCaptureTime = spool.getDroppedRecordCount() + 1;
+        SpooledRecord record;
+        while ((record = spool.peek()) != null) {
+            assertThat(record.captureTime()).isEqualTo(expectedCaptureTime);
+            assertThat(record.messages(GaugeValueMessage.parser()))
+                    .containsExactly(message(expectedCaptureTime));
+            spool.remove(record);
+            expectedCaptureTime++;
+        }
+        assertThat(expectedCaptureTime).isEqualTo(101);
+    }
+
+    @Test
+    public void shouldRejectRecordLargerThanHalfCapacity() throws Exception {
+        // given
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 100);
+        // when
+        boolean appended = spool.append(CentralCollectorSpool.GAUGE_VALUES, 1,
+                ImmutableList.of(message(1), message(2), message(3)));
+        // then
+        assertThat(appended).isFalse();
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldReopenExisting() throws Exception {
+        // given
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 1000);
+        for (int i = 1; i <= 100; i++) {
+            spool.append(CentralCollectorSpool.GAUGE_VALUES, i, ImmutableList.of(message(i)));
+        }
+        SpooledRecord first = spool.peek();
+        spool.remove(first);
+        SpooledRecord second = spool.peek();
+        // when
+        CentralCollectorSpool reopened = new CentralCollectorSpool(file, 1000);
+        // then
+        assertThat(reopened.getSize()).isEqualTo(spool.getSize());
+        SpooledRecord record = reopened.peek();
+        assertThat(record.captureTime()).isEqualTo(second.captureTime());
+        assertThat(record.messages(GaugeValueMessage.parser()))
+                .isEqualTo(second.messages(GaugeValueMessage.parser()));
+    }
+
+    @Test
+    public void shouldDiscardExistingWithDifferentCapacity() throws Exception {
+        // given
+        CentralCollectorSpool spool = new CentralCollectorSpool(file, 1000);
+        spool.append(CentralCollectorSpool.GAUGE_VALUES, 1, ImmutableList.of(message(1)));
+        // when
+        CentralCollectorSpool reopened = new CentralCollectorSpool(file, 2000);
+        // then
+        assertThat(reopened.isEmpty()).isTrue();
+    }
+
+    private static GaugeValueMessage message(long captureTime) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .addGaugeValue(GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                        .setCaptureTime(captureTime)
+                        .setValue(captureTime * 1000)
+                        .setWeight(1))
+                .build();
+    }
+}
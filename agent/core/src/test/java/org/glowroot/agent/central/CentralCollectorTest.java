@@ -59,4 +59,15 @@ public class CentralCollectorTest {
         assertThat(CentralCollector.isAgentVersionGreaterThanCentralVersion("1.10.2", "2.10.2"))
                 .isFalse();
     }
+
+    @Test
+    public void shouldCheckCentralVersionAtLeast() {
+        assertThat(CentralCollector.isCentralVersionAtLeast("0.13.4", "0.13.4")).isTrue();
+        assertThat(CentralCollector.isCentralVersionAtLeast("0.13.4-SNAPSHOT, built 2019-01-01",
+                "0.13.4")).isTrue();
+        assertThat(CentralCollector.isCentralVersionAtLeast("0.14.0", "0.13.4")).isTrue();
+        assertThat(CentralCollector.isCentralVersionAtLeast("0.13.3", "0.13.4")).isFalse();
+        assertThat(CentralCollector.isCentralVersionAtLeast("", "0.13.4")).isFalse();
+        assertThat(CentralCollector.isCentralVersionAtLeast("unknown", "0.13.4")).isFalse();
+    }
 }
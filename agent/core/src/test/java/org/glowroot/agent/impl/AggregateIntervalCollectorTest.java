@@ -0,0 +1,344 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.model.FullQueryTextPool;
+import org.glowroot.agent.model.ImmutableErrorMessage;
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+
+    private static final String LONG_QUERY_TEXT = Strings.repeat("select x from y; ", 10);
+    private static final String LONG_QUERY_TEXT_SHA1 =
+            Hashing.sha1().hashString(LONG_QUERY_TEXT, UTF_8).toString();
+
+    @Test
+    public void shouldMergeShardsSameAsSingleThreaded() throws Exception {
+        // given
+        int shardCount = 4;
+        AggregateIntervalCollector singleThreaded = createIntervalCollector(1);
+        AggregateIntervalCollector sharded = createIntervalCollector(shardCount);
+        List<AggregateProcessingShard> shards = Lists.newArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new AggregateProcessingShard(i, 10000, Clock.systemClock()));
+        }
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            Transaction transaction = createTransaction("name" + (i % 17),
+                    MILLISECONDS.toNanos(i % 97 + 1), i % 13 == 0, 0);
+            boolean degraded = i % 7 == 0;
+            singleThreaded.add(transaction, degraded);
+            int shardIndex = AggregateIntervalCollector.getShardIndex(transaction, shardCount);
+            assertThat(shards.get(shardIndex).add(sharded, transaction, degraded)).isTrue();
+        }
+        Map<String, Aggregate> expected = flush(singleThreaded);
+        Map<String, Aggregate> actual = flush(sharded);
+        for (AggregateProcessingShard shard : shards) {
+            shard.close();
+        }
+
+        // then
+        assertThat(actual.keySet()).isEqualTo(expected.keySet());
+        // overall + 17 transaction names
+        assertThat(actual).hasSize(18);
+        for (Map.Entry<String, Aggregate> entry : expected.entrySet()) {
+            Aggregate expectedAggregate = entry.getValue();
+            Aggregate actualAggregate = actual.get(entry.getKey());
+            assertThat(actualAggregate.getTransactionCount())
+                    .isEqualTo(expectedAggregate.getTransactionCount());
+            assertThat(actualAggregate.getErrorCount())
+                    .isEqualTo(expectedAggregate.getErrorCount());
+            assertThat(actualAggregate.getTotalDurationNanos())
+                    .isEqualTo(expectedAggregate.getTotalDurationNanos());
+            assertThat(actualAggregate.getMainThreadRootTimerList())
+                    .isEqualTo(expectedAggregate.getMainThreadRootTimerList());
+            assertThat(actualAggregate.getMainThreadStats())
+                    .isEqualTo(expectedAggregate.getMainThreadStats());
+            assertThat(sorted(actualAggregate.getDurationNanosHistogram()))
+                    .isEqualTo(sorted(expectedAggregate.getDurationNanosHistogram()));
+        }
+        assertThat(expected.get("Web").getTransactionCount()).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldTrackLagAndDrops() throws Exception {
+        // given
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(5000L);
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(2);
+        AggregateProcessingShard shard = new AggregateProcessingShard(0, 2, clock);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Transaction blocking = createTransaction("a", 1, false, 1000);
+        when(blocking.getTransactionType()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Exception {
+                blocked.countDown();
+                release.await();
+                return "Web";
+            }
+        });
+
+        // when
+        assertThat(shard.add(intervalCollector, blocking, false)).isTrue();
+        assertThat(blocked.await(10, SECONDS)).isTrue();
+        // shard thread is now blocked, so the queue (limit 2) fills up
+        assertThat(shard.add(intervalCollector, createTransaction("a", 1, false, 1000), false))
+                .isTrue();
+        assertThat(shard.add(intervalCollector, createTransaction("a", 1, false, 2000), false))
+                .isTrue();
+        boolean accepted =
+                shard.add(intervalCollector, createTransaction("a", 1, false, 3000), false);
+
+        // then
+        assertThat(accepted).isFalse();
+        assertThat(shard.getDroppedCount()).isEqualTo(1);
+        assertThat(shard.getQueueLength()).isEqualTo(2);
+        assertThat(shard.getLagMillis()).isEqualTo(4000);
+        assertThat(shard.getProcessedCount()).isEqualTo(0);
+
+        // and when
+        release.countDown();
+        Map<String, Aggregate> aggregates = flush(intervalCollector);
+        shard.close();
+
+        // then
+        assertThat(shard.getProcessedCount()).isEqualTo(3);
+        assertThat(shard.getQueueLength()).isEqualTo(0);
+        assertThat(shard.getLagMillis()).isEqualTo(0);
+        assertThat(aggregates.get("Web").getTransactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldWakeUpFlushOnCancel() throws Exception {
+        // given
+        final AggregateIntervalCollector intervalCollector = createIntervalCollector(2);
+        intervalCollector.beforeShardAdd();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // when
+        Future<?> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                MILLISECONDS.sleep(100);
+                intervalCollector.cancelShardAdd();
+                return null;
+            }
+        });
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        flush(intervalCollector, SECONDS.toMillis(60));
+        future.get();
+        executor.shutdown();
+
+        // then
+        assertThat(stopwatch.elapsed(SECONDS)).isLessThan(30);
+    }
+
+    @Test
+    public void shouldNotHangFlushWhenShardAddIsLost() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(2);
+        Transaction transaction = createTransaction("a", 1, false, 0);
+        intervalCollector.add(transaction, false);
+        // simulate a transaction that was handed off to a shard thread that then died
+        intervalCollector.beforeShardAdd();
+
+        // when
+        Map<String, Aggregate> aggregates = flush(intervalCollector, 100);
+        // late add from the shard thread after flush has given up waiting
+        intervalCollector.add(createTransaction("b", 1, false, 0), false, 1);
+
+        // then
+        assertThat(aggregates.get("Web").getTransactionCount()).isEqualTo(1);
+        assertThat(flush(intervalCollector, 100).get("Web").getTransactionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPassIndexedSha1ToCollector() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(1);
+        intervalCollector.add(createTransactionWithQuery("a", LONG_QUERY_TEXT), false);
+        final List<String> fullTextSha1s = Lists.newArrayList();
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                AggregateReader reader = (AggregateReader) invocation.getArguments()[0];
+                fullTextSha1s.add(reader.getFullTextSha1(LONG_QUERY_TEXT));
+                fullTextSha1s.add(reader.getFullTextSha1("not indexed"));
+                return null;
+            }
+        }).when(collector).collectAggregates(any(AggregateReader.class));
+
+        // when
+        intervalCollector.flush(collector, SECONDS.toMillis(30));
+
+        // then
+        assertThat(fullTextSha1s).containsExactly(LONG_QUERY_TEXT_SHA1, null);
+        // the index is released once flushed
+        assertThat(intervalCollector.getFullQueryText(LONG_QUERY_TEXT_SHA1)).isNull();
+    }
+
+    @Test
+    public void shouldReleaseFullQueryTextsWhenFlushIsInterrupted() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(1);
+        intervalCollector.add(createTransactionWithQuery("a", LONG_QUERY_TEXT), false);
+        assertThat(intervalCollector.getFullQueryText(LONG_QUERY_TEXT_SHA1))
+                .isEqualTo(LONG_QUERY_TEXT);
+        intervalCollector.beforeShardAdd();
+
+        // when
+        Thread.currentThread().interrupt();
+        try {
+            flush(intervalCollector, SECONDS.toMillis(30));
+            fail("Expected InterruptedException");
+        } catch (InterruptedException e) {
+        }
+
+        // then
+        assertThat(intervalCollector.getFullQueryText(LONG_QUERY_TEXT_SHA1)).isNull();
+    }
+
+    @Test
+    public void shouldReleaseFullQueryTextsWhenDiscarded() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(1);
+        intervalCollector.add(createTransactionWithQuery("a", LONG_QUERY_TEXT), false);
+
+        // when
+        intervalCollector.discard();
+
+        // then
+        assertThat(intervalCollector.getFullQueryText(LONG_QUERY_TEXT_SHA1)).isNull();
+    }
+
+    private static AggregateIntervalCollector createIntervalCollector(int shardCount) {
+        return new AggregateIntervalCollector(0, INTERVAL_MILLIS, 500, 500, 500, shardCount,
+                new FullQueryTextPool(), Clock.systemClock());
+    }
+
+    private static Map<String, Aggregate> flush(AggregateIntervalCollector intervalCollector)
+            throws Exception {
+        return flush(intervalCollector, SECONDS.toMillis(30));
+    }
+
+    private static Map<String, Aggregate> flush(AggregateIntervalCollector intervalCollector,
+            long shardAddWaitMillis) throws Exception {
+        final Map<String, Aggregate> aggregates = Maps.newHashMap();
+        final AggregateVisitor visitor = new AggregateVisitor() {
+            @Override
+            public void visitOverallAggregate(String transactionType,
+                    List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                aggregates.put(transactionType, overallAggregate);
+            }
+            @Override
+            public void visitTransactionAggregate(String transactionType, String transactionName,
+                    List<String> sharedQueryTexts, Aggregate transactionAggregate) {
+                aggregates.put(transactionType + "/" + transactionName, transactionAggregate);
+            }
+        };
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                AggregateReader reader = (AggregateReader) invocation.getArguments()[0];
+                reader.accept(visitor);
+                return null;
+            }
+        }).when(collector).collectAggregates(any(AggregateReader.class));
+        intervalCollector.flush(collector, shardAddWaitMillis);
+        return aggregates;
+    }
+
+    private static Transaction createTransactionWithQuery(String transactionName,
+            final String queryText) {
+        Transaction transaction = createTransaction(transactionName, 1, false, 0);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                QueryCollector queryCollector = (QueryCollector) invocation.getArguments()[0];
+                queryCollector.mergeQuery("SQL", queryText, 1, 1, false, 0, false);
+                return null;
+            }
+        }).when(transaction).mergeQueriesInto(any(QueryCollector.class));
+        return transaction;
+    }
+
+    private static List<Long> sorted(Aggregate.Histogram histogram) {
+        List<Long> values = Lists.newArrayList(histogram.getOrderedRawValueList());
+        Collections.sort(values);
+        return values;
+    }
+
+    private static Transaction createTransaction(String transactionName, long durationNanos,
+            boolean error, long captureTime) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getCaptureTime()).thenReturn(captureTime);
+        if (error) {
+            when(transaction.getErrorMessage())
+                    .thenReturn(ImmutableErrorMessage.of("an error", null));
+        }
+        when(transaction.getMainThreadStats())
+                .thenReturn(new ThreadStats(durationNanos / 2, 1, 2, 3));
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("mock");
+        when(rootTimer.getCount()).thenReturn(1L);
+        when(rootTimer.getTotalNanos()).thenReturn(durationNanos);
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        return transaction;
+    }
+}
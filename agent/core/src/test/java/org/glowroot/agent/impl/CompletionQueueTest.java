@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CompletionQueueTest {
+
+    @Test
+    public void shouldBeEmptyInitially() {
+        // given
+        CompletionQueue<String> queue = new CompletionQueue<String>(10, Clock.systemClock());
+
+        // then
+        assertThat(queue.peek()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void shouldNotRemoveFromEmpty() {
+        new CompletionQueue<String>(10, Clock.systemClock()).remove();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void shouldNotPeekCaptureTimeFromEmpty() {
+        new CompletionQueue<String>(10, Clock.systemClock()).peekCaptureTime();
+    }
+
+    @Test
+    public void shouldBeEmptyAfterRemovingAll() {
+        // given
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(1000L, 2000L);
+        CompletionQueue<String> queue = new CompletionQueue<String>(10, clock);
+
+        // when
+        queue.offer("a");
+        queue.offer("b");
+
+        // then
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.peek()).isEqualTo("a");
+        assertThat(queue.peekCaptureTime()).isEqualTo(1000);
+        queue.remove();
+        assertThat(queue.peek()).isEqualTo("b");
+        assertThat(queue.peekCaptureTime()).isEqualTo(2000);
+        queue.remove();
+        assertThat(queue.peek()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.size()).isEqualTo(0);
+
+        // and can be re-used after being drained
+        queue.offer("c");
+        assertThat(queue.isEmpty()).isFalse();
+        assertThat(queue.peek()).isEqualTo("c");
+    }
+
+    @Test
+    public void shouldRejectOverLimit() {
+        // given
+        CompletionQueue<String> queue = new CompletionQueue<String>(2, Clock.systemClock());
+
+        // when
+        boolean first = queue.offer("a");
+        boolean second = queue.offer("b");
+        boolean third = queue.offer("c");
+
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(queue.size()).isEqualTo(2);
+        queue.remove();
+        assertThat(queue.offer("d")).isTrue();
+        queue.remove();
+        assertThat(queue.peek()).isEqualTo("d");
+    }
+
+    @Test
+    public void shouldNotLoseOrReorderWithMultipleProducers() throws Exception {
+        // given
+        final int producerCount = 8;
+        final int itemsPerProducer = 20000;
+        final CompletionQueue<long[]> queue =
+                new CompletionQueue<long[]>(Integer.MAX_VALUE, Clock.systemClock());
+        ExecutorService executor = Executors.newFixedThreadPool(producerCount);
+        final CountDownLatch latch = new CountDownLatch(1);
+        List<Future<?>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < producerCount; i++) {
+            final int producer = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    latch.await();
+                    for (int j = 0; j < itemsPerProducer; j++) {
+                        queue.offer(new long[] {producer, j});
+                    }
+                    return null;
+                }
+            }));
+        }
+        latch.countDown();
+        long[] nextExpected = new long[producerCount];
+        int consumed = 0;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (consumed < producerCount * itemsPerProducer
+                && stopwatch.elapsed(SECONDS) < 30) {
+            long[] item = queue.peek();
+            if (item == null) {
+                queue.parkConsumer(MILLISECONDS.toNanos(1));
+                continue;
+            }
+            queue.remove();
+            int producer = (int) item[0];
+            // items from each producer are consumed in the order that they were offered
+            assertThat(item[1]).isEqualTo(nextExpected[producer]);
+            nextExpected[producer]++;
+            consumed++;
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // then
+        assertThat(consumed).isEqualTo(producerCount * itemsPerProducer);
+        for (int i = 0; i < producerCount; i++) {
+            assertThat(nextExpected[i]).isEqualTo(itemsPerProducer);
+        }
+        assertThat(queue.peek()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldUnparkConsumerOnOffer() throws Exception {
+        // given
+        final CompletionQueue<String> queue =
+                new CompletionQueue<String>(10, Clock.systemClock());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // when
+        Future<?> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                MILLISECONDS.sleep(100);
+                queue.offer("a");
+                return null;
+            }
+        });
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (queue.peek() == null && stopwatch.elapsed(SECONDS) < 30) {
+            queue.parkConsumer(SECONDS.toNanos(30));
+        }
+        future.get();
+        executor.shutdown();
+
+        // then
+        assertThat(queue.peek()).isEqualTo("a");
+        assertThat(stopwatch.elapsed(SECONDS)).isLessThan(10);
+    }
+}
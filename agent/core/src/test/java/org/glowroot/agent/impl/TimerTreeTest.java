@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TimerTreeTest {
+
+    @Test
+    public void testBucketCollision() {
+        // given
+        TimerTree tree = new TimerTree(mock(ThreadContextImpl.class));
+        TimerImpl rootTimer = tree.createRoot(ImmutableTimerNameImpl.of("root", false));
+        List<TimerNameImpl> timerNames = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            timerNames.add(ImmutableTimerNameImpl.of("timer-" + i, false));
+        }
+        List<TimerImpl> timers = Lists.newArrayList();
+        List<TimerImpl> nestedTimers = Lists.newArrayList();
+        // when
+        for (TimerNameImpl timerName : timerNames) {
+            TimerImpl timer = rootTimer.startNestedTimer(timerName, 0);
+            nestedTimers.add(timer.startNestedTimer(timerName, 0));
+            timer.end(1);
+            timer.end(1);
+            timers.add(timer);
+        }
+        // then
+        for (int i = 0; i < timerNames.size(); i++) {
+            TimerImpl timer = rootTimer.startNestedTimer(timerNames.get(i), 1);
+            assertThat(timer).isSameAs(timers.get(i));
+            // same name as parent is self nesting, not a nested timer
+            assertThat(nestedTimers.get(i)).isSameAs(timer);
+            timer.end(3);
+            assertThat(timer.getCount()).isEqualTo(2);
+            assertThat(timer.getTotalNanos()).isEqualTo(3);
+        }
+        assertThat(tree.getChildTimers(rootTimer.getIndex())).hasSize(100);
+    }
+
+    @Test
+    public void testDeepNesting() {
+        // given
+        TimerTree tree = new TimerTree(mock(ThreadContextImpl.class));
+        TimerImpl rootTimer = tree.createRoot(ImmutableTimerNameImpl.of("root", false));
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("timer-1", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("timer-2", false);
+        List<TimerImpl> timers = Lists.newArrayList();
+        // when
+        TimerImpl curr = rootTimer;
+        for (int i = 0; i < 100; i++) {
+            curr = curr.startNestedTimer(i % 2 == 0 ? timerName1 : timerName2, i);
+            timers.add(curr);
+        }
+        for (int i = timers.size() - 1; i >= 0; i--) {
+            timers.get(i).end(100);
+        }
+        // then
+        curr = rootTimer;
+        for (int i = 0; i < 100; i++) {
+            List<TimerImpl> childTimers = tree.getChildTimers(curr.getIndex());
+            assertThat(childTimers).containsExactly(timers.get(i));
+            curr = childTimers.get(0);
+            assertThat(curr.getTotalNanos()).isEqualTo(100 - i);
+            assertThat(curr.getCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testMergeDeepNestingIntoAggregate() {
+        // given
+        TimerTree tree = new TimerTree(mock(ThreadContextImpl.class));
+        TimerImpl rootTimer = tree.createRoot(ImmutableTimerNameImpl.of("root", false));
+        TimerNameImpl timerName1 = ImmutableTimerNameImpl.of("timer-1", false);
+        TimerNameImpl timerName2 = ImmutableTimerNameImpl.of("timer-2", false);
+        List<TimerImpl> timers = Lists.newArrayList();
+        TimerImpl curr = rootTimer;
+        for (int i = 0; i < 100; i++) {
+            curr = curr.startNestedTimer(i % 2 == 0 ? timerName1 : timerName2, i);
+            timers.add(curr);
+        }
+        for (int i = timers.size() - 1; i >= 0; i--) {
+            timers.get(i).end(100);
+        }
+        rootTimer.end(100);
+        MutableAggregateTimer aggregateTimer = new MutableAggregateTimer("root", false);
+        // when
+        aggregateTimer.addDataFrom(rootTimer);
+        aggregateTimer.addDataFrom(rootTimer);
+        // then
+        MutableAggregateTimer aggregateCurr = aggregateTimer;
+        for (int i = 0; i < 100; i++) {
+            assertThat(aggregateCurr.getChildTimers()).hasSize(1);
+            aggregateCurr = aggregateCurr.getChildTimers().get(0);
+            assertThat(aggregateCurr.getName()).isEqualTo(i % 2 == 0 ? "timer-1" : "timer-2");
+            assertThat(aggregateCurr.toProto().getTotalNanos()).isEqualTo(2 * (100 - i));
+            assertThat(aggregateCurr.toProto().getCount()).isEqualTo(2);
+        }
+        assertThat(aggregateCurr.getChildTimers()).isEmpty();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceCollectorTest {
+
+    private static final long INTERVAL_NANOS = SECONDS.toNanos(60);
+
+    private Collector collector;
+    private AtomicLong tick;
+    private TraceCollector traceCollector;
+
+    @Before
+    public void beforeEachTest() {
+        collector = mock(Collector.class);
+        tick = new AtomicLong();
+        // not using a mock ticker since it is read concurrently by the trace collector thread
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return tick.get();
+            }
+        };
+        traceCollector = new TraceCollector(mock(ConfigService.class), collector,
+                Clock.systemClock(), ticker, 160, INTERVAL_NANOS);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        traceCollector.close();
+    }
+
+    @Test
+    public void shouldStoreAllSampledTracesWhenFlushExceedsPendingLimit() throws Exception {
+        // given
+        // all transactions are created up front since they are read concurrently by the trace
+        // collector thread
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 480; i++) {
+            transactions.add(createTransaction(i + 1));
+        }
+        // the first 160 are stored immediately, these are offered in batches to stay under the
+        // bound on pending traces
+        for (int i = 0; i < 160; i++) {
+            traceCollector.collectTrace(transactions.get(i));
+            if (i % 50 == 49) {
+                verify(collector, timeout(10000).times(i + 1)).collectTrace(any(TraceReader.class));
+            }
+        }
+        verify(collector, timeout(10000).times(160)).collectTrace(any(TraceReader.class));
+        // the rest are held back by the trace sampler
+        for (int i = 160; i < 480; i++) {
+            traceCollector.collectTrace(transactions.get(i));
+        }
+        assertThat(traceCollector.getPendingTransactions()).hasSize(160);
+        // when
+        tick.set(INTERVAL_NANOS);
+        // then
+        ArgumentCaptor<TraceReader> captor = ArgumentCaptor.forClass(TraceReader.class);
+        verify(collector, timeout(10000).times(320)).collectTrace(captor.capture());
+        int sampledCount = 0;
+        for (TraceReader traceReader : captor.getAllValues()) {
+            double sampleWeight = traceReader.readHeader().getSampleWeight();
+            if (sampleWeight != 0) {
+                assertThat(sampleWeight).isGreaterThanOrEqualTo(1);
+                sampledCount++;
+            }
+        }
+        assertThat(sampledCount).isEqualTo(160);
+        assertThat(traceCollector.getPendingTransactions()).isEmpty();
+    }
+
+    private static Transaction createTransaction(long durationNanos) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn("a");
+        when(transaction.getHeadline()).thenReturn("");
+        when(transaction.getUser()).thenReturn("");
+        when(transaction.getTraceId()).thenReturn("");
+        when(transaction.getAttributes()).thenReturn(ImmutableSetMultimap.<String, String>of());
+        doReturn(ImmutableMap.of()).when(transaction).getDetail();
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        when(mainThreadRootTimer.toProto()).thenReturn(Trace.Timer.getDefaultInstance());
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        return transaction;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.bytecode.api.BytecodeService;
+import org.glowroot.agent.bytecode.api.BytecodeServiceHolder;
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.model.AsyncTimer;
+import org.glowroot.agent.plugin.api.Timer;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceEntryImplTest {
+
+    private ThreadContextImpl threadContext;
+    private TimerImpl syncTimer;
+    private TimerImpl extendedTimer;
+    private AsyncTimer asyncTimer;
+
+    @BeforeClass
+    public static void setUp() {
+        // async extend() looks up the current thread context via the bytecode service, and there
+        // is none on this thread
+        BytecodeService bytecodeService = mock(BytecodeService.class);
+        when(bytecodeService.getCurrentThreadContextHolder())
+                .thenReturn(new ThreadContextThreadLocal().getHolder());
+        BytecodeServiceHolder.set(bytecodeService);
+    }
+
+    @Before
+    public void beforeEachTest() {
+        threadContext = mock(ThreadContextImpl.class);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getThrowableFrameLimitCounter()).thenReturn(new AtomicInteger());
+        when(threadContext.getTransaction()).thenReturn(transaction);
+        when(threadContext.getCurrentTimer()).thenReturn(mock(TimerImpl.class));
+        syncTimer = mock(TimerImpl.class);
+        extendedTimer = mock(TimerImpl.class);
+        when(syncTimer.extend(anyLong(), any(TimerImpl.class))).thenReturn(extendedTimer);
+        asyncTimer = mock(AsyncTimer.class);
+    }
+
+    @Test
+    public void shouldNotHaveExtrasWhenEndedNormally() {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+
+        // when
+        entry.end();
+
+        // then
+        assertThat(entry.getErrorMessage()).isNull();
+        assertThat(entry.getLocationStackTrace()).isNull();
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+    }
+
+    @Test
+    public void shouldCaptureErrorOnSyncEntry() {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+
+        // when
+        entry.endWithError("boom");
+
+        // then
+        assertThat(entry.getErrorMessage().message()).isEqualTo("boom");
+        assertThat(entry.getLocationStackTrace()).isNull();
+        verify(threadContext).popEntry(eq(entry), anyLong());
+    }
+
+    @Test
+    public void shouldCaptureErrorOnAsyncEntry() {
+        // given
+        TraceEntryImpl entry = createAsyncEntry();
+
+        // when
+        entry.stopSyncTimer();
+        entry.endWithError(new IllegalStateException("boom"));
+        // further end*() calls are ignored on async entries
+        entry.endWithError("ignored");
+
+        // then
+        assertThat(entry.getErrorMessage().throwable().getClassName())
+                .isEqualTo(IllegalStateException.class.getName());
+        assertThat(entry.getErrorMessage().throwable().getMessage()).isEqualTo("boom");
+        verify(asyncTimer).end(anyLong());
+    }
+
+    @Test
+    public void shouldCaptureLocationStackTraceOnSyncEntry() {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+
+        // when
+        entry.endWithLocationStackTrace(0, NANOSECONDS);
+
+        // then
+        assertThat(entry.hasLocationStackTrace()).isTrue();
+        assertThat(entry.getLocationStackTrace()).isNotEmpty();
+        assertThat(entry.getErrorMessage()).isNull();
+    }
+
+    @Test
+    public void shouldNotCaptureLocationStackTraceOnAsyncEntry() {
+        // given
+        TraceEntryImpl entry = createAsyncEntry();
+
+        // when
+        entry.stopSyncTimer();
+        entry.endWithLocationStackTrace(0, NANOSECONDS);
+
+        // then
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+        assertThat(entry.getErrorMessage()).isNull();
+    }
+
+    @Test
+    public void shouldNotCaptureLocationStackTraceUnderThreshold() {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+
+        // when
+        entry.endWithLocationStackTrace(1, HOURS);
+
+        // then
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+    }
+
+    @Test
+    public void shouldCaptureLocationStackTraceWhenExtendedPastThreshold() throws Exception {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+        entry.endWithLocationStackTrace(1, SECONDS);
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+
+        // when
+        Timer timer = entry.extend();
+        MILLISECONDS.sleep(1100);
+        timer.stop();
+
+        // then
+        assertThat(timer).isSameAs(entry);
+        verify(extendedTimer).end(anyLong());
+        assertThat(entry.hasLocationStackTrace()).isTrue();
+    }
+
+    @Test
+    public void shouldExtendSyncEntry() {
+        // given
+        TraceEntryImpl entry = createSyncEntry();
+        entry.end();
+
+        // when
+        Timer timer = entry.extend();
+        timer.stop();
+
+        // then
+        verify(syncTimer).extend(anyLong(), any(TimerImpl.class));
+        verify(extendedTimer).end(anyLong());
+        assertThat(entry.getErrorMessage()).isNull();
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+    }
+
+    @Test
+    public void shouldExtendAsyncEntryFromAnotherThread() {
+        // given
+        TraceEntryImpl entry = createAsyncEntry();
+        entry.stopSyncTimer();
+        entry.end();
+
+        // when
+        Timer timer = entry.extend();
+        timer.stop();
+
+        // then
+        verify(asyncTimer).extend(anyLong());
+        verify(extendedTimer, never()).end(anyLong());
+        assertThat(entry.getErrorMessage()).isNull();
+        assertThat(entry.hasLocationStackTrace()).isFalse();
+    }
+
+    private TraceEntryImpl createSyncEntry() {
+        return new TraceEntryImpl(threadContext, null, null, null, 0, System.nanoTime(),
+                syncTimer, null);
+    }
+
+    private TraceEntryImpl createAsyncEntry() {
+        return new TraceEntryImpl(threadContext, null, null, null, 0, System.nanoTime(),
+                syncTimer, asyncTimer);
+    }
+}
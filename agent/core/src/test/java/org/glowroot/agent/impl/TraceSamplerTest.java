@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.TraceCollector.PendingTrace;
+import org.glowroot.agent.model.ImmutableErrorMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceSamplerTest {
+
+    private static final long INTERVAL_NANOS = SECONDS.toNanos(60);
+
+    private Ticker ticker;
+    private TraceSampler traceSampler;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        traceSampler = new TraceSampler(5, 8, INTERVAL_NANOS, new Random(0), ticker);
+    }
+
+    @Test
+    public void shouldStoreImmediatelyUpToLimit() {
+        for (int i = 0; i < 5; i++) {
+            assertThat(traceSampler.offer(createTransaction("a", 100, null), true)).isTrue();
+        }
+        assertThat(traceSampler.offer(createTransaction("a", 100, null), true)).isFalse();
+        // limit is per transaction name
+        assertThat(traceSampler.offer(createTransaction("b", 100, null), true)).isTrue();
+    }
+
+    @Test
+    public void shouldNotFlushBeforeIntervalEnds() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            traceSampler.offer(createTransaction("a", 100, null), true);
+        }
+        // when
+        when(ticker.read()).thenReturn(INTERVAL_NANOS - 1);
+        // then
+        assertThat(traceSampler.flushIfIntervalEnded()).isEmpty();
+        assertThat(traceSampler.getHeldTransactions()).hasSize(5);
+    }
+
+    @Test
+    public void shouldNotWeightWhenNothingDiscarded() {
+        // given
+        for (int i = 0; i < 8; i++) {
+            traceSampler.offer(createTransaction("a", 100, null), true);
+        }
+        // when
+        when(ticker.read()).thenReturn(INTERVAL_NANOS);
+        List<PendingTrace> pendingTraces = traceSampler.flushIfIntervalEnded();
+        // then
+        assertThat(pendingTraces).hasSize(3);
+        for (PendingTrace pendingTrace : pendingTraces) {
+            assertThat(pendingTrace.sampleWeight()).isEqualTo(0);
+        }
+        assertThat(traceSampler.getHeldTransactions()).isEmpty();
+    }
+
+    @Test
+    public void shouldEstimateHeldBackCount() {
+        // given
+        double totalEstimate = 0;
+        int intervals = 200;
+        for (int interval = 1; interval <= intervals; interval++) {
+            for (int i = 0; i < 105; i++) {
+                traceSampler.offer(createTransaction("a", 50 + i % 20, null), true);
+            }
+            when(ticker.read()).thenReturn(interval * INTERVAL_NANOS);
+            // when
+            List<PendingTrace> pendingTraces = traceSampler.flushIfIntervalEnded();
+            // then
+            assertThat(pendingTraces).hasSize(5);
+            for (PendingTrace pendingTrace : pendingTraces) {
+                assertThat(pendingTrace.sampleWeight()).isGreaterThanOrEqualTo(1);
+                totalEstimate += pendingTrace.sampleWeight();
+            }
+        }
+        // 100 traces are held back per interval
+        assertThat(totalEstimate / intervals).isBetween(90.0, 110.0);
+    }
+
+    @Test
+    public void shouldPreferDistinctErrorMessage() {
+        // given
+        for (int i = 0; i < 50; i++) {
+            traceSampler.offer(createTransaction("a", 100 + i, null), true);
+        }
+        Transaction errorTransaction = createTransaction("a", 100, "something failed");
+        traceSampler.offer(errorTransaction, false);
+        for (int i = 0; i < 50; i++) {
+            traceSampler.offer(createTransaction("a", 100 + i, null), true);
+        }
+        // when
+        when(ticker.read()).thenReturn(INTERVAL_NANOS);
+        List<PendingTrace> pendingTraces = traceSampler.flushIfIntervalEnded();
+        // then
+        boolean found = false;
+        for (PendingTrace pendingTrace : pendingTraces) {
+            if (pendingTrace.transaction() == errorTransaction) {
+                assertThat(pendingTrace.slow()).isFalse();
+                found = true;
+            }
+        }
+        assertThat(found).isTrue();
+    }
+
+    @Test
+    public void shouldCapTotalHeldTraces() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            traceSampler.offer(createTransaction("a", 100, null), true);
+        }
+        for (int i = 0; i < 8; i++) {
+            traceSampler.offer(createTransaction("b", 100, null), true);
+        }
+        // when
+        boolean storeB = traceSampler.offer(createTransaction("b", 100, null), true);
+        for (int i = 0; i < 5; i++) {
+            traceSampler.offer(createTransaction("c", 100, null), true);
+        }
+        boolean storeC = traceSampler.offer(createTransaction("c", 100, null), true);
+        // then
+        // "b" already has held back traces, so it is sampled within those
+        assertThat(storeB).isFalse();
+        // "c" has no held back traces to displace, so it is stored immediately
+        assertThat(storeC).isTrue();
+        assertThat(traceSampler.getHeldTransactions()).hasSize(8);
+    }
+
+    @Test
+    public void shouldEstimateHeldBackCountWhenCapped() {
+        // given
+        double totalEstimate = 0;
+        int intervals = 200;
+        for (int interval = 1; interval <= intervals; interval++) {
+            for (int i = 0; i < 105; i++) {
+                traceSampler.offer(createTransaction("a", 50 + i % 20, null), true);
+            }
+            for (int i = 0; i < 105; i++) {
+                traceSampler.offer(createTransaction("b", 50 + i % 20, null), true);
+            }
+            when(ticker.read()).thenReturn(interval * INTERVAL_NANOS);
+            // when
+            List<PendingTrace> pendingTraces = traceSampler.flushIfIntervalEnded();
+            // then
+            // only 3 "b" traces could be held back because of the cap
+            assertThat(pendingTraces).hasSize(8);
+            for (PendingTrace pendingTrace : pendingTraces) {
+                assertThat(pendingTrace.sampleWeight()).isGreaterThanOrEqualTo(1);
+                if (pendingTrace.transaction().getTransactionName().equals("b")) {
+                    totalEstimate += pendingTrace.sampleWeight();
+                }
+            }
+        }
+        // 100 "b" traces are held back per interval
+        assertThat(totalEstimate / intervals).isBetween(90.0, 110.0);
+    }
+
+    private static Transaction createTransaction(String transactionName, long durationMillis,
+            @Nullable String errorMessage) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(durationMillis));
+        if (errorMessage != null) {
+            when(transaction.getErrorMessage())
+                    .thenReturn(ImmutableErrorMessage.of(errorMessage, null));
+        }
+        return transaction;
+    }
+}
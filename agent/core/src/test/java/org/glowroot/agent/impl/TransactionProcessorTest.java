@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.ServiceCallCollector;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.config.ImmutableAdvancedConfig;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransactionProcessorTest {
+
+    private static final long CURRENT_TIME = 1000;
+
+    private TraceCollector traceCollector;
+    private TransactionProcessor transactionProcessor;
+
+    private final AtomicInteger mergedQueriesCount = new AtomicInteger();
+    private final AtomicInteger mergedServiceCallsCount = new AtomicInteger();
+
+    @Before
+    public void beforeEachTest() {
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Clock clock = mock(Clock.class);
+        // constant time so that the active interval is never flushed during the test
+        when(clock.currentTimeMillis()).thenReturn(CURRENT_TIME);
+        traceCollector = mock(TraceCollector.class);
+        transactionProcessor = new TransactionProcessor(mock(Collector.class), traceCollector,
+                configService, SECONDS.toMillis(60), clock);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        transactionProcessor.close();
+    }
+
+    @Test
+    public void shouldCountDegradedAndDroppedTransactions() throws Exception {
+        // given
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Transaction first = createTransaction();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                if (invocation.getArguments()[0] == first) {
+                    blocked.countDown();
+                    release.await();
+                }
+                return null;
+            }
+        }).when(traceCollector).collectTrace(any(Transaction.class));
+
+        // when
+        transactionProcessor.processOnCompletion(first);
+        assertThat(blocked.await(10, SECONDS)).isTrue();
+        // processing thread is now blocked on the first transaction (which still counts toward
+        // the pending limit of 1000) so the backlog builds up
+        List<Transaction> dropped = Lists.newArrayList();
+        for (int i = 0; i < 1004; i++) {
+            Transaction transaction = createTransaction();
+            transactionProcessor.processOnCompletion(transaction);
+            if (i >= 999) {
+                dropped.add(transaction);
+            }
+        }
+
+        // then
+        assertThat(transactionProcessor.getPendingTransactionCount()).isEqualTo(1000);
+        assertThat(transactionProcessor.getDroppedTransactionCount()).isEqualTo(5);
+        for (Transaction transaction : dropped) {
+            verify(transaction).removeFromActiveTransactions();
+            verify(traceCollector, never()).collectTrace(transaction);
+        }
+
+        // and when
+        release.countDown();
+        ThroughputAggregate throughputAggregate = awaitTransactionCount(1000);
+
+        // then
+        assertThat(throughputAggregate.transactionCount()).isEqualTo(1000);
+        assertThat(transactionProcessor.getPendingTransactionCount()).isEqualTo(0);
+        // degraded transactions are only those processed while the backlog was over a quarter of
+        // the limit, and with increasing probability as the backlog grows
+        long degradedCount = transactionProcessor.getDegradedTransactionCount();
+        assertThat(degradedCount).isGreaterThan(0);
+        assertThat(degradedCount).isLessThan(1000);
+        // degraded transactions still count toward the totals and the histogram
+        PercentileAggregate percentileAggregate = getActiveIntervalCollector()
+                .getPercentileAggregate("Web", null);
+        assertThat(percentileAggregate.transactionCount()).isEqualTo(1000);
+        assertThat(percentileAggregate.totalDurationNanos())
+                .isEqualTo(1000 * MILLISECONDS.toNanos(10));
+        assertThat(percentileAggregate.durationNanosHistogram().getOrderedRawValueCount())
+                .isEqualTo(1000);
+        // but their queries and service calls are not merged (non-degraded transactions are merged
+        // into both the overall and the transaction name aggregates)
+        awaitMergedQueriesCount(2 * (1000 - degradedCount));
+        assertThat((long) mergedQueriesCount.get()).isEqualTo(2 * (1000 - degradedCount));
+        assertThat((long) mergedServiceCallsCount.get())
+                .isEqualTo(2 * (1000 - degradedCount));
+    }
+
+    @Test
+    public void shouldNotDegradeWithoutBacklog() throws Exception {
+        // when
+        for (int i = 0; i < 100; i++) {
+            transactionProcessor.processOnCompletion(createTransaction());
+            awaitTransactionCount(i + 1);
+        }
+
+        // then
+        assertThat(transactionProcessor.getDegradedTransactionCount()).isEqualTo(0);
+        assertThat(transactionProcessor.getDroppedTransactionCount()).isEqualTo(0);
+        awaitMergedQueriesCount(200);
+        assertThat(mergedQueriesCount.get()).isEqualTo(200);
+        assertThat(mergedServiceCallsCount.get()).isEqualTo(200);
+    }
+
+    private ThroughputAggregate awaitTransactionCount(long transactionCount)
+            throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(SECONDS) < 10) {
+            ThroughputAggregate throughputAggregate =
+                    getActiveIntervalCollector().getThroughputAggregate("Web", null);
+            if (throughputAggregate != null
+                    && throughputAggregate.transactionCount() == transactionCount) {
+                return throughputAggregate;
+            }
+            MILLISECONDS.sleep(10);
+        }
+        throw new AssertionError("timed out waiting for transactions to be aggregated");
+    }
+
+    // the last transaction can still be merging into the transaction name aggregate after it has
+    // been counted in the overall aggregate
+    private void awaitMergedQueriesCount(long count) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (stopwatch.elapsed(SECONDS) < 10) {
+            if (mergedQueriesCount.get() >= count && mergedServiceCallsCount.get() >= count) {
+                return;
+            }
+            MILLISECONDS.sleep(10);
+        }
+    }
+
+    private AggregateIntervalCollector getActiveIntervalCollector() {
+        List<AggregateIntervalCollector> intervalCollectors = transactionProcessor
+                .getOrderedIntervalCollectorsInRange(0, Long.MAX_VALUE);
+        assertThat(intervalCollectors).hasSize(1);
+        return intervalCollectors.get(0);
+    }
+
+    private Transaction createTransaction() {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn("Web");
+        when(transaction.getTransactionName()).thenReturn("a");
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(10));
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        TimerImpl rootTimer = mock(TimerImpl.class);
+        when(rootTimer.getName()).thenReturn("mock");
+        when(transaction.getMainThreadRootTimer()).thenReturn(rootTimer);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mergedQueriesCount.getAndIncrement();
+                return null;
+            }
+        }).when(transaction).mergeQueriesInto(any(QueryCollector.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mergedServiceCallsCount.getAndIncrement();
+                return null;
+            }
+        }).when(transaction).mergeServiceCallsInto(any(ServiceCallCollector.class));
+        return transaction;
+    }
+}
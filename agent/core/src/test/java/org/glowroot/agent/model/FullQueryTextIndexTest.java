@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import org.glowroot.common.Constants;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FullQueryTextIndexTest {
+
+    private static final String LONG_QUERY_TEXT =
+            "select " + Strings.repeat("x", Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) + " from y";
+
+    private static final String LONG_QUERY_TEXT_SHA1 =
+            Hashing.sha1().hashString(LONG_QUERY_TEXT, UTF_8).toString();
+
+    @Test
+    public void shouldLookupFullQueryTextBySha1() {
+        // given
+        FullQueryTextIndex index = new FullQueryTextIndex(new FullQueryTextPool());
+        QueryCollector queries = new QueryCollector(100, 4, index);
+        // when
+        queries.mergeQuery("SQL", LONG_QUERY_TEXT, 1, 1, true, 1, false);
+        queries.mergeQuery("SQL", "select 1", 1, 1, true, 1, false);
+        // then
+        assertThat(index.getFullText(LONG_QUERY_TEXT_SHA1)).isEqualTo(LONG_QUERY_TEXT);
+        assertThat(index.getSha1("select 1")).isNull();
+    }
+
+    @Test
+    public void shouldShareFullQueryTextAcrossIntervals() {
+        // given
+        FullQueryTextPool pool = new FullQueryTextPool();
+        FullQueryTextIndex index1 = new FullQueryTextIndex(pool);
+        FullQueryTextIndex index2 = new FullQueryTextIndex(pool);
+        // when
+        String pooledText1 = index1.add(LONG_QUERY_TEXT);
+        String pooledText2 = index2.add(new String(LONG_QUERY_TEXT));
+        // then
+        assertThat(pooledText2).isSameAs(pooledText1);
+        assertThat(pool.size()).isEqualTo(1);
+        // when
+        index1.release();
+        // then
+        assertThat(pool.size()).isEqualTo(1);
+        assertThat(index1.getFullText(LONG_QUERY_TEXT_SHA1)).isNull();
+        assertThat(index2.getFullText(LONG_QUERY_TEXT_SHA1)).isEqualTo(LONG_QUERY_TEXT);
+        // when
+        index2.release();
+        // then
+        assertThat(pool.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotPoolAfterRelease() {
+        // given
+        FullQueryTextPool pool = new FullQueryTextPool();
+        FullQueryTextIndex index = new FullQueryTextIndex(pool);
+        index.release();
+        // when
+        index.add(LONG_QUERY_TEXT);
+        // then
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(index.getFullText(LONG_QUERY_TEXT_SHA1)).isNull();
+    }
+
+    @Test
+    public void shouldContinueToIndexAfterClear() {
+        // given
+        FullQueryTextPool pool = new FullQueryTextPool();
+        FullQueryTextIndex index = new FullQueryTextIndex(pool);
+        index.add(LONG_QUERY_TEXT);
+        // when
+        index.clear();
+        // then
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(index.getFullText(LONG_QUERY_TEXT_SHA1)).isNull();
+        // when
+        index.add(LONG_QUERY_TEXT);
+        // then
+        assertThat(pool.size()).isEqualTo(1);
+        assertThat(index.getFullText(LONG_QUERY_TEXT_SHA1)).isEqualTo(LONG_QUERY_TEXT);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    private static final List<StackTraceElement> STACK_TRACE = ImmutableList.of(
+            new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123),
+            new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+
+    @Test
+    public void shouldAddIdenticalStackTracesWithCount() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        // when
+        threadProfile.addStackTrace(STACK_TRACE, Thread.State.RUNNABLE, 1);
+        threadProfile.addStackTrace(STACK_TRACE, Thread.State.RUNNABLE, 3);
+        // then
+        assertThat(threadProfile.getSampleCount()).isEqualTo(4);
+        assertThat(threadProfile.isSampleLimitExceeded()).isFalse();
+        Profile profile = threadProfile.toProto();
+        assertThat(profile.getNodeCount()).isEqualTo(2);
+        assertThat(profile.getNode(0).getSampleCount()).isEqualTo(4);
+        assertThat(profile.getNode(1).getSampleCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldCapSamplesAddedWithCount() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(5);
+        // when
+        threadProfile.addStackTrace(STACK_TRACE, Thread.State.RUNNABLE, 3);
+        threadProfile.addStackTrace(STACK_TRACE, Thread.State.RUNNABLE, 3);
+        threadProfile.addStackTrace(STACK_TRACE, Thread.State.RUNNABLE, 3);
+        // then
+        assertThat(threadProfile.getSampleCount()).isEqualTo(5);
+        assertThat(threadProfile.isSampleLimitExceeded()).isTrue();
+        assertThat(threadProfile.toProto().getNode(0).getSampleCount()).isEqualTo(5);
+    }
+}
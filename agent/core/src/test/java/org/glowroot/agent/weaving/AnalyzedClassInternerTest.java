@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedClassInternerTest {
+
+    @Test
+    public void shouldShareEqualClassesWithoutAdvice() {
+        // given
+        AnalyzedClassInterner interner = new AnalyzedClassInterner();
+        AnalyzedClass analyzedClass1 = newAnalyzedClass();
+        AnalyzedClass analyzedClass2 = newAnalyzedClass();
+
+        // when
+        AnalyzedClass interned1 = interner.intern(analyzedClass1);
+        AnalyzedClass interned2 = interner.intern(analyzedClass2);
+
+        // then
+        assertThat(interned1).isEqualTo(analyzedClass1);
+        assertThat(interned2).isSameAs(interned1);
+        assertThat(interner.getSharedCount()).isEqualTo(1);
+        assertThat(interner.getAnalyzedClassCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldInternNames() {
+        // given
+        AnalyzedClassInterner interner = new AnalyzedClassInterner();
+
+        // when
+        AnalyzedClass interned = interner.intern(newAnalyzedClass());
+
+        // then
+        assertThat(interned.name()).isSameAs("org.example.Abc");
+        assertThat(interned.interfaceNames().get(0)).isSameAs("java.io.Serializable");
+        assertThat(interned.analyzedMethods().get(0).parameterTypes().get(0))
+                .isSameAs("java.lang.String");
+        assertThat(interned.publicFinalMethods().get(0).name()).isSameAs("execute");
+    }
+
+    @Test
+    public void shouldNotShareClassesWithAdvice() throws Exception {
+        // given
+        AnalyzedClassInterner interner = new AnalyzedClassInterner();
+        Advice advice =
+                new AdviceBuilder(PluginDetailBuilder.buildAdviceClass(BasicAdvice.class)).build();
+        AnalyzedClass analyzedClass1 = newAnalyzedClassWithAdvice(advice);
+        AnalyzedClass analyzedClass2 = newAnalyzedClassWithAdvice(advice);
+
+        // when
+        AnalyzedClass interned1 = interner.intern(analyzedClass1);
+        AnalyzedClass interned2 = interner.intern(analyzedClass2);
+
+        // then
+        assertThat(AnalyzedClassInterner.hasAdvice(analyzedClass1)).isTrue();
+        assertThat(interned1).isSameAs(analyzedClass1);
+        assertThat(interned2).isSameAs(analyzedClass2);
+        assertThat(interner.getAnalyzedClassCount()).isZero();
+    }
+
+    // using new String() to ensure that strings are not already interned
+    private static AnalyzedClass newAnalyzedClass() {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name(new String("org.example.Abc"))
+                .addInterfaceNames(new String("java.io.Serializable"))
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name(new String("execute"))
+                        .addParameterTypes(new String("java.lang.String"))
+                        .returnType(new String("void"))
+                        .modifiers(Modifier.PUBLIC | Modifier.ABSTRACT)
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name(new String("execute"))
+                        .build())
+                .ejbRemote(false)
+                .build();
+    }
+
+    private static AnalyzedClass newAnalyzedClassWithAdvice(Advice advice) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name("org.example.Xyz")
+                .superName("java.lang.Object")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute1")
+                        .returnType("void")
+                        .modifiers(Modifier.PUBLIC)
+                        .addAdvisors(advice)
+                        .build())
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    @Test
+    public void shouldAnalyzeSuperTypeOnceWhenLookedUpConcurrently() throws Exception {
+        // given
+        final AnalyzedWorld analyzedWorld = newAnalyzedWorld();
+        final CountingClassLoader loader = new CountingClassLoader(Base.class.getName());
+        // warm up the analysis code path so the concurrent lookups below overlap
+        analyzedWorld.getAnalyzedHierarchy(Other.class.getName(), loader, "Sub",
+                ImmutableParseContext.of("Sub", null));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            List<Future<List<AnalyzedClass>>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                final String subClassName = "Sub" + i;
+                futures.add(executor.submit(new Callable<List<AnalyzedClass>>() {
+                    @Override
+                    public List<AnalyzedClass> call() throws Exception {
+                        latch.await();
+                        return analyzedWorld.getAnalyzedHierarchy(Base.class.getName(), loader,
+                                subClassName, ImmutableParseContext.of(subClassName, null));
+                    }
+                }));
+            }
+            // when
+            latch.countDown();
+            // then
+            AnalyzedClass analyzedClass = futures.get(0).get(10, SECONDS).get(0);
+            assertThat(analyzedClass.name()).isEqualTo(Base.class.getName());
+            for (Future<List<AnalyzedClass>> future : futures) {
+                assertThat(future.get(10, SECONDS)).containsExactly(analyzedClass);
+            }
+            assertThat(loader.resourceRequestCount.get()).isEqualTo(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNotEvictByDefault() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld();
+        ClassLoader loader = new CountingClassLoader(Base.class.getName());
+        // when
+        analyze(analyzedWorld, Base.class, loader);
+        analyze(analyzedWorld, Other.class, loader);
+        // then
+        assertThat(analyzedWorld.getEvictableClassCount()).isZero();
+        assertThat(analyzedWorld.getEvictionCount()).isZero();
+    }
+
+    @Test
+    public void shouldEvictOldestAndReDerive() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(2);
+        CountingClassLoader loader = new CountingClassLoader(Base.class.getName());
+        AnalyzedClass analyzedClass = analyze(analyzedWorld, Base.class, loader);
+        analyze(analyzedWorld, Other.class, loader);
+        long analyzedClassCount = analyzedWorld.getAnalyzedClassCount();
+        // when
+        analyze(analyzedWorld, Another.class, loader);
+        // then
+        assertThat(analyzedWorld.getEvictionCount()).isEqualTo(1);
+        assertThat(analyzedWorld.getEvictableClassCount()).isEqualTo(2);
+        assertThat(analyzedWorld.getAnalyzedClassCount()).isEqualTo(analyzedClassCount);
+        // when
+        int resourceRequestCount = loader.resourceRequestCount.get();
+        AnalyzedClass reDerivedAnalyzedClass = analyze(analyzedWorld, Base.class, loader);
+        // then
+        assertThat(loader.resourceRequestCount.get()).isEqualTo(resourceRequestCount + 1);
+        assertThat(reDerivedAnalyzedClass).isEqualTo(analyzedClass);
+        assertThat(analyzedWorld.getEvictionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotEvictClassWithoutResource() throws Exception {
+        // given
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(1);
+        ClassLoader loader = new ResourceHidingClassLoader(Base.class.getName());
+        // Base has to be analyzed via createAnalyzedClassPlanB() since its resource is hidden
+        analyze(analyzedWorld, Base.class, loader);
+        long analyzedClassCount = analyzedWorld.getAnalyzedClassCount();
+        // when
+        analyze(analyzedWorld, Other.class, loader);
+        // then
+        assertThat(analyzedWorld.getEvictionCount()).isZero();
+        assertThat(analyzedWorld.getEvictableClassCount()).isEqualTo(1);
+        assertThat(analyzedWorld.getAnalyzedClassCount()).isEqualTo(analyzedClassCount + 1);
+    }
+
+    private static AnalyzedClass analyze(AnalyzedWorld analyzedWorld, Class<?> clazz,
+            ClassLoader loader) {
+        List<AnalyzedClass> analyzedHierarchy = analyzedWorld.getAnalyzedHierarchy(
+                clazz.getName(), loader, "Sub", ImmutableParseContext.of("Sub", null));
+        assertThat(analyzedHierarchy).hasSize(1);
+        return analyzedHierarchy.get(0);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld() {
+        return new AnalyzedWorld(Suppliers.ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(int maxEvictableClasses) {
+        return new AnalyzedWorld(Suppliers.ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null,
+                maxEvictableClasses);
+    }
+
+    // counts (and slows down) the requests for the .class resource that analysis starts with
+    private static class CountingClassLoader extends ClassLoader {
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final String countedResourceName;
+        private final AtomicInteger resourceRequestCount = new AtomicInteger();
+
+        private CountingClassLoader(String countedClassName) {
+            super(AnalyzedWorldTest.class.getClassLoader());
+            countedResourceName = ClassNames.toInternalName(countedClassName) + ".class";
+        }
+
+        @Override
+        public @Nullable URL getResource(String name) {
+            if (name.equals(countedResourceName)) {
+                resourceRequestCount.getAndIncrement();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getResource(name);
+        }
+    }
+
+    private static class ResourceHidingClassLoader extends ClassLoader {
+
+        private final String hiddenResourceName;
+
+        private ResourceHidingClassLoader(String hiddenClassName) {
+            super(AnalyzedWorldTest.class.getClassLoader());
+            hiddenResourceName = ClassNames.toInternalName(hiddenClassName) + ".class";
+        }
+
+        @Override
+        public @Nullable URL getResource(String name) {
+            if (name.equals(hiddenResourceName)) {
+                return null;
+            }
+            return super.getResource(name);
+        }
+    }
+
+    public static class Base {}
+
+    public static class Other {}
+
+    public static class Another {}
+}
@@ -1023,8 +1023,9 @@ public class WeaverTest {
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
-                ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                ImmutableList.<MixinType>of(), analyzedWorld, null, transactionRegistry,
                 Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class));
+        weaver.setNoLongerNeedToWeaveMainMethods();
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1847,9 +1848,13 @@ public class WeaverTest {
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld, null,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
                 mock(ConfigService.class));
+        // same as after agent startup, which is also when the weaving pre-screen kicks in, so that
+        // all of the weaving tests also verify that the pre-screen doesn't reject any class that
+        // needs weaving
+        weaver.setNoLongerNeedToWeaveMainMethods();
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1887,9 +1892,13 @@ public class WeaverTest {
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld, null,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
                 mock(ConfigService.class));
+        // same as after agent startup, which is also when the weaving pre-screen kicks in, so that
+        // all of the weaving tests also verify that the pre-screen doesn't reject any class that
+        // needs weaving
+        weaver.setNoLongerNeedToWeaveMainMethods();
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    @Test
+    public void shouldEncodeAndDecode() {
+        // given
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name("org.example.Abc")
+                .superName("org.example.AbstractAbc")
+                .addInterfaceNames("java.io.Serializable", "java.lang.Runnable")
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("execute")
+                        .addParameterTypes("java.lang.String", "int")
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("run")
+                        .build())
+                .ejbRemote(false)
+                .build();
+
+        // when
+        AnalyzedClass decoded = WeavingCache.decode(WeavingCache.encode(analyzedClass));
+
+        // then
+        assertThat(decoded).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeWithoutSuperName() {
+        // given
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name("org.example.Xyz")
+                .ejbRemote(true)
+                .build();
+
+        // when
+        AnalyzedClass decoded = WeavingCache.decode(WeavingCache.encode(analyzedClass));
+
+        // then
+        assertThat(decoded).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldNotEncodeNamesWithSeparators() {
+        // given
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name("org.example.A,b")
+                .ejbRemote(false)
+                .build();
+
+        // when
+        String encoded = WeavingCache.encode(analyzedClass);
+
+        // then
+        assertThat(encoded).isNull();
+    }
+
+    @Test
+    public void shouldReadBackFromFile() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-unit-test-", "");
+        ImmutableList<Advice> advisors = ImmutableList.of();
+        WeavingCache cache = new WeavingCache(file, 100, advisors, "abc");
+        long key = cache.getKey("org/example/Abc", null, new byte[] {1, 2, 3}, true);
+        cache.putNoWeavingRequired(key, createAnalyzedClass("org.example.Abc"));
+        cache.writeToFile();
+
+        // when
+        WeavingCache reloaded = new WeavingCache(file, 100, advisors, "abc");
+
+        // then
+        assertThat(reloaded.size()).isEqualTo(1);
+        assertThat(reloaded.getNoWeavingRequired(key))
+                .isEqualTo(createAnalyzedClass("org.example.Abc"));
+        assertThat(reloaded.getNoWeavingRequired(
+                reloaded.getKey("org/example/Abc", null, new byte[] {1, 2, 4}, true))).isNull();
+        assertThat(reloaded.getNoWeavingRequired(
+                reloaded.getKey("org/example/Abc", null, new byte[] {1, 2, 3}, false))).isNull();
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldDiscardFileWithDifferentFingerprint() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-unit-test-", "");
+        ImmutableList<Advice> advisors = ImmutableList.of();
+        WeavingCache cache = new WeavingCache(file, 100, advisors, "abc");
+        for (int i = 0; i < 10; i++) {
+            long key = cache.getKey("org/example/Abc" + i, null, new byte[] {1, 2, 3}, true);
+            cache.putNoWeavingRequired(key, createAnalyzedClass("org.example.Abc" + i));
+        }
+        cache.writeToFile();
+
+        // when
+        WeavingCache reloaded = new WeavingCache(file, 100, advisors, "xyz");
+
+        // then
+        assertThat(reloaded.size()).isZero();
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldAppendToFile() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-unit-test-", "");
+        ImmutableList<Advice> advisors = ImmutableList.of();
+        WeavingCache cache = new WeavingCache(file, 100, advisors, "abc");
+        for (int i = 0; i < 10; i++) {
+            long key = cache.getKey("org/example/Abc" + i, null, new byte[] {1, 2, 3}, true);
+            cache.putNoWeavingRequired(key, createAnalyzedClass("org.example.Abc" + i));
+        }
+        cache.writeToFile();
+        for (int i = 10; i < 15; i++) {
+            long key = cache.getKey("org/example/Abc" + i, null, new byte[] {1, 2, 3}, true);
+            cache.putNoWeavingRequired(key, createAnalyzedClass("org.example.Abc" + i));
+        }
+        cache.writeToFile();
+
+        // when
+        WeavingCache reloaded = new WeavingCache(file, 100, advisors, "abc");
+
+        // then
+        assertThat(reloaded.size()).isEqualTo(15);
+        assertThat(reloaded.isValidFor(advisors)).isTrue();
+        assertThat(reloaded.isValidFor(Lists.<Advice>newArrayList())).isFalse();
+
+        // cleanup
+        file.delete();
+    }
+
+    private static AnalyzedClass createAnalyzedClass(String name) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(name)
+                .superName("java.lang.Object")
+                .ejbRemote(false)
+                .build();
+    }
+}
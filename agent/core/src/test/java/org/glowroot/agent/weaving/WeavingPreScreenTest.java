@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.SomeAspect.SomeClass;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingPreScreenTest {
+
+    @Test
+    public void shouldRejectUnrelatedClass() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        byte[] classBytes = getClassBytes(Unrelated.class);
+
+        // when
+        AnalyzedClass analyzedClass =
+                preScreen.screen(classBytes, getClassLoader(), null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass)
+                .isEqualTo(analyze(classBytes, advisors, newAnalyzedWorld(advisors)));
+    }
+
+    @Test
+    public void shouldNotRejectClassMatchingClassName() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        AnalyzedClass analyzedClass = preScreen.screen(getClassBytes(BasicMisc.class),
+                getClassLoader(), null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassInheritingAdvice() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        AnalyzedClass analyzedClass = preScreen.screen(getClassBytes(SubBasicMisc.class),
+                getClassLoader(), null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassWithMatchingAnnotation() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAnnotationBasedAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        AnalyzedClass analyzedClass = preScreen.screen(getClassBytes(Annotated.class),
+                getClassLoader(), null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectPointcutClass() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        AnalyzedClass analyzedClass = preScreen.screen(getClassBytes(BasicAdvice.class),
+                getClassLoader(), null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectInterface() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingPreScreen preScreen = WeavingPreScreen.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+
+        // when
+        AnalyzedClass analyzedClass = preScreen.screen(getClassBytes(Runnable.class),
+                null, null, newAnalyzedWorld(advisors));
+
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    private static Advice newAdvice(Class<?> clazz) throws Exception {
+        return new AdviceBuilder(PluginDetailBuilder.buildAdviceClass(clazz)).build();
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(List<Advice> advisors) {
+        return new AnalyzedWorld(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), null);
+    }
+
+    private static AnalyzedClass analyze(byte[] classBytes, List<Advice> advisors,
+            AnalyzedWorld analyzedWorld) throws Exception {
+        ThinClassVisitor cv = new ThinClassVisitor();
+        new ClassReader(classBytes).accept(cv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(cv.getThinClass(), advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), getClassLoader(),
+                analyzedWorld, null, classBytes, null, true);
+        classAnalyzer.analyzeMethods();
+        assertThat(classAnalyzer.isWeavingRequired()).isFalse();
+        return classAnalyzer.getAnalyzedClass();
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(clazz.getName().replace('.', '/') + ".class"));
+    }
+
+    private static ClassLoader getClassLoader() {
+        return WeavingPreScreenTest.class.getClassLoader();
+    }
+
+    public static class Unrelated implements Comparable<Unrelated> {
+
+        private long value;
+
+        public final void execute1(String str, int num) {}
+
+        @Override
+        public int compareTo(Unrelated other) {
+            return value < other.value ? -1 : value == other.value ? 0 : 1;
+        }
+    }
+
+    public static class SubBasicMisc extends BasicMisc {}
+
+    @SomeClass
+    public static class Annotated {}
+}
@@ -190,7 +190,7 @@ public class AggregateDao implements AggregateRepository {
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
-    public void store(AggregateReader aggregateReader) throws Exception {
+    public void store(final AggregateReader aggregateReader) throws Exception {
         final long captureTime = aggregateReader.captureTime();
         // intentionally not using batch update as that could cause memory spike while preparing a
         // large batch
@@ -222,7 +222,7 @@ public class AggregateDao implements AggregateRepository {
                         truncatedText = sharedQueryText.substring(0,
                                 Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
                         fullTextSha1 = fullQueryTextDao.updateLastCaptureTime(sharedQueryText,
-                                captureTime);
+                                aggregateReader.getFullTextSha1(sharedQueryText), captureTime);
                     } else {
                         truncatedText = sharedQueryText;
                         fullTextSha1 = null;
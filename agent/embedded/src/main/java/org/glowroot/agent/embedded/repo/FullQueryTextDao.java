@@ -69,7 +69,14 @@ class FullQueryTextDao {
     }
 
     String updateLastCaptureTime(String fullText, long captureTime) throws SQLException {
-        String fullTextSha1 = Hashing.sha1().hashString(fullText, UTF_8).toString();
+        return updateLastCaptureTime(fullText, null, captureTime);
+    }
+
+    // knownFullTextSha1 is the sha1 that was already computed while aggregating, if available
+    String updateLastCaptureTime(String fullText, @Nullable String knownFullTextSha1,
+            long captureTime) throws SQLException {
+        String fullTextSha1 = knownFullTextSha1 == null
+                ? Hashing.sha1().hashString(fullText, UTF_8).toString() : knownFullTextSha1;
         if (lastCaptureTimeUpdatedInThePastDay.getIfPresent(fullTextSha1) != null) {
             return fullTextSha1;
         }
@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabaseCodec;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.H2DatabaseStats;
 import org.glowroot.common.util.Clock;
@@ -81,15 +82,21 @@ public class SimpleRepoModule {
         this.dataSource = dataSource;
         this.configRepository = configRepository;
         EmbeddedStorageConfig storageConfig = configRepository.getEmbeddedStorageConfig();
+        CappedDatabaseCodec rollupCappedDatabaseCodec = CappedDatabaseCodec.fromSystemProperty(
+                "glowroot.internal.rollupCappedDatabase.codec", CappedDatabaseCodec.LZF);
+        CappedDatabaseCodec traceCappedDatabaseCodec = CappedDatabaseCodec.fromSystemProperty(
+                "glowroot.internal.traceCappedDatabase.codec", CappedDatabaseCodec.LZF);
         List<CappedDatabase> rollupCappedDatabases = Lists.newArrayList();
         for (int i = 0; i < storageConfig.rollupCappedDatabaseSizesMb().size(); i++) {
             File file = new File(dataDir, "rollup-" + i + "-detail.capped.db");
             int sizeKb = storageConfig.rollupCappedDatabaseSizesMb().get(i) * 1024;
-            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb, backgroundExecutor, ticker));
+            rollupCappedDatabases.add(new CappedDatabase(file, sizeKb,
+                    rollupCappedDatabaseCodec, backgroundExecutor, ticker));
         }
         this.rollupCappedDatabases = ImmutableList.copyOf(rollupCappedDatabases);
         traceCappedDatabase = new CappedDatabase(new File(dataDir, "trace-detail.capped.db"),
-                storageConfig.traceCappedDatabaseSizeMb() * 1024, backgroundExecutor, ticker);
+                storageConfig.traceCappedDatabaseSizeMb() * 1024, traceCappedDatabaseCodec,
+                backgroundExecutor, ticker);
 
         SchemaUpgrade schemaUpgrade = new SchemaUpgrade(dataSource);
         Integer initialSchemaVersion = schemaUpgrade.getInitialSchemaVersion();
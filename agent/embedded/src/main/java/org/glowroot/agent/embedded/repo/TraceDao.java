@@ -22,11 +22,14 @@ import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
 import java.util.Locale;
+import java.util.PriorityQueue;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -51,6 +54,7 @@ import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableEntriesAndQueries;
 import org.glowroot.common.live.ImmutableQueries;
 import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.ImmutableTracePointFilter;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.EntriesAndQueries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
@@ -63,12 +67,14 @@ import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
 import org.glowroot.common2.repo.ImmutableHeaderPlus;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class TraceDao implements TraceRepository {
@@ -99,11 +105,27 @@ public class TraceDao implements TraceRepository {
             ImmutableColumn.of("aux_thread_profile_capped_id", ColumnType.BIGINT));
 
     // capture_time column is used for expiring records without using FK with on delete cascade
+    //
+    // upper_name and upper_value columns are stored (instead of filtering on upper(name) and
+    // upper(value)) since H2 does not support function-based indexes
     private static final ImmutableList<Column> traceAttributeColumns =
             ImmutableList.<Column>of(ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
                     ImmutableColumn.of("name", ColumnType.VARCHAR),
                     ImmutableColumn.of("value", ColumnType.VARCHAR),
-                    ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+                    ImmutableColumn.of("upper_name", ColumnType.VARCHAR),
+                    ImmutableColumn.of("upper_value", ColumnType.VARCHAR));
+
+    // only populated for sampled traces (see sample_weight in Trace.Header), where extra_weight is
+    // the number of traces (beyond itself) that the sampled trace stands in for
+    private static final ImmutableList<Column> traceSampleWeightColumns =
+            ImmutableList.<Column>of(ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
+                    ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+                    ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+                    ImmutableColumn.of("slow", ColumnType.BOOLEAN),
+                    ImmutableColumn.of("error", ColumnType.BOOLEAN),
+                    ImmutableColumn.of("extra_weight", ColumnType.DOUBLE));
 
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
             // duration_nanos, id and error columns are included so database can return the
@@ -132,7 +154,25 @@ public class TraceDao implements TraceRepository {
             ImmutableIndex.of("trace_idx", ImmutableList.of("id")));
 
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
-            ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
+            ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")),
+            // trace_attribute_upper_name_idx is for readSlowPoints() and readErrorPoints() with
+            // attribute filter, upper_value and trace_id columns are included so database can
+            // perform the join to the trace table directly from the index
+            //
+            // (index names are global in h2, and trace_attribute_name_idx is already used by
+            // TraceAttributeNameDao)
+            ImmutableIndex.of("trace_attribute_upper_name_idx",
+                    ImmutableList.of("upper_name", "capture_time", "upper_value", "trace_id")));
+
+    private static final ImmutableList<Index> traceSampleWeightIndexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("trace_sample_weight_idx",
+                    ImmutableList.of("transaction_type", "capture_time")));
+
+    // trace points are read in slices of capture time (most recent first), starting with this
+    // slice size and then doubling the capture time range covered after each slice, and once the
+    // limit has been reached, the remaining slices only need to return trace points that are
+    // slower than the fastest of the trace points found so far
+    private static final long INITIAL_TRACE_POINT_SLICE_MILLIS = HOURS.toMillis(1);
 
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
@@ -164,10 +204,23 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column queries_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        if (dataSource.tableExists("trace_attribute")
+                && !dataSource.columnExists("trace_attribute", "upper_name")) {
+            // upgrade to 0.13.4
+            startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
+                    + " few minutes (depending on data size)...");
+            dataSource.execute("alter table trace_attribute add column upper_name varchar");
+            dataSource.execute("alter table trace_attribute add column upper_value varchar");
+            dataSource.execute("update trace_attribute set upper_name = upper(name), upper_value"
+                    + " = upper(value)");
+            startupLogger.info("glowroot schema upgrade complete");
+        }
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
         dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        dataSource.syncTable("trace_sample_weight", traceSampleWeightColumns);
+        dataSource.syncIndexes("trace_sample_weight", traceSampleWeightIndexes);
     }
 
     public void store(TraceReader traceReader) throws Exception {
@@ -192,6 +245,13 @@ public class TraceDao implements TraceRepository {
                         attribute.getName(), header.getCaptureTime());
             }
         }
+        if (!header.getPartial() && header.getSampleWeight() > 1) {
+            dataSource.update("insert into trace_sample_weight (trace_id, transaction_type,"
+                    + " transaction_name, capture_time, slow, error, extra_weight) values (?, ?, ?,"
+                    + " ?, ?, ?, ?)", trace.getId(), header.getTransactionType(),
+                    header.getTransactionName(), header.getCaptureTime(), header.getSlow(),
+                    header.hasError(), header.getSampleWeight() - 1);
+        }
         transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
                 header.getCaptureTime());
     }
@@ -203,12 +263,14 @@ public class TraceDao implements TraceRepository {
             return dataSource.queryForLong(
                     "select count(*) from trace where transaction_type = ? and capture_time > ?"
                             + " and capture_time <= ? and slow = ?",
-                    query.transactionType(), query.from(), query.to(), true);
+                    query.transactionType(), query.from(), query.to(), true)
+                    + readExtraSampleWeight(query, "slow");
         } else {
             return dataSource.queryForLong(
                     "select count(*) from trace where transaction_type = ? and transaction_name = ?"
                             + " and capture_time > ? and capture_time <= ? and slow = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
+                    query.transactionType(), transactionName, query.from(), query.to(), true)
+                    + readExtraSampleWeight(query, "slow");
         }
     }
 
@@ -225,12 +287,14 @@ public class TraceDao implements TraceRepository {
             return dataSource.queryForLong(
                     "select count(*) from trace where transaction_type = ? and capture_time > ?"
                             + " and capture_time <= ? and error = ?",
-                    query.transactionType(), query.from(), query.to(), true);
+                    query.transactionType(), query.from(), query.to(), true)
+                    + readExtraSampleWeight(query, "error");
         } else {
             return dataSource.queryForLong(
                     "select count(*) from trace where transaction_type = ? and transaction_name = ?"
                             + " and capture_time > ? and capture_time <= ? and error = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
+                    query.transactionType(), transactionName, query.from(), query.to(), true)
+                    + readExtraSampleWeight(query, "error");
         }
     }
 
@@ -324,15 +388,70 @@ public class TraceDao implements TraceRepository {
         traceAttributeNameDao.deleteBefore(captureTime);
         dataSource.deleteBefore("trace", captureTime);
         dataSource.deleteBefore("trace_attribute", captureTime);
+        dataSource.deleteBefore("trace_sample_weight", captureTime);
+    }
+
+    // kindColumn is "slow" or "error"
+    private long readExtraSampleWeight(TraceQuery query, @Untainted String kindColumn)
+            throws SQLException {
+        String transactionName = query.transactionName();
+        Long extraWeight;
+        if (transactionName == null) {
+            extraWeight = dataSource.queryForOptionalLong("select round(sum(extra_weight)) from"
+                    + " trace_sample_weight where transaction_type = ? and capture_time > ? and"
+                    + " capture_time <= ? and " + kindColumn + " = ?", query.transactionType(),
+                    query.from(), query.to(), true);
+        } else {
+            extraWeight = dataSource.queryForOptionalLong("select round(sum(extra_weight)) from"
+                    + " trace_sample_weight where transaction_type = ? and transaction_name = ?"
+                    + " and capture_time > ? and capture_time <= ? and " + kindColumn + " = ?",
+                    query.transactionType(), transactionName, query.from(), query.to(), true);
+        }
+        return extraWeight == null ? 0 : extraWeight;
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
-        List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
-        // one extra record over the limit is fetched above to identify if the limit was hit
-        return Result.create(points, limit);
+        // one extra record over the limit is collected to identify if the limit was hit
+        TracePointCollector collector = new TracePointCollector(limit == 0 ? 0 : limit + 1);
+        if (limit == 0) {
+            // every trace point is returned, so nothing is gained by slicing
+            ParameterizedSql parameterizedSql =
+                    new TracePointQueryBuilder(traceKind, query, filter, 0).getParameterizedSql();
+            dataSource.query(new TracePointQuery(parameterizedSql, collector));
+            return Result.create(collector.getSortedPoints(), 0);
+        }
+        long sliceMillis = INITIAL_TRACE_POINT_SLICE_MILLIS;
+        long sliceTo = query.to();
+        while (sliceTo > query.from()) {
+            long sliceFrom = Math.max(sliceTo - sliceMillis, query.from());
+            TraceQuery sliceQuery = ImmutableTraceQuery.copyOf(query)
+                    .withFrom(sliceFrom)
+                    .withTo(sliceTo);
+            TracePointFilter sliceFilter = filter;
+            if (collector.isFull()) {
+                long minDurationNanos = collector.getMinDurationNanos();
+                Long durationNanosHigh = filter.durationNanosHigh();
+                if (durationNanosHigh != null && minDurationNanos >= durationNanosHigh) {
+                    // no remaining trace point can make it into the result
+                    break;
+                }
+                // the limit has already been exceeded, so trace points with the same duration as
+                // the fastest collected trace point do not change the result
+                sliceFilter = ImmutableTracePointFilter.copyOf(filter)
+                        .withDurationNanosLow(Math.max(minDurationNanos + 1,
+                                filter.durationNanosLow()));
+            }
+            ParameterizedSql parameterizedSql = new TracePointQueryBuilder(traceKind, sliceQuery,
+                    sliceFilter, limit).getParameterizedSql();
+            dataSource.query(new TracePointQuery(parameterizedSql, collector));
+            sliceTo = sliceFrom;
+            // each slice doubles the capture time range covered so far, which bounds the number of
+            // queries to the logarithm of the capture time range, while the duration threshold
+            // from the (more recent) slices already read keeps each query's sort small
+            sliceMillis = query.to() - sliceTo;
+        }
+        return Result.create(collector.getSortedPoints(), limit);
     }
 
     private List<Trace.SharedQueryText> getSharedQueryTextsForExport(
@@ -567,8 +686,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "insert into trace_attribute (trace_id, name, value, capture_time)"
-                    + " values (?, ?, ?, ?)";
+            return "insert into trace_attribute (trace_id, name, value, capture_time, upper_name,"
+                    + " upper_value) values (?, ?, ?, ?, ?, ?)";
         }
 
         @Override
@@ -581,6 +700,9 @@ public class TraceDao implements TraceRepository {
                     preparedStatement.setString(i++, attribute.getName());
                     preparedStatement.setString(i++, value);
                     preparedStatement.setLong(i++, header.getCaptureTime());
+                    preparedStatement.setString(i++,
+                            attribute.getName().toUpperCase(Locale.ENGLISH));
+                    preparedStatement.setString(i++, value.toUpperCase(Locale.ENGLISH));
                     preparedStatement.addBatch();
                 }
             }
@@ -588,12 +710,14 @@ public class TraceDao implements TraceRepository {
         }
     }
 
-    private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
+    private static class TracePointQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final ParameterizedSql parameterizedSql;
+        private final TracePointCollector collector;
 
-        private TracePointQuery(ParameterizedSql parameterizedSql) {
+        private TracePointQuery(ParameterizedSql parameterizedSql, TracePointCollector collector) {
             this.parameterizedSql = parameterizedSql;
+            this.collector = collector;
         }
 
         @Override
@@ -610,18 +734,70 @@ public class TraceDao implements TraceRepository {
         }
 
         @Override
-        public TracePoint mapRow(ResultSet resultSet) throws SQLException {
-            int i = 1;
-            String traceId = checkNotNull(resultSet.getString(i++));
-            return ImmutableTracePoint.builder()
-                    .agentId(AGENT_ID)
-                    .traceId(traceId)
-                    .captureTime(resultSet.getLong(i++))
-                    .durationNanos(resultSet.getLong(i++))
-                    .partial(resultSet.getBoolean(i++))
-                    .error(resultSet.getBoolean(i++))
-                    .checkLiveTraces(false)
-                    .build();
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            // rows are handed to the collector as they are read, instead of materializing the
+            // full list of rows first
+            while (resultSet.next()) {
+                int i = 1;
+                String traceId = checkNotNull(resultSet.getString(i++));
+                collector.add(ImmutableTracePoint.builder()
+                        .agentId(AGENT_ID)
+                        .traceId(traceId)
+                        .captureTime(resultSet.getLong(i++))
+                        .durationNanos(resultSet.getLong(i++))
+                        .partial(resultSet.getBoolean(i++))
+                        .error(resultSet.getBoolean(i++))
+                        .checkLiveTraces(false)
+                        .build());
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
+    // retains the slowest trace points (or all trace points when there is no limit)
+    private static class TracePointCollector {
+
+        private static final Ordering<TracePoint> DURATION_ORDERING =
+                new Ordering<TracePoint>() {
+                    @Override
+                    public int compare(TracePoint left, TracePoint right) {
+                        return Longs.compare(left.durationNanos(), right.durationNanos());
+                    }
+                };
+
+        private final int limit;
+        // fastest trace point is at the head
+        private final PriorityQueue<TracePoint> points =
+                new PriorityQueue<TracePoint>(11, DURATION_ORDERING);
+
+        private TracePointCollector(int limit) {
+            this.limit = limit;
+        }
+
+        private void add(TracePoint point) {
+            if (limit == 0 || points.size() < limit) {
+                points.add(point);
+            } else if (point.durationNanos() > checkNotNull(points.peek()).durationNanos()) {
+                points.poll();
+                points.add(point);
+            }
+        }
+
+        private boolean isFull() {
+            return limit != 0 && points.size() >= limit;
+        }
+
+        private long getMinDurationNanos() {
+            return checkNotNull(points.peek()).durationNanos();
+        }
+
+        private List<TracePoint> getSortedPoints() {
+            return DURATION_ORDERING.reverse().sortedCopy(points);
         }
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -83,13 +83,13 @@ class TracePointQueryBuilder {
         List<Object> args = Lists.newArrayList();
         String attributeName = filter.attributeName();
         if (!Strings.isNullOrEmpty(attributeName)) {
-            sql += " upper(attr.name) = ? and";
+            sql += " attr.upper_name = ? and";
             args.add(attributeName.toUpperCase(Locale.ENGLISH));
         }
         StringComparator attributeValueComparator = filter.attributeValueComparator();
         String attributeValue = filter.attributeValue();
         if (attributeValueComparator != null && !Strings.isNullOrEmpty(attributeValue)) {
-            sql += " upper(attr.value) " + attributeValueComparator.getComparator() + " ? and";
+            sql += " attr.upper_value " + attributeValueComparator.getComparator() + " ? and";
             args.add(attributeValueComparator.formatParameter(attributeValue));
         }
         if (sql.isEmpty()) {
@@ -15,7 +15,9 @@
  */
 package org.glowroot.agent.embedded.util;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,9 +26,17 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -39,11 +49,11 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
-import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.ChunkDecoder;
 import com.ning.compress.lzf.LZFOutputStream;
 import com.ning.compress.lzf.util.ChunkDecoderFactory;
 import com.ning.compress.lzf.util.ChunkEncoderFactory;
@@ -55,6 +65,7 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CappedDatabase {
 
@@ -62,6 +73,12 @@ public class CappedDatabase {
 
     private static final boolean USE_SAFE_LZF_ENCODER;
 
+    // LZF chunks always start with 'Z', so this is used to distinguish deflate blocks from LZF
+    // blocks (including LZF blocks written prior to codecs being configurable)
+    private static final byte DEFLATE_BLOCK_MARKER = 'D';
+    // marker byte + dictionary id
+    private static final int DEFLATE_BLOCK_HEADER_BYTES = 5;
+
     static {
         String arch = StandardSystemProperty.OS_ARCH.value();
         // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
@@ -73,13 +90,24 @@ public class CappedDatabase {
     }
 
     private final File file;
+    private final CappedDatabaseCodec codec;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // reads use positional reads on the channel, so they do not need to be serialized with each
+    // other or with writes, this lock is only used to exclude reads while the channel is being
+    // closed and re-opened (resize) or closed (shutdown)
+    private final ReadWriteLock inChannelLock = new ReentrantReadWriteLock();
+    @GuardedBy("inChannelLock")
+    private FileChannel inChannel;
     private volatile boolean closed = false;
+    // dictionaries are loaded even when using LZF, in case the codec has been switched from
+    // DEFLATE and there are still DEFLATE blocks to be read
+    private final CappedDatabaseDictionaries dictionaries;
+    // re-used across writes since allocating a deflater (and its native memory) is expensive
+    @GuardedBy("lock")
+    private @Nullable Deflater deflater;
 
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
@@ -87,10 +115,19 @@ public class CappedDatabase {
     public CappedDatabase(File file, int requestedSizeKb,
             @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
             throws IOException {
+        this(file, requestedSizeKb, CappedDatabaseCodec.LZF, scheduledExecutor, ticker);
+    }
+
+    public CappedDatabase(File file, int requestedSizeKb, CappedDatabaseCodec codec,
+            @Nullable ScheduledExecutorService scheduledExecutor, Ticker ticker)
+            throws IOException {
         this.file = file;
+        this.codec = codec;
         this.ticker = ticker;
+        boolean newFile = !file.exists() || file.length() == 0;
+        dictionaries = new CappedDatabaseDictionaries(file, newFile);
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
-        inFile = new RandomAccessFile(file, "r");
+        inChannel = new RandomAccessFile(file, "r").getChannel();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -109,9 +146,14 @@ public class CappedDatabase {
         return write(type, new Copier() {
             @Override
             public void copyTo(OutputStream writer) throws IOException {
+                // writeDelimitedTo(OutputStream) allocates a new CodedOutputStream (and buffer)
+                // per message, which adds up for traces with thousands of entries
+                CodedOutputStream output = CodedOutputStream.newInstance(writer);
                 for (AbstractMessage message : messages) {
-                    message.writeDelimitedTo(writer);
+                    output.writeUInt32NoTag(message.getSerializedSize());
+                    message.writeTo(output);
                 }
+                output.flush();
             }
         });
     }
@@ -144,8 +186,14 @@ public class CappedDatabase {
             out.startBlock();
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+            CountingOutputStream countingStreamBeforeCompression;
+            if (codec == CappedDatabaseCodec.DEFLATE) {
+                countingStreamBeforeCompression = new CountingOutputStream(
+                        newDeflateOutputStream(countingStreamAfterCompression, type));
+            } else {
+                countingStreamBeforeCompression = new CountingOutputStream(
+                        newLZFOutputStream(countingStreamAfterCompression));
+            }
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
@@ -157,6 +205,10 @@ public class CappedDatabase {
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
             blockStartIndex = out.endBlock();
+            if (codec == CappedDatabaseCodec.DEFLATE) {
+                dictionaries.retrainIfNeeded(type, out.getCurrIndex(),
+                        out.getSmallestNonOverwrittenId(), out.getSizeKb() * 1024L);
+            }
         }
         // fsync (if really needed here) does not need to be done under lock
         out.fsyncIfReallyNeeded();
@@ -176,20 +228,13 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         try {
-            return parser.parseFrom(input);
+            return parser.parseFrom(readAndDecodeBlock(cappedId));
         } catch (Exception e) {
             if (!out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
-        } finally {
-            input.close();
         }
     }
 
@@ -206,15 +251,11 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
         try {
+            InputStream input = new ByteArrayInputStream(readAndDecodeBlock(cappedId));
             T message;
             while ((message = sizeLimitBypassingParser.parseDelimitedFrom(input)) != null) {
                 messages.add(message);
@@ -224,8 +265,6 @@ public class CappedDatabase {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
-        } finally {
-            input.close();
         }
         return messages;
     }
@@ -248,9 +287,14 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            inChannelLock.writeLock().lock();
+            try {
+                inChannel.close();
+                out.resize(newSizeKb);
+                inChannel = new RandomAccessFile(file, "r").getChannel();
+            } finally {
+                inChannelLock.writeLock().unlock();
+            }
         }
     }
 
@@ -259,11 +303,158 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
+            closeInChannel();
+            endDeflater();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void closeInChannel() throws IOException {
+        inChannelLock.writeLock().lock();
+        try {
+            inChannel.close();
+        } finally {
+            inChannelLock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void endDeflater() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    private byte[] readAndDecodeBlock(long cappedId) throws IOException {
+        byte[] block = readBlock(cappedId);
+        if (block.length == 0) {
+            return block;
+        }
+        if (block[0] == DEFLATE_BLOCK_MARKER) {
+            return inflate(block);
+        }
+        return newChunkDecoder().decode(block);
+    }
+
+    private byte[] inflate(byte[] block) throws IOException {
+        if (block.length < DEFLATE_BLOCK_HEADER_BYTES) {
+            throw new EOFException();
+        }
+        int dictionaryId = ByteBuffer.wrap(block, 1, 4).getInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block, DEFLATE_BLOCK_HEADER_BYTES,
+                    block.length - DEFLATE_BLOCK_HEADER_BYTES);
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(block.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n > 0) {
+                    decoded.write(buffer, 0, n);
+                } else if (inflater.needsDictionary()) {
+                    byte[] dictionary = dictionaries.get(dictionaryId);
+                    if (dictionary == null) {
+                        throw new IOException("Dictionary not found: " + dictionaryId);
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new EOFException();
+                }
+            }
+            return decoded.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @GuardedBy("lock")
+    private OutputStream newDeflateOutputStream(OutputStream outputStream, String type)
+            throws IOException {
+        int dictionaryId = dictionaries.getActiveId(type);
+        outputStream.write(DEFLATE_BLOCK_MARKER);
+        outputStream.write(ByteBuffer.allocate(4).putInt(dictionaryId).array());
+        Deflater deflater = this.deflater;
+        if (deflater == null) {
+            deflater = new Deflater();
+            this.deflater = deflater;
+        } else {
+            deflater.reset();
+        }
+        if (dictionaryId != 0) {
+            byte[] dictionary = dictionaries.get(dictionaryId);
+            // active dictionaries are never removed
+            checkNotNull(dictionary);
+            deflater.setDictionary(dictionary);
+        }
+        // DeflaterOutputStream does not end the deflater on close when the deflater is passed in
+        return new TrainingOutputStream(new DeflaterOutputStream(outputStream, deflater, 8192),
+                dictionaries.getTrainer(type));
+    }
+
+    // reads the entire compressed block with (at most three) positional reads, instead of
+    // streaming it through lots of small reads, each of which had to be performed under the
+    // same lock as writes
+    private byte[] readBlock(long cappedId) throws IOException {
+        inChannelLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Capped database is closed");
+            }
+            checkNotOverwritten(cappedId);
+            long sizeBytes = out.getSizeKb() * 1024L;
+            // block header is always contiguous (see CappedDatabaseOutputStream.startBlock())
+            ByteBuffer blockHeader =
+                    ByteBuffer.allocate(CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+            readFully(blockHeader, CappedDatabaseOutputStream.HEADER_SKIP_BYTES
+                    + out.convertToFilePosition(cappedId));
+            blockHeader.flip();
+            long blockLength = blockHeader.getLong();
+            if (blockLength < 0 || blockLength > sizeBytes) {
+                checkNotOverwritten(cappedId);
+                throw new IOException("Invalid block length: " + blockLength);
+            }
+            byte[] block = new byte[(int) blockLength];
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES);
+            int numToReadBeforeWrap = (int) Math.min(blockLength, sizeBytes - filePosition);
+            readFully(ByteBuffer.wrap(block, 0, numToReadBeforeWrap),
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            if (numToReadBeforeWrap < blockLength) {
+                readFully(
+                        ByteBuffer.wrap(block, numToReadBeforeWrap,
+                                block.length - numToReadBeforeWrap),
+                        CappedDatabaseOutputStream.HEADER_SKIP_BYTES);
+            }
+            // the writer marks the region as overwritten prior to overwriting it, so checking
+            // after the read guarantees the bytes read were not overwritten
+            checkNotOverwritten(cappedId);
+            return block;
+        } finally {
+            inChannelLock.readLock().unlock();
+        }
+    }
+
+    @GuardedBy("inChannelLock")
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            int n = inChannel.read(buffer, currPosition);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            currPosition += n;
+        }
+    }
+
+    private void checkNotOverwritten(long cappedId) throws CappedBlockRolledOverMidReadException {
+        if (out.isOverwritten(cappedId)) {
+            throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+        }
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -272,11 +463,11 @@ public class CappedDatabase {
         }
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
+    private static ChunkDecoder newChunkDecoder() {
         if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
+            return ChunkDecoderFactory.safeInstance();
         } else {
-            return new LZFInputStream(inputStream);
+            return ChunkDecoderFactory.optimalInstance();
         }
     }
 
@@ -291,65 +482,11 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
+            return new InputStreamReader(new ByteArrayInputStream(readAndDecodeBlock(cappedId)),
                     UTF_8);
         }
     }
 
-    private class CappedBlockInputStream extends InputStream {
-
-        private final long cappedId;
-        private long blockLength = -1;
-        private long blockIndex;
-
-        private CappedBlockInputStream(long cappedId) {
-            this.cappedId = cappedId;
-        }
-
-        @Override
-        public int read(byte[] bytes, int off, int len) throws IOException {
-            if (blockIndex == blockLength) {
-                return -1;
-            }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
-                }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
-            }
-        }
-
-        @Override
-        public int read(byte[] bytes) throws IOException {
-            // this is never called since CappedBlockInputStream is always wrapped in a
-            // BufferedInputStream
-            return read(bytes, 0, bytes.length);
-        }
-
-        @Override
-        public int read() throws IOException {
-            throw new UnsupportedOperationException(
-                    "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
-        }
-    }
-
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
@@ -360,7 +497,8 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
+                    closeInChannel();
+                    endDeflater();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -368,6 +506,29 @@ public class CappedDatabase {
         }
     }
 
+    // feeds uncompressed bytes to the dictionary trainer
+    private static class TrainingOutputStream extends FilterOutputStream {
+
+        private final CappedDatabaseDictionaries.Trainer trainer;
+
+        private TrainingOutputStream(OutputStream out,
+                CappedDatabaseDictionaries.Trainer trainer) {
+            super(out);
+            this.trainer = trainer;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            trainer.update(b, off, len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
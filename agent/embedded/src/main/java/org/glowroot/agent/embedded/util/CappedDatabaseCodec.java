@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public enum CappedDatabaseCodec {
+
+    // fast, but relatively poor compression ratio on protobuf messages
+    LZF,
+    // slower, but better compression ratio, especially when combined with the preset dictionary
+    // that is trained (per type) from recently written messages
+    DEFLATE;
+
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseCodec.class);
+
+    public static CappedDatabaseCodec fromSystemProperty(String propertyName,
+            CappedDatabaseCodec defaultCodec) {
+        String value = System.getProperty(propertyName);
+        if (value == null || value.isEmpty()) {
+            return defaultCodec;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid value for {}: {} (using {} instead)", propertyName, value,
+                    defaultCodec.name().toLowerCase(Locale.ENGLISH));
+            logger.debug(e.getMessage(), e);
+            return defaultCodec;
+        }
+    }
+}
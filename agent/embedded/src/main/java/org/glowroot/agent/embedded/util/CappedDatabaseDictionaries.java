@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// preset dictionaries used by the DEFLATE codec
+//
+// a separate dictionary is trained for each message type from the most recently written bytes of
+// that type, and is periodically re-trained so that it follows changes in the data over time
+//
+// dictionaries are persisted to a side file next to the capped database (so that blocks can still
+// be decoded after restart), and are removed once the last block that could reference them has
+// been overwritten
+//
+// all methods other than get() need to be externally synchronized (CappedDatabase.lock)
+class CappedDatabaseDictionaries {
+
+    private static final Logger logger = LoggerFactory.getLogger(CappedDatabaseDictionaries.class);
+
+    // deflate window size, so there is no benefit to a larger dictionary
+    static final int DICTIONARY_SIZE = 32768;
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    // minimum number of (uncompressed) bytes written for a given type between re-training
+    private static final long MIN_RETRAIN_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+    private static final long NOT_RETIRED = Long.MAX_VALUE;
+
+    private final File file;
+
+    // this is read without external synchronization
+    private final ConcurrentMap<Integer, Dictionary> dictionaries = Maps.newConcurrentMap();
+
+    private final Map<String, Dictionary> activeDictionaries = Maps.newHashMap();
+    private final Map<String, Trainer> trainers = Maps.newHashMap();
+
+    private int nextId = 1;
+
+    CappedDatabaseDictionaries(File cappedDatabaseFile, boolean newCappedDatabaseFile) {
+        file = new File(cappedDatabaseFile.getPath() + ".dict");
+        if (newCappedDatabaseFile) {
+            // stale dictionary file from a previously deleted capped database
+            if (file.exists() && !file.delete()) {
+                logger.warn("unable to delete file: {}", file.getPath());
+            }
+        } else if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                logger.error("error reading dictionary file {}: {}", file.getPath(),
+                        e.getMessage(), e);
+                dictionaries.clear();
+                activeDictionaries.clear();
+            }
+        }
+    }
+
+    @Nullable
+    byte[] get(int id) {
+        Dictionary dictionary = dictionaries.get(id);
+        return dictionary == null ? null : dictionary.bytes;
+    }
+
+    // returns 0 if there is no dictionary (yet) for this type
+    int getActiveId(String type) {
+        Dictionary dictionary = activeDictionaries.get(type);
+        return dictionary == null ? 0 : dictionary.id;
+    }
+
+    Trainer getTrainer(String type) {
+        Trainer trainer = trainers.get(type);
+        if (trainer == null) {
+            trainer = new Trainer();
+            trainers.put(type, trainer);
+        }
+        return trainer;
+    }
+
+    // nextBlockStartIndex is the smallest index that a block written after this point can have,
+    // so it is safe to remove a retired dictionary once this index has been overwritten
+    void retrainIfNeeded(String type, long nextBlockStartIndex, long smallestNonOverwrittenId,
+            long cappedDatabaseSizeBytes) throws IOException {
+        Trainer trainer = trainers.get(type);
+        if (trainer == null || !trainer.isFull()) {
+            return;
+        }
+        long retrainIntervalBytes =
+                Math.max(MIN_RETRAIN_INTERVAL_BYTES, cappedDatabaseSizeBytes / 4);
+        Dictionary activeDictionary = activeDictionaries.get(type);
+        if (activeDictionary != null && trainer.bytesSinceLastTrain < retrainIntervalBytes) {
+            return;
+        }
+        Dictionary dictionary = new Dictionary(nextId++, type, trainer.train());
+        if (activeDictionary != null) {
+            activeDictionary.retiredAt = nextBlockStartIndex;
+        }
+        Iterator<Dictionary> i = dictionaries.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().retiredAt <= smallestNonOverwrittenId) {
+                i.remove();
+            }
+        }
+        dictionaries.put(dictionary.id, dictionary);
+        // the dictionary needs to be persisted before any block is written that references it
+        store();
+        activeDictionaries.put(type, dictionary);
+    }
+
+    private void load() throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int version = in.readInt();
+            if (version != FILE_FORMAT_VERSION) {
+                throw new IOException("Unexpected dictionary file format version: " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                long retiredAt = in.readLong();
+                String type = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                Dictionary dictionary = new Dictionary(id, type, bytes);
+                dictionary.retiredAt = retiredAt;
+                dictionaries.put(id, dictionary);
+                if (retiredAt == NOT_RETIRED) {
+                    activeDictionaries.put(type, dictionary);
+                }
+                nextId = Math.max(nextId, id + 1);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void store() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeInt(dictionaries.size());
+            for (Dictionary dictionary : dictionaries.values()) {
+                out.writeInt(dictionary.id);
+                out.writeLong(dictionary.retiredAt);
+                out.writeUTF(dictionary.type);
+                out.writeInt(dictionary.bytes.length);
+                out.write(dictionary.bytes);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // replace the existing file only after the new file has been fully written, so that a
+        // crash in the middle of writing does not lose the dictionaries for existing blocks
+        Files.move(tmpFile, file);
+    }
+
+    // retains the most recently written bytes for a given type
+    static class Trainer {
+
+        private final byte[] buffer = new byte[DICTIONARY_SIZE];
+        private int position;
+        private boolean full;
+        private long bytesSinceLastTrain;
+
+        void update(byte[] b, int off, int len) {
+            bytesSinceLastTrain += len;
+            int currOff = off;
+            int remaining = len;
+            if (remaining > buffer.length) {
+                currOff += remaining - buffer.length;
+                remaining = buffer.length;
+            }
+            while (remaining > 0) {
+                int n = Math.min(remaining, buffer.length - position);
+                System.arraycopy(b, currOff, buffer, position, n);
+                currOff += n;
+                remaining -= n;
+                position += n;
+                if (position == buffer.length) {
+                    position = 0;
+                    full = true;
+                }
+            }
+        }
+
+        private boolean isFull() {
+            return full;
+        }
+
+        // the most recent bytes are placed at the end of the dictionary, since deflate encodes
+        // shorter distances (to the end of the dictionary) more compactly
+        private byte[] train() {
+            byte[] dictionary = new byte[buffer.length];
+            System.arraycopy(buffer, position, dictionary, 0, buffer.length - position);
+            System.arraycopy(buffer, 0, dictionary, buffer.length - position, position);
+            bytesSinceLastTrain = 0;
+            return dictionary;
+        }
+    }
+
+    private static class Dictionary {
+
+        private final int id;
+        private final String type;
+        private final byte[] bytes;
+        private volatile long retiredAt = NOT_RETIRED;
+
+        private Dictionary(int id, String type, byte[] bytes) {
+            this.id = id;
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -151,6 +151,11 @@ class CappedDatabaseOutputStream extends OutputStream {
         return smallestNonOverwrittenId;
     }
 
+    // this is ok to call outside of external synchronization
+    long getCurrIndex() {
+        return currIndex;
+    }
+
     // this is ok to call outside of external synchronization
     int getSizeKb() {
         return sizeKb;
@@ -226,6 +231,10 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        // mark the region as overwritten prior to overwriting it so that concurrent readers (which
+        // check after reading) never return overwritten bytes
+        smallestNonOverwrittenId =
+                calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex + len, sizeBytes);
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
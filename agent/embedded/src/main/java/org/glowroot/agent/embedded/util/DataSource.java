@@ -23,8 +23,11 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -52,6 +55,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -64,14 +68,42 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // number of additional connections used for queries, so that long running queries (e.g. UI
+    // requests over large time ranges) don't block aggregate/trace inserts and vice versa
+    //
+    // this requires running h2 in multi-threaded mode (otherwise h2 serializes all statements
+    // across all connections), which is still marked experimental in h2 1.3, so this is disabled
+    // by default
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
+    // this is the only connection used for writes (and also used for reads when the read
+    // connection pool is not enabled)
     @GuardedBy("lock")
     private JdbcConnection connection;
     private volatile boolean closed;
 
+    private final int readConnectionCount;
+    // null when the read connection pool is not enabled
+    private final @Nullable BlockingQueue<ReadConnection> readConnections;
+    private final long readConnectionReleaseTimeoutMillis;
+    // incremented each time the read connections are closed, so that a read connection which is
+    // still checked out at that time (e.g. after timing out waiting for it to be released) is
+    // recognized as stale and closed instead of being returned to the pool
+    private volatile int readConnectionGeneration;
+    // false while the read connections are closed (e.g. during defrag), and also if they could not
+    // be reopened afterwards, in which case reads use the write connection until they are reopened
+    private volatile boolean readConnectionsOpen;
+    @GuardedBy("lock")
+    private boolean readConnectionsReopenFailed;
+
+    private final AtomicLong lockWaitNanos = new AtomicLong();
+    private final AtomicLong readConnectionWaitNanos = new AtomicLong();
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -98,14 +130,37 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        readConnectionCount = 0;
+        readConnections = null;
+        readConnectionReleaseTimeoutMillis = 0;
+        connection = createConnection(null, false);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnectionCount) throws SQLException {
+        this(dbFile, readConnectionCount, SECONDS.toMillis(QUERY_TIMEOUT_SECONDS));
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnectionCount, long readConnectionReleaseTimeoutMillis)
+            throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.readConnectionCount = readConnectionCount;
+        this.readConnectionReleaseTimeoutMillis = readConnectionReleaseTimeoutMillis;
+        boolean multiThreaded = readConnectionCount > 0;
+        connection = createConnection(dbFile, multiThreaded);
+        if (multiThreaded) {
+            readConnections = new LinkedBlockingQueue<ReadConnection>();
+            openReadConnections(dbFile, readConnections);
+        } else {
+            readConnections = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -119,9 +174,14 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            closeReadConnectionsUnderLock();
+            try {
+                execute("shutdown defrag");
+                connection = createConnection(dbFile, readConnections != null);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
+            }
         }
     }
 
@@ -134,9 +194,14 @@ public class DataSource {
                 return;
             }
             checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+            closeReadConnectionsUnderLock();
+            try {
+                execute("shutdown compact");
+                connection = createConnection(dbFile, readConnections != null);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
+            }
         }
     }
 
@@ -164,12 +229,17 @@ public class DataSource {
             checkConnectionUnderLock();
             List<String> schemaVersionRows =
                     queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+            closeReadConnectionsUnderLock();
+            try {
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile, readConnections != null);
+                preparedStatementCache.invalidateAll();
+            } finally {
+                reopenReadConnectionsUnderLock();
             }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
             for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
                     .entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
@@ -186,7 +256,9 @@ public class DataSource {
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return;
             }
@@ -208,52 +280,77 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
+        ResultSetExtractor<Long> rse = new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
+                }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        };
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return executeQuery(readConnection.prepareStatement(sql), args, rse);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return 0;
             }
             checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
-                }
-            });
+            return executeQuery(prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS), args, rse);
+            // don't need to close statement since they are all cached and used under lock
         }
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
+        ResultSetExtractor</*@Nullable*/ Long> rse =
+                new ResultSetExtractor</*@Nullable*/ Long>() {
+                    @Override
+                    public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                        if (!resultSet.next()) {
+                            return null;
+                        }
+                        long val = resultSet.getLong(1);
+                        Long value = resultSet.wasNull() ? null : val;
+                        if (resultSet.next()) {
+                            logger.warn("more than one row returned: {}", sql);
+                        }
+                        return value;
+                    }
+                };
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return executeQuery(readConnection.prepareStatement(sql), args, rse);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return null;
             }
             checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
-                }
-            });
+            return executeQuery(prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS), args, rse);
+            // don't need to close statement since they are all cached and used under lock
         }
     }
 
@@ -273,23 +370,25 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return executeQuery(readConnection.prepareStatement(jdbcQuery.getSql()),
+                        jdbcQuery);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return executeQuery(
+                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -308,27 +407,25 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
+        ReadConnection readConnection = borrowReadConnection();
+        if (readConnection != null) {
+            try {
+                return executeQuery(readConnection.prepareStatement(jdbcQuery.getSql()),
+                        jdbcQuery);
+            } finally {
+                releaseReadConnection(readConnection);
+            }
+        }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return ImmutableList.of();
             }
             checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return executeQuery(
+                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS),
+                    jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -356,7 +453,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return 0;
         }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return 0;
             }
@@ -375,7 +474,9 @@ public class DataSource {
             // ends up generating warning messages from TraceCollector)
             return new int[0];
         }
+        long startNanos = System.nanoTime();
         synchronized (lock) {
+            recordLockWait(startNanos);
             if (closed) {
                 return new int[0];
             }
@@ -505,6 +606,22 @@ public class DataSource {
         }
     }
 
+    long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    long getReadConnectionWaitNanos() {
+        return readConnectionWaitNanos.get();
+    }
+
+    int getReadConnectionCount() {
+        return readConnectionCount;
+    }
+
+    int getAvailableReadConnections() {
+        return readConnections == null ? 0 : readConnections.size();
+    }
+
     @OnlyUsedByTests
     public void close() throws SQLException {
         synchronized (lock) {
@@ -512,23 +629,162 @@ public class DataSource {
                 return;
             }
             closed = true;
+            closeReadConnectionsUnderLock();
             connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void recordLockWait(long startNanos) {
+        lockWaitNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    // returns null if the read connection pool is not enabled, or if the current thread already
+    // holds the lock (e.g. reads during schema upgrade), or if the read connections are not open, or
+    // if timed out waiting for a read connection, in which case the caller should use the (single)
+    // write connection
+    private @Nullable ReadConnection borrowReadConnection() throws SQLException {
+        if (readConnections == null || closed || !readConnectionsOpen || Thread.holdsLock(lock)) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        ReadConnection readConnection;
+        try {
+            readConnection = readConnections.poll(readConnectionReleaseTimeoutMillis, MILLISECONDS);
+            while (readConnection != null
+                    && readConnection.generation != readConnectionGeneration) {
+                // stale connection that was released just after the pool was reopened
+                closeQuietly(readConnection);
+                readConnection =
+                        readConnections.poll(readConnectionReleaseTimeoutMillis, MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            // restore interrupt status
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        readConnectionWaitNanos.addAndGet(System.nanoTime() - startNanos);
+        if (readConnection == null) {
+            logger.debug("timed out waiting for read connection, using the write connection");
+            return null;
+        }
+        if (readConnection.connection.getPowerOffCount() == -1) {
+            // connection was closed internally due to OutOfMemoryError
+            readConnection = new ReadConnection(createConnection(dbFile, true),
+                    readConnection.generation);
+        }
+        return readConnection;
+    }
+
+    private void releaseReadConnection(ReadConnection readConnection) {
+        if (readConnection.generation == readConnectionGeneration) {
+            checkNotNull(readConnections).add(readConnection);
+        } else {
+            // the read connections were closed (and possibly reopened) while this one was checked
+            // out, so it must not be returned to the pool
+            closeQuietly(readConnection);
+        }
+    }
+
+    private static void closeQuietly(ReadConnection readConnection) {
+        try {
+            readConnection.connection.close();
+        } catch (SQLException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // waits for any in-use read connections to be released before closing them
+    @GuardedBy("lock")
+    private void closeReadConnectionsUnderLock() throws SQLException {
+        if (readConnections == null) {
+            return;
+        }
+        readConnectionsOpen = false;
+        // the caller is responsible for reopening them now
+        readConnectionsReopenFailed = false;
+        for (int i = 0; i < readConnectionCount; i++) {
+            ReadConnection readConnection;
+            try {
+                readConnection = readConnections.poll(readConnectionReleaseTimeoutMillis,
+                        MILLISECONDS);
+            } catch (InterruptedException e) {
+                // restore interrupt status
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            if (readConnection == null) {
+                // closing the database below will abort any still running query
+                logger.warn("timed out waiting for read connection to be released");
+                break;
+            }
+            readConnection.connection.close();
+        }
+        // any read connection that is still checked out at this point will be closed when it is
+        // released (instead of being returned to the pool)
+        readConnectionGeneration++;
+    }
+
+    // this does not throw since it is called from finally blocks (so that a failure in between
+    // closing and reopening doesn't leave the read connections closed), and if it fails, reads use
+    // the write connection until the read connections are reopened by checkConnectionUnderLock()
+    @GuardedBy("lock")
+    private void reopenReadConnectionsUnderLock() {
+        if (readConnections != null) {
+            List<ReadConnection> staleReadConnections = Lists.newArrayList();
+            readConnections.drainTo(staleReadConnections);
+            for (ReadConnection staleReadConnection : staleReadConnections) {
+                closeQuietly(staleReadConnection);
+            }
+            try {
+                openReadConnections(checkNotNull(dbFile), readConnections);
+                readConnectionsReopenFailed = false;
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+                readConnectionsReopenFailed = true;
+            }
+        }
+    }
+
+    private void openReadConnections(File dbFile, BlockingQueue<ReadConnection> readConnections)
+            throws SQLException {
+        List<ReadConnection> newReadConnections = Lists.newArrayList();
+        try {
+            for (int i = 0; i < readConnectionCount; i++) {
+                newReadConnections.add(new ReadConnection(createConnection(dbFile, true),
+                        readConnectionGeneration));
+            }
+        } catch (SQLException e) {
+            for (ReadConnection newReadConnection : newReadConnections) {
+                closeQuietly(newReadConnection);
+            }
+            throw e;
+        }
+        readConnections.addAll(newReadConnections);
+        readConnectionsOpen = true;
+    }
+
     @GuardedBy("lock")
     private void checkConnectionUnderLock() throws SQLException {
         if (connection.getPowerOffCount() == -1) {
             // connection was closed internally due to OutOfMemoryError
-            connection = createConnection(dbFile);
+            connection = createConnection(dbFile, readConnections != null);
             preparedStatementCache.invalidateAll();
         }
+        if (readConnectionsReopenFailed) {
+            reopenReadConnectionsUnderLock();
+        }
     }
 
     @GuardedBy("lock")
     private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
             int queryTimeoutSeconds) throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -548,18 +804,6 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
-        }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
-    }
-
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
         List<H2Table> tables = Lists.newArrayList();
         for (String tableName : getAllTableNames()) {
@@ -607,7 +851,8 @@ public class DataSource {
         }
     }
 
-    private static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
+    private static JdbcConnection createConnection(@Nullable File dbFile, boolean multiThreaded)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -621,10 +866,59 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                // h2 uses table level locks, so need to wait (instead of failing after the default
+                // lock timeout of 1 second) when an insert runs into a long running query on the
+                // same table, or vice versa
+                url += ";multi_threaded=true;lock_timeout="
+                        + SECONDS.toMillis(QUERY_TIMEOUT_SECONDS);
+            }
             return new JdbcConnection(url, props);
         }
     }
 
+    private static <T> T executeQuery(PreparedStatement preparedStatement,
+            JdbcQuery<T> jdbcQuery) throws Exception {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@NonNull*/ Object> List<T> executeQuery(
+            PreparedStatement preparedStatement, JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T executeQuery(
+            PreparedStatement preparedStatement, Object[] args, ResultSetExtractor<T> rse)
+            throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            preparedStatement.setObject(i + 1, args[i]);
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        return extractAndClose(resultSet, rse);
+    }
+
     private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
             throws SQLException {
         ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -690,6 +984,34 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // each read connection has its own prepared statement cache since prepared statements are
+    // bound to a connection
+    private class ReadConnection {
+
+        private final JdbcConnection connection;
+        private final int generation;
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        ReadConnection(final JdbcConnection connection, int generation) {
+            this.connection = connection;
+            this.generation = generation;
+            preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                    .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        // statements don't need to be closed since they are all cached and only used by one
+        // thread at a time (while the read connection is borrowed)
+        PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            return DataSource.this.prepareStatement(preparedStatementCache, sql,
+                    QUERY_TIMEOUT_SECONDS);
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -702,6 +1024,14 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
+                    if (readConnections != null) {
+                        // don't wait for in-use read connections, closing the database below
+                        // will abort any running queries
+                        ReadConnection readConnection;
+                        while ((readConnection = readConnections.poll()) != null) {
+                            readConnection.connection.close();
+                        }
+                    }
                     connection.close();
                 }
             } catch (SQLException e) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 public class H2DatabaseStats implements H2DatabaseStatsMXBean {
 
     private final DataSource dataSource;
@@ -27,4 +29,24 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public long getLockWaitMillis() {
+        return NANOSECONDS.toMillis(dataSource.getLockWaitNanos());
+    }
+
+    @Override
+    public long getReadConnectionWaitMillis() {
+        return NANOSECONDS.toMillis(dataSource.getReadConnectionWaitNanos());
+    }
+
+    @Override
+    public int getReadConnectionPoolSize() {
+        return dataSource.getReadConnectionCount();
+    }
+
+    @Override
+    public int getAvailableReadConnections() {
+        return dataSource.getAvailableReadConnections();
+    }
 }
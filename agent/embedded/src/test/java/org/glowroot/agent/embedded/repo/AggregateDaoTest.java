@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,6 +23,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -146,6 +147,10 @@ public class AggregateDaoTest {
                 return 10000;
             }
             @Override
+            public @Nullable String getFullTextSha1(String fullText) {
+                return null;
+            }
+            @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
                 aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
                         Aggregate.newBuilder()
@@ -188,6 +193,10 @@ public class AggregateDaoTest {
                 return 20000;
             }
             @Override
+            public @Nullable String getFullTextSha1(String fullText) {
+                return null;
+            }
+            @Override
             public void accept(AggregateVisitor aggregateVisitor) throws Exception {
                 aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
                         Aggregate.newBuilder()
@@ -37,6 +37,9 @@ import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -80,6 +83,7 @@ public class TraceDaoTest {
     public void beforeEachTest() throws Exception {
         dataSource.execute("truncate table trace");
         dataSource.execute("truncate table trace_attribute");
+        dataSource.execute("truncate table trace_sample_weight");
     }
 
     @Test
@@ -177,6 +181,99 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadSlowCountWithSampleWeight() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        traceDao.store(TraceTestData.createTraceReader(header));
+        traceDao.store(TraceTestData.createTraceReader(header.toBuilder()
+                .setSampleWeight(3.6)
+                .build()));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+
+        // when
+        long count = traceDao.readSlowCount(AGENT_ID, query);
+
+        // then
+        assertThat(count).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldReadSlowestTracesAcrossCaptureTimeSlices() throws Exception {
+        // given
+        long[] durationMillis = {5, 30, 10, 20, 1, 40, 15};
+        for (int i = 0; i < durationMillis.length; i++) {
+            Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                    .setCaptureTime(HOURS.toMillis(i) + 1)
+                    .setDurationNanos(MILLISECONDS.toNanos(durationMillis[i]))
+                    .build();
+            traceDao.store(TraceTestData.createTraceReader(header));
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(10))
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 3);
+
+        // then
+        assertThat(queryResult.moreAvailable()).isTrue();
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(40));
+        assertThat(queryResult.records().get(1).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(30));
+        assertThat(queryResult.records().get(2).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void shouldReadSlowestTracesOverSevenDays() throws Exception {
+        // given
+        // one trace every 6 hours, with the oldest traces being the slowest
+        for (int i = 0; i < 28; i++) {
+            Trace.Header header = TraceTestData.createTraceHeader().toBuilder()
+                    .setCaptureTime(HOURS.toMillis(6 * i) + 1)
+                    .setDurationNanos(MILLISECONDS.toNanos(100 - i))
+                    .build();
+            traceDao.store(TraceTestData.createTraceReader(header));
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(DAYS.toMillis(7))
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 3);
+        Result<TracePoint> unlimitedQueryResult =
+                traceDao.readSlowPoints(AGENT_ID, query, filter, 0);
+
+        // then
+        assertThat(queryResult.moreAvailable()).isTrue();
+        assertThat(queryResult.records()).hasSize(3);
+        assertThat(queryResult.records().get(0).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(100));
+        assertThat(queryResult.records().get(1).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(99));
+        assertThat(queryResult.records().get(2).durationNanos())
+                .isEqualTo(MILLISECONDS.toNanos(98));
+        assertThat(unlimitedQueryResult.moreAvailable()).isFalse();
+        assertThat(unlimitedQueryResult.records()).hasSize(28);
+    }
+
     @Test
     public void shouldReadTraceWithAttributeQualifier() throws Exception {
         // given
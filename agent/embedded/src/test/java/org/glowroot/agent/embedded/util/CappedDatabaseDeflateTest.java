@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CappedDatabaseDeflateTest {
+
+    private File tempFile;
+    private File dictionaryFile;
+    private CappedDatabase cappedDatabase;
+
+    @Before
+    public void onBefore() throws IOException {
+        tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        dictionaryFile = new File(tempFile.getPath() + ".dict");
+        cappedDatabase = new CappedDatabase(tempFile, 1024, CappedDatabaseCodec.DEFLATE, null,
+                Ticker.systemTicker());
+    }
+
+    @After
+    public void onAfter() throws IOException {
+        cappedDatabase.close();
+        tempFile.delete();
+        dictionaryFile.delete();
+    }
+
+    @Test
+    public void shouldWrite() throws Exception {
+        // given
+        String text = "0123456789";
+        // when
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // then
+        String text2 = cappedDatabase.read(cappedId).read();
+        assertThat(text2).isEqualTo(text);
+        assertThat(dictionaryFile.exists()).isFalse();
+    }
+
+    @Test
+    public void shouldWriteWithDictionary() throws Exception {
+        // given
+        List<String> texts = Lists.newArrayList();
+        List<Long> cappedIds = Lists.newArrayList();
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            String text = createText(random);
+            texts.add(text);
+            cappedIds.add(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        }
+        // when
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1024, CappedDatabaseCodec.LZF, null,
+                Ticker.systemTicker());
+        // then
+        assertThat(dictionaryFile.exists()).isTrue();
+        for (int i = 0; i < texts.size(); i++) {
+            assertThat(cappedDatabase.read(cappedIds.get(i)).read()).isEqualTo(texts.get(i));
+        }
+        CappedDatabaseStats stats = cappedDatabase.getStats("test");
+        assertThat(stats.getWriteCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldCompressBetterWithDictionary() throws Exception {
+        // given
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            cappedDatabase.write(ByteSource.wrap(createText(random).getBytes(UTF_8)), "test");
+        }
+        long bytesBefore = cappedDatabase.getStats("test").getTotalBytesAfterCompression();
+        String text = createText(random);
+        // when
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test2");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // then
+        long bytesWithoutDictionary =
+                cappedDatabase.getStats("test2").getTotalBytesAfterCompression();
+        long bytesWithDictionary =
+                cappedDatabase.getStats("test").getTotalBytesAfterCompression() - bytesBefore;
+        assertThat(bytesWithDictionary).isLessThan(bytesWithoutDictionary);
+    }
+
+    @Test
+    public void shouldReadLzfBlocksAfterSwitchingCodec() throws Exception {
+        // given
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1024, CappedDatabaseCodec.LZF, null,
+                Ticker.systemTicker());
+        String text = "0123456789";
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+        // when
+        cappedDatabase.close();
+        cappedDatabase = new CappedDatabase(tempFile, 1024, CappedDatabaseCodec.DEFLATE, null,
+                Ticker.systemTicker());
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+    }
+
+    // text with lots of repetition across writes, but not much repetition within a single write
+    private static String createText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            sb.append("org.glowroot.agent.SomeClass");
+            sb.append(random.nextInt(100));
+            sb.append(".someMethod(SomeClass.java:");
+            sb.append(random.nextInt(1000));
+            sb.append(")\n");
+        }
+        return sb.toString();
+    }
+}
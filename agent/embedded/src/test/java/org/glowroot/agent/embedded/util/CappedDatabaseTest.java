@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,11 +18,20 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -31,6 +40,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
@@ -157,4 +167,113 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadBlocksWrappingAtEveryOffset() throws Exception {
+        // given
+        Random random = new Random(0);
+
+        // when
+        // varying the (incompressible) block sizes moves the wrap point (including the block
+        // header) across every offset near the end of the capped file
+        for (int i = 0; i < 2000; i++) {
+            String text = randomText(random, 1 + random.nextInt(700));
+            long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+            // then
+            assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        }
+    }
+
+    @Test
+    public void shouldReadConcurrentlyWithWrites() throws Exception {
+        // given
+        File tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(tempFile, 16, scheduledExecutor, Ticker.systemTicker());
+        final Map<Long, String> texts = Maps.newConcurrentMap();
+        final AtomicLong lastCappedId = new AtomicLong(-1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong successfulReads = new AtomicLong();
+        final AtomicLong rolledOverReads = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<?>> futures = Lists.newArrayList();
+
+        // when
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Random random = new Random(0);
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        String text = randomText(random, 1 + random.nextInt(2000));
+                        long cappedId = cappedDatabase
+                                .write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+                        texts.put(cappedId, text);
+                        lastCappedId.set(cappedId);
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            }
+        }));
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    List<Long> cappedIds = Lists.newArrayList();
+                    while (!done.get()) {
+                        long cappedId = lastCappedId.get();
+                        if (cappedId == -1) {
+                            continue;
+                        }
+                        // re-read recent blocks, some of which are overwritten mid-read
+                        cappedIds.add(cappedId);
+                        if (cappedIds.size() > 50) {
+                            cappedIds.remove(0);
+                        }
+                        for (long id : cappedIds) {
+                            String text;
+                            try {
+                                text = cappedDatabase.read(id).read();
+                            } catch (IOException e) {
+                                assertThat(e.getClass().getName()).isEqualTo(
+                                        "org.glowroot.agent.embedded.util.CappedDatabase"
+                                                + "$CappedBlockRolledOverMidReadException");
+                                rolledOverReads.getAndIncrement();
+                                continue;
+                            }
+                            // never returns partially overwritten (or otherwise corrupt) data
+                            assertThat(text).isEqualTo(texts.get(id));
+                            successfulReads.getAndIncrement();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get(60, SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            cappedDatabase.close();
+            tempFile.delete();
+        }
+
+        // then
+        assertThat(successfulReads.get()).isGreaterThan(0);
+        assertThat(rolledOverReads.get()).isGreaterThan(0);
+    }
+
+    private static String randomText(Random random, int length) {
+        // random text so that the compressed text is roughly the same size
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,26 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.collect.Lists;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +109,186 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testReadConnectionPool() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        DataSource dataSource = new DataSource(dbFile, 2);
+        try {
+            dataSource.execute("create table tab (a bigint)");
+            dataSource.update("insert into tab (a) values (?)", 1);
+            // when
+            long count = dataSource.queryForLong("select count(*) from tab");
+            // then
+            assertThat(count).isEqualTo(1);
+            assertThat(dataSource.getReadConnectionCount()).isEqualTo(2);
+            assertThat(dataSource.getAvailableReadConnections()).isEqualTo(2);
+            // when
+            dataSource.defrag();
+            dataSource.update("insert into tab (a) values (?)", 2);
+            count = dataSource.queryForLong("select count(*) from tab");
+            // then
+            assertThat(count).isEqualTo(2);
+            assertThat(dataSource.getAvailableReadConnections()).isEqualTo(2);
+        } finally {
+            dataSource.close();
+            new File(dbFile.getPath().replaceFirst(".h2.db$", ".trace.db")).delete();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testReadConnectionPoolWithConcurrentReaders() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            dataSource.execute("create table tab (a bigint)");
+            dataSource.update("insert into tab (a) values (?)", 1);
+            final AtomicBoolean done = new AtomicBoolean();
+            List<Future<Long>> futures = Lists.newArrayList();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long queries = 0;
+                        while (!done.get()) {
+                            assertThat(dataSource.queryForLong("select count(*) from tab"))
+                                    .isEqualTo(1);
+                            queries++;
+                        }
+                        return queries;
+                    }
+                }));
+            }
+            // when
+            for (int i = 0; i < 5; i++) {
+                dataSource.compact();
+            }
+            done.set(true);
+            // then
+            for (Future<Long> future : futures) {
+                assertThat(future.get(30, SECONDS)).isPositive();
+            }
+            assertThat(dataSource.getAvailableReadConnections()).isEqualTo(2);
+        } finally {
+            executor.shutdownNow();
+            dataSource.close();
+            new File(dbFile.getPath().replaceFirst(".h2.db$", ".trace.db")).delete();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testReadConnectionReleasedAfterTimingOut() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 2, 100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            dataSource.execute("create table tab (a bigint)");
+            dataSource.update("insert into tab (a) values (?)", 1);
+            final CountDownLatch borrowed = new CountDownLatch(1);
+            final CountDownLatch defragged = new CountDownLatch(1);
+            Future<Long> future = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return dataSource.query(new JdbcQuery<Long>() {
+                        @Override
+                        public String getSql() {
+                            return "select count(*) from tab";
+                        }
+                        @Override
+                        public void bind(PreparedStatement preparedStatement) {}
+                        @Override
+                        public Long processResultSet(ResultSet resultSet) throws Exception {
+                            // hold on to the read connection until after the defrag
+                            borrowed.countDown();
+                            defragged.await(10, SECONDS);
+                            return 1L;
+                        }
+                        @Override
+                        public Long valueIfDataSourceClosed() {
+                            return 0L;
+                        }
+                    });
+                }
+            });
+            assertThat(borrowed.await(10, SECONDS)).isTrue();
+            // when
+            // this times out waiting for the read connection to be released, and then reopens the
+            // read connections while it is still checked out
+            dataSource.defrag();
+            defragged.countDown();
+            assertThat(future.get(10, SECONDS)).isEqualTo(1);
+            // then
+            // the stale connection is not returned to the pool
+            assertThat(dataSource.getAvailableReadConnections()).isEqualTo(2);
+            for (int i = 0; i < 10; i++) {
+                assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(1);
+            }
+        } finally {
+            executor.shutdownNow();
+            dataSource.close();
+            new File(dbFile.getPath().replaceFirst(".h2.db$", ".trace.db")).delete();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testReadUsesWriteConnectionAfterTimingOut() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 1, 100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            dataSource.execute("create table tab (a bigint)");
+            dataSource.update("insert into tab (a) values (?)", 1);
+            final CountDownLatch borrowed = new CountDownLatch(1);
+            final CountDownLatch queried = new CountDownLatch(1);
+            Future<Long> future = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return dataSource.query(new JdbcQuery<Long>() {
+                        @Override
+                        public String getSql() {
+                            return "select count(*) from tab";
+                        }
+                        @Override
+                        public void bind(PreparedStatement preparedStatement) {}
+                        @Override
+                        public Long processResultSet(ResultSet resultSet) throws Exception {
+                            // hold on to the only read connection until after the query below
+                            borrowed.countDown();
+                            queried.await(10, SECONDS);
+                            return 1L;
+                        }
+                        @Override
+                        public Long valueIfDataSourceClosed() {
+                            return 0L;
+                        }
+                    });
+                }
+            });
+            assertThat(borrowed.await(10, SECONDS)).isTrue();
+            // when
+            long count = dataSource.queryForLong("select count(*) from tab");
+            queried.countDown();
+            // then
+            assertThat(count).isEqualTo(1);
+            assertThat(future.get(10, SECONDS)).isEqualTo(1);
+            assertThat(dataSource.getAvailableReadConnections()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+            dataSource.close();
+            new File(dbFile.getPath().replaceFirst(".h2.db$", ".trace.db")).delete();
+            dbFile.delete();
+        }
+    }
 }
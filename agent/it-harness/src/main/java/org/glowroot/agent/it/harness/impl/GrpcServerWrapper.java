@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -248,6 +248,9 @@ class GrpcServerWrapper {
                         case ENTRY:
                             entries.add(value.getEntry());
                             break;
+                        case ENTRIES:
+                            entries.addAll(value.getEntries().getEntryList());
+                            break;
                         case QUERIES:
                             queries.addAll(value.getQueries().getQueryList());
                             break;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,8 @@
  */
 package org.glowroot.agent.plugin.jdbc;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 import org.glowroot.agent.plugin.api.checker.Nullable;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterBatch;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 
 // used to capture and mirror the state of prepared statements since the underlying
@@ -30,6 +27,8 @@ class PreparedStatementMirror extends StatementMirror {
 
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
+    private static final int BATCH_ROWS_INITIAL_CAPACITY = 16;
+
     private final String sql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
@@ -37,7 +36,8 @@ class PreparedStatementMirror extends StatementMirror {
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable Collection<BindParameterList> batchedParameters;
+    private @Nullable BindParameterBatch batchedParameters;
+    private boolean batchedParametersShared;
     private int batchSize;
 
     PreparedStatementMirror(String sql) {
@@ -49,20 +49,20 @@ class PreparedStatementMirror extends StatementMirror {
     void addBatch() {
         // synchronization isn't an issue here as this method is called only by the monitored thread
         if (batchedParameters == null) {
-            batchedParameters = new ConcurrentLinkedQueue<BindParameterList>();
+            batchedParameters = new BindParameterBatch(BATCH_ROWS_INITIAL_CAPACITY,
+                    BATCH_ROWS_INITIAL_CAPACITY * Math.max(parameters.size(), 1));
         }
         if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT) {
-            batchedParameters.add(parameters);
-            parametersShared = true;
+            // row is copied into the batch, so parameters can continue to be re-used for the next
+            // row without copying
+            batchedParameters.addRow(parameters);
         }
     }
 
-    Collection<BindParameterList> getBatchedParameters() {
-        if (batchedParameters == null) {
-            return Collections.emptyList();
-        } else {
-            return batchedParameters;
-        }
+    @Nullable
+    BindParameterBatch getBatchedParameters() {
+        batchedParametersShared = true;
+        return batchedParameters;
     }
 
     @Nullable
@@ -88,6 +88,57 @@ class PreparedStatementMirror extends StatementMirror {
         parameters.set(parameterIndex - 1, object);
     }
 
+    // primitive overloads avoid boxing, see BindParameterList.primitiveParameters
+
+    void setParameterValue(int parameterIndex, boolean x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setBoolean(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, byte x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setByte(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, short x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setShort(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, int x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setInt(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, long x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setLong(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, float x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setFloat(parameterIndex - 1, x);
+    }
+
+    void setParameterValue(int parameterIndex, double x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setDouble(parameterIndex - 1, x);
+    }
+
     private void copyParameters() {
         parameters = BindParameterList.copyOf(parameters);
         parametersShared = false;
@@ -110,7 +161,13 @@ class PreparedStatementMirror extends StatementMirror {
         } else {
             parameters.clear();
         }
-        batchedParameters = null;
+        if (batchedParametersShared) {
+            // batch has been handed off to a query message supplier
+            batchedParameters = null;
+            batchedParametersShared = false;
+        } else if (batchedParameters != null) {
+            batchedParameters.clear();
+        }
         batchSize = 0;
     }
 
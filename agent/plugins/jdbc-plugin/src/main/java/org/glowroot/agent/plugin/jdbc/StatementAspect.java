@@ -115,9 +115,8 @@ public class StatementAspect {
     // ================= Parameter Binding =================
 
     @Pointcut(className = "java.sql.PreparedStatement",
-            methodName = "setArray|setBigDecimal"
-                    + "|setBoolean|setByte|setDate|setDouble|setFloat|setInt|setLong|setNString"
-                    + "|setRef|setRowId|setShort|setString|setTime|setTimestamp|setURL",
+            methodName = "setArray|setBigDecimal|setDate|setNString|setRef|setRowId|setString"
+                    + "|setTime|setTimestamp|setURL",
             methodParameterTypes = {"int", "*", ".."})
     public static class SetXAdvice {
         @IsEnabled
@@ -135,6 +134,133 @@ public class StatementAspect {
         }
     }
 
+    // primitive setters have their own advice (instead of SetXAdvice) to avoid boxing
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setBoolean",
+            methodParameterTypes = {"int", "boolean"})
+    public static class SetBooleanAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter boolean x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setByte",
+            methodParameterTypes = {"int", "byte"})
+    public static class SetByteAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter byte x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setShort",
+            methodParameterTypes = {"int", "short"})
+    public static class SetShortAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter short x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setInt",
+            methodParameterTypes = {"int", "int"})
+    public static class SetIntAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter int x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setLong",
+            methodParameterTypes = {"int", "long"})
+    public static class SetLongAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter long x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setFloat",
+            methodParameterTypes = {"int", "float"})
+    public static class SetFloatAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter float x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Pointcut(className = "java.sql.PreparedStatement", methodName = "setDouble",
+            methodParameterTypes = {"int", "double"})
+    public static class SetDoubleAdvice {
+        @IsEnabled
+        public static boolean isEnabled() {
+            return captureBindParameters;
+        }
+        @OnReturn
+        public static void onReturn(@BindReceiver HasStatementMirrorMixin preparedStatement,
+                @BindParameter int parameterIndex, @BindParameter double x) {
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.PreparedStatement",
             methodName = "setAsciiStream|setBinaryStream|setBlob|setCharacterStream|setClob"
                     + "|setNCharacterStream|setNClob|setSQLXML|setUnicodeStream",
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.util.Arrays;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+
+// flat buffer of batched bind parameters, each row is copied in on addBatch() so that capturing a
+// batch does not allocate per row (other than amortized growth of the underlying arrays), and the
+// rows are only rendered into text if and when the query message is needed
+public class BindParameterBatch {
+
+    private @Nullable Object[] parameters;
+    // see BindParameterList.primitiveParameters
+    private long /*@Nullable*/ [] primitiveParameters;
+    private int size;
+
+    // exclusive end index (into parameters) of each row
+    private int[] rowEnds;
+    private int rowCount;
+
+    public BindParameterBatch(int initialRowCapacity, int initialParameterCapacity) {
+        parameters = new Object[initialParameterCapacity];
+        rowEnds = new int[initialRowCapacity];
+    }
+
+    public void addRow(BindParameterList row) {
+        int rowSize = row.size();
+        int newSize = size + rowSize;
+        ensureCapacity(newSize);
+        System.arraycopy(row.getParameters(), 0, parameters, size, rowSize);
+        long[] rowPrimitiveParameters = row.getPrimitiveParameters();
+        if (rowPrimitiveParameters != null) {
+            long[] primitiveParameters = this.primitiveParameters;
+            if (primitiveParameters == null) {
+                primitiveParameters = new long[parameters.length];
+                this.primitiveParameters = primitiveParameters;
+            }
+            System.arraycopy(rowPrimitiveParameters, 0, primitiveParameters, size, rowSize);
+        }
+        if (rowCount == rowEnds.length) {
+            rowEnds = Arrays.copyOf(rowEnds, rowCount + (rowCount >> 1) + 1);
+        }
+        rowEnds[rowCount++] = newSize;
+        size = newSize;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    boolean isEmpty() {
+        return rowCount == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(parameters, 0, size, null);
+        size = 0;
+        rowCount = 0;
+    }
+
+    void appendRow(StringBuilder sb, int row) {
+        int fromIndex = row == 0 ? 0 : rowEnds[row - 1];
+        PreparedStatementMessageSupplier.appendParameters(sb, parameters, primitiveParameters,
+                fromIndex, rowEnds[row]);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = parameters.length;
+        if (minCapacity > capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (minCapacity > capacity) {
+                capacity = minCapacity;
+            }
+            parameters = Arrays.copyOf(parameters, capacity);
+            if (primitiveParameters != null) {
+                primitiveParameters = Arrays.copyOf(primitiveParameters, capacity);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,29 +25,88 @@ import org.glowroot.agent.plugin.api.checker.Nullable;
 public class BindParameterList implements Iterable</*@Nullable*/ Object> {
 
     private @Nullable Object[] parameters;
+    // raw bits of primitive parameters, indexed the same as parameters, where the corresponding
+    // element of parameters holds the PrimitiveType, so that primitive parameters are not boxed
+    // unless and until they are rendered (this array is only allocated on first primitive set)
+    private long /*@Nullable*/ [] primitiveParameters;
     private int size;
 
     public static BindParameterList copyOf(BindParameterList bindParameterList) {
-        return new BindParameterList(bindParameterList.parameters, bindParameterList.size);
+        return new BindParameterList(bindParameterList.parameters,
+                bindParameterList.primitiveParameters, bindParameterList.size);
     }
 
     public BindParameterList(int capacity) {
         parameters = new Object[capacity];
     }
 
-    private BindParameterList(@Nullable Object[] parameters, int size) {
+    private BindParameterList(@Nullable Object[] parameters,
+            long /*@Nullable*/ [] primitiveParameters, int size) {
         if (parameters.length == size) {
             this.parameters = parameters.clone();
+            if (primitiveParameters != null) {
+                this.primitiveParameters = primitiveParameters.clone();
+            }
         } else {
             // clone is faster even in this case, but worth the one time hit (for cached statements
             // where this will be called over and over) to resize the array and use less memory
             this.parameters = new Object[size];
             System.arraycopy(parameters, 0, this.parameters, 0, size);
+            if (primitiveParameters != null) {
+                this.primitiveParameters = new long[size];
+                System.arraycopy(primitiveParameters, 0, this.primitiveParameters, 0, size);
+            }
         }
         this.size = size;
     }
 
     public void set(int i, @Nullable Object parameter) {
+        ensureCapacity(i);
+        parameters[i] = parameter;
+        updateSize(i);
+    }
+
+    public void setBoolean(int i, boolean parameter) {
+        setPrimitive(i, PrimitiveType.BOOLEAN, parameter ? 1 : 0);
+    }
+
+    public void setByte(int i, byte parameter) {
+        setPrimitive(i, PrimitiveType.BYTE, parameter);
+    }
+
+    public void setShort(int i, short parameter) {
+        setPrimitive(i, PrimitiveType.SHORT, parameter);
+    }
+
+    public void setInt(int i, int parameter) {
+        setPrimitive(i, PrimitiveType.INT, parameter);
+    }
+
+    public void setLong(int i, long parameter) {
+        setPrimitive(i, PrimitiveType.LONG, parameter);
+    }
+
+    public void setFloat(int i, float parameter) {
+        setPrimitive(i, PrimitiveType.FLOAT, Float.floatToRawIntBits(parameter));
+    }
+
+    public void setDouble(int i, double parameter) {
+        setPrimitive(i, PrimitiveType.DOUBLE, Double.doubleToRawLongBits(parameter));
+    }
+
+    private void setPrimitive(int i, PrimitiveType type, long bits) {
+        ensureCapacity(i);
+        long[] primitiveParameters = this.primitiveParameters;
+        if (primitiveParameters == null) {
+            primitiveParameters = new long[parameters.length];
+            this.primitiveParameters = primitiveParameters;
+        }
+        parameters[i] = type;
+        primitiveParameters[i] = bits;
+        updateSize(i);
+    }
+
+    private void ensureCapacity(int i) {
         int capacity = parameters.length;
         if (i >= capacity) {
             // using same capacity increase formula as ArrayList
@@ -56,8 +115,13 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
                 capacity = i + 1;
             }
             parameters = Arrays.copyOf(parameters, capacity);
+            if (primitiveParameters != null) {
+                primitiveParameters = Arrays.copyOf(primitiveParameters, capacity);
+            }
         }
-        parameters[i] = parameter;
+    }
+
+    private void updateSize(int i) {
         int newSize = i + 1;
         if (newSize > size) {
             size = newSize;
@@ -72,6 +136,15 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         return size == 0;
     }
 
+    @Nullable
+    Object[] getParameters() {
+        return parameters;
+    }
+
+    long /*@Nullable*/ [] getPrimitiveParameters() {
+        return primitiveParameters;
+    }
+
     public void clear() {
         Arrays.fill(parameters, null);
         size = 0;
@@ -94,7 +167,13 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         @Override
         public @Nullable Object next() {
             if (i < size) {
-                return parameters[i++];
+                Object parameter = parameters[i];
+                long[] primitiveParameters = BindParameterList.this.primitiveParameters;
+                if (parameter instanceof PrimitiveType && primitiveParameters != null) {
+                    parameter = ((PrimitiveType) parameter).box(primitiveParameters[i]);
+                }
+                i++;
+                return parameter;
             } else {
                 throw new NoSuchElementException();
             }
@@ -105,4 +184,83 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
             throw new UnsupportedOperationException();
         }
     }
+
+    enum PrimitiveType {
+
+        BOOLEAN {
+            @Override
+            Object box(long bits) {
+                return bits != 0;
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append(bits != 0);
+            }
+        },
+        BYTE {
+            @Override
+            Object box(long bits) {
+                return (byte) bits;
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append((byte) bits);
+            }
+        },
+        SHORT {
+            @Override
+            Object box(long bits) {
+                return (short) bits;
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append((short) bits);
+            }
+        },
+        INT {
+            @Override
+            Object box(long bits) {
+                return (int) bits;
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append((int) bits);
+            }
+        },
+        LONG {
+            @Override
+            Object box(long bits) {
+                return bits;
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append(bits);
+            }
+        },
+        FLOAT {
+            @Override
+            Object box(long bits) {
+                return Float.intBitsToFloat((int) bits);
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append(Float.intBitsToFloat((int) bits));
+            }
+        },
+        DOUBLE {
+            @Override
+            Object box(long bits) {
+                return Double.longBitsToDouble(bits);
+            }
+            @Override
+            void append(StringBuilder sb, long bits) {
+                sb.append(Double.longBitsToDouble(bits));
+            }
+        };
+
+        abstract Object box(long bits);
+
+        // appends the same text as String.valueOf(box(bits)), but without boxing
+        abstract void append(StringBuilder sb, long bits);
+    }
 }
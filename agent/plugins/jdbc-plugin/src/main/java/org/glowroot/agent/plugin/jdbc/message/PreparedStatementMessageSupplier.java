@@ -29,6 +29,7 @@ import org.glowroot.agent.plugin.api.checker.Nullable;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 import org.glowroot.agent.plugin.api.util.ImmutableList;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterList.PrimitiveType;
 
 public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
 
@@ -107,22 +108,29 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
     }
 
     static void appendParameters(StringBuilder sb, BindParameterList parameters) {
+        appendParameters(sb, parameters.getParameters(), parameters.getPrimitiveParameters(), 0,
+                parameters.size());
+    }
+
+    static void appendParameters(StringBuilder sb, @Nullable Object[] parameters,
+            long /*@Nullable*/ [] primitiveParameters, int fromIndex, int toIndex) {
         sb.append(" [");
-        boolean first = true;
-        for (Object parameter : parameters) {
-            if (!first) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (i != fromIndex) {
                 sb.append(", ");
             }
+            Object parameter = parameters[i];
             if (parameter instanceof String) {
                 sb.append("\'");
                 sb.append((String) parameter);
                 sb.append("\'");
             } else if (parameter == null) {
                 sb.append("NULL");
+            } else if (parameter instanceof PrimitiveType && primitiveParameters != null) {
+                ((PrimitiveType) parameter).append(sb, primitiveParameters[i]);
             } else {
                 sb.append(String.valueOf(parameter));
             }
-            first = false;
         }
         sb.append("]");
     }
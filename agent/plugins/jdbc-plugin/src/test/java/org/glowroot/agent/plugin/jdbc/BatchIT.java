@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.Iterator;
 import java.util.List;
 
@@ -103,6 +104,46 @@ public class BatchIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testBatchPreparedStatementWithPrimitives() throws Exception {
+        // when
+        Trace trace = container.execute(ExecuteBatchPreparedStatementWithPrimitives.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("insert into employee (id, name) values (?, ?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: 3 x ");
+        if (driverCapturesBatchRows) {
+            assertThat(entry.getQueryEntryMessage().getSuffix())
+                    .isEqualTo(" [100, 'huckle'] [101, 'sally'] [102, NULL] => 3 rows");
+        } else {
+            assertThat(entry.getQueryEntryMessage().getSuffix())
+                    .isEqualTo(" [100, 'huckle'] [101, 'sally'] [102, NULL]");
+        }
+
+        entry = i.next();
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEmpty();
+        assertThat(sharedQueryTexts.get(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("insert into employee (name, id) values (?, ?)");
+        assertThat(entry.getQueryEntryMessage().getPrefix()).isEqualTo("jdbc query: 2 x ");
+        if (driverCapturesBatchRows) {
+            assertThat(entry.getQueryEntryMessage().getSuffix())
+                    .isEqualTo(" ['lowly', 103] ['pig will', 104] => 2 rows");
+        } else {
+            assertThat(entry.getQueryEntryMessage().getSuffix())
+                    .isEqualTo(" ['lowly', 103] ['pig will', 104]");
+        }
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testBatchPreparedExceedingLimitStatement() throws Exception {
         // when
@@ -432,6 +473,51 @@ public class BatchIT {
         }
     }
 
+    public static class ExecuteBatchPreparedStatementWithPrimitives
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            connection.setAutoCommit(false);
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("insert into employee (id, name) values (?, ?)");
+            try {
+                preparedStatement.setInt(1, 100);
+                preparedStatement.setString(2, "huckle");
+                preparedStatement.addBatch();
+                preparedStatement.setLong(1, 101);
+                preparedStatement.setString(2, "sally");
+                preparedStatement.addBatch();
+                preparedStatement.setShort(1, (short) 102);
+                preparedStatement.setNull(2, Types.VARCHAR);
+                preparedStatement.addBatch();
+                preparedStatement.executeBatch();
+                preparedStatement.clearBatch();
+                preparedStatement.close();
+                preparedStatement = connection
+                        .prepareStatement("insert into employee (name, id) values (?, ?)");
+                preparedStatement.setString(1, "lowly");
+                preparedStatement.setInt(2, 103);
+                preparedStatement.addBatch();
+                preparedStatement.setString(1, "pig will");
+                preparedStatement.setLong(2, 104);
+                preparedStatement.addBatch();
+                preparedStatement.executeBatch();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecuteBatchExceedingLimitPreparedStatement
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
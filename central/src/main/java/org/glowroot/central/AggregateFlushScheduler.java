@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// assigns each agent a slot (offset after the end of each aggregate interval) at which the agent
+// should send its aggregates
+//
+// slots are derived from a hash of the agent id so that they are stable across requests (and
+// across central collector nodes that see a similar number of agents), and are spread across a
+// window that grows with the number of agents that are reporting, so that large fleets don't all
+// converge on the same few seconds after each minute boundary
+class AggregateFlushScheduler {
+
+    // this matches the 0-10 second spread that was used prior to assigning slots
+    private static final int MIN_WINDOW_MILLIS = 10000;
+    // agents send aggregates for the prior interval during this window, so it needs to stay well
+    // under the 1 minute aggregate interval
+    private static final int MAX_WINDOW_MILLIS = 30000;
+
+    private static final int TARGET_MILLIS_PER_AGENT = 10;
+
+    // window is rounded up to whole seconds so that it doesn't shift (and re-shuffle every agent's
+    // slot) each time a single agent joins or leaves
+    private static final int WINDOW_GRANULARITY_MILLIS = 1000;
+
+    // agents that haven't reported in the last few minutes no longer count towards the load
+    private final Cache<String, Boolean> activeAgentIds = CacheBuilder.newBuilder()
+            .expireAfterWrite(5, MINUTES)
+            .build();
+
+    int getFlushOffsetMillis(String agentId) {
+        activeAgentIds.put(agentId, true);
+        int windowMillis = getWindowMillis(activeAgentIds.size());
+        int hash = Hashing.murmur3_32().hashString(agentId, UTF_8).asInt();
+        // adding 1 since zero means no slot assigned
+        return 1 + Math.floorMod(hash, windowMillis);
+    }
+
+    static int getWindowMillis(long agentCount) {
+        long windowMillis = agentCount * TARGET_MILLIS_PER_AGENT;
+        windowMillis = (windowMillis + WINDOW_GRANULARITY_MILLIS - 1) / WINDOW_GRANULARITY_MILLIS
+                * WINDOW_GRANULARITY_MILLIS;
+        return (int) Math.max(MIN_WINDOW_MILLIS, Math.min(MAX_WINDOW_MILLIS, windowMillis));
+    }
+}
@@ -22,12 +22,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -39,6 +35,7 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.ActiveAgentDao;
 import org.glowroot.central.repo.AgentConfigDao;
 import org.glowroot.central.repo.AgentDisplayDao;
+import org.glowroot.central.repo.AgentRollupIds;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.EnvironmentDao;
 import org.glowroot.central.repo.GaugeValueDao;
@@ -46,7 +43,10 @@ import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.central.util.IngestionScheduler;
+import org.glowroot.central.util.IngestionScheduler.CollectionType;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Session;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -79,7 +79,6 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
@@ -99,23 +98,20 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final Clock clock;
     private final String version;
 
+    private final AggregateFlushScheduler aggregateFlushScheduler = new AggregateFlushScheduler();
+
+    // only used for agents prior to 0.13.4, which do not support aggregate flush slots
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final IngestionScheduler ingestionScheduler;
 
     CollectorServiceImpl(AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
             ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
             AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
             V09AgentRollupDao v09AgentRollupDao, GrpcCommon grpcCommon,
-            CentralAlertingService centralAlertingService, Clock clock, String version) {
+            CentralAlertingService centralAlertingService, IngestionScheduler ingestionScheduler,
+            Clock clock, String version) {
         this.agentDisplayDao = agentDisplayDao;
         this.agentConfigDao = agentConfigDao;
         this.activeAgentDao = activeAgentDao;
@@ -127,6 +123,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.v09AgentRollupDao = v09AgentRollupDao;
         this.grpcCommon = grpcCommon;
         this.centralAlertingService = centralAlertingService;
+        this.ingestionScheduler = ingestionScheduler;
         this.clock = clock;
         this.version = version;
     }
@@ -164,7 +161,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         logger.info("agent connected: {}, version {}", agentId,
                 request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
         InitResponse.Builder response = InitResponse.newBuilder()
-                .setGlowrootCentralVersion(version);
+                .setGlowrootCentralVersion(version)
+                .setAggregateFlushOffsetMillis(
+                        aggregateFlushScheduler.getFlushOffsetMillis(agentId));
         if (!updatedAgentConfig.equals(request.getAgentConfig())) {
             response.setAgentConfig(updatedAgentConfig);
         }
@@ -263,19 +262,20 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        throttle(agentId, postV09, "aggregate", responseObserver, new Runnable() {
-            @Override
-            public void run() {
-                collectAggregatesUnderThrottle(agentId, postV09, captureTime, sharedQueryTexts,
-                        aggregatesByTypeList, responseObserver);
-            }
-        });
+        throttle(agentId, postV09, CollectionType.AGGREGATE, "aggregate", responseObserver,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        collectAggregatesUnderThrottle(agentId, postV09, captureTime,
+                                sharedQueryTexts, aggregatesByTypeList, responseObserver);
+                    }
+                });
     }
 
     private void throttledCollectGaugeValues(GaugeValueMessage request,
             StreamObserver<GaugeValueResponseMessage> responseObserver) {
-        throttle(request.getAgentId(), request.getPostV09(), "gauge value", responseObserver,
-                new Runnable() {
+        throttle(request.getAgentId(), request.getPostV09(), CollectionType.GAUGE_VALUE,
+                "gauge value", responseObserver, new Runnable() {
                     @Override
                     public void run() {
                         collectGaugeValuesUnderThrottle(request, responseObserver);
@@ -285,28 +285,32 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
     private void throttledCollectTrace(String agentId, boolean postV09, Trace trace,
             StreamObserver<EmptyMessage> responseObserver) {
-        throttle(agentId, postV09, "trace", responseObserver, new Runnable() {
-            @Override
-            public void run() {
-                collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
-            }
-        });
+        throttle(agentId, postV09, CollectionType.TRACE, "trace", responseObserver,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
+                    }
+                });
     }
 
-    private <T> void throttle(String agentId, boolean postV09, String collectionType,
-            StreamObserver<T> responseObserver, Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
+    private <T> void throttle(String agentId, boolean postV09, CollectionType collectionType,
+            String collectionTypeDisplay, StreamObserver<T> responseObserver, Runnable runnable) {
+        // agents prior to 0.10.0 are not part of a (post v09) agent rollup, so they are each their
+        // own top-level agent rollup
+        List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
+        String topLevelAgentRollupId = agentRollupIds.get(agentRollupIds.size() - 1);
+        IngestionScheduler.Permit permit;
         try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
+            permit = ingestionScheduler.acquire(topLevelAgentRollupId, agentId, collectionType);
         } catch (InterruptedException e) {
             // probably shutdown requested
             responseObserver.onError(e);
             return;
         }
-        if (!acquired) {
+        if (permit == null) {
             logger.warn("{} - {} collection rejected due to backlog",
-                    getAgentIdForLogging(agentId, postV09), collectionType);
+                    getAgentIdForLogging(agentId, postV09), collectionTypeDisplay);
             responseObserver.onError(Status.RESOURCE_EXHAUSTED
                     .withDescription("collection rejected due to backlog")
                     .asRuntimeException());
@@ -315,7 +319,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         try {
             runnable.run();
         } finally {
-            semaphore.release();
+            permit.release();
         }
     }
 
@@ -331,12 +335,17 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(t);
             return;
         }
+        // aggregates from many agents tend to arrive at the same time (on the minute boundary), so
+        // coalesce their writes into batches instead of each agent issuing its own burst of writes
+        Session.setInBatchedWriteThread(true);
         try {
             aggregateDao.store(postV09AgentId, captureTime, aggregatesByTypeList, sharedQueryTexts);
         } catch (Throwable t) {
             logger.error("{} - {}", postV09AgentId, t.getMessage(), t);
             responseObserver.onError(t);
             return;
+        } finally {
+            Session.setInBatchedWriteThread(false);
         }
         String agentDisplay;
         try {
@@ -356,6 +365,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         }
         responseObserver.onNext(AggregateResponseMessage.newBuilder()
                 .setNextDelayMillis(getNextDelayMillis())
+                .setAggregateFlushOffsetMillis(
+                        aggregateFlushScheduler.getFlushOffsetMillis(postV09AgentId))
                 .build());
         responseObserver.onCompleted();
     }
@@ -698,6 +709,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case ENTRY:
                     entries.add(value.getEntry());
                     break;
+                case ENTRIES:
+                    entries.addAll(value.getEntries().getEntryList());
+                    break;
                 case QUERIES:
                     queries.addAll(value.getQueries().getQueryList());
                     break;
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.central.repo.TimeSeriesChunk.Point;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// optional storage of an aggregate series (e.g. throughput) in "chunks", where each chunk holds the
+// points of up to POINTS_PER_CHUNK consecutive capture times, encoded using TimeSeriesChunk
+//
+// each write adds its own segment row (clustered by chunk_time, segment_time) to the chunk, and
+// once a chunk is complete, the next rollup level compacts the segments it read into a single
+// segment row (segment_time = COMPACTED_SEGMENT_TIME), deleting exactly those segment rows in the
+// same single partition batch, so a segment that is appended late (e.g. a delayed or retried write)
+// is never lost, it is just left for the next compaction
+//
+// (the last rollup level is never compacted, but is still read one chunk at a time)
+class AggregateChunkDao {
+
+    private static final int POINTS_PER_CHUNK = 120;
+
+    // capture times are never 0, and this sorts before all of the other segments in the chunk, so
+    // any segment appended after compaction wins when the same capture time appears in both
+    private static final long COMPACTED_SEGMENT_TIME = 0;
+
+    private final Session session;
+    private final String partialName;
+    private final int valueCount;
+    private final int blobCount;
+
+    // list index is rollupLevel
+    private final ImmutableList<Long> chunkMillis;
+
+    private final ImmutableList<PreparedStatement> insertOverallPS;
+    private final ImmutableList<PreparedStatement> insertTransactionPS;
+    private final ImmutableList<PreparedStatement> deleteOverallPS;
+    private final ImmutableList<PreparedStatement> deleteTransactionPS;
+    private final ImmutableList<PreparedStatement> readOverallPS;
+    private final ImmutableList<PreparedStatement> readTransactionPS;
+    private final ImmutableList<PreparedStatement> readPointOverallPS;
+    private final ImmutableList<PreparedStatement> readPointTransactionPS;
+
+    AggregateChunkDao(Session session, String partialName, int valueCount, int blobCount,
+            List<RollupConfig> rollupConfigs, List<Integer> rollupExpirationHours)
+            throws Exception {
+        this.session = session;
+        this.partialName = partialName;
+        this.valueCount = valueCount;
+        this.blobCount = blobCount;
+
+        List<Long> chunkMillis = new ArrayList<>();
+        List<PreparedStatement> insertOverallPS = new ArrayList<>();
+        List<PreparedStatement> insertTransactionPS = new ArrayList<>();
+        List<PreparedStatement> deleteOverallPS = new ArrayList<>();
+        List<PreparedStatement> deleteTransactionPS = new ArrayList<>();
+        List<PreparedStatement> readOverallPS = new ArrayList<>();
+        List<PreparedStatement> readTransactionPS = new ArrayList<>();
+        List<PreparedStatement> readPointOverallPS = new ArrayList<>();
+        List<PreparedStatement> readPointTransactionPS = new ArrayList<>();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            chunkMillis.add(rollupConfigs.get(i).intervalMillis() * POINTS_PER_CHUNK);
+            session.createTableWithTWCS(createTableQuery(partialName, false, i),
+                    rollupExpirationHours.get(i));
+            session.createTableWithTWCS(createTableQuery(partialName, true, i),
+                    rollupExpirationHours.get(i));
+            insertOverallPS.add(session.prepare(insertPS(partialName, false, i)));
+            insertTransactionPS.add(session.prepare(insertPS(partialName, true, i)));
+            deleteOverallPS.add(session.prepare(deletePS(partialName, false, i)));
+            deleteTransactionPS.add(session.prepare(deletePS(partialName, true, i)));
+            readOverallPS.add(session.prepare(readPS(partialName, false, i)));
+            readTransactionPS.add(session.prepare(readPS(partialName, true, i)));
+            readPointOverallPS.add(session.prepare(readPointPS(partialName, false, i)));
+            readPointTransactionPS.add(session.prepare(readPointPS(partialName, true, i)));
+        }
+        this.chunkMillis = ImmutableList.copyOf(chunkMillis);
+        this.insertOverallPS = ImmutableList.copyOf(insertOverallPS);
+        this.insertTransactionPS = ImmutableList.copyOf(insertTransactionPS);
+        this.deleteOverallPS = ImmutableList.copyOf(deleteOverallPS);
+        this.deleteTransactionPS = ImmutableList.copyOf(deleteTransactionPS);
+        this.readOverallPS = ImmutableList.copyOf(readOverallPS);
+        this.readTransactionPS = ImmutableList.copyOf(readTransactionPS);
+        this.readPointOverallPS = ImmutableList.copyOf(readPointOverallPS);
+        this.readPointTransactionPS = ImmutableList.copyOf(readPointTransactionPS);
+    }
+
+    ListenableFuture<?> store(String agentRollupId, String transactionType,
+            @Nullable String transactionName, int rollupLevel, Point point, int adjustedTTL)
+            throws Exception {
+        long captureTime = point.captureTime();
+        return session.writeAsync(bindInsert(agentRollupId, transactionType, transactionName,
+                rollupLevel, getChunkTime(captureTime, rollupLevel), captureTime,
+                TimeSeriesChunk.encode(ImmutableList.of(point), valueCount, blobCount),
+                adjustedTTL));
+    }
+
+    // query.from() is INCLUSIVE
+    List<Point> read(String agentRollupId, AggregateQuery query) throws Exception {
+        ResultSet results = session.read(bindRead(agentRollupId, query, query.from()));
+        return toPoints(results, query.from(), true, query.to());
+    }
+
+    // query.from() is non-inclusive
+    ListenableFuture<ResultSet> readForRollup(String agentRollupId, AggregateQuery query)
+            throws Exception {
+        return session.readAsyncWarnIfNoRows(bindRead(agentRollupId, query, query.from()),
+                "no " + partialName + " chunk records found for agentRollupId={}, query={}",
+                agentRollupId, query);
+    }
+
+    // only reads the point at query.to(), which is either in its own segment row or (once the
+    // chunk has been compacted) in the compacted segment row
+    ListenableFuture<ResultSet> readForRollupFromChild(String childAgentRollupId,
+            AggregateQuery query) throws Exception {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null
+                ? readPointOverallPS.get(query.rollupLevel()).bind()
+                : readPointTransactionPS.get(query.rollupLevel()).bind();
+        int i = bindKey(boundStatement, 0, childAgentRollupId, query.transactionType(),
+                transactionName, getChunkTime(query.to(), query.rollupLevel()));
+        boundStatement.setList(i++, ImmutableList.of(new Date(COMPACTED_SEGMENT_TIME),
+                new Date(query.to())));
+        return session.readAsyncWarnIfNoRows(boundStatement,
+                "no " + partialName + " chunk records found for agentRollupId={}, query={}",
+                childAgentRollupId, query);
+    }
+
+    // compacts the chunk ending at query.to() if all of its capture times have now been written,
+    // (which is the case once the next rollup level reaches the end of the chunk)
+    ListenableFuture<?> compactIfComplete(String agentRollupId, AggregateQuery query,
+            Iterable<Row> rows, int adjustedTTL) throws Exception {
+        long chunkTime = query.to();
+        int rollupLevel = query.rollupLevel();
+        if (chunkTime % chunkMillis.get(rollupLevel) != 0) {
+            return Futures.immediateFuture(null);
+        }
+        List<Long> segmentTimes = new ArrayList<>();
+        List<ByteBuffer> segments = new ArrayList<>();
+        for (Row row : rows) {
+            if (checkNotNull(row.getTimestamp(0)).getTime() == chunkTime) {
+                segmentTimes.add(checkNotNull(row.getTimestamp(1)).getTime());
+                segments.add(checkNotNull(row.getBytes(2)));
+            }
+        }
+        if (segments.size() <= 1) {
+            return Futures.immediateFuture(null);
+        }
+        String transactionName = query.transactionName();
+        List<Point> points = TimeSeriesChunk.merge(segments, valueCount, blobCount);
+        // single partition batch, so the compacted segment and the deletes are applied atomically
+        BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchStatement.add(bindInsert(agentRollupId, query.transactionType(), transactionName,
+                rollupLevel, chunkTime, COMPACTED_SEGMENT_TIME,
+                TimeSeriesChunk.encode(points, valueCount, blobCount), adjustedTTL));
+        for (long segmentTime : segmentTimes) {
+            if (segmentTime == COMPACTED_SEGMENT_TIME) {
+                // overwritten by the insert above
+                continue;
+            }
+            BoundStatement boundStatement = transactionName == null
+                    ? deleteOverallPS.get(rollupLevel).bind()
+                    : deleteTransactionPS.get(rollupLevel).bind();
+            int i = bindKey(boundStatement, 0, agentRollupId, query.transactionType(),
+                    transactionName, chunkTime);
+            boundStatement.setTimestamp(i++, new Date(segmentTime));
+            batchStatement.add(boundStatement);
+        }
+        return session.writeAsync(batchStatement);
+    }
+
+    void truncateAll(int rollupLevelCount) throws Exception {
+        for (int i = 0; i < rollupLevelCount; i++) {
+            session.updateSchemaWithRetry("truncate " + getTableName(partialName, false, i));
+            session.updateSchemaWithRetry("truncate " + getTableName(partialName, true, i));
+        }
+    }
+
+    private BoundStatement bindInsert(String agentRollupId, String transactionType,
+            @Nullable String transactionName, int rollupLevel, long chunkTime, long segmentTime,
+            ByteBuffer segment, int adjustedTTL) {
+        BoundStatement boundStatement = transactionName == null
+                ? insertOverallPS.get(rollupLevel).bind()
+                : insertTransactionPS.get(rollupLevel).bind();
+        int i = bindKey(boundStatement, 0, agentRollupId, transactionType, transactionName,
+                chunkTime);
+        boundStatement.setTimestamp(i++, new Date(segmentTime));
+        boundStatement.setBytes(i++, segment);
+        boundStatement.setInt(i++, adjustedTTL);
+        return boundStatement;
+    }
+
+    private BoundStatement bindRead(String agentRollupId, AggregateQuery query, long from) {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = transactionName == null
+                ? readOverallPS.get(query.rollupLevel()).bind()
+                : readTransactionPS.get(query.rollupLevel()).bind();
+        int i = bindKey(boundStatement, 0, agentRollupId, query.transactionType(),
+                transactionName, getChunkTime(from, query.rollupLevel()));
+        boundStatement.setTimestamp(i++, new Date(getChunkTime(query.to(), query.rollupLevel())));
+        return boundStatement;
+    }
+
+    private long getChunkTime(long captureTime, int rollupLevel) {
+        return CaptureTimes.getRollup(captureTime, chunkMillis.get(rollupLevel));
+    }
+
+    // rows are in clustering order (chunk_time, segment_time) within each agent rollup, which puts
+    // the compacted segment first in each chunk, and the segments are merged per agent rollup and
+    // chunk (rows from different child agent rollups are rolled up separately by the caller)
+    List<Point> toPoints(Iterable<Row> rows, long from, boolean fromInclusive, long to) {
+        List<Point> points = new ArrayList<>();
+        List<ByteBuffer> segments = new ArrayList<>();
+        @Nullable String currAgentRollupId = null;
+        long currChunkTime = 0;
+        for (Row row : rows) {
+            long chunkTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String agentRollupId = checkNotNull(row.getString(3));
+            if (chunkTime != currChunkTime || !agentRollupId.equals(currAgentRollupId)) {
+                addPoints(segments, from, fromInclusive, to, points);
+                segments.clear();
+                currAgentRollupId = agentRollupId;
+                currChunkTime = chunkTime;
+            }
+            segments.add(checkNotNull(row.getBytes(2)));
+        }
+        addPoints(segments, from, fromInclusive, to, points);
+        return points;
+    }
+
+    private void addPoints(List<ByteBuffer> segments, long from, boolean fromInclusive, long to,
+            List<Point> points) {
+        for (Point point : TimeSeriesChunk.merge(segments, valueCount, blobCount)) {
+            long captureTime = point.captureTime();
+            if (captureTime < from || captureTime == from && !fromInclusive
+                    || captureTime > to) {
+                continue;
+            }
+            points.add(point);
+        }
+    }
+
+    private static int bindKey(BoundStatement boundStatement, int startIndex,
+            String agentRollupId, String transactionType, @Nullable String transactionName,
+            long chunkTime) {
+        int i = startIndex;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(chunkTime));
+        return i;
+    }
+
+    private static String createTableQuery(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("create table if not exists ");
+        sb.append(getTableName(partialName, transaction, i));
+        sb.append(" (agent_rollup varchar, transaction_type varchar");
+        if (transaction) {
+            sb.append(", transaction_name varchar");
+        }
+        sb.append(", chunk_time timestamp, segment_time timestamp, segment blob, primary key"
+                + " ((agent_rollup, transaction_type");
+        if (transaction) {
+            sb.append(", transaction_name");
+        }
+        sb.append("), chunk_time, segment_time))");
+        return sb.toString();
+    }
+
+    private static String insertPS(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into ");
+        sb.append(getTableName(partialName, transaction, i));
+        sb.append(" (agent_rollup, transaction_type");
+        if (transaction) {
+            sb.append(", transaction_name");
+        }
+        sb.append(", chunk_time, segment_time, segment) values (?, ?");
+        if (transaction) {
+            sb.append(", ?");
+        }
+        sb.append(", ?, ?, ?) using TTL ?");
+        return sb.toString();
+    }
+
+    private static String deletePS(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("delete from ");
+        sb.append(getTableName(partialName, transaction, i));
+        appendWhereKey(sb, transaction);
+        sb.append(" and chunk_time = ? and segment_time = ?");
+        return sb.toString();
+    }
+
+    private static String readPS(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select chunk_time, segment_time, segment, agent_rollup from ");
+        sb.append(getTableName(partialName, transaction, i));
+        appendWhereKey(sb, transaction);
+        sb.append(" and chunk_time >= ? and chunk_time <= ?");
+        return sb.toString();
+    }
+
+    private static String readPointPS(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select chunk_time, segment_time, segment, agent_rollup from ");
+        sb.append(getTableName(partialName, transaction, i));
+        appendWhereKey(sb, transaction);
+        sb.append(" and chunk_time = ? and segment_time in ?");
+        return sb.toString();
+    }
+
+    private static void appendWhereKey(StringBuilder sb, boolean transaction) {
+        sb.append(" where agent_rollup = ? and transaction_type = ?");
+        if (transaction) {
+            sb.append(" and transaction_name = ?");
+        }
+    }
+
+    private static String getTableName(String partialName, boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("aggregate_");
+        if (transaction) {
+            sb.append("tn_");
+        } else {
+            sb.append("tt_");
+        }
+        sb.append(partialName);
+        sb.append("_chunk_rollup_");
+        sb.append(i);
+        return sb.toString();
+    }
+}
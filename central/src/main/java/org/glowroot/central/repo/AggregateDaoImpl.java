@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -25,10 +26,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
@@ -50,6 +55,8 @@ import org.immutables.value.Value;
 
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.repo.IncrementalRollup.PartialRollup;
+import org.glowroot.central.repo.TimeSeriesChunk.Point;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
@@ -104,6 +111,34 @@ public class AggregateDaoImpl implements AggregateDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // when enabled, the overview, histogram and throughput series are stored in chunk rows (see
+    // AggregateChunkDao) instead of one row per capture time
+    private static final boolean AGGREGATE_CHUNKS =
+            Boolean.getBoolean("glowroot.internal.cassandra.aggregateChunks");
+
+    // total_duration_nanos, transaction_count, async_transactions (0 or 1), main thread stats (4)
+    // and aux thread stats (4)
+    private static final int OVERVIEW_CHUNK_VALUE_COUNT = 11;
+    // main_thread_root_timers, aux_thread_root_timers, async_root_timers
+    private static final int OVERVIEW_CHUNK_BLOB_COUNT = 3;
+
+    // total_duration_nanos, transaction_count
+    private static final int HISTOGRAM_CHUNK_VALUE_COUNT = 2;
+    // duration_nanos_histogram
+    private static final int HISTOGRAM_CHUNK_BLOB_COUNT = 1;
+
+    // transaction_count, error_count (NaN if not available)
+    private static final int THROUGHPUT_CHUNK_VALUE_COUNT = 2;
+
+    // rollup levels up to (and including) this level are folded in memory as data is stored (see
+    // IncrementalRollup), level 0 here refers to rolling up from child agent rollups, and -1
+    // disables incremental rollups
+    private static final int INCREMENTAL_ROLLUP_MAX_LEVEL =
+            Integer.getInteger("glowroot.internal.rollup.incrementalMaxLevel", 0);
+
+    private static final int INCREMENTAL_ROLLUP_MAX_PARTIAL_ROLLUPS =
+            Integer.getInteger("glowroot.internal.rollup.incrementalMaxPartialRollups", 10000);
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -233,6 +268,11 @@ public class AggregateDaoImpl implements AggregateDao {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
+    private final @Nullable AggregateChunkDao overviewChunkDao;
+    private final @Nullable AggregateChunkDao histogramChunkDao;
+    private final @Nullable AggregateChunkDao throughputChunkDao;
+    private final @Nullable IncrementalRollup incrementalRollup;
+
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
@@ -408,6 +448,35 @@ public class AggregateDaoImpl implements AggregateDao {
                 + " where agent_rollup = ?");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+
+        if (AGGREGATE_CHUNKS) {
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            overviewChunkDao = new AggregateChunkDao(session, "overview",
+                    OVERVIEW_CHUNK_VALUE_COUNT, OVERVIEW_CHUNK_BLOB_COUNT, rollupConfigs,
+                    rollupExpirationHours);
+            histogramChunkDao = new AggregateChunkDao(session, "histogram",
+                    HISTOGRAM_CHUNK_VALUE_COUNT, HISTOGRAM_CHUNK_BLOB_COUNT, rollupConfigs,
+                    rollupExpirationHours);
+            throughputChunkDao = new AggregateChunkDao(session, "throughput",
+                    THROUGHPUT_CHUNK_VALUE_COUNT, 0, rollupConfigs, rollupExpirationHours);
+        } else {
+            overviewChunkDao = null;
+            histogramChunkDao = null;
+            throughputChunkDao = null;
+        }
+        if (INCREMENTAL_ROLLUP_MAX_LEVEL >= 0) {
+            List<Long> rollupIntervalMillis = new ArrayList<>();
+            for (RollupConfig rollupConfig : configRepository.getRollupConfigs()) {
+                rollupIntervalMillis.add(rollupConfig.intervalMillis());
+            }
+            incrementalRollup = new IncrementalRollup(rollupIntervalMillis,
+                    INCREMENTAL_ROLLUP_MAX_LEVEL, INCREMENTAL_ROLLUP_MAX_PARTIAL_ROLLUPS, clock);
+            MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+            platformMBeanServer.registerMBean(new IncrementalRollupStats(incrementalRollup),
+                    ObjectName.getInstance("org.glowroot.central:type=IncrementalRollup"));
+        } else {
+            incrementalRollup = null;
+        }
     }
 
     @Override
@@ -425,6 +494,11 @@ public class AggregateDaoImpl implements AggregateDao {
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (aggregatesByTypeList.isEmpty()) {
             MoreFutures.waitForAll(activeAgentDao.insert(agentIdForMeta, captureTime));
+            // still need to record the capture time, since the incremental rollup is only complete
+            // once it has seen every capture time in the rollup interval
+            foldIntoIncrementalRollups(agentId, agentRollupIds, agentIdForMeta,
+                    agentRollupIdsForMeta, captureTime, aggregatesByTypeList,
+                    initialSharedQueryTexts);
             return;
         }
         TTL adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
@@ -457,12 +531,12 @@ public class AggregateDaoImpl implements AggregateDao {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
             futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+                    overallAggregate, sharedQueryTexts, adjustedTTL, 0));
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
                 futures.addAll(storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL, 0));
             }
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
@@ -473,7 +547,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .getTransactionAggregateList()) {
                 futures.addAll(storeTransactionNameSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL, 0));
             }
             futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
         }
@@ -482,6 +556,11 @@ public class AggregateDaoImpl implements AggregateDao {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // needs to happen before inserting "needs rollup" records, so that the incremental rollups
+        // are complete by the time the rollups are performed
+        foldIntoIncrementalRollups(agentId, agentRollupIds, agentIdForMeta, agentRollupIdsForMeta,
+                captureTime, aggregatesByTypeList, sharedQueryTexts);
+
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
@@ -602,51 +681,21 @@ public class AggregateDaoImpl implements AggregateDao {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = new ArrayList<>();
         for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            double totalDurationNanos = row.getDouble(i++);
-            long transactionCount = row.getLong(i++);
-            boolean asyncTransactions = row.getBool(i++);
-            List<Aggregate.Timer> mainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            Aggregate.ThreadStats mainThreadStats = Aggregate.ThreadStats.newBuilder()
-                    .setTotalCpuNanos(getNextThreadStat(row, i++))
-                    .setTotalBlockedNanos(getNextThreadStat(row, i++))
-                    .setTotalWaitedNanos(getNextThreadStat(row, i++))
-                    .setTotalAllocatedBytes(getNextThreadStat(row, i++))
-                    .build();
-            // reading delimited singleton list for backwards compatibility with data written
-            // prior to 0.12.0
-            List<Aggregate.Timer> list =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            Aggregate.Timer auxThreadRootTimer = list.isEmpty() ? null : list.get(0);
-            Aggregate.ThreadStats auxThreadStats;
-            if (auxThreadRootTimer == null) {
-                auxThreadStats = null;
-                i += 4;
-            } else {
-                auxThreadStats = Aggregate.ThreadStats.newBuilder()
-                        .setTotalCpuNanos(getNextThreadStat(row, i++))
-                        .setTotalBlockedNanos(getNextThreadStat(row, i++))
-                        .setTotalWaitedNanos(getNextThreadStat(row, i++))
-                        .setTotalAllocatedBytes(getNextThreadStat(row, i++))
-                        .build();
-            }
-            List<Aggregate.Timer> asyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
-                    .captureTime(captureTime)
-                    .totalDurationNanos(totalDurationNanos)
-                    .transactionCount(transactionCount)
-                    .asyncTransactions(asyncTransactions)
-                    .addAllMainThreadRootTimers(mainThreadRootTimers)
-                    .mainThreadStats(mainThreadStats)
-                    .auxThreadRootTimer(auxThreadRootTimer)
-                    .auxThreadStats(auxThreadStats)
-                    .addAllAsyncTimers(asyncTimers);
-            overviewAggregates.add(builder.build());
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            overviewAggregates.add(toOverviewAggregate(row, 1, captureTime));
+        }
+        if (overviewChunkDao == null) {
+            return overviewAggregates;
+        }
+        // overview rows are only present for data written prior to enabling chunk storage
+        Map<Long, OverviewAggregate> merged = new TreeMap<>();
+        for (OverviewAggregate overviewAggregate : overviewAggregates) {
+            merged.put(overviewAggregate.captureTime(), overviewAggregate);
+        }
+        for (Point point : overviewChunkDao.read(agentRollupId, query)) {
+            merged.put(point.captureTime(), toOverviewAggregate(point));
         }
-        return overviewAggregates;
+        return new ArrayList<>(merged.values());
     }
 
     // query.from() is INCLUSIVE
@@ -656,20 +705,21 @@ public class AggregateDaoImpl implements AggregateDao {
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = new ArrayList<>();
         for (Row row : results) {
-            int i = 0;
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            double totalDurationNanos = row.getDouble(i++);
-            long transactionCount = row.getLong(i++);
-            ByteBuffer bytes = checkNotNull(row.getBytes(i++));
-            Aggregate.Histogram durationNanosHistogram = Aggregate.Histogram.parseFrom(bytes);
-            percentileAggregates.add(ImmutablePercentileAggregate.builder()
-                    .captureTime(captureTime)
-                    .totalDurationNanos(totalDurationNanos)
-                    .transactionCount(transactionCount)
-                    .durationNanosHistogram(durationNanosHistogram)
-                    .build());
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            percentileAggregates.add(toPercentileAggregate(row, 1, captureTime));
+        }
+        if (histogramChunkDao == null) {
+            return percentileAggregates;
         }
-        return percentileAggregates;
+        // histogram rows are only present for data written prior to enabling chunk storage
+        Map<Long, PercentileAggregate> merged = new TreeMap<>();
+        for (PercentileAggregate percentileAggregate : percentileAggregates) {
+            merged.put(percentileAggregate.captureTime(), percentileAggregate);
+        }
+        for (Point point : histogramChunkDao.read(agentRollupId, query)) {
+            merged.put(point.captureTime(), toPercentileAggregate(point));
+        }
+        return new ArrayList<>(merged.values());
     }
 
     // query.from() is INCLUSIVE
@@ -690,7 +740,18 @@ public class AggregateDaoImpl implements AggregateDao {
                     .errorCount(hasErrorCount ? errorCount : null)
                     .build());
         }
-        return throughputAggregates;
+        if (throughputChunkDao == null) {
+            return throughputAggregates;
+        }
+        // throughput rows are only present for data written prior to enabling chunk storage
+        Map<Long, ThroughputAggregate> merged = new TreeMap<>();
+        for (ThroughputAggregate throughputAggregate : throughputAggregates) {
+            merged.put(throughputAggregate.captureTime(), throughputAggregate);
+        }
+        for (Point point : throughputChunkDao.read(agentRollupId, query)) {
+            merged.put(point.captureTime(), toThroughputAggregate(point));
+        }
+        return new ArrayList<>(merged.values());
     }
 
     // query.from() is non-inclusive
@@ -843,6 +904,23 @@ public class AggregateDaoImpl implements AggregateDao {
             session.updateSchemaWithRetry("truncate aggregate_needs_rollup_" + i);
         }
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
+        if (overviewChunkDao != null) {
+            overviewChunkDao.truncateAll(configRepository.getRollupConfigs().size());
+        }
+        if (histogramChunkDao != null) {
+            histogramChunkDao.truncateAll(configRepository.getRollupConfigs().size());
+        }
+        if (throughputChunkDao != null) {
+            throughputChunkDao.truncateAll(configRepository.getRollupConfigs().size());
+        }
+    }
+
+    void close() throws Exception {
+        if (incrementalRollup != null) {
+            MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+            platformMBeanServer.unregisterMBean(
+                    ObjectName.getInstance("org.glowroot.central:type=IncrementalRollup"));
+        }
     }
 
     private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
@@ -857,14 +935,21 @@ public class AggregateDaoImpl implements AggregateDao {
             TTL adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
             RollupParams rollupParams =
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
+            PartialRollup partialRollup = incrementalRollup == null ? null
+                    : incrementalRollup.removeIfCompleteFromChildren(agentRollupId, captureTime,
+                            needsRollupFromChildren.getKeys());
             List<Future<?>> futures = new ArrayList<>();
-            for (Map.Entry<String, Collection<String>> entry : needsRollupFromChildren.getKeys()
-                    .asMap()
-                    .entrySet()) {
-                String transactionType = entry.getKey();
-                Collection<String> childAgentRollupIds = entry.getValue();
-                futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
-                        childAgentRollupIds, captureTime));
+            if (partialRollup == null) {
+                for (Map.Entry<String, Collection<String>> entry : needsRollupFromChildren
+                        .getKeys().asMap().entrySet()) {
+                    String transactionType = entry.getKey();
+                    Collection<String> childAgentRollupIds = entry.getValue();
+                    futures.addAll(rollupOneFromChildren(rollupParams, transactionType,
+                            childAgentRollupIds, captureTime));
+                }
+            } else {
+                futures.addAll(storePartialRollup(rollupParams, partialRollup,
+                        parentAgentRollupId));
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
@@ -905,9 +990,16 @@ public class AggregateDaoImpl implements AggregateDao {
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            PartialRollup partialRollup = incrementalRollup == null ? null
+                    : incrementalRollup.removeIfComplete(agentRollupId, rollupLevel, captureTime,
+                            transactionTypes);
             List<Future<?>> futures = new ArrayList<>();
-            for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+            if (partialRollup == null) {
+                for (String transactionType : transactionTypes) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                }
+            } else {
+                futures.addAll(storePartialRollup(rollupParams, partialRollup, null));
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -931,6 +1023,65 @@ public class AggregateDaoImpl implements AggregateDao {
         }
     }
 
+    private void foldIntoIncrementalRollups(String agentId, List<String> agentRollupIds,
+            String agentIdForMeta, List<String> agentRollupIdsForMeta, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+        if (incrementalRollup == null) {
+            return;
+        }
+        incrementalRollup.fold(agentId, 1, captureTime, aggregatesByTypeList, sharedQueryTexts,
+                getMaxQueryAggregatesPerTransactionAggregate(agentIdForMeta),
+                getMaxServiceCallAggregatesPerTransactionAggregate(agentIdForMeta));
+        if (agentRollupIds.size() > 1 && !aggregatesByTypeList.isEmpty()) {
+            String parentAgentRollupIdForMeta = agentRollupIdsForMeta.get(1);
+            incrementalRollup.foldFromChild(agentRollupIds.get(1), agentId, captureTime,
+                    aggregatesByTypeList, sharedQueryTexts,
+                    getMaxQueryAggregatesPerTransactionAggregate(parentAgentRollupIdForMeta),
+                    getMaxServiceCallAggregatesPerTransactionAggregate(
+                            parentAgentRollupIdForMeta));
+        }
+    }
+
+    // writes out a complete partial rollup, and folds it into the next rollup level (and when
+    // rolling up from children, into the parent agent rollup)
+    private List<Future<?>> storePartialRollup(RollupParams rollup, PartialRollup partialRollup,
+            @Nullable String parentAgentRollupId) throws Exception {
+        IncrementalRollup incrementalRollup = checkNotNull(this.incrementalRollup);
+        List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        List<OldAggregatesByType> aggregatesByTypeList = partialRollup.toProto(sharedQueryTexts);
+        String agentRollupId = rollup.agentRollupId();
+        int rollupLevel = rollup.rollupLevel();
+        long captureTime = partialRollup.getCaptureTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            futures.addAll(storeOverallAggregate(agentRollupId, transactionType, captureTime,
+                    aggregatesByType.getOverallAggregate(), sharedQueryTexts,
+                    rollup.adjustedTTL(), rollupLevel));
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                futures.addAll(storeTransactionAggregate(agentRollupId, transactionType,
+                        transactionAggregate.getTransactionName(), captureTime,
+                        transactionAggregate.getAggregate(), sharedQueryTexts,
+                        rollup.adjustedTTL(), rollupLevel));
+                futures.addAll(storeTransactionNameSummary(agentRollupId, transactionType,
+                        transactionAggregate.getTransactionName(), captureTime,
+                        transactionAggregate.getAggregate(), rollup.adjustedTTL(), rollupLevel));
+            }
+        }
+        incrementalRollup.fold(agentRollupId, rollupLevel + 1, captureTime, aggregatesByTypeList,
+                sharedQueryTexts, rollup.maxQueryAggregatesPerTransactionAggregate(),
+                rollup.maxServiceCallAggregatesPerTransactionAggregate());
+        if (rollupLevel == 0 && parentAgentRollupId != null) {
+            incrementalRollup.foldFromChild(parentAgentRollupId, agentRollupId, captureTime,
+                    aggregatesByTypeList, sharedQueryTexts,
+                    getMaxQueryAggregatesPerTransactionAggregate(parentAgentRollupId),
+                    getMaxServiceCallAggregatesPerTransactionAggregate(parentAgentRollupId));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOneFromChildren(RollupParams rollup, String transactionType,
             Collection<String> childAgentRollupIds, long captureTime) throws Exception {
 
@@ -1226,6 +1377,15 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupOverview(RollupParams rollup, AggregateQuery query)
             throws Exception {
+        AggregateChunkDao overviewChunkDao = this.overviewChunkDao;
+        if (overviewChunkDao != null) {
+            return rollupFromChunks(rollup, query, overviewChunkDao, new DoRollupFromPoints() {
+                @Override
+                public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                    return rollupOverviewFromPoints(rollup, query, points);
+                }
+            });
+        }
         ListenableFuture<ResultSet> future =
                 executeQueryForRollup(rollup.agentRollupId(), query, overviewTable, true);
         return MoreFutures.rollupAsync(future, asyncExecutor, new DoRollup() {
@@ -1238,6 +1398,16 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupOverviewFromChildren(RollupParams rollup,
             AggregateQuery query, Collection<String> childAgentRollupIds) throws Exception {
+        AggregateChunkDao overviewChunkDao = this.overviewChunkDao;
+        if (overviewChunkDao != null) {
+            return rollupFromChildChunks(query, childAgentRollupIds, overviewChunkDao,
+                    new DoRollupFromPoints() {
+                        @Override
+                        public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                            return rollupOverviewFromPoints(rollup, query, points);
+                        }
+                    });
+        }
         List<ListenableFuture<ResultSet>> futures =
                 getRowsForRollupFromChildren(query, childAgentRollupIds, overviewTable, true);
         return MoreFutures.rollupAsync(futures, asyncExecutor, new DoRollup() {
@@ -1250,6 +1420,28 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupOverviewFromRows(RollupParams rollup, AggregateQuery query,
             Iterable<Row> rows) throws Exception {
+        List<OverviewAggregate> overviewAggregates = new ArrayList<>();
+        for (Row row : rows) {
+            // capture time is not used when rolling up
+            overviewAggregates.add(toOverviewAggregate(row, 0, 0));
+        }
+        return rollupOverviewFromAggregates(rollup, query, overviewAggregates);
+    }
+
+    private ListenableFuture<?> rollupOverviewFromPoints(RollupParams rollup, AggregateQuery query,
+            List<Point> points) throws Exception {
+        List<OverviewAggregate> overviewAggregates = new ArrayList<>();
+        for (Point point : points) {
+            overviewAggregates.add(toOverviewAggregate(point));
+        }
+        return rollupOverviewFromAggregates(rollup, query, overviewAggregates);
+    }
+
+    private ListenableFuture<?> rollupOverviewFromAggregates(RollupParams rollup,
+            AggregateQuery query, List<OverviewAggregate> overviewAggregates) throws Exception {
+        if (overviewAggregates.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
         double totalDurationNanos = 0;
         long transactionCount = 0;
         boolean asyncTransactions = false;
@@ -1258,37 +1450,41 @@ public class AggregateDaoImpl implements AggregateDao {
         MutableTimer auxThreadRootTimer = MutableTimer.createAuxThreadRootTimer();
         MutableThreadStats auxThreadStats = new MutableThreadStats();
         List<MutableTimer> asyncTimers = new ArrayList<>();
-        for (Row row : rows) {
-            int i = 0;
-            totalDurationNanos += row.getDouble(i++);
-            transactionCount += row.getLong(i++);
-            if (row.getBool(i++)) {
+        for (OverviewAggregate overviewAggregate : overviewAggregates) {
+            totalDurationNanos += overviewAggregate.totalDurationNanos();
+            transactionCount += overviewAggregate.transactionCount();
+            if (overviewAggregate.asyncTransactions()) {
                 asyncTransactions = true;
             }
-            List<Aggregate.Timer> toBeMergedMainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedMainThreadRootTimers, mainThreadRootTimers);
-            mainThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
-            // reading delimited singleton list for backwards compatibility with data written
-            // prior to 0.12.0
-            List<Aggregate.Timer> list =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            Aggregate.Timer toBeMergedAuxThreadRootTimer = list.isEmpty() ? null : list.get(0);
-            if (toBeMergedAuxThreadRootTimer == null) {
-                i += 4;
-            } else {
+            MutableAggregate.mergeRootTimers(overviewAggregate.mainThreadRootTimers(),
+                    mainThreadRootTimers);
+            mainThreadStats.addThreadStats(overviewAggregate.mainThreadStats());
+            Aggregate.Timer toBeMergedAuxThreadRootTimer = overviewAggregate.auxThreadRootTimer();
+            if (toBeMergedAuxThreadRootTimer != null) {
                 auxThreadRootTimer.merge(toBeMergedAuxThreadRootTimer);
-                auxThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
+                auxThreadStats.addThreadStats(checkNotNull(overviewAggregate.auxThreadStats()));
             }
-            List<Aggregate.Timer> toBeMergedAsyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedAsyncTimers, asyncTimers);
+            MutableAggregate.mergeRootTimers(overviewAggregate.asyncTimers(), asyncTimers);
+        }
+        AggregateChunkDao overviewChunkDao = this.overviewChunkDao;
+        if (overviewChunkDao != null) {
+            boolean hasAuxThreadRootTimer = auxThreadRootTimer.getCount() != 0;
+            OverviewAggregate overviewAggregate = ImmutableOverviewAggregate.builder()
+                    .captureTime(query.to())
+                    .totalDurationNanos(totalDurationNanos)
+                    .transactionCount(transactionCount)
+                    .asyncTransactions(asyncTransactions)
+                    .addAllMainThreadRootTimers(MutableAggregate.toProto(mainThreadRootTimers))
+                    .mainThreadStats(IncrementalRollup.toThreadStats(mainThreadStats))
+                    .auxThreadRootTimer(hasAuxThreadRootTimer ? MutableAggregate
+                            .toProto(ImmutableList.of(auxThreadRootTimer)).get(0) : null)
+                    .auxThreadStats(hasAuxThreadRootTimer
+                            ? IncrementalRollup.toThreadStats(auxThreadStats) : null)
+                    .addAllAsyncTimers(MutableAggregate.toProto(asyncTimers))
+                    .build();
+            return overviewChunkDao.store(rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), rollup.rollupLevel(),
+                    toOverviewPoint(overviewAggregate), rollup.adjustedTTL().generalTTL());
         }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
@@ -1340,6 +1536,15 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupHistogram(RollupParams rollup, AggregateQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
+        AggregateChunkDao histogramChunkDao = this.histogramChunkDao;
+        if (histogramChunkDao != null) {
+            return rollupFromChunks(rollup, query, histogramChunkDao, new DoRollupFromPoints() {
+                @Override
+                public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                    return rollupHistogramFromPoints(rollup, query, points, scratchBuffer);
+                }
+            });
+        }
         ListenableFuture<ResultSet> future =
                 executeQueryForRollup(rollup.agentRollupId(), query, histogramTable, true);
         return MoreFutures.rollupAsync(future, asyncExecutor, new DoRollup() {
@@ -1353,6 +1558,17 @@ public class AggregateDaoImpl implements AggregateDao {
     private ListenableFuture<?> rollupHistogramFromChildren(RollupParams rollup,
             AggregateQuery query, Collection<String> childAgentRollupIds,
             ScratchBuffer scratchBuffer) throws Exception {
+        AggregateChunkDao histogramChunkDao = this.histogramChunkDao;
+        if (histogramChunkDao != null) {
+            return rollupFromChildChunks(query, childAgentRollupIds, histogramChunkDao,
+                    new DoRollupFromPoints() {
+                        @Override
+                        public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                            return rollupHistogramFromPoints(rollup, query, points,
+                                    scratchBuffer);
+                        }
+                    });
+        }
         List<ListenableFuture<ResultSet>> futures =
                 getRowsForRollupFromChildren(query, childAgentRollupIds, histogramTable, true);
         return MoreFutures.rollupAsync(futures, asyncExecutor, new DoRollup() {
@@ -1365,15 +1581,45 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupHistogramFromRows(RollupParams rollup, AggregateQuery query,
             Iterable<Row> rows, ScratchBuffer scratchBuffer) throws Exception {
+        List<PercentileAggregate> percentileAggregates = new ArrayList<>();
+        for (Row row : rows) {
+            // capture time is not used when rolling up
+            percentileAggregates.add(toPercentileAggregate(row, 0, 0));
+        }
+        return rollupHistogramFromAggregates(rollup, query, percentileAggregates, scratchBuffer);
+    }
+
+    private ListenableFuture<?> rollupHistogramFromPoints(RollupParams rollup,
+            AggregateQuery query, List<Point> points, ScratchBuffer scratchBuffer)
+            throws Exception {
+        List<PercentileAggregate> percentileAggregates = new ArrayList<>();
+        for (Point point : points) {
+            percentileAggregates.add(toPercentileAggregate(point));
+        }
+        return rollupHistogramFromAggregates(rollup, query, percentileAggregates, scratchBuffer);
+    }
+
+    private ListenableFuture<?> rollupHistogramFromAggregates(RollupParams rollup,
+            AggregateQuery query, List<PercentileAggregate> percentileAggregates,
+            ScratchBuffer scratchBuffer) throws Exception {
+        if (percentileAggregates.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
         double totalDurationNanos = 0;
         long transactionCount = 0;
         LazyHistogram durationNanosHistogram = new LazyHistogram();
-        for (Row row : rows) {
-            int i = 0;
-            totalDurationNanos += row.getDouble(i++);
-            transactionCount += row.getLong(i++);
-            ByteBuffer bytes = checkNotNull(row.getBytes(i++));
-            durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
+        for (PercentileAggregate percentileAggregate : percentileAggregates) {
+            totalDurationNanos += percentileAggregate.totalDurationNanos();
+            transactionCount += percentileAggregate.transactionCount();
+            durationNanosHistogram.merge(percentileAggregate.durationNanosHistogram());
+        }
+        AggregateChunkDao histogramChunkDao = this.histogramChunkDao;
+        if (histogramChunkDao != null) {
+            return histogramChunkDao.store(rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), rollup.rollupLevel(),
+                    toHistogramPoint(query.to(), totalDurationNanos, transactionCount,
+                            durationNanosHistogram.toProto(scratchBuffer)),
+                    rollup.adjustedTTL().generalTTL());
         }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
@@ -1397,6 +1643,15 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupThroughput(RollupParams rollup, AggregateQuery query)
             throws Exception {
+        AggregateChunkDao throughputChunkDao = this.throughputChunkDao;
+        if (throughputChunkDao != null) {
+            return rollupFromChunks(rollup, query, throughputChunkDao, new DoRollupFromPoints() {
+                @Override
+                public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                    return rollupThroughputFromPoints(rollup, query, points);
+                }
+            });
+        }
         ListenableFuture<ResultSet> future =
                 executeQueryForRollup(rollup.agentRollupId(), query, throughputTable, true);
         return MoreFutures.rollupAsync(future, asyncExecutor, new DoRollup() {
@@ -1409,6 +1664,16 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupThroughputFromChildren(RollupParams rollup,
             AggregateQuery query, Collection<String> childAgentRollupIds) throws Exception {
+        AggregateChunkDao throughputChunkDao = this.throughputChunkDao;
+        if (throughputChunkDao != null) {
+            return rollupFromChildChunks(query, childAgentRollupIds, throughputChunkDao,
+                    new DoRollupFromPoints() {
+                        @Override
+                        public ListenableFuture<?> execute(List<Point> points) throws Exception {
+                            return rollupThroughputFromPoints(rollup, query, points);
+                        }
+                    });
+        }
         List<ListenableFuture<ResultSet>> futures =
                 getRowsForRollupFromChildren(query, childAgentRollupIds, throughputTable, true);
         return MoreFutures.rollupAsync(futures, asyncExecutor, new DoRollup() {
@@ -1434,6 +1699,49 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return storeThroughputRollup(rollup, query, transactionCount,
+                hasMissingErrorCount ? null : errorCount);
+    }
+
+    private ListenableFuture<?> rollupThroughputFromPoints(RollupParams rollup,
+            AggregateQuery query, List<Point> points) throws Exception {
+        List<ThroughputAggregate> throughputAggregates = new ArrayList<>();
+        for (Point point : points) {
+            throughputAggregates.add(toThroughputAggregate(point));
+        }
+        return rollupThroughputFromAggregates(rollup, query, throughputAggregates);
+    }
+
+    private ListenableFuture<?> rollupThroughputFromAggregates(RollupParams rollup,
+            AggregateQuery query, List<ThroughputAggregate> throughputAggregates)
+            throws Exception {
+        if (throughputAggregates.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+        long transactionCount = 0;
+        boolean hasMissingErrorCount = false;
+        long errorCount = 0;
+        for (ThroughputAggregate throughputAggregate : throughputAggregates) {
+            transactionCount += throughputAggregate.transactionCount();
+            Long aggregateErrorCount = throughputAggregate.errorCount();
+            if (aggregateErrorCount == null) {
+                hasMissingErrorCount = true;
+            } else {
+                errorCount += aggregateErrorCount;
+            }
+        }
+        return storeThroughputRollup(rollup, query, transactionCount,
+                hasMissingErrorCount ? null : errorCount);
+    }
+
+    private ListenableFuture<?> storeThroughputRollup(RollupParams rollup, AggregateQuery query,
+            long transactionCount, @Nullable Long errorCount) throws Exception {
+        if (throughputChunkDao != null) {
+            return throughputChunkDao.store(rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), rollup.rollupLevel(),
+                    toThroughputPoint(query.to(), transactionCount, errorCount),
+                    rollup.adjustedTTL().generalTTL());
+        }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1448,7 +1756,7 @@ public class AggregateDaoImpl implements AggregateDao {
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
-        if (hasMissingErrorCount) {
+        if (errorCount == null) {
             boundStatement.setToNull(i++);
         } else {
             boundStatement.setLong(i++, errorCount);
@@ -1457,6 +1765,43 @@ public class AggregateDaoImpl implements AggregateDao {
         return session.writeAsync(boundStatement);
     }
 
+    // reads the chunks covering the rollup interval, and compacts the chunk that ends at the end of
+    // the rollup interval if it is now complete
+    private ListenableFuture<?> rollupFromChunks(RollupParams rollup, AggregateQuery query,
+            AggregateChunkDao chunkDao, DoRollupFromPoints function) throws Exception {
+        ListenableFuture<ResultSet> future = chunkDao.readForRollup(rollup.agentRollupId(), query);
+        int compactTTL = Common.getAdjustedTTL(getTTLs().get(query.rollupLevel()).generalTTL(),
+                query.to(), clock);
+        return MoreFutures.rollupAsync(future, asyncExecutor, new DoRollup() {
+            @Override
+            public ListenableFuture<?> execute(Iterable<Row> rows) throws Exception {
+                // rows are iterated twice below
+                List<Row> rowList = ImmutableList.copyOf(rows);
+                List<ListenableFuture<?>> futures = new ArrayList<>();
+                futures.add(function.execute(
+                        chunkDao.toPoints(rowList, query.from(), false, query.to())));
+                futures.add(chunkDao.compactIfComplete(rollup.agentRollupId(), query, rowList,
+                        compactTTL));
+                return Futures.allAsList(futures);
+            }
+        });
+    }
+
+    private ListenableFuture<?> rollupFromChildChunks(AggregateQuery query,
+            Collection<String> childAgentRollupIds, AggregateChunkDao chunkDao,
+            DoRollupFromPoints function) throws Exception {
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (String childAgentRollupId : childAgentRollupIds) {
+            futures.add(chunkDao.readForRollupFromChild(childAgentRollupId, query));
+        }
+        return MoreFutures.rollupAsync(futures, asyncExecutor, new DoRollup() {
+            @Override
+            public ListenableFuture<?> execute(Iterable<Row> rows) throws Exception {
+                return function.execute(chunkDao.toPoints(rows, query.to(), true, query.to()));
+            }
+        });
+    }
+
     private ListenableFuture<?> rollupQueries(RollupParams rollup, AggregateQuery query)
             throws Exception {
         ListenableFuture<ResultSet> future =
@@ -1627,10 +1972,8 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<ListenableFuture<?>> storeOverallAggregate(String agentRollupId,
             String transactionType, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
-
-        final int rollupLevel = 0;
-
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL, int rollupLevel)
+            throws Exception {
         List<ListenableFuture<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
@@ -1654,34 +1997,54 @@ public class AggregateDaoImpl implements AggregateDao {
             futures.add(session.writeAsync(boundStatement));
         }
 
-        boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
-        i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        if (overviewChunkDao == null) {
+            boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(overviewChunkDao.store(agentRollupId, transactionType, null, rollupLevel,
+                    toOverviewPoint(captureTime, aggregate), adjustedTTL.generalTTL()));
+        }
 
-        boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
-        i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
-        boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
-        boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        if (histogramChunkDao == null) {
+            boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
+            boundStatement.setLong(i++, aggregate.getTransactionCount());
+            boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+            boundStatement.setInt(i++, adjustedTTL.generalTTL());
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(histogramChunkDao.store(agentRollupId, transactionType, null,
+                    rollupLevel, toHistogramPoint(captureTime, aggregate.getTotalDurationNanos(),
+                            aggregate.getTransactionCount(),
+                            aggregate.getDurationNanosHistogram()),
+                    adjustedTTL.generalTTL()));
+        }
 
-        boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
-        i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setLong(i++, aggregate.getErrorCount());
-        boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        if (throughputChunkDao == null) {
+            boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setLong(i++, aggregate.getTransactionCount());
+            boundStatement.setLong(i++, aggregate.getErrorCount());
+            boundStatement.setInt(i++, adjustedTTL.generalTTL());
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(throughputChunkDao.store(agentRollupId, transactionType, null,
+                    rollupLevel, toThroughputPoint(captureTime, aggregate.getTransactionCount(),
+                            aggregate.getErrorCount()),
+                    adjustedTTL.generalTTL()));
+        }
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1714,42 +2077,63 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
             String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
-
-        final int rollupLevel = 0;
-
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL, int rollupLevel)
+            throws Exception {
         List<Future<?>> futures = new ArrayList<>();
-        BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
-        int i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setString(i++, transactionName);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        BoundStatement boundStatement;
+        int i;
+        if (overviewChunkDao == null) {
+            boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setString(i++, transactionName);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(overviewChunkDao.store(agentRollupId, transactionType, transactionName,
+                    rollupLevel, toOverviewPoint(captureTime, aggregate),
+                    adjustedTTL.generalTTL()));
+        }
 
-        boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
-        i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setString(i++, transactionName);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
-        boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
-        boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        if (histogramChunkDao == null) {
+            boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setString(i++, transactionName);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
+            boundStatement.setLong(i++, aggregate.getTransactionCount());
+            boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+            boundStatement.setInt(i++, adjustedTTL.generalTTL());
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(histogramChunkDao.store(agentRollupId, transactionType, transactionName,
+                    rollupLevel, toHistogramPoint(captureTime, aggregate.getTotalDurationNanos(),
+                            aggregate.getTransactionCount(),
+                            aggregate.getDurationNanosHistogram()),
+                    adjustedTTL.generalTTL()));
+        }
 
-        boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
-        i = 0;
-        boundStatement.setString(i++, agentRollupId);
-        boundStatement.setString(i++, transactionType);
-        boundStatement.setString(i++, transactionName);
-        boundStatement.setTimestamp(i++, new Date(captureTime));
-        boundStatement.setLong(i++, aggregate.getTransactionCount());
-        boundStatement.setLong(i++, aggregate.getErrorCount());
-        boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        if (throughputChunkDao == null) {
+            boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            boundStatement.setString(i++, transactionName);
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setLong(i++, aggregate.getTransactionCount());
+            boundStatement.setLong(i++, aggregate.getErrorCount());
+            boundStatement.setInt(i++, adjustedTTL.generalTTL());
+            futures.add(session.writeAsync(boundStatement));
+        } else {
+            futures.add(throughputChunkDao.store(agentRollupId, transactionType, transactionName,
+                    rollupLevel, toThroughputPoint(captureTime, aggregate.getTransactionCount(),
+                            aggregate.getErrorCount()),
+                    adjustedTTL.generalTTL()));
+        }
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1784,10 +2168,7 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> storeTransactionNameSummary(String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            TTL adjustedTTL) throws Exception {
-
-        final int rollupLevel = 0;
-
+            TTL adjustedTTL, int rollupLevel) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
@@ -2082,6 +2463,174 @@ public class AggregateDaoImpl implements AggregateDao {
         return transactionName;
     }
 
+    private static OverviewAggregate toOverviewAggregate(Row row, int startIndex,
+            long captureTime) throws IOException {
+        int i = startIndex;
+        double totalDurationNanos = row.getDouble(i++);
+        long transactionCount = row.getLong(i++);
+        boolean asyncTransactions = row.getBool(i++);
+        List<Aggregate.Timer> mainThreadRootTimers =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        Aggregate.ThreadStats mainThreadStats = Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(getNextThreadStat(row, i++))
+                .setTotalBlockedNanos(getNextThreadStat(row, i++))
+                .setTotalWaitedNanos(getNextThreadStat(row, i++))
+                .setTotalAllocatedBytes(getNextThreadStat(row, i++))
+                .build();
+        // reading delimited singleton list for backwards compatibility with data written
+        // prior to 0.12.0
+        List<Aggregate.Timer> list =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        Aggregate.Timer auxThreadRootTimer = list.isEmpty() ? null : list.get(0);
+        Aggregate.ThreadStats auxThreadStats;
+        if (auxThreadRootTimer == null) {
+            auxThreadStats = null;
+            i += 4;
+        } else {
+            auxThreadStats = Aggregate.ThreadStats.newBuilder()
+                    .setTotalCpuNanos(getNextThreadStat(row, i++))
+                    .setTotalBlockedNanos(getNextThreadStat(row, i++))
+                    .setTotalWaitedNanos(getNextThreadStat(row, i++))
+                    .setTotalAllocatedBytes(getNextThreadStat(row, i++))
+                    .build();
+        }
+        List<Aggregate.Timer> asyncTimers =
+                Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+        return ImmutableOverviewAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .asyncTransactions(asyncTransactions)
+                .addAllMainThreadRootTimers(mainThreadRootTimers)
+                .mainThreadStats(mainThreadStats)
+                .auxThreadRootTimer(auxThreadRootTimer)
+                .auxThreadStats(auxThreadStats)
+                .addAllAsyncTimers(asyncTimers)
+                .build();
+    }
+
+    private static OverviewAggregate toOverviewAggregate(Point point) throws IOException {
+        // reading delimited singleton list, same as the overview table
+        List<Aggregate.Timer> list =
+                Messages.parseDelimitedFrom(point.blob(1), Aggregate.Timer.parser());
+        Aggregate.Timer auxThreadRootTimer = list.isEmpty() ? null : list.get(0);
+        return ImmutableOverviewAggregate.builder()
+                .captureTime(point.captureTime())
+                .totalDurationNanos(point.value(0))
+                .transactionCount((long) point.value(1))
+                .asyncTransactions(point.value(2) != 0)
+                .addAllMainThreadRootTimers(
+                        Messages.parseDelimitedFrom(point.blob(0), Aggregate.Timer.parser()))
+                .mainThreadStats(toThreadStats(point, 3))
+                .auxThreadRootTimer(auxThreadRootTimer)
+                .auxThreadStats(auxThreadRootTimer == null ? null : toThreadStats(point, 7))
+                .addAllAsyncTimers(
+                        Messages.parseDelimitedFrom(point.blob(2), Aggregate.Timer.parser()))
+                .build();
+    }
+
+    private static Point toOverviewPoint(long captureTime, Aggregate aggregate)
+            throws IOException {
+        boolean hasAuxThreadRootTimer = aggregate.hasAuxThreadRootTimer();
+        return toOverviewPoint(ImmutableOverviewAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(aggregate.getTotalDurationNanos())
+                .transactionCount(aggregate.getTransactionCount())
+                .asyncTransactions(aggregate.getAsyncTransactions())
+                .addAllMainThreadRootTimers(aggregate.getMainThreadRootTimerList())
+                .mainThreadStats(IncrementalRollup.getMainThreadStats(aggregate))
+                .auxThreadRootTimer(
+                        hasAuxThreadRootTimer ? aggregate.getAuxThreadRootTimer() : null)
+                .auxThreadStats(
+                        hasAuxThreadRootTimer ? IncrementalRollup.getAuxThreadStats(aggregate)
+                                : null)
+                .addAllAsyncTimers(aggregate.getAsyncTimerList())
+                .build());
+    }
+
+    private static Point toOverviewPoint(OverviewAggregate overviewAggregate) throws IOException {
+        Aggregate.ThreadStats mainThreadStats = overviewAggregate.mainThreadStats();
+        Aggregate.Timer auxThreadRootTimer = overviewAggregate.auxThreadRootTimer();
+        Aggregate.ThreadStats auxThreadStats = overviewAggregate.auxThreadStats();
+        if (auxThreadStats == null) {
+            // aux thread stats are only read back when there is an aux thread root timer
+            auxThreadStats = Aggregate.ThreadStats.getDefaultInstance();
+        }
+        double[] values = new double[] {overviewAggregate.totalDurationNanos(),
+                overviewAggregate.transactionCount(),
+                overviewAggregate.asyncTransactions() ? 1 : 0,
+                mainThreadStats.getTotalCpuNanos(),
+                mainThreadStats.getTotalBlockedNanos(),
+                mainThreadStats.getTotalWaitedNanos(),
+                mainThreadStats.getTotalAllocatedBytes(),
+                auxThreadStats.getTotalCpuNanos(),
+                auxThreadStats.getTotalBlockedNanos(),
+                auxThreadStats.getTotalWaitedNanos(),
+                auxThreadStats.getTotalAllocatedBytes()};
+        // writing aux thread root timer as delimited singleton list, same as the overview table
+        ByteBuffer[] blobs = new ByteBuffer[] {
+                Messages.toByteBuffer(overviewAggregate.mainThreadRootTimers()),
+                Messages.toByteBuffer(auxThreadRootTimer == null
+                        ? ImmutableList.<Aggregate.Timer>of()
+                        : ImmutableList.of(auxThreadRootTimer)),
+                Messages.toByteBuffer(overviewAggregate.asyncTimers())};
+        return new Point(overviewAggregate.captureTime(), values, blobs);
+    }
+
+    private static Aggregate.ThreadStats toThreadStats(Point point, int startIndex) {
+        int i = startIndex;
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(point.value(i++))
+                .setTotalBlockedNanos(point.value(i++))
+                .setTotalWaitedNanos(point.value(i++))
+                .setTotalAllocatedBytes(point.value(i++))
+                .build();
+    }
+
+    private static PercentileAggregate toPercentileAggregate(Row row, int startIndex,
+            long captureTime) throws IOException {
+        int i = startIndex;
+        double totalDurationNanos = row.getDouble(i++);
+        long transactionCount = row.getLong(i++);
+        ByteBuffer bytes = checkNotNull(row.getBytes(i++));
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .durationNanosHistogram(Aggregate.Histogram.parseFrom(bytes))
+                .build();
+    }
+
+    private static PercentileAggregate toPercentileAggregate(Point point) throws IOException {
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(point.captureTime())
+                .totalDurationNanos(point.value(0))
+                .transactionCount((long) point.value(1))
+                .durationNanosHistogram(Aggregate.Histogram.parseFrom(point.blob(0)))
+                .build();
+    }
+
+    private static Point toHistogramPoint(long captureTime, double totalDurationNanos,
+            long transactionCount, Aggregate.Histogram durationNanosHistogram) {
+        return new Point(captureTime, new double[] {totalDurationNanos, transactionCount},
+                new ByteBuffer[] {toByteBuffer(durationNanosHistogram)});
+    }
+
+    private static ThroughputAggregate toThroughputAggregate(Point point) {
+        double errorCount = point.value(1);
+        return ImmutableThroughputAggregate.builder()
+                .captureTime(point.captureTime())
+                .transactionCount((long) point.value(0))
+                .errorCount(Double.isNaN(errorCount) ? null : (long) errorCount)
+                .build();
+    }
+
+    private static Point toThroughputPoint(long captureTime, long transactionCount,
+            @Nullable Long errorCount) {
+        return new Point(captureTime, transactionCount,
+                errorCount == null ? Double.NaN : errorCount);
+    }
+
     private static void bindAggregate(BoundStatement boundStatement, Aggregate aggregate,
             int startIndex, TTL adjustedTTL) throws IOException {
         int i = startIndex;
@@ -2171,7 +2720,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2191,7 +2740,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
@@ -2533,6 +3082,10 @@ public class AggregateDaoImpl implements AggregateDao {
         int profileTTL();
     }
 
+    private interface DoRollupFromPoints {
+        ListenableFuture<?> execute(List<Point> points) throws Exception;
+    }
+
     private static class MutableSummary {
         private double totalDurationNanos;
         private long transactionCount;
@@ -59,6 +59,7 @@ public class CentralRepoModule {
     private final TransactionTypeDao transactionTypeDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final AggregateDaoImpl aggregateDaoImpl;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
@@ -137,7 +138,7 @@ public class CentralRepoModule {
             v09AggregateLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
-        AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
+        aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
                 transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
                 clusterManager, asyncExecutor, clock);
@@ -240,6 +241,7 @@ public class CentralRepoModule {
     }
 
     public void close() throws Exception {
+        aggregateDaoImpl.close();
         fullQueryTextDao.close();
     }
 
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.MutableServiceCall;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.model.ServiceCallCollector;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.common2.repo.MutableThreadStats;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// partial rollups that are folded in memory as data is stored (and as rollups are written) by this
+// central node, so that once a rollup interval is old enough to roll up, it can be written out
+// without re-reading all of the rows of the prior rollup level (or all of the rows of the child
+// agent rollups) from cassandra
+//
+// a partial rollup is only used if it is complete, i.e. it has folded every capture time of the
+// prior rollup level (or every child agent rollup listed in the "needs rollup from child" records),
+// otherwise (e.g. after a restart, or when some of the data was sent to a different central node)
+// the rollup falls back to re-reading the rows
+//
+// the number of partial rollups retained at any one time is bounded by maxPartialRollups (each
+// partial rollup is itself bounded by the max query and service call aggregates), and once the
+// bound is reached, new partial rollups are not created, so those rollups fall back to re-reading
+// the rows
+class IncrementalRollup {
+
+    // partial rollups that are not used within this time after the end of their rollup interval
+    // (e.g. because another central node performed the rollup) are discarded
+    private static final long EXPIRATION_MILLIS = HOURS.toMillis(1);
+
+    // list index is rollupLevel
+    private final ImmutableList<Long> rollupIntervalMillis;
+    private final int maxRollupLevel;
+    private final int maxPartialRollups;
+    private final Clock clock;
+
+    private final ConcurrentMap<PartialRollupKey, PartialRollup> partialRollups =
+            new ConcurrentHashMap<>();
+
+    private volatile long nextExpirationTime;
+
+    private final AtomicLong completeCount = new AtomicLong();
+    private final AtomicLong incompleteCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    IncrementalRollup(List<Long> rollupIntervalMillis, int maxRollupLevel, int maxPartialRollups,
+            Clock clock) {
+        this.rollupIntervalMillis = ImmutableList.copyOf(rollupIntervalMillis);
+        this.maxRollupLevel = Math.min(maxRollupLevel, rollupIntervalMillis.size() - 1);
+        this.maxPartialRollups = maxPartialRollups;
+        this.clock = clock;
+        nextExpirationTime = clock.currentTimeMillis() + MINUTES.toMillis(1);
+    }
+
+    boolean isIncremental(int rollupLevel) {
+        return rollupLevel <= maxRollupLevel;
+    }
+
+    // folds data from rollupLevel - 1 into rollupLevel
+    void fold(String agentRollupId, int rollupLevel, long priorCaptureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        if (!isIncremental(rollupLevel)) {
+            return;
+        }
+        long captureTime =
+                CaptureTimes.getRollup(priorCaptureTime, rollupIntervalMillis.get(rollupLevel));
+        PartialRollup partialRollup = getOrCreate(agentRollupId, rollupLevel, captureTime,
+                maxQueryAggregates, maxServiceCallAggregates);
+        if (partialRollup == null) {
+            return;
+        }
+        synchronized (partialRollup) {
+            if (!partialRollup.priorCaptureTimes.add(priorCaptureTime)) {
+                // same capture time folded twice (e.g. agent re-sent data after a timeout), so
+                // can no longer be trusted
+                partialRollup.invalid = true;
+                return;
+            }
+            partialRollup.merge(aggregatesByTypeList, sharedQueryTexts);
+        }
+    }
+
+    // folds level 0 data from child agent rollup into level 0 of the (parent) agent rollup
+    void foldFromChild(String agentRollupId, String childAgentRollupId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        if (!isIncremental(0)) {
+            return;
+        }
+        PartialRollup partialRollup = getOrCreate(agentRollupId, 0, captureTime,
+                maxQueryAggregates, maxServiceCallAggregates);
+        if (partialRollup == null) {
+            return;
+        }
+        synchronized (partialRollup) {
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                if (!partialRollup.childAgentRollupIds.put(aggregatesByType.getTransactionType(),
+                        childAgentRollupId)) {
+                    partialRollup.invalid = true;
+                    return;
+                }
+            }
+            partialRollup.merge(aggregatesByTypeList, sharedQueryTexts);
+        }
+    }
+
+    // the partial rollup is removed either way, since the rollup interval is being rolled up now
+    @Nullable
+    PartialRollup removeIfComplete(String agentRollupId, int rollupLevel, long captureTime,
+            Set<String> transactionTypes) {
+        if (!isIncremental(rollupLevel)) {
+            return null;
+        }
+        PartialRollup partialRollup = partialRollups.remove(
+                ImmutablePartialRollupKey.of(agentRollupId, rollupLevel, captureTime));
+        if (partialRollup == null) {
+            incompleteCount.getAndIncrement();
+            return null;
+        }
+        long intervalMillis = rollupIntervalMillis.get(rollupLevel);
+        long priorIntervalMillis = rollupIntervalMillis.get(rollupLevel - 1);
+        synchronized (partialRollup) {
+            if (partialRollup.invalid
+                    || !partialRollup.transactionTypes.keySet().containsAll(transactionTypes)) {
+                incompleteCount.getAndIncrement();
+                return null;
+            }
+            for (long priorCaptureTime = captureTime - intervalMillis
+                    + priorIntervalMillis; priorCaptureTime <= captureTime; priorCaptureTime +=
+                            priorIntervalMillis) {
+                if (!partialRollup.priorCaptureTimes.contains(priorCaptureTime)) {
+                    incompleteCount.getAndIncrement();
+                    return null;
+                }
+            }
+            completeCount.getAndIncrement();
+            return partialRollup;
+        }
+    }
+
+    // the partial rollup is removed either way, since the rollup interval is being rolled up now
+    @Nullable
+    PartialRollup removeIfCompleteFromChildren(String agentRollupId, long captureTime,
+            Multimap<String, String> childAgentRollupIds) {
+        if (!isIncremental(0)) {
+            return null;
+        }
+        PartialRollup partialRollup =
+                partialRollups.remove(ImmutablePartialRollupKey.of(agentRollupId, 0, captureTime));
+        if (partialRollup == null) {
+            incompleteCount.getAndIncrement();
+            return null;
+        }
+        synchronized (partialRollup) {
+            if (partialRollup.invalid) {
+                incompleteCount.getAndIncrement();
+                return null;
+            }
+            for (Map.Entry<String, String> entry : childAgentRollupIds.entries()) {
+                if (!partialRollup.childAgentRollupIds.containsEntry(entry.getKey(),
+                        entry.getValue())) {
+                    incompleteCount.getAndIncrement();
+                    return null;
+                }
+            }
+            completeCount.getAndIncrement();
+            return partialRollup;
+        }
+    }
+
+    int getPartialRollupCount() {
+        return partialRollups.size();
+    }
+
+    int getMaxPartialRollups() {
+        return maxPartialRollups;
+    }
+
+    int getMaxRollupLevel() {
+        return maxRollupLevel;
+    }
+
+    // rollups written out from a complete partial rollup
+    long getCompleteCount() {
+        return completeCount.get();
+    }
+
+    // rollups that fell back to re-reading the rows
+    long getIncompleteCount() {
+        return incompleteCount.get();
+    }
+
+    // partial rollups that were not created because maxPartialRollups was reached
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    private @Nullable PartialRollup getOrCreate(String agentRollupId, int rollupLevel,
+            long captureTime, int maxQueryAggregates, int maxServiceCallAggregates) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        if (currentTimeMillis > nextExpirationTime) {
+            nextExpirationTime = currentTimeMillis + MINUTES.toMillis(1);
+            expire(currentTimeMillis);
+        }
+        PartialRollupKey key = ImmutablePartialRollupKey.of(agentRollupId, rollupLevel,
+                captureTime);
+        PartialRollup partialRollup = partialRollups.get(key);
+        if (partialRollup == null) {
+            if (partialRollups.size() >= maxPartialRollups) {
+                // the partial rollup would be missing this data anyways if it were created later
+                // (after some have been removed), so it will not be used either way
+                rejectedCount.getAndIncrement();
+                return null;
+            }
+            partialRollup = new PartialRollup(captureTime, maxQueryAggregates,
+                    maxServiceCallAggregates);
+            PartialRollup existing = partialRollups.putIfAbsent(key, partialRollup);
+            if (existing != null) {
+                partialRollup = existing;
+            }
+        }
+        return partialRollup;
+    }
+
+    private void expire(long currentTimeMillis) {
+        Iterator<PartialRollupKey> i = partialRollups.keySet().iterator();
+        while (i.hasNext()) {
+            if (i.next().captureTime() < currentTimeMillis - EXPIRATION_MILLIS) {
+                i.remove();
+                expiredCount.getAndIncrement();
+            }
+        }
+    }
+
+    static Aggregate.ThreadStats getMainThreadStats(Aggregate aggregate) {
+        if (aggregate.hasOldMainThreadStats()) {
+            // data from agent prior to 0.10.9
+            return toThreadStats(aggregate.getOldMainThreadStats());
+        }
+        return aggregate.getMainThreadStats();
+    }
+
+    static Aggregate.ThreadStats getAuxThreadStats(Aggregate aggregate) {
+        if (aggregate.hasOldAuxThreadStats()) {
+            // data from agent prior to 0.10.9
+            return toThreadStats(aggregate.getOldAuxThreadStats());
+        }
+        return aggregate.getAuxThreadStats();
+    }
+
+    private static Aggregate.ThreadStats toThreadStats(Aggregate.OldThreadStats threadStats) {
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(threadStats.getTotalCpuNanos().getValue())
+                .setTotalBlockedNanos(threadStats.getTotalBlockedNanos().getValue())
+                .setTotalWaitedNanos(threadStats.getTotalWaitedNanos().getValue())
+                .setTotalAllocatedBytes(threadStats.getTotalAllocatedBytes().getValue())
+                .build();
+    }
+
+    static Aggregate.ThreadStats toThreadStats(MutableThreadStats threadStats) {
+        return Aggregate.ThreadStats.newBuilder()
+                .setTotalCpuNanos(threadStats.getTotalCpuNanos())
+                .setTotalBlockedNanos(threadStats.getTotalBlockedNanos())
+                .setTotalWaitedNanos(threadStats.getTotalWaitedNanos())
+                .setTotalAllocatedBytes(threadStats.getTotalAllocatedBytes())
+                .build();
+    }
+
+    static class PartialRollup {
+
+        private final long captureTime;
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+
+        @GuardedBy("this")
+        private final Set<Long> priorCaptureTimes = new HashSet<>();
+        // key is transaction type
+        @GuardedBy("this")
+        private final Multimap<String, String> childAgentRollupIds = HashMultimap.create();
+        // key is transaction type
+        @GuardedBy("this")
+        private final Map<String, TransactionTypeRollup> transactionTypes = new HashMap<>();
+        @GuardedBy("this")
+        private boolean invalid;
+
+        private PartialRollup(long captureTime, int maxQueryAggregates,
+                int maxServiceCallAggregates) {
+            this.captureTime = captureTime;
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+
+        // sharedQueryTexts is populated with the query texts referenced from the returned list
+        synchronized List<OldAggregatesByType> toProto(
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            List<OldAggregatesByType> aggregatesByTypeList = new ArrayList<>();
+            for (Map.Entry<String, TransactionTypeRollup> entry : transactionTypes.entrySet()) {
+                TransactionTypeRollup transactionTypeRollup = entry.getValue();
+                OldAggregatesByType.Builder builder = OldAggregatesByType.newBuilder()
+                        .setTransactionType(entry.getKey())
+                        .setOverallAggregate(toProto(transactionTypeRollup.overallAggregate,
+                                sharedQueryTexts, scratchBuffer));
+                for (Map.Entry<String, MutableAggregate> transactionEntry : transactionTypeRollup
+                        .transactionAggregates.entrySet()) {
+                    builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                            .setTransactionName(transactionEntry.getKey())
+                            .setAggregate(toProto(transactionEntry.getValue(), sharedQueryTexts,
+                                    scratchBuffer)));
+                }
+                aggregatesByTypeList.add(builder.build());
+            }
+            return aggregatesByTypeList;
+        }
+
+        @GuardedBy("this")
+        private void merge(List<OldAggregatesByType> aggregatesByTypeList,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                String transactionType = aggregatesByType.getTransactionType();
+                TransactionTypeRollup transactionTypeRollup =
+                        transactionTypes.get(transactionType);
+                if (transactionTypeRollup == null) {
+                    transactionTypeRollup = new TransactionTypeRollup(
+                            new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates));
+                    transactionTypes.put(transactionType, transactionTypeRollup);
+                }
+                merge(transactionTypeRollup.overallAggregate,
+                        aggregatesByType.getOverallAggregate(), sharedQueryTexts);
+                for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                        .getTransactionAggregateList()) {
+                    String transactionName = transactionAggregate.getTransactionName();
+                    MutableAggregate aggregate =
+                            transactionTypeRollup.transactionAggregates.get(transactionName);
+                    if (aggregate == null) {
+                        aggregate =
+                                new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                        transactionTypeRollup.transactionAggregates.put(transactionName,
+                                aggregate);
+                    }
+                    merge(aggregate, transactionAggregate.getAggregate(), sharedQueryTexts);
+                }
+            }
+        }
+
+        private static void merge(MutableAggregate mutableAggregate, Aggregate aggregate,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+            mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+            mutableAggregate.addErrorCount(aggregate.getErrorCount());
+            mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+            mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+            mutableAggregate.mergeMainThreadStats(getMainThreadStats(aggregate));
+            if (aggregate.hasAuxThreadRootTimer()) {
+                mutableAggregate.mergeAuxThreadRootTimer(aggregate.getAuxThreadRootTimer());
+                mutableAggregate.mergeAuxThreadStats(getAuxThreadStats(aggregate));
+            }
+            mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+            mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+            for (Aggregate.Query query : AggregateDaoImpl.getQueries(aggregate)) {
+                Aggregate.SharedQueryText sharedQueryText =
+                        sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                String fullTextSha1 = sharedQueryText.getFullTextSha1();
+                if (fullTextSha1.isEmpty()) {
+                    mutableAggregate.mergeQuery(query.getType(), sharedQueryText.getFullText(),
+                            null, query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                } else {
+                    mutableAggregate.mergeQuery(query.getType(),
+                            sharedQueryText.getTruncatedText(), fullTextSha1,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                }
+            }
+            for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl
+                    .getServiceCalls(aggregate)) {
+                mutableAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            if (aggregate.hasMainThreadProfile()) {
+                mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+            }
+            if (aggregate.hasAuxThreadProfile()) {
+                mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+            }
+        }
+
+        private static Aggregate toProto(MutableAggregate mutableAggregate,
+                List<Aggregate.SharedQueryText> sharedQueryTexts, ScratchBuffer scratchBuffer) {
+            Aggregate.Builder builder = Aggregate.newBuilder()
+                    .setTotalDurationNanos(mutableAggregate.getTotalDurationNanos())
+                    .setTransactionCount(mutableAggregate.getTransactionCount())
+                    .setErrorCount(mutableAggregate.getErrorCount())
+                    .setAsyncTransactions(mutableAggregate.isAsyncTransactions())
+                    .addAllMainThreadRootTimer(mutableAggregate.getMainThreadRootTimersProto())
+                    .setMainThreadStats(toThreadStats(mutableAggregate.getMainThreadStats()))
+                    .addAllAsyncTimer(mutableAggregate.getAsyncTimersProto())
+                    .setDurationNanosHistogram(
+                            mutableAggregate.getDurationNanosHistogram().toProto(scratchBuffer));
+            Aggregate.Timer auxThreadRootTimer = mutableAggregate.getAuxThreadRootTimerProto();
+            MutableThreadStats auxThreadStats = mutableAggregate.getAuxThreadStats();
+            if (auxThreadRootTimer != null && auxThreadStats != null) {
+                builder.setAuxThreadRootTimer(auxThreadRootTimer)
+                        .setAuxThreadStats(toThreadStats(auxThreadStats));
+            }
+            QueryCollector queries = mutableAggregate.getQueries();
+            if (queries != null) {
+                for (MutableQuery query : queries.getSortedAndTruncatedQueries()) {
+                    Aggregate.SharedQueryText.Builder sharedQueryText =
+                            Aggregate.SharedQueryText.newBuilder();
+                    String fullTextSha1 = query.getFullTextSha1();
+                    if (fullTextSha1 == null) {
+                        sharedQueryText.setFullText(query.getTruncatedText());
+                    } else {
+                        sharedQueryText.setTruncatedText(query.getTruncatedText())
+                                .setFullTextSha1(fullTextSha1);
+                    }
+                    Aggregate.Query.Builder queryBuilder = Aggregate.Query.newBuilder()
+                            .setType(query.getType())
+                            .setSharedQueryTextIndex(sharedQueryTexts.size())
+                            .setTotalDurationNanos(query.getTotalDurationNanos())
+                            .setExecutionCount(query.getExecutionCount());
+                    if (query.hasTotalRows()) {
+                        queryBuilder.setTotalRows(
+                                OptionalInt64.newBuilder().setValue(query.getTotalRows()));
+                    }
+                    sharedQueryTexts.add(sharedQueryText.build());
+                    builder.addQuery(queryBuilder);
+                }
+            }
+            ServiceCallCollector serviceCalls = mutableAggregate.getServiceCalls();
+            if (serviceCalls != null) {
+                for (MutableServiceCall serviceCall : serviceCalls
+                        .getSortedAndTruncatedServiceCalls()) {
+                    builder.addServiceCall(Aggregate.ServiceCall.newBuilder()
+                            .setType(serviceCall.getType())
+                            .setText(serviceCall.getText())
+                            .setTotalDurationNanos(serviceCall.getTotalDurationNanos())
+                            .setExecutionCount(serviceCall.getExecutionCount()));
+                }
+            }
+            MutableProfile mainThreadProfile = mutableAggregate.getMainThreadProfile();
+            if (mainThreadProfile != null) {
+                builder.setMainThreadProfile(mainThreadProfile.toProto());
+            }
+            MutableProfile auxThreadProfile = mutableAggregate.getAuxThreadProfile();
+            if (auxThreadProfile != null) {
+                builder.setAuxThreadProfile(auxThreadProfile.toProto());
+            }
+            return builder.build();
+        }
+    }
+
+    private static class TransactionTypeRollup {
+
+        private final MutableAggregate overallAggregate;
+        // key is transaction name
+        private final Map<String, MutableAggregate> transactionAggregates = new HashMap<>();
+
+        private TransactionTypeRollup(MutableAggregate overallAggregate) {
+            this.overallAggregate = overallAggregate;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PartialRollupKey {
+        String agentRollupId();
+        int rollupLevel();
+        long captureTime();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+class IncrementalRollupStats implements IncrementalRollupStatsMXBean {
+
+    private final IncrementalRollup incrementalRollup;
+
+    IncrementalRollupStats(IncrementalRollup incrementalRollup) {
+        this.incrementalRollup = incrementalRollup;
+    }
+
+    @Override
+    public int getMaxRollupLevel() {
+        return incrementalRollup.getMaxRollupLevel();
+    }
+
+    @Override
+    public int getPartialRollupCount() {
+        return incrementalRollup.getPartialRollupCount();
+    }
+
+    @Override
+    public int getMaxPartialRollups() {
+        return incrementalRollup.getMaxPartialRollups();
+    }
+
+    @Override
+    public long getCompleteCount() {
+        return incrementalRollup.getCompleteCount();
+    }
+
+    @Override
+    public long getIncompleteCount() {
+        return incrementalRollup.getIncompleteCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return incrementalRollup.getRejectedCount();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return incrementalRollup.getExpiredCount();
+    }
+}
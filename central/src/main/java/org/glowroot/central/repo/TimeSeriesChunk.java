@@ -0,0 +1,333 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// packs consecutive points of a series into a single blob, using delta-of-delta encoding for the
+// capture times and XOR encoding for the values, see "Gorilla: A Fast, Scalable, In-Memory Time
+// Series Database" (http://www.vldb.org/pvldb/vol8/p1816-teller.pdf)
+//
+// null values are stored as NaN
+//
+// each point can also carry a fixed number of blobs (e.g. serialized protobuf messages), which
+// are appended as-is (length prefixed) after the encoded capture times and values
+class TimeSeriesChunk {
+
+    private TimeSeriesChunk() {}
+
+    static ByteBuffer encode(List<Point> points, int valueCount) {
+        return encode(points, valueCount, 0);
+    }
+
+    static ByteBuffer encode(List<Point> points, int valueCount, int blobCount) {
+        ByteBuffer buffer = encodeValues(points, valueCount);
+        if (blobCount == 0 || points.isEmpty()) {
+            return buffer;
+        }
+        int length = buffer.remaining();
+        for (Point point : points) {
+            checkArgument(point.blobs.length == blobCount);
+            for (ByteBuffer blob : point.blobs) {
+                length += 4 + blob.remaining();
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.put(buffer);
+        for (Point point : points) {
+            for (ByteBuffer blob : point.blobs) {
+                out.putInt(blob.remaining());
+                out.put(blob.duplicate());
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    private static ByteBuffer encodeValues(List<Point> points, int valueCount) {
+        BitWriter writer = new BitWriter();
+        writer.writeBits(points.size(), 32);
+        if (points.isEmpty()) {
+            return writer.toByteBuffer();
+        }
+        Point first = points.get(0);
+        checkArgument(first.values.length == valueCount);
+        long priorCaptureTime = first.captureTime;
+        long priorDelta = 0;
+        long[] priorBits = new long[valueCount];
+        int[] priorLeadingZeros = new int[valueCount];
+        int[] priorTrailingZeros = new int[valueCount];
+        // -1 means no prior window
+        Arrays.fill(priorLeadingZeros, -1);
+        writer.writeBits(priorCaptureTime, 64);
+        for (int j = 0; j < valueCount; j++) {
+            priorBits[j] = Double.doubleToLongBits(first.values[j]);
+            writer.writeBits(priorBits[j], 64);
+        }
+        for (int i = 1; i < points.size(); i++) {
+            Point point = points.get(i);
+            checkArgument(point.values.length == valueCount);
+            long delta = point.captureTime - priorCaptureTime;
+            writeDeltaOfDelta(writer, delta - priorDelta);
+            priorCaptureTime = point.captureTime;
+            priorDelta = delta;
+            for (int j = 0; j < valueCount; j++) {
+                long bits = Double.doubleToLongBits(point.values[j]);
+                long xor = bits ^ priorBits[j];
+                priorBits[j] = bits;
+                if (xor == 0) {
+                    writer.writeBit(false);
+                    continue;
+                }
+                writer.writeBit(true);
+                int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailingZeros = Long.numberOfTrailingZeros(xor);
+                if (priorLeadingZeros[j] != -1 && leadingZeros >= priorLeadingZeros[j]
+                        && trailingZeros >= priorTrailingZeros[j]) {
+                    // meaningful bits fit inside the prior window
+                    writer.writeBit(false);
+                    writer.writeBits(xor >>> priorTrailingZeros[j],
+                            64 - priorLeadingZeros[j] - priorTrailingZeros[j]);
+                } else {
+                    int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                    writer.writeBit(true);
+                    writer.writeBits(leadingZeros, 5);
+                    writer.writeBits(meaningfulBits - 1, 6);
+                    writer.writeBits(xor >>> trailingZeros, meaningfulBits);
+                    priorLeadingZeros[j] = leadingZeros;
+                    priorTrailingZeros[j] = trailingZeros;
+                }
+            }
+        }
+        return writer.toByteBuffer();
+    }
+
+    static List<Point> decode(ByteBuffer buffer, int valueCount) {
+        return decode(buffer, valueCount, 0);
+    }
+
+    static List<Point> decode(ByteBuffer buffer, int valueCount, int blobCount) {
+        BitReader reader = new BitReader(buffer);
+        int count = (int) reader.readBits(32);
+        List<Point> points = new ArrayList<>(count);
+        if (count == 0) {
+            return points;
+        }
+        long captureTime = reader.readBits(64);
+        long delta = 0;
+        long[] bits = new long[valueCount];
+        int[] leadingZeros = new int[valueCount];
+        int[] trailingZeros = new int[valueCount];
+        double[] values = new double[valueCount];
+        for (int j = 0; j < valueCount; j++) {
+            bits[j] = reader.readBits(64);
+            values[j] = Double.longBitsToDouble(bits[j]);
+        }
+        points.add(new Point(captureTime, values));
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(reader);
+            captureTime += delta;
+            values = new double[valueCount];
+            for (int j = 0; j < valueCount; j++) {
+                if (reader.readBit()) {
+                    if (reader.readBit()) {
+                        leadingZeros[j] = (int) reader.readBits(5);
+                        int meaningfulBits = (int) reader.readBits(6) + 1;
+                        trailingZeros[j] = 64 - leadingZeros[j] - meaningfulBits;
+                    }
+                    int meaningfulBits = 64 - leadingZeros[j] - trailingZeros[j];
+                    bits[j] ^= reader.readBits(meaningfulBits) << trailingZeros[j];
+                }
+                values[j] = Double.longBitsToDouble(bits[j]);
+            }
+            points.add(new Point(captureTime, values));
+        }
+        if (blobCount == 0) {
+            return points;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(reader.getBytePosition());
+        List<Point> pointsWithBlobs = new ArrayList<>(count);
+        for (Point point : points) {
+            ByteBuffer[] blobs = new ByteBuffer[blobCount];
+            for (int j = 0; j < blobCount; j++) {
+                int length = in.getInt();
+                ByteBuffer blob = in.slice();
+                blob.limit(length);
+                blobs[j] = blob;
+                in.position(in.position() + length);
+            }
+            pointsWithBlobs.add(new Point(point.captureTime, point.values, blobs));
+        }
+        return pointsWithBlobs;
+    }
+
+    // segments are in append order, so when the same capture time appears more than once (e.g.
+    // rollup being re-run, or write being retried), the last one wins
+    static List<Point> merge(List<ByteBuffer> segments, int valueCount) {
+        return merge(segments, valueCount, 0);
+    }
+
+    static List<Point> merge(List<ByteBuffer> segments, int valueCount, int blobCount) {
+        if (segments.size() == 1) {
+            return decode(segments.get(0), valueCount, blobCount);
+        }
+        Map<Long, Point> points = new TreeMap<>();
+        for (ByteBuffer segment : segments) {
+            for (Point point : decode(segment, valueCount, blobCount)) {
+                points.put(point.captureTime, point);
+            }
+        }
+        return new ArrayList<>(points.values());
+    }
+
+    private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writer.writeBit(false);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+            writer.writeBits(0b10, 2);
+            writer.writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+            writer.writeBits(0b110, 3);
+            writer.writeBits(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+            writer.writeBits(0b1110, 4);
+            writer.writeBits(deltaOfDelta, 12);
+        } else {
+            writer.writeBits(0b1111, 4);
+            writer.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (!reader.readBit()) {
+            return 0;
+        }
+        if (!reader.readBit()) {
+            return signExtend(reader.readBits(7), 7);
+        }
+        if (!reader.readBit()) {
+            return signExtend(reader.readBits(9), 9);
+        }
+        if (!reader.readBit()) {
+            return signExtend(reader.readBits(12), 12);
+        }
+        return reader.readBits(64);
+    }
+
+    private static long signExtend(long value, int bitCount) {
+        int shift = 64 - bitCount;
+        return (value << shift) >> shift;
+    }
+
+    static class Point {
+
+        private static final ByteBuffer[] NO_BLOBS = new ByteBuffer[0];
+
+        private final long captureTime;
+        private final double[] values;
+        private final ByteBuffer[] blobs;
+
+        Point(long captureTime, double... values) {
+            this(captureTime, values, NO_BLOBS);
+        }
+
+        Point(long captureTime, double[] values, ByteBuffer[] blobs) {
+            this.captureTime = captureTime;
+            this.values = values;
+            this.blobs = blobs;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        double value(int index) {
+            return values[index];
+        }
+
+        ByteBuffer blob(int index) {
+            return blobs[index].duplicate();
+        }
+    }
+
+    private static class BitWriter {
+
+        private byte[] bytes = new byte[64];
+        private int bitCount;
+
+        private void writeBit(boolean bit) {
+            int byteIndex = bitCount >>> 3;
+            if (byteIndex == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (bit) {
+                bytes[byteIndex] |= 0x80 >>> (bitCount & 7);
+            }
+            bitCount++;
+        }
+
+        // writes the lowest bitCount bits of value, most significant first
+        private void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, (bitCount + 7) >>> 3).slice();
+        }
+    }
+
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+        private final int offset;
+        private int bitCount;
+
+        private BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            offset = buffer.position();
+        }
+
+        private boolean readBit() {
+            int b = buffer.get(offset + (bitCount >>> 3));
+            boolean bit = (b & (0x80 >>> (bitCount & 7))) != 0;
+            bitCount++;
+            return bit;
+        }
+
+        // position of the first byte following the bits read so far
+        private int getBytePosition() {
+            return offset + ((bitCount + 7) >>> 3);
+        }
+
+        private long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -111,6 +111,9 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertOverallSampleWeight;
+    private final PreparedStatement insertTransactionSampleWeight;
+
     private final PreparedStatement insertHeaderV2;
     private final PreparedStatement insertEntryV2;
     private final PreparedStatement insertQueryV2;
@@ -137,6 +140,9 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readOverallSampleWeight;
+    private final PreparedStatement readTransactionSampleWeight;
+
     private final PreparedStatement readHeaderV1;
     private final PreparedStatement readEntriesV1;
     private final PreparedStatement readSharedQueryTextsV1;
@@ -248,6 +254,21 @@ public class TraceDaoImpl implements TraceDao {
                 + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
                 expirationHours);
 
+        // sample weights are only stored for traces that were kept by trace sampling (on behalf
+        // of other traces that were discarded), so these tables are empty unless sampling is used
+        session.createTableWithTWCS("create table if not exists trace_tt_sample_weight"
+                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, slow boolean, error boolean, extra_weight"
+                + " double, primary key ((agent_rollup, transaction_type), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_sample_weight"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, slow boolean,"
+                + " error boolean, extra_weight double, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
+                expirationHours);
+
         session.createTableWithTWCS("create table if not exists trace_tt_error_point (agent_rollup"
                 + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
                 + " trace_id varchar, duration_nanos bigint, error_message varchar, headline"
@@ -380,6 +401,15 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSampleWeight = session.prepare("insert into trace_tt_sample_weight"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id, slow, error,"
+                + " extra_weight) values (?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionSampleWeight = session.prepare("insert into trace_tn_sample_weight"
+                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+                + " trace_id, slow, error, extra_weight) values (?, ?, ?, ?, ?, ?, ?, ?, ?) using"
+                + " ttl ?");
+
         insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id, duration_nanos,"
                 + " error_message, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
@@ -501,6 +531,14 @@ public class TraceDaoImpl implements TraceDao {
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time > ? and capture_time <= ?");
 
+        readOverallSampleWeight = session.prepare("select slow, error, extra_weight from"
+                + " trace_tt_sample_weight where agent_rollup = ? and transaction_type = ? and"
+                + " capture_time > ? and capture_time <= ?");
+
+        readTransactionSampleWeight = session.prepare("select slow, error, extra_weight from"
+                + " trace_tn_sample_weight where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and capture_time > ? and capture_time <= ?");
+
         readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, error_message, headline, user, attributes from"
                 + " trace_tt_error_point where agent_rollup = ? and transaction_type = ? and"
@@ -642,6 +680,17 @@ public class TraceDaoImpl implements TraceDao {
                 Common.getAdjustedTTL(configRepository.getCentralStorageConfig().getTraceTTL(),
                         header.getCaptureTime(), clock);
         for (String agentRollupId : agentRollupIds) {
+            if (header.getSampleWeight() > 1 && !header.getPartial()) {
+                BoundStatement boundStatement = insertOverallSampleWeight.bind();
+                bindSampleWeight(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true);
+                futures.add(session.writeAsync(boundStatement));
+
+                boundStatement = insertTransactionSampleWeight.bind();
+                bindSampleWeight(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false);
+                futures.add(session.writeAsync(boundStatement));
+            }
             if (header.getSlow()) {
                 BoundStatement boundStatement;
                 if (header.getPartial()) {
@@ -878,7 +927,9 @@ public class TraceDaoImpl implements TraceDao {
         }
         Future<ResultSet> future = session.readAsync(boundStatement);
         Future<ResultSet> futurePartial = session.readAsync(boundStatementPartial);
-        return future.get().one().getLong(0) + futurePartial.get().one().getLong(0);
+        Future<ResultSet> futureSampleWeight = readSampleWeight(agentRollupId, query);
+        return future.get().one().getLong(0) + futurePartial.get().one().getLong(0)
+                + sumExtraSampleWeight(futureSampleWeight.get(), true);
     }
 
     @Override
@@ -916,8 +967,10 @@ public class TraceDaoImpl implements TraceDao {
             boundStatement = readTransactionErrorCount.bind();
             bindTraceQuery(boundStatement, agentRollupId, query, false);
         }
-        ResultSet results = session.read(boundStatement);
-        return results.one().getLong(0);
+        Future<ResultSet> future = session.readAsync(boundStatement);
+        Future<ResultSet> futureSampleWeight = readSampleWeight(agentRollupId, query);
+        return future.get().one().getLong(0)
+                + sumExtraSampleWeight(futureSampleWeight.get(), false);
     }
 
     @Override
@@ -1274,6 +1327,19 @@ public class TraceDaoImpl implements TraceDao {
         return sharedQueryTexts;
     }
 
+    private Future<ResultSet> readSampleWeight(String agentRollupId, TraceQuery query)
+            throws Exception {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallSampleWeight.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, true);
+        } else {
+            boundStatement = readTransactionSampleWeight.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, false);
+        }
+        return session.readAsync(boundStatement);
+    }
+
     @Override
     @OnlyUsedByTests
     public void truncateAll() throws Exception {
@@ -1287,6 +1353,8 @@ public class TraceDaoImpl implements TraceDao {
         session.updateSchemaWithRetry("truncate table trace_tn_slow_point_partial");
         session.updateSchemaWithRetry("truncate table trace_tt_error_count");
         session.updateSchemaWithRetry("truncate table trace_tn_error_count");
+        session.updateSchemaWithRetry("truncate table trace_tt_sample_weight");
+        session.updateSchemaWithRetry("truncate table trace_tn_sample_weight");
         session.updateSchemaWithRetry("truncate table trace_tt_error_point");
         session.updateSchemaWithRetry("truncate table trace_tn_error_point");
         session.updateSchemaWithRetry("truncate table trace_tt_error_message");
@@ -1346,6 +1414,16 @@ public class TraceDaoImpl implements TraceDao {
         boundStatement.setInt(i++, adjustedTTL);
     }
 
+    private static void bindSampleWeight(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, false);
+        boundStatement.setBool(i++, header.getSlow());
+        boundStatement.setBool(i++, header.hasError());
+        // the trace itself is already counted in the slow/error count tables
+        boundStatement.setDouble(i++, header.getSampleWeight() - 1);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
     private static void bindErrorMessage(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
         int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, false);
@@ -1539,6 +1617,17 @@ public class TraceDaoImpl implements TraceDao {
                 .collect(Collectors.<TracePoint>toList());
     }
 
+    private static long sumExtraSampleWeight(ResultSet results, boolean slow) {
+        double extraWeight = 0;
+        for (Row row : results) {
+            boolean matches = slow ? row.getBool(0) : row.getBool(1);
+            if (matches) {
+                extraWeight += row.getDouble(2);
+            }
+        }
+        return Math.round(extraWeight);
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -62,6 +63,12 @@ public class CassandraWriteMetrics {
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
+    // write batching (see WriteBatcher)
+    private final AtomicInteger writeBatchQueueDepth = new AtomicInteger();
+    private final AtomicLong batchedWriteCount = new AtomicLong();
+    private final AtomicLong batchedWriteTotalNanos = new AtomicLong();
+    private final AtomicLong writeBatchCount = new AtomicLong();
+
     private final ScheduledExecutorService scheduledExecutor =
             MoreExecutors2.newSingleThreadScheduledExecutor("Cassandra-Write-Metrics");
 
@@ -140,6 +147,40 @@ public class CassandraWriteMetrics {
         return getCassandraDataWritten(perTableMetrics.nestedWriteMetricsMap, limit);
     }
 
+    public int getWriteBatchQueueDepth() {
+        return writeBatchQueueDepth.get();
+    }
+
+    public long getBatchedWriteCount() {
+        return batchedWriteCount.get();
+    }
+
+    // end-to-end, from the time the write was queued until it was acknowledged by Cassandra
+    public long getBatchedWriteTotalLatencyNanos() {
+        return batchedWriteTotalNanos.get();
+    }
+
+    public long getWriteBatchCount() {
+        return writeBatchCount.get();
+    }
+
+    void incrementWriteBatchQueueDepth() {
+        writeBatchQueueDepth.incrementAndGet();
+    }
+
+    void decrementWriteBatchQueueDepth(int count) {
+        writeBatchQueueDepth.addAndGet(-count);
+    }
+
+    void recordWriteBatch() {
+        writeBatchCount.incrementAndGet();
+    }
+
+    void recordBatchedWriteLatency(long nanos) {
+        batchedWriteCount.incrementAndGet();
+        batchedWriteTotalNanos.addAndGet(nanos);
+    }
+
     void recordMetrics(Statement statement) {
         try {
             recordMetricsInternal(statement);
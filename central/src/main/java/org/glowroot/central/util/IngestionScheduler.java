@@ -0,0 +1,440 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// schedules the collection of agent data across top-level agent rollups (tenants) using weighted
+// fair queuing, so that a few noisy agents sending large trace streams cannot monopolize the write
+// query budget and starve everyone else's aggregate writes
+//
+// collection types are served in priority order (aggregates, then gauge values, then traces), and
+// traces can only use half of the in-flight budget so that there is always room left for
+// aggregates at the minute boundary
+//
+// each agent still only has one collection in flight at a time
+//
+// tenants that have had nothing queued or in flight for an hour are evicted (along with their wait
+// time histograms), so that agent rollups which are no longer reporting don't accumulate forever
+public class IngestionScheduler {
+
+    private static final long WAIT_TIMEOUT_MILLIS = MINUTES.toMillis(1);
+
+    private static final long TENANT_IDLE_EXPIRATION_MILLIS = HOURS.toMillis(1);
+
+    // virtual time advanced per collection for a tenant with weight 1
+    private static final long VIRTUAL_TIME_UNIT = 1000;
+
+    // upper bounds (exclusive) of the wait time histogram buckets, the last bucket is unbounded
+    private static final long[] WAIT_TIME_BUCKET_MILLIS = {1, 10, 100, 1000, 10000};
+
+    static final String[] WAIT_TIME_BUCKET_LABELS =
+            {"<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s", "rejected"};
+
+    private final int maxInFlight;
+    private final int maxTraceInFlight;
+    private final long waitTimeoutMillis;
+    private final long tenantIdleExpirationNanos;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    @GuardedBy("lock")
+    private final Map<String, Agent> agents = new HashMap<>();
+    @GuardedBy("lock")
+    private final Map<CollectionType, PriorityQueue<TenantQueue>> activeTenantQueues =
+            new EnumMap<>(CollectionType.class);
+    @GuardedBy("lock")
+    private final Map<CollectionType, Long> virtualTimes = new EnumMap<>(CollectionType.class);
+
+    @GuardedBy("lock")
+    private int inFlight;
+    @GuardedBy("lock")
+    private int traceInFlight;
+    @GuardedBy("lock")
+    private int queueLength;
+    @GuardedBy("lock")
+    private long rejectedCount;
+    @GuardedBy("lock")
+    private long nextSequence;
+    @GuardedBy("lock")
+    private long lastEvictionNanos = System.nanoTime();
+
+    public IngestionScheduler(int maxInFlight) {
+        this(maxInFlight, WAIT_TIMEOUT_MILLIS);
+    }
+
+    @VisibleForTesting
+    IngestionScheduler(int maxInFlight, long waitTimeoutMillis) {
+        this(maxInFlight, waitTimeoutMillis, TENANT_IDLE_EXPIRATION_MILLIS);
+    }
+
+    @VisibleForTesting
+    IngestionScheduler(int maxInFlight, long waitTimeoutMillis, long tenantIdleExpirationMillis) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        maxTraceInFlight = Math.max(1, this.maxInFlight / 2);
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        tenantIdleExpirationNanos = MILLISECONDS.toNanos(tenantIdleExpirationMillis);
+        Comparator<TenantQueue> comparator = Comparator
+                .<TenantQueue>comparingLong(tenantQueue -> tenantQueue.virtualTime)
+                .thenComparingLong(tenantQueue -> tenantQueue.sequence);
+        for (CollectionType collectionType : CollectionType.values()) {
+            activeTenantQueues.put(collectionType, new PriorityQueue<>(comparator));
+            virtualTimes.put(collectionType, 0L);
+        }
+    }
+
+    // returns null if the wait timed out
+    public @Nullable Permit acquire(String agentRollupId, String agentId,
+            CollectionType collectionType) throws InterruptedException {
+        Waiter waiter;
+        synchronized (lock) {
+            evictIdleTenantsIfDue();
+            Tenant tenant = tenants.get(agentRollupId);
+            if (tenant == null) {
+                tenant = new Tenant(agentRollupId);
+                tenants.put(agentRollupId, tenant);
+            }
+            Agent agent = agents.get(agentId);
+            if (agent == null) {
+                agent = new Agent(agentId);
+                agents.put(agentId, agent);
+            }
+            waiter = new Waiter(tenant, agent, collectionType);
+            tenant.outstanding++;
+            tenant.queueDepths[collectionType.ordinal()]++;
+            queueLength++;
+            if (agent.busy) {
+                agent.backlog.add(waiter);
+            } else {
+                agent.busy = true;
+                enqueue(waiter);
+                dispatch();
+            }
+        }
+        if (waiter.latch.await(waitTimeoutMillis, MILLISECONDS)) {
+            return waiter;
+        }
+        synchronized (lock) {
+            if (waiter.granted) {
+                // granted just after the wait timed out
+                return waiter;
+            }
+            cancel(waiter);
+            return null;
+        }
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    int getTenantCount() {
+        synchronized (lock) {
+            return tenants.size();
+        }
+    }
+
+    int getQueueLength() {
+        synchronized (lock) {
+            return queueLength;
+        }
+    }
+
+    long getRejectedCount() {
+        synchronized (lock) {
+            return rejectedCount;
+        }
+    }
+
+    // only includes tenants that currently have collections waiting
+    Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> queueDepths = new HashMap<>();
+        synchronized (lock) {
+            for (Tenant tenant : tenants.values()) {
+                int queueDepth = 0;
+                for (int depth : tenant.queueDepths) {
+                    queueDepth += depth;
+                }
+                if (queueDepth > 0) {
+                    queueDepths.put(tenant.agentRollupId, queueDepth);
+                }
+            }
+        }
+        return queueDepths;
+    }
+
+    Map<String, long[]> getWaitTimeHistograms() {
+        Map<String, long[]> waitTimeHistograms = new HashMap<>();
+        synchronized (lock) {
+            for (Tenant tenant : tenants.values()) {
+                waitTimeHistograms.put(tenant.agentRollupId, tenant.waitTimeHistogram.clone());
+            }
+        }
+        return waitTimeHistograms;
+    }
+
+    @GuardedBy("lock")
+    private void evictIdleTenantsIfDue() {
+        long currentNanos = System.nanoTime();
+        if (currentNanos - lastEvictionNanos < tenantIdleExpirationNanos) {
+            return;
+        }
+        lastEvictionNanos = currentNanos;
+        Iterator<Tenant> i = tenants.values().iterator();
+        while (i.hasNext()) {
+            Tenant tenant = i.next();
+            if (tenant.outstanding == 0
+                    && currentNanos - tenant.idleSinceNanos >= tenantIdleExpirationNanos) {
+                // any of its queues that are still in activeTenantQueues have no waiters, and will
+                // be dropped from there the next time they are polled
+                i.remove();
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void enqueue(Waiter waiter) {
+        TenantQueue tenantQueue = waiter.tenant.queues.get(waiter.collectionType);
+        tenantQueue.waiters.add(waiter);
+        if (!tenantQueue.active) {
+            // a tenant that has been idle does not get to catch up on the virtual time it missed
+            tenantQueue.virtualTime = Math.max(tenantQueue.virtualTime,
+                    checkNotNull(virtualTimes.get(waiter.collectionType)));
+            activate(tenantQueue);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void activate(TenantQueue tenantQueue) {
+        tenantQueue.active = true;
+        tenantQueue.sequence = nextSequence++;
+        checkNotNull(activeTenantQueues.get(tenantQueue.collectionType)).add(tenantQueue);
+    }
+
+    @GuardedBy("lock")
+    private void dispatch() {
+        while (inFlight < maxInFlight) {
+            Waiter waiter = pollNext();
+            if (waiter == null) {
+                return;
+            }
+            inFlight++;
+            if (waiter.collectionType == CollectionType.TRACE) {
+                traceInFlight++;
+            }
+            Tenant tenant = waiter.tenant;
+            tenant.queueDepths[waiter.collectionType.ordinal()]--;
+            queueLength--;
+            long waitMillis = NANOSECONDS.toMillis(System.nanoTime() - waiter.startNanos);
+            tenant.waitTimeHistogram[getWaitTimeBucket(waitMillis)]++;
+            waiter.granted = true;
+            waiter.latch.countDown();
+        }
+    }
+
+    @GuardedBy("lock")
+    private @Nullable Waiter pollNext() {
+        for (CollectionType collectionType : CollectionType.values()) {
+            if (collectionType == CollectionType.TRACE && traceInFlight >= maxTraceInFlight) {
+                continue;
+            }
+            PriorityQueue<TenantQueue> queue =
+                    checkNotNull(activeTenantQueues.get(collectionType));
+            TenantQueue tenantQueue;
+            while ((tenantQueue = queue.poll()) != null) {
+                Waiter waiter = tenantQueue.waiters.poll();
+                if (waiter == null) {
+                    // all of its waiters timed out
+                    tenantQueue.active = false;
+                    continue;
+                }
+                virtualTimes.put(collectionType, tenantQueue.virtualTime);
+                tenantQueue.virtualTime += VIRTUAL_TIME_UNIT / tenantQueue.weight;
+                if (tenantQueue.waiters.isEmpty()) {
+                    tenantQueue.active = false;
+                } else {
+                    activate(tenantQueue);
+                }
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("lock")
+    private void cancel(Waiter waiter) {
+        Tenant tenant = waiter.tenant;
+        tenant.queueDepths[waiter.collectionType.ordinal()]--;
+        tenant.waitTimeHistogram[WAIT_TIME_BUCKET_LABELS.length - 1]++;
+        queueLength--;
+        rejectedCount++;
+        onTenantCollectionComplete(tenant);
+        if (!waiter.agent.backlog.remove(waiter)) {
+            // the waiter was holding the agent's turn
+            tenant.queues.get(waiter.collectionType).waiters.remove(waiter);
+            onAgentTurnComplete(waiter.agent);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void release(Waiter waiter) {
+        inFlight--;
+        if (waiter.collectionType == CollectionType.TRACE) {
+            traceInFlight--;
+        }
+        onTenantCollectionComplete(waiter.tenant);
+        onAgentTurnComplete(waiter.agent);
+        dispatch();
+    }
+
+    @GuardedBy("lock")
+    private void onTenantCollectionComplete(Tenant tenant) {
+        if (--tenant.outstanding == 0) {
+            tenant.idleSinceNanos = System.nanoTime();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void onAgentTurnComplete(Agent agent) {
+        Waiter next = agent.backlog.poll();
+        if (next == null) {
+            agent.busy = false;
+            agents.remove(agent.agentId);
+        } else {
+            enqueue(next);
+        }
+    }
+
+    private static int getWaitTimeBucket(long waitMillis) {
+        for (int i = 0; i < WAIT_TIME_BUCKET_MILLIS.length; i++) {
+            if (waitMillis < WAIT_TIME_BUCKET_MILLIS[i]) {
+                return i;
+            }
+        }
+        return WAIT_TIME_BUCKET_MILLIS.length;
+    }
+
+    // in priority order
+    public enum CollectionType {
+        AGGREGATE, GAUGE_VALUE, TRACE
+    }
+
+    public interface Permit {
+        void release();
+    }
+
+    private static class Tenant {
+
+        private final String agentRollupId;
+        private final Map<CollectionType, TenantQueue> queues = new EnumMap<>(CollectionType.class);
+
+        private final int[] queueDepths = new int[CollectionType.values().length];
+        private final long[] waitTimeHistogram = new long[WAIT_TIME_BUCKET_LABELS.length];
+
+        // number of collections either queued or in flight
+        private int outstanding;
+        private long idleSinceNanos;
+
+        private Tenant(String agentRollupId) {
+            this.agentRollupId = agentRollupId;
+            int weight = Math.max(1,
+                    Integer.getInteger("glowroot.internal.ingestion.weight." + agentRollupId, 1));
+            for (CollectionType collectionType : CollectionType.values()) {
+                queues.put(collectionType, new TenantQueue(collectionType, weight));
+            }
+        }
+    }
+
+    private static class TenantQueue {
+
+        private final CollectionType collectionType;
+        private final int weight;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+        private long virtualTime;
+        // used to break virtual time ties in the order that tenants became active
+        private long sequence;
+        private boolean active;
+
+        private TenantQueue(CollectionType collectionType, int weight) {
+            this.collectionType = collectionType;
+            this.weight = weight;
+        }
+    }
+
+    private static class Agent {
+
+        private final String agentId;
+        private final ArrayDeque<Waiter> backlog = new ArrayDeque<>();
+        // true while one of the agent's collections is either queued on its tenant or in flight
+        private boolean busy;
+
+        private Agent(String agentId) {
+            this.agentId = agentId;
+        }
+    }
+
+    private class Waiter implements Permit {
+
+        private final Tenant tenant;
+        private final Agent agent;
+        private final CollectionType collectionType;
+        private final long startNanos = System.nanoTime();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @GuardedBy("lock")
+        private boolean granted;
+
+        private Waiter(Tenant tenant, Agent agent, CollectionType collectionType) {
+            this.tenant = tenant;
+            this.agent = agent;
+            this.collectionType = collectionType;
+        }
+
+        @Override
+        public void release() {
+            synchronized (lock) {
+                IngestionScheduler.this.release(this);
+            }
+        }
+    }
+}
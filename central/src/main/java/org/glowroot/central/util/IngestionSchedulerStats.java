@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+
+class IngestionSchedulerStats implements IngestionSchedulerStatsMXBean {
+
+    private final IngestionScheduler ingestionScheduler;
+
+    IngestionSchedulerStats(IngestionScheduler ingestionScheduler) {
+        this.ingestionScheduler = ingestionScheduler;
+    }
+
+    @Override
+    public int getMaxInFlight() {
+        return ingestionScheduler.getMaxInFlight();
+    }
+
+    @Override
+    public int getInFlight() {
+        return ingestionScheduler.getInFlight();
+    }
+
+    @Override
+    public int getQueueLength() {
+        return ingestionScheduler.getQueueLength();
+    }
+
+    @Override
+    public int getTenantCount() {
+        return ingestionScheduler.getTenantCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return ingestionScheduler.getRejectedCount();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return ingestionScheduler.getQueueDepths();
+    }
+
+    @Override
+    public Map<String, long[]> getWaitTimeHistograms() {
+        return ingestionScheduler.getWaitTimeHistograms();
+    }
+
+    @Override
+    public List<String> getWaitTimeHistogramBuckets() {
+        return ImmutableList.copyOf(IngestionScheduler.WAIT_TIME_BUCKET_LABELS);
+    }
+}
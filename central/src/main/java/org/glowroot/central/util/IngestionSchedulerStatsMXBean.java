@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.Map;
+
+public interface IngestionSchedulerStatsMXBean {
+
+    int getMaxInFlight();
+    int getInFlight();
+    int getQueueLength();
+    // top-level agent rollups that have queued or in-flight collections, or that have been active
+    // recently (idle ones are eventually evicted)
+    int getTenantCount();
+    long getRejectedCount();
+    // keyed by top-level agent rollup id
+    Map<String, Integer> getQueueDepths();
+    // keyed by top-level agent rollup id, see getWaitTimeHistogramBuckets()
+    Map<String, long[]> getWaitTimeHistograms();
+    List<String> getWaitTimeHistogramBuckets();
+}
@@ -64,6 +64,14 @@ public class Session {
         }
     };
 
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<Boolean> inBatchedWriteThread = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
     // limit concurrent queries to avoid BusyPoolException
     // separate read/write query limits in order to give some preference to UI requests which are
     // primarily read queries, compared to the bulk of the concurrent queries which are primarily
@@ -81,6 +89,9 @@ public class Session {
     private final Queue<String> allTableNames = new ConcurrentLinkedQueue<>();
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
+    private final WriteBatcher writeBatcher;
+
+    private final IngestionScheduler ingestionScheduler;
 
     public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
             @Nullable ConsistencyLevel writeConsistencyLevel, int maxConcurrentQueries)
@@ -94,6 +105,12 @@ public class Session {
         rollupQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
+        writeBatcher = new WriteBatcher(wrappedSession, keyspaceName,
+                statement -> throttle(() -> wrappedSession.executeAsync(statement),
+                        writeQuerySemaphore),
+                cassandraWriteMetrics);
+        // each in-flight agent data collection needs at least one write query permit
+        ingestionScheduler = new IngestionScheduler(maxConcurrentQueries / 2);
 
         if (wrappedSession.getCluster().getMetadata().getKeyspace(keyspaceName) == null) {
             // "create keyspace if not exists" requires create permission on all keyspaces
@@ -112,12 +129,21 @@ public class Session {
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
         platformMBeanServer.registerMBean(new SemaphoreStats(rollupQuerySemaphore),
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
+        platformMBeanServer.registerMBean(
+                new WriteBatcherStats(writeBatcher, cassandraWriteMetrics),
+                ObjectName.getInstance("org.glowroot.central:type=WriteBatcher"));
+        platformMBeanServer.registerMBean(new IngestionSchedulerStats(ingestionScheduler),
+                ObjectName.getInstance("org.glowroot.central:type=IngestionScheduler"));
     }
 
     public CassandraWriteMetrics getCassandraWriteMetrics() {
         return cassandraWriteMetrics;
     }
 
+    public IngestionScheduler getIngestionScheduler() {
+        return ingestionScheduler;
+    }
+
     public PreparedStatement prepare(String query) {
         return wrappedSession.prepare(query);
     }
@@ -215,6 +241,12 @@ public class Session {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement.setConsistencyLevel(writeConsistencyLevel);
         }
+        if (inBatchedWriteThread.get() && !inRollupThread.get()) {
+            // for now, need to record metrics in the same method because CassandraWriteMetrics
+            // relies on some thread locals
+            cassandraWriteMetrics.recordMetrics(statement);
+            return writeBatcher.add(statement);
+        }
         return throttleWrite(() -> {
             // for now, need to record metrics in the same method because CassandraWriteMetrics
             // relies on some thread locals
@@ -269,6 +301,11 @@ public class Session {
                 ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
         platformMBeanServer.unregisterMBean(
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
+        platformMBeanServer.unregisterMBean(
+                ObjectName.getInstance("org.glowroot.central:type=WriteBatcher"));
+        platformMBeanServer.unregisterMBean(
+                ObjectName.getInstance("org.glowroot.central:type=IngestionScheduler"));
+        writeBatcher.close();
         wrappedSession.close();
         cassandraWriteMetrics.close();
     }
@@ -382,6 +419,11 @@ public class Session {
         inRollupThread.set(value);
     }
 
+    // writes from this thread are coalesced with writes from other threads into unlogged batches
+    public static void setInBatchedWriteThread(boolean value) {
+        inBatchedWriteThread.set(value);
+    }
+
     private ListenableFuture<ResultSet> throttleRead(DoUnderThrottle doUnderThrottle)
             throws Exception {
         if (inRollupThread.get()) {
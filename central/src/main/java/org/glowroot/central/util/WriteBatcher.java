@@ -0,0 +1,332 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// coalesces writes from many concurrent callers (e.g. thousands of agents all reporting aggregates
+// on the same minute boundary) into a smaller number of unlogged batches
+//
+// statements are grouped by the replicas that own their partition, so that each batch can be
+// routed by the token aware load balancing policy directly to a replica that owns every statement
+// in the batch, which avoids the coordinator fan-out that makes multi-partition unlogged batches
+// an anti-pattern
+//
+// when an unlogged batch of more than one statement is rejected as invalid (e.g. it exceeds the
+// server's batch_size_fail_threshold_in_kb, or one of its statements is invalid), the statements
+// are re-queued to be written individually, so that each caller only sees the outcome of its own
+// statement; any other failure (e.g. timeout or unavailable) fails every statement in the batch
+// since re-sending them individually would only multiply the load on an already struggling
+// cluster, and callers already handle write failures the same way with or without batching
+class WriteBatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBatcher.class);
+
+    private static final int MAX_BATCH_STATEMENTS =
+            Integer.getInteger("glowroot.internal.cassandra.writeBatch.maxStatements", 20);
+
+    // staying well under the default batch_size_fail_threshold_in_kb of 50
+    private static final int MAX_BATCH_BYTES =
+            Integer.getInteger("glowroot.internal.cassandra.writeBatch.maxBytes", 32 * 1024);
+
+    private static final int LINGER_MILLIS =
+            Integer.getInteger("glowroot.internal.cassandra.writeBatch.lingerMillis", 5);
+
+    // bounded in-flight window (from enqueue until the write is acknowledged), callers block once
+    // this is exhausted, which pushes back on the grpc threads instead of queueing unbounded
+    private static final int MAX_IN_FLIGHT_WRITES =
+            Integer.getInteger("glowroot.internal.cassandra.writeBatch.maxInFlight", 10000);
+
+    private static final int MAX_DRAIN = 1000;
+
+    private final com.datastax.driver.core.Session wrappedSession;
+    private final String keyspaceName;
+    private final WriteExecutor writeExecutor;
+    private final CassandraWriteMetrics cassandraWriteMetrics;
+    private final int maxInFlightWrites;
+    private final long lingerMillis;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlightWindow;
+
+    private final ExecutorService dispatchExecutor =
+            MoreExecutors2.newSingleThreadExecutor("Cassandra-Write-Batcher");
+
+    private volatile boolean closed;
+
+    WriteBatcher(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
+            WriteExecutor writeExecutor, CassandraWriteMetrics cassandraWriteMetrics) {
+        this(wrappedSession, keyspaceName, writeExecutor, cassandraWriteMetrics,
+                MAX_IN_FLIGHT_WRITES, LINGER_MILLIS);
+    }
+
+    @VisibleForTesting
+    WriteBatcher(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
+            WriteExecutor writeExecutor, CassandraWriteMetrics cassandraWriteMetrics,
+            int maxInFlightWrites, long lingerMillis) {
+        this.wrappedSession = wrappedSession;
+        this.keyspaceName = keyspaceName;
+        this.writeExecutor = writeExecutor;
+        this.cassandraWriteMetrics = cassandraWriteMetrics;
+        this.maxInFlightWrites = maxInFlightWrites;
+        this.lingerMillis = lingerMillis;
+        inFlightWindow = new Semaphore(maxInFlightWrites);
+        dispatchExecutor.execute(this::dispatchLoop);
+    }
+
+    ListenableFuture<ResultSet> add(Statement statement) throws InterruptedException {
+        inFlightWindow.acquire();
+        PendingWrite pendingWrite = new PendingWrite(statement);
+        cassandraWriteMetrics.incrementWriteBatchQueueDepth();
+        queue.add(pendingWrite);
+        return pendingWrite.future;
+    }
+
+    int getInFlightWrites() {
+        return maxInFlightWrites - inFlightWindow.availablePermits();
+    }
+
+    void close() throws InterruptedException {
+        closed = true;
+        // this shouldn't require shutdownNow()
+        dispatchExecutor.shutdown();
+        if (!dispatchExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for Cassandra write batcher thread to terminate");
+        }
+    }
+
+    private void dispatchLoop() {
+        while (!closed) {
+            try {
+                List<PendingWrite> pendingWrites = takeNextPendingWrites();
+                if (!pendingWrites.isEmpty()) {
+                    cassandraWriteMetrics.decrementWriteBatchQueueDepth(pendingWrites.size());
+                    dispatch(pendingWrites);
+                }
+            } catch (InterruptedException e) {
+                logger.debug(e.getMessage(), e);
+                return;
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+        // fail anything left behind so that callers are not left waiting
+        List<PendingWrite> pendingWrites = new ArrayList<>();
+        queue.drainTo(pendingWrites);
+        cassandraWriteMetrics.decrementWriteBatchQueueDepth(pendingWrites.size());
+        for (PendingWrite pendingWrite : pendingWrites) {
+            pendingWrite.fail(new IllegalStateException("Cassandra write batcher is closed"));
+        }
+    }
+
+    private List<PendingWrite> takeNextPendingWrites() throws InterruptedException {
+        List<PendingWrite> pendingWrites = new ArrayList<>();
+        PendingWrite first = queue.poll(1, SECONDS);
+        if (first == null) {
+            return pendingWrites;
+        }
+        pendingWrites.add(first);
+        // linger briefly in order to coalesce writes from other callers
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(lingerMillis);
+        while (pendingWrites.size() < MAX_DRAIN) {
+            queue.drainTo(pendingWrites, MAX_DRAIN - pendingWrites.size());
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || pendingWrites.size() >= MAX_DRAIN) {
+                break;
+            }
+            PendingWrite next = queue.poll(remaining, NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            pendingWrites.add(next);
+        }
+        return pendingWrites;
+    }
+
+    private void dispatch(List<PendingWrite> pendingWrites) throws Exception {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        ProtocolVersion protocolVersion =
+                configuration.getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = configuration.getCodecRegistry();
+        Metadata metadata = wrappedSession.getCluster().getMetadata();
+        String quotedKeyspaceName = Metadata.quote(keyspaceName);
+
+        Map<Object, List<PendingWrite>> groups = new LinkedHashMap<>();
+        for (PendingWrite pendingWrite : pendingWrites) {
+            Object groupKey = getGroupKey(pendingWrite, protocolVersion, codecRegistry, metadata,
+                    quotedKeyspaceName);
+            groups.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(pendingWrite);
+        }
+        for (List<PendingWrite> group : groups.values()) {
+            List<PendingWrite> batch = new ArrayList<>();
+            int batchBytes = 0;
+            for (PendingWrite pendingWrite : group) {
+                int bytes = pendingWrite.statement.requestSizeInBytes(protocolVersion,
+                        codecRegistry);
+                if (!batch.isEmpty() && (batch.size() >= MAX_BATCH_STATEMENTS
+                        || batchBytes + bytes > MAX_BATCH_BYTES)) {
+                    execute(batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(pendingWrite);
+                batchBytes += bytes;
+            }
+            execute(batch);
+        }
+    }
+
+    private void execute(List<PendingWrite> batch) throws Exception {
+        Statement statement;
+        if (batch.size() == 1) {
+            statement = batch.get(0).statement;
+        } else {
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            for (PendingWrite pendingWrite : batch) {
+                batchStatement.add(pendingWrite.statement);
+            }
+            // consistency level of the individual statements is ignored inside of a batch
+            batchStatement.setConsistencyLevel(batch.get(0).statement.getConsistencyLevel());
+            statement = batchStatement;
+        }
+        cassandraWriteMetrics.recordWriteBatch();
+        ListenableFuture<ResultSet> future;
+        try {
+            future = writeExecutor.execute(statement);
+        } catch (Throwable t) {
+            for (PendingWrite pendingWrite : batch) {
+                pendingWrite.fail(t);
+            }
+            if (t instanceof InterruptedException) {
+                throw (InterruptedException) t;
+            }
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                for (PendingWrite pendingWrite : batch) {
+                    pendingWrite.succeed(result);
+                }
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                if (batch.size() > 1 && t instanceof InvalidQueryException) {
+                    logger.debug(t.getMessage(), t);
+                    requeueIndividually(batch);
+                    return;
+                }
+                for (PendingWrite pendingWrite : batch) {
+                    pendingWrite.fail(t);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void requeueIndividually(List<PendingWrite> batch) {
+        // this is called from the driver's callback thread, so hand the statements back to the
+        // dispatch thread instead of executing them here (execution may block on throttling)
+        for (PendingWrite pendingWrite : batch) {
+            pendingWrite.individual = true;
+            cassandraWriteMetrics.incrementWriteBatchQueueDepth();
+            queue.add(pendingWrite);
+        }
+    }
+
+    private static Object getGroupKey(PendingWrite pendingWrite, ProtocolVersion protocolVersion,
+            CodecRegistry codecRegistry, Metadata metadata, String quotedKeyspaceName) {
+        if (pendingWrite.individual) {
+            return pendingWrite;
+        }
+        ByteBuffer routingKey =
+                pendingWrite.statement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            // cannot route, so don't batch with anything else
+            return pendingWrite;
+        }
+        Set<Host> replicas = metadata.getReplicas(quotedKeyspaceName, routingKey);
+        if (replicas.isEmpty()) {
+            // token metadata not available, fall back to only batching within the same partition
+            return routingKey;
+        }
+        return replicas;
+    }
+
+    interface WriteExecutor {
+        ListenableFuture<ResultSet> execute(Statement statement) throws Exception;
+    }
+
+    private class PendingWrite {
+
+        private final Statement statement;
+        private final SettableFuture<ResultSet> future = SettableFuture.create();
+        private final long startNanos = System.nanoTime();
+
+        // set once the batch containing this statement has been rejected as invalid
+        private volatile boolean individual;
+
+        private PendingWrite(Statement statement) {
+            this.statement = statement;
+        }
+
+        private void succeed(ResultSet result) {
+            complete();
+            future.set(result);
+        }
+
+        private void fail(Throwable t) {
+            complete();
+            future.setException(t);
+        }
+
+        private void complete() {
+            inFlightWindow.release();
+            cassandraWriteMetrics.recordBatchedWriteLatency(System.nanoTime() - startNanos);
+        }
+    }
+}
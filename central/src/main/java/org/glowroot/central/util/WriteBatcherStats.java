@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+class WriteBatcherStats implements WriteBatcherStatsMXBean {
+
+    private final WriteBatcher writeBatcher;
+    private final CassandraWriteMetrics cassandraWriteMetrics;
+
+    WriteBatcherStats(WriteBatcher writeBatcher, CassandraWriteMetrics cassandraWriteMetrics) {
+        this.writeBatcher = writeBatcher;
+        this.cassandraWriteMetrics = cassandraWriteMetrics;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return cassandraWriteMetrics.getWriteBatchQueueDepth();
+    }
+
+    @Override
+    public int getInFlightWrites() {
+        return writeBatcher.getInFlightWrites();
+    }
+
+    @Override
+    public long getBatchedWriteCount() {
+        return cassandraWriteMetrics.getBatchedWriteCount();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return cassandraWriteMetrics.getWriteBatchCount();
+    }
+
+    @Override
+    public double getAverageWriteLatencyMillis() {
+        long count = cassandraWriteMetrics.getBatchedWriteCount();
+        if (count == 0) {
+            return 0;
+        }
+        return cassandraWriteMetrics.getBatchedWriteTotalLatencyNanos()
+                / (double) MILLISECONDS.toNanos(count);
+    }
+}
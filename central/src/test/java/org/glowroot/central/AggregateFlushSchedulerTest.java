@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateFlushSchedulerTest {
+
+    @Test
+    public void shouldAssignStableSlot() {
+        // given
+        AggregateFlushScheduler aggregateFlushScheduler = new AggregateFlushScheduler();
+        // when
+        int offset1 = aggregateFlushScheduler.getFlushOffsetMillis("abc");
+        int offset2 = aggregateFlushScheduler.getFlushOffsetMillis("abc");
+        // then
+        assertThat(offset1).isEqualTo(offset2);
+        assertThat(offset1).isBetween(1, 10000);
+    }
+
+    @Test
+    public void shouldSpreadSlots() {
+        // given
+        AggregateFlushScheduler aggregateFlushScheduler = new AggregateFlushScheduler();
+        int[] countPerSecond = new int[30];
+        // when
+        for (int i = 0; i < 3000; i++) {
+            aggregateFlushScheduler.getFlushOffsetMillis("agent-" + i);
+        }
+        for (int i = 0; i < 3000; i++) {
+            int offset = aggregateFlushScheduler.getFlushOffsetMillis("agent-" + i);
+            assertThat(offset).isBetween(1, 30000);
+            countPerSecond[(offset - 1) / 1000]++;
+        }
+        // then
+        for (int count : countPerSecond) {
+            assertThat(count).isBetween(50, 150);
+        }
+    }
+
+    @Test
+    public void shouldGrowWindowWithAgentCount() {
+        assertThat(AggregateFlushScheduler.getWindowMillis(0)).isEqualTo(10000);
+        assertThat(AggregateFlushScheduler.getWindowMillis(100)).isEqualTo(10000);
+        assertThat(AggregateFlushScheduler.getWindowMillis(1500)).isEqualTo(15000);
+        assertThat(AggregateFlushScheduler.getWindowMillis(1501)).isEqualTo(16000);
+        assertThat(AggregateFlushScheduler.getWindowMillis(2000)).isEqualTo(20000);
+        assertThat(AggregateFlushScheduler.getWindowMillis(100000)).isEqualTo(30000);
+    }
+}
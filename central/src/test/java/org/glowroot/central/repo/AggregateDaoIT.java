@@ -82,6 +82,7 @@ public class AggregateDaoIT {
     private static ActiveAgentDao activeAgentDao;
     private static FullQueryTextDao fullQueryTextDao;
     private static AggregateDao aggregateDao;
+    private static AggregateDaoImpl aggregateDaoImpl;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -106,13 +107,15 @@ public class AggregateDaoIT {
                 new RollupLevelService(configRepository, Clock.systemClock());
         activeAgentDao = new ActiveAgentDao(session, agentDisplayDao, agentConfigDao,
                 configRepository, rollupLevelService, Clock.systemClock());
+        aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, asyncExecutor, Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
-                new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, asyncExecutor, Clock.systemClock()));
+                aggregateDaoImpl);
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        aggregateDaoImpl.close();
         fullQueryTextDao.close();
         asyncExecutor.shutdown();
         session.close();
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.glowroot.central.repo.IncrementalRollup.PartialRollup;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+// measures the in-memory cost of incremental rollups for one 5 minute rollup interval of simulated
+// agents, each reporting one aggregate per minute, grouped under parent agent rollups: every
+// aggregate is folded into the level 1 rollup of its agent (if enabled) and into the level 0
+// rollup of its parent agent rollup, and the complete partial rollups are then written out (to
+// proto, as they would be before being stored)
+//
+// the rollup that this replaces re-reads the rows of the prior rollup level from cassandra, which
+// is not included here, so this is the overhead added to the store path (and the partial rollups
+// retained per interval are reported by the IncrementalRollup mbean)
+//
+// this lives in central (instead of agent/benchmarks, which does not depend on central), and can be
+// run from the test classpath using the main method below
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class IncrementalRollupBenchmark {
+
+    private static final List<Long> ROLLUP_INTERVAL_MILLIS =
+            ImmutableList.of(60000L, 300000L, 1800000L, 14400000L);
+
+    private static final int AGENTS_PER_PARENT = 10;
+
+    @Param({"100", "1000"})
+    private int agentCount;
+
+    @Param({"10", "100"})
+    private int transactionNameCount;
+
+    // 0 is the default, only rolling up from child agent rollups incrementally
+    @Param({"0", "1"})
+    private int maxRollupLevel;
+
+    private List<String> agentIds;
+    private List<String> parentAgentRollupIds;
+    private List<ImmutableSetMultimap<String, String>> childAgentRollupIds;
+    private List<OldAggregatesByType> aggregatesByTypeList;
+    private List<Aggregate.SharedQueryText> sharedQueryTexts;
+    private long rollupCaptureTime;
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(IncrementalRollupBenchmark.class.getSimpleName())
+                .forks(1)
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        agentIds = new ArrayList<>();
+        parentAgentRollupIds = new ArrayList<>();
+        childAgentRollupIds = new ArrayList<>();
+        for (int i = 0; i < agentCount; i += AGENTS_PER_PARENT) {
+            String parentAgentRollupId = "parent" + i + "::";
+            parentAgentRollupIds.add(parentAgentRollupId);
+            ImmutableSetMultimap.Builder<String, String> children = ImmutableSetMultimap.builder();
+            for (int j = i; j < Math.min(i + AGENTS_PER_PARENT, agentCount); j++) {
+                String agentId = parentAgentRollupId + "agent" + j;
+                agentIds.add(agentId);
+                children.put("Web", agentId);
+            }
+            childAgentRollupIds.add(children.build());
+        }
+        sharedQueryTexts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
+                    .setFullText("select x from y where z = " + i)
+                    .build());
+        }
+        OldAggregatesByType.Builder builder = OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(createAggregate(transactionNameCount));
+        for (int i = 0; i < transactionNameCount; i++) {
+            builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                    .setTransactionName("/abc" + i)
+                    .setAggregate(createAggregate(1)));
+        }
+        aggregatesByTypeList = ImmutableList.of(builder.build());
+        rollupCaptureTime = CaptureTimes.getRollup(System.currentTimeMillis(), 300000);
+    }
+
+    @Benchmark
+    public int execute() {
+        IncrementalRollup incrementalRollup = new IncrementalRollup(ROLLUP_INTERVAL_MILLIS,
+                maxRollupLevel, Integer.MAX_VALUE, Clock.systemClock());
+        int count = 0;
+        for (long captureTime = rollupCaptureTime - 240000; captureTime <= rollupCaptureTime;
+                captureTime += 60000) {
+            for (String agentId : agentIds) {
+                incrementalRollup.fold(agentId, 1, captureTime, aggregatesByTypeList,
+                        sharedQueryTexts, 500, 500);
+                incrementalRollup.foldFromChild(agentId.substring(0, agentId.indexOf("::") + 2),
+                        agentId, captureTime, aggregatesByTypeList, sharedQueryTexts, 500, 500);
+            }
+            for (int i = 0; i < parentAgentRollupIds.size(); i++) {
+                count += writeOut(incrementalRollup.removeIfCompleteFromChildren(
+                        parentAgentRollupIds.get(i), captureTime, childAgentRollupIds.get(i)));
+            }
+        }
+        if (incrementalRollup.isIncremental(1)) {
+            for (String agentId : agentIds) {
+                count += writeOut(incrementalRollup.removeIfComplete(agentId, 1,
+                        rollupCaptureTime, ImmutableSet.of("Web")));
+            }
+        }
+        if (count != parentAgentRollupIds.size() * 5
+                + (incrementalRollup.isIncremental(1) ? agentIds.size() : 0)) {
+            throw new IllegalStateException("Unexpected incomplete partial rollup");
+        }
+        return count;
+    }
+
+    private static int writeOut(@Nullable PartialRollup partialRollup) {
+        if (partialRollup == null) {
+            return 0;
+        }
+        partialRollup.toProto(new ArrayList<Aggregate.SharedQueryText>());
+        return 1;
+    }
+
+    private static Aggregate createAggregate(int transactionCount) {
+        Aggregate.Builder builder = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000000L * transactionCount)
+                .setTransactionCount(transactionCount)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(1000000L * transactionCount)
+                        .setCount(transactionCount)
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc query")
+                                .setTotalNanos(500000L * transactionCount)
+                                .setCount(transactionCount)));
+        for (int i = 0; i < 10; i++) {
+            builder.addQuery(Aggregate.Query.newBuilder()
+                    .setType("SQL")
+                    .setSharedQueryTextIndex(i)
+                    .setTotalDurationNanos(50000L * transactionCount)
+                    .setExecutionCount(transactionCount));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.IncrementalRollup.PartialRollup;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IncrementalRollupTest {
+
+    private static final List<Long> ROLLUP_INTERVAL_MILLIS =
+            ImmutableList.of(60000L, 300000L, 1800000L, 14400000L);
+
+    private Clock clock;
+    private IncrementalRollup incrementalRollup;
+
+    @Before
+    public void beforeEachTest() {
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(300000L);
+        incrementalRollup = new IncrementalRollup(ROLLUP_INTERVAL_MILLIS, 2, 3, clock);
+    }
+
+    @Test
+    public void shouldCompleteAfterAllPriorCaptureTimes() {
+        // given
+        for (long captureTime = 60000; captureTime <= 300000; captureTime += 60000) {
+            fold("a", 1, captureTime);
+        }
+        // when
+        PartialRollup partialRollup =
+                incrementalRollup.removeIfComplete("a", 1, 300000, ImmutableSet.of("Web"));
+        // then
+        assertThat(partialRollup).isNotNull();
+        assertThat(partialRollup.getCaptureTime()).isEqualTo(300000);
+        List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        List<OldAggregatesByType> aggregatesByTypeList = partialRollup.toProto(sharedQueryTexts);
+        assertThat(aggregatesByTypeList).hasSize(1);
+        OldAggregatesByType aggregatesByType = aggregatesByTypeList.get(0);
+        assertThat(aggregatesByType.getTransactionType()).isEqualTo("Web");
+        Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(10);
+        assertThat(overallAggregate.getErrorCount()).isEqualTo(5);
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(5000);
+        assertThat(overallAggregate.getQueryList()).hasSize(1);
+        assertThat(overallAggregate.getQuery(0).getExecutionCount()).isEqualTo(15);
+        assertThat(sharedQueryTexts.get(overallAggregate.getQuery(0).getSharedQueryTextIndex())
+                .getFullText()).isEqualTo("select 1");
+        assertThat(aggregatesByType.getTransactionAggregateList()).hasSize(1);
+        assertThat(aggregatesByType.getTransactionAggregate(0).getAggregate()
+                .getTransactionCount()).isEqualTo(10);
+        assertThat(incrementalRollup.getPartialRollupCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotCompleteWithMissingPriorCaptureTime() {
+        // given
+        for (long captureTime = 60000; captureTime < 300000; captureTime += 60000) {
+            fold("a", 1, captureTime);
+        }
+        // when
+        PartialRollup partialRollup =
+                incrementalRollup.removeIfComplete("a", 1, 300000, ImmutableSet.of("Web"));
+        // then
+        assertThat(partialRollup).isNull();
+        assertThat(incrementalRollup.getPartialRollupCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotCompleteWithDuplicatePriorCaptureTime() {
+        // given
+        for (long captureTime = 60000; captureTime <= 300000; captureTime += 60000) {
+            fold("a", 1, captureTime);
+        }
+        fold("a", 1, 120000);
+        // when
+        PartialRollup partialRollup =
+                incrementalRollup.removeIfComplete("a", 1, 300000, ImmutableSet.of("Web"));
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotCompleteWithMissingTransactionType() {
+        // given
+        for (long captureTime = 60000; captureTime <= 300000; captureTime += 60000) {
+            fold("a", 1, captureTime);
+        }
+        // when
+        PartialRollup partialRollup = incrementalRollup.removeIfComplete("a", 1, 300000,
+                ImmutableSet.of("Web", "Background"));
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotFoldAboveMaxRollupLevel() {
+        // when
+        fold("a", 3, 1800000);
+        // then
+        assertThat(incrementalRollup.getPartialRollupCount()).isZero();
+    }
+
+    @Test
+    public void shouldCompleteFromChildren() {
+        // given
+        incrementalRollup.foldFromChild("parent::", "a", 60000, ImmutableList.of(aggregates()),
+                sharedQueryTexts(), 100, 100);
+        incrementalRollup.foldFromChild("parent::", "b", 60000, ImmutableList.of(aggregates()),
+                sharedQueryTexts(), 100, 100);
+        // when
+        PartialRollup partialRollup = incrementalRollup.removeIfCompleteFromChildren("parent::",
+                60000, ImmutableSetMultimap.of("Web", "a", "Web", "b"));
+        // then
+        assertThat(partialRollup).isNotNull();
+        List<OldAggregatesByType> aggregatesByTypeList =
+                partialRollup.toProto(new ArrayList<Aggregate.SharedQueryText>());
+        assertThat(aggregatesByTypeList.get(0).getOverallAggregate().getTransactionCount())
+                .isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotCompleteFromChildrenWithMissingChild() {
+        // given
+        incrementalRollup.foldFromChild("parent::", "a", 60000, ImmutableList.of(aggregates()),
+                sharedQueryTexts(), 100, 100);
+        // when
+        PartialRollup partialRollup = incrementalRollup.removeIfCompleteFromChildren("parent::",
+                60000, ImmutableSetMultimap.of("Web", "a", "Web", "b"));
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotRetainMoreThanMaxPartialRollups() {
+        // given
+        fold("a", 1, 60000);
+        fold("b", 1, 60000);
+        fold("c", 1, 60000);
+        // when
+        for (long captureTime = 60000; captureTime <= 300000; captureTime += 60000) {
+            fold("d", 1, captureTime);
+        }
+        fold("a", 1, 120000);
+        // then
+        assertThat(incrementalRollup.getPartialRollupCount()).isEqualTo(3);
+        assertThat(incrementalRollup.getRejectedCount()).isEqualTo(5);
+        assertThat(incrementalRollup.removeIfComplete("d", 1, 300000, ImmutableSet.of("Web")))
+                .isNull();
+        assertThat(incrementalRollup.getIncompleteCount()).isEqualTo(1);
+        assertThat(incrementalRollup.getCompleteCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotUsePartialRollupCreatedAfterReachingMaxPartialRollups() {
+        // given
+        fold("a", 1, 60000);
+        fold("b", 1, 60000);
+        fold("c", 1, 60000);
+        fold("d", 1, 60000);
+        incrementalRollup.removeIfComplete("a", 1, 300000, ImmutableSet.of("Web"));
+        // when
+        for (long captureTime = 120000; captureTime <= 300000; captureTime += 60000) {
+            fold("d", 1, captureTime);
+        }
+        // then
+        assertThat(incrementalRollup.removeIfComplete("d", 1, 300000, ImmutableSet.of("Web")))
+                .isNull();
+    }
+
+    @Test
+    public void shouldExpirePartialRollups() {
+        // given
+        fold("a", 1, 60000);
+        fold("b", 1, 60000);
+        fold("c", 1, 60000);
+        // when
+        when(clock.currentTimeMillis()).thenReturn(300000L + HOURS.toMillis(2));
+        fold("d", 1, HOURS.toMillis(2));
+        // then
+        assertThat(incrementalRollup.getExpiredCount()).isEqualTo(3);
+        assertThat(incrementalRollup.getPartialRollupCount()).isEqualTo(1);
+        assertThat(incrementalRollup.getRejectedCount()).isZero();
+    }
+
+    private void fold(String agentRollupId, int rollupLevel, long priorCaptureTime) {
+        incrementalRollup.fold(agentRollupId, rollupLevel, priorCaptureTime,
+                ImmutableList.of(aggregates()), sharedQueryTexts(), 100, 100);
+    }
+
+    private static OldAggregatesByType aggregates() {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000)
+                .setTransactionCount(2)
+                .setErrorCount(1)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(1000)
+                        .setCount(2))
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(500)
+                        .setExecutionCount(3))
+                .build();
+        return OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build();
+    }
+
+    private static List<Aggregate.SharedQueryText> sharedQueryTexts() {
+        return ImmutableList.of(Aggregate.SharedQueryText.newBuilder()
+                .setFullText("select 1")
+                .build());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.central.repo.TimeSeriesChunk.Point;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimeSeriesChunkTest {
+
+    @Test
+    public void shouldRoundTripRegularSeries() {
+        // given
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            points.add(new Point(1500000000000L + i * 60000L, 100 + i % 7, i % 3));
+        }
+        // when
+        ByteBuffer buffer = TimeSeriesChunk.encode(points, 2);
+        List<Point> decoded = TimeSeriesChunk.decode(buffer, 2);
+        // then
+        assertSamePoints(decoded, points);
+        // one row per capture time would be at least 24 bytes per point
+        assertThat(buffer.remaining()).isLessThan(120 * 8);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularSeries() {
+        // given
+        List<Point> points = ImmutableList.of(
+                new Point(1000, 1.5, Double.NaN),
+                new Point(1010, -2.25, 0),
+                new Point(1011, Double.MAX_VALUE, Double.MIN_VALUE),
+                new Point(5000, 0, Long.MAX_VALUE),
+                new Point(4000, 0, -1),
+                new Point(Long.MAX_VALUE / 2, 42, 42),
+                new Point(Long.MAX_VALUE / 2 + 300, Double.NaN, 42));
+        // when
+        List<Point> decoded = TimeSeriesChunk.decode(TimeSeriesChunk.encode(points, 2), 2);
+        // then
+        assertSamePoints(decoded, points);
+    }
+
+    @Test
+    public void shouldRoundTripEmptyAndSinglePoint() {
+        // given
+        List<Point> empty = ImmutableList.of();
+        List<Point> single = ImmutableList.of(new Point(60000, 7, Double.NaN));
+        // when
+        List<Point> decodedEmpty = TimeSeriesChunk.decode(TimeSeriesChunk.encode(empty, 2), 2);
+        List<Point> decodedSingle = TimeSeriesChunk.decode(TimeSeriesChunk.encode(single, 2), 2);
+        // then
+        assertThat(decodedEmpty).isEmpty();
+        assertSamePoints(decodedSingle, single);
+    }
+
+    @Test
+    public void shouldMergeSegmentsInCaptureTimeOrderWithLastWriteWinning() {
+        // given
+        List<ByteBuffer> segments = ImmutableList.of(
+                TimeSeriesChunk.encode(ImmutableList.of(new Point(120000, 2, 0)), 2),
+                TimeSeriesChunk.encode(ImmutableList.of(new Point(60000, 1, 0)), 2),
+                TimeSeriesChunk.encode(ImmutableList.of(new Point(120000, 3, 1)), 2));
+        // when
+        List<Point> merged = TimeSeriesChunk.merge(segments, 2);
+        // then
+        assertSamePoints(merged,
+                ImmutableList.of(new Point(60000, 1, 0), new Point(120000, 3, 1)));
+    }
+
+    @Test
+    public void shouldRoundTripBlobs() {
+        // given
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            points.add(new Point(1500000000000L + i * 60000L, new double[] {100 + i % 7, i % 3},
+                    new ByteBuffer[] {blob("a" + i), blob(i % 2 == 0 ? "" : "b" + i)}));
+        }
+        // when
+        List<Point> decoded =
+                TimeSeriesChunk.decode(TimeSeriesChunk.encode(points, 2, 2), 2, 2);
+        // then
+        assertSamePoints(decoded, points);
+        for (int i = 0; i < 120; i++) {
+            assertThat(decoded.get(i).blob(0)).isEqualTo(blob("a" + i));
+            assertThat(decoded.get(i).blob(1)).isEqualTo(blob(i % 2 == 0 ? "" : "b" + i));
+        }
+    }
+
+    @Test
+    public void shouldMergeSegmentsWithBlobs() {
+        // given
+        List<ByteBuffer> segments = ImmutableList.of(
+                TimeSeriesChunk.encode(ImmutableList.of(
+                        new Point(60000, new double[] {1, 0}, new ByteBuffer[] {blob("x")}),
+                        new Point(120000, new double[] {2, 0}, new ByteBuffer[] {blob("y")})),
+                        2, 1),
+                TimeSeriesChunk.encode(ImmutableList.of(
+                        new Point(120000, new double[] {3, 1}, new ByteBuffer[] {blob("z")})),
+                        2, 1));
+        // when
+        List<Point> merged = TimeSeriesChunk.merge(segments, 2, 1);
+        // then
+        assertSamePoints(merged, ImmutableList.of(new Point(60000, 1, 0), new Point(120000, 3, 1)));
+        assertThat(merged.get(0).blob(0)).isEqualTo(blob("x"));
+        assertThat(merged.get(1).blob(0)).isEqualTo(blob("z"));
+    }
+
+    private static ByteBuffer blob(String value) {
+        return ByteBuffer.wrap(value.getBytes(UTF_8));
+    }
+
+    private static void assertSamePoints(List<Point> actual, List<Point> expected) {
+        assertThat(actual).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).captureTime()).isEqualTo(expected.get(i).captureTime());
+            for (int j = 0; j < 2; j++) {
+                assertThat(Double.doubleToLongBits(actual.get(i).value(j)))
+                        .isEqualTo(Double.doubleToLongBits(expected.get(i).value(j)));
+            }
+        }
+    }
+}
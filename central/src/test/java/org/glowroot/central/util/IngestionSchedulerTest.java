@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Stopwatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.IngestionScheduler.CollectionType;
+import org.glowroot.central.util.IngestionScheduler.Permit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestionSchedulerTest {
+
+    private ExecutorService executor;
+    private List<String> grants;
+    private Map<String, Permit> permits;
+
+    @Before
+    public void beforeEach() {
+        executor = Executors.newCachedThreadPool();
+        grants = Collections.synchronizedList(new ArrayList<String>());
+        permits = new ConcurrentHashMap<>();
+    }
+
+    @After
+    public void afterEach() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldPrioritizeAggregatesOverTraces() throws Exception {
+        // given
+        IngestionScheduler ingestionScheduler = new IngestionScheduler(1, MINUTES.toMillis(1));
+        Future<Permit> first = submit(ingestionScheduler, "a", "a1", CollectionType.TRACE);
+        Permit permit = first.get(10, SECONDS);
+        Future<Permit> trace = submit(ingestionScheduler, "b", "b1", CollectionType.TRACE);
+        waitForQueueLength(ingestionScheduler, 1);
+        Future<Permit> aggregate = submit(ingestionScheduler, "c", "c1", CollectionType.AGGREGATE);
+        waitForQueueLength(ingestionScheduler, 2);
+        // when
+        permit.release();
+        aggregate.get(10, SECONDS).release();
+        trace.get(10, SECONDS).release();
+        // then
+        assertThat(grants).containsExactly("a1", "c1", "b1");
+    }
+
+    @Test
+    public void shouldShareFairlyAcrossAgentRollups() throws Exception {
+        // given
+        IngestionScheduler ingestionScheduler = new IngestionScheduler(1, MINUTES.toMillis(1));
+        Permit permit =
+                submit(ingestionScheduler, "x", "x1", CollectionType.AGGREGATE).get(10, SECONDS);
+        submit(ingestionScheduler, "a", "a1", CollectionType.AGGREGATE);
+        waitForQueueLength(ingestionScheduler, 1);
+        submit(ingestionScheduler, "a", "a2", CollectionType.AGGREGATE);
+        waitForQueueLength(ingestionScheduler, 2);
+        submit(ingestionScheduler, "a", "a3", CollectionType.AGGREGATE);
+        waitForQueueLength(ingestionScheduler, 3);
+        submit(ingestionScheduler, "b", "b1", CollectionType.AGGREGATE);
+        waitForQueueLength(ingestionScheduler, 4);
+        // when
+        permit.release();
+        for (int i = 0; i < 4; i++) {
+            waitForGrantCount(i + 2).release();
+        }
+        // then
+        assertThat(grants).containsExactly("x1", "a1", "b1", "a2", "a3");
+    }
+
+    @Test
+    public void shouldOnlyHaveOneCollectionInFlightPerAgent() throws Exception {
+        // given
+        IngestionScheduler ingestionScheduler = new IngestionScheduler(10, MINUTES.toMillis(1));
+        Permit permit =
+                submit(ingestionScheduler, "a", "a1", CollectionType.AGGREGATE).get(10, SECONDS);
+        // when
+        Future<Permit> second = submit(ingestionScheduler, "a", "a1", CollectionType.TRACE);
+        waitForQueueLength(ingestionScheduler, 1);
+        // then
+        assertThat(ingestionScheduler.getInFlight()).isEqualTo(1);
+        permit.release();
+        second.get(10, SECONDS).release();
+        assertThat(ingestionScheduler.getInFlight()).isEqualTo(0);
+        assertThat(ingestionScheduler.getQueueLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldRejectAfterTimeout() throws Exception {
+        // given
+        IngestionScheduler ingestionScheduler = new IngestionScheduler(1, 100);
+        Permit permit =
+                submit(ingestionScheduler, "a", "a1", CollectionType.AGGREGATE).get(10, SECONDS);
+        // when
+        Permit rejected = ingestionScheduler.acquire("b", "b1", CollectionType.AGGREGATE);
+        // then
+        assertThat(rejected).isNull();
+        assertThat(ingestionScheduler.getRejectedCount()).isEqualTo(1);
+        assertThat(ingestionScheduler.getQueueLength()).isEqualTo(0);
+        assertThat(ingestionScheduler.getWaitTimeHistograms().get("b")[6]).isEqualTo(1);
+        // and the scheduler is still usable
+        permit.release();
+        ingestionScheduler.acquire("b", "b1", CollectionType.AGGREGATE).release();
+    }
+
+    @Test
+    public void shouldEvictIdleTenants() throws Exception {
+        // given
+        IngestionScheduler ingestionScheduler =
+                new IngestionScheduler(10, MINUTES.toMillis(1), 100);
+        ingestionScheduler.acquire("a", "a1", CollectionType.AGGREGATE).release();
+        ingestionScheduler.acquire("b", "b1", CollectionType.TRACE).release();
+        Permit permit = ingestionScheduler.acquire("c", "c1", CollectionType.AGGREGATE);
+        assertThat(ingestionScheduler.getTenantCount()).isEqualTo(3);
+        // when
+        MILLISECONDS.sleep(200);
+        ingestionScheduler.acquire("d", "d1", CollectionType.AGGREGATE).release();
+        // then
+        // "c" is not idle since it still has a collection in flight
+        assertThat(ingestionScheduler.getTenantCount()).isEqualTo(2);
+        assertThat(ingestionScheduler.getWaitTimeHistograms()).containsOnlyKeys("c", "d");
+        // and an evicted tenant is re-created when it reports again
+        ingestionScheduler.acquire("a", "a1", CollectionType.AGGREGATE).release();
+        assertThat(ingestionScheduler.getTenantCount()).isEqualTo(3);
+        permit.release();
+        assertThat(ingestionScheduler.getInFlight()).isEqualTo(0);
+    }
+
+    private Future<Permit> submit(IngestionScheduler ingestionScheduler, String agentRollupId,
+            String agentId, CollectionType collectionType) {
+        return executor.submit(() -> {
+            Permit permit = ingestionScheduler.acquire(agentRollupId, agentId, collectionType);
+            if (permit != null) {
+                permits.put(agentId, permit);
+                grants.add(agentId);
+            }
+            return permit;
+        });
+    }
+
+    private static void waitForQueueLength(IngestionScheduler ingestionScheduler, int queueLength)
+            throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (ingestionScheduler.getQueueLength() != queueLength
+                && stopwatch.elapsed(SECONDS) < 10) {
+            Thread.sleep(1);
+        }
+        assertThat(ingestionScheduler.getQueueLength()).isEqualTo(queueLength);
+    }
+
+    private Permit waitForGrantCount(int grantCount) throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (grants.size() < grantCount && stopwatch.elapsed(SECONDS) < 10) {
+            Thread.sleep(1);
+        }
+        assertThat(grants).hasSize(grantCount);
+        return permits.get(grants.get(grantCount - 1));
+    }
+}
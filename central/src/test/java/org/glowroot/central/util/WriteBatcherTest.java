@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.WriteBatcher.WriteExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WriteBatcherTest {
+
+    private static final ByteBuffer KEY_A = ByteBuffer.wrap(new byte[] {1});
+    private static final ByteBuffer KEY_B = ByteBuffer.wrap(new byte[] {2});
+    private static final ByteBuffer KEY_C = ByteBuffer.wrap(new byte[] {3});
+
+    private com.datastax.driver.core.Session wrappedSession;
+    private Metadata metadata;
+    private List<Statement> executed;
+    private WriteBatcher writeBatcher;
+    private ExecutorService executor;
+
+    @Before
+    public void beforeEach() {
+        wrappedSession = mock(com.datastax.driver.core.Session.class);
+        Cluster cluster = mock(Cluster.class);
+        Configuration configuration = mock(Configuration.class);
+        ProtocolOptions protocolOptions = mock(ProtocolOptions.class);
+        metadata = mock(Metadata.class);
+        when(wrappedSession.getCluster()).thenReturn(cluster);
+        when(cluster.getConfiguration()).thenReturn(configuration);
+        when(cluster.getMetadata()).thenReturn(metadata);
+        when(configuration.getProtocolOptions()).thenReturn(protocolOptions);
+        when(configuration.getCodecRegistry()).thenReturn(CodecRegistry.DEFAULT_INSTANCE);
+        when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.V4);
+        // token metadata not available unless a test says otherwise
+        when(metadata.getReplicas(anyString(), any(ByteBuffer.class)))
+                .thenReturn(ImmutableSet.<Host>of());
+        executed = Collections.synchronizedList(new ArrayList<Statement>());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        if (writeBatcher != null) {
+            writeBatcher.close();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldGroupByPartitionWhenReplicasAreNotKnown() throws Exception {
+        // given
+        writeBatcher = createWriteBatcher(statement -> succeed(statement), 100);
+
+        // when
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(writeBatcher.add(statement(KEY_A)));
+            futures.add(writeBatcher.add(statement(KEY_B)));
+        }
+        futures.add(writeBatcher.add(statement(null)));
+        futures.add(writeBatcher.add(statement(null)));
+        waitForAll(futures);
+
+        // then
+        assertThat(executed).hasSize(4);
+        assertThat(batchSizes()).containsExactly(3, 3, 1, 1);
+        assertThat(writeBatcher.getInFlightWrites()).isZero();
+    }
+
+    @Test
+    public void shouldGroupByReplicas() throws Exception {
+        // given
+        Host host = mock(Host.class);
+        Host otherHost = mock(Host.class);
+        when(metadata.getReplicas(anyString(), any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer routingKey = invocation.getArgument(1);
+            return routingKey.equals(KEY_C) ? ImmutableSet.of(otherHost) : ImmutableSet.of(host);
+        });
+        writeBatcher = createWriteBatcher(statement -> succeed(statement), 100);
+
+        // when
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        futures.add(writeBatcher.add(statement(KEY_A)));
+        futures.add(writeBatcher.add(statement(KEY_B)));
+        futures.add(writeBatcher.add(statement(KEY_C)));
+        futures.add(writeBatcher.add(statement(KEY_A)));
+        waitForAll(futures);
+
+        // then
+        assertThat(batchSizes()).containsExactly(3, 1);
+    }
+
+    @Test
+    public void shouldSplitLargeGroups() throws Exception {
+        // given
+        writeBatcher = createWriteBatcher(statement -> succeed(statement), 100);
+
+        // when
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 45; i++) {
+            futures.add(writeBatcher.add(statement(KEY_A)));
+        }
+        waitForAll(futures);
+
+        // then
+        assertThat(batchSizes()).containsExactly(20, 20, 5);
+    }
+
+    @Test
+    public void shouldBoundInFlightWrites() throws Exception {
+        // given
+        List<SettableFuture<ResultSet>> results =
+                Collections.synchronizedList(new ArrayList<SettableFuture<ResultSet>>());
+        writeBatcher = createWriteBatcher(statement -> {
+            executed.add(statement);
+            SettableFuture<ResultSet> result = SettableFuture.create();
+            results.add(result);
+            return result;
+        }, 0, 2);
+        writeBatcher.add(statement(KEY_A));
+        writeBatcher.add(statement(KEY_B));
+
+        // when
+        Future<ListenableFuture<ResultSet>> blocked =
+                executor.submit(() -> writeBatcher.add(statement(KEY_C)));
+
+        // then
+        try {
+            blocked.get(200, MILLISECONDS);
+            fail("Expected add() to block");
+        } catch (TimeoutException e) {
+        }
+        assertThat(writeBatcher.getInFlightWrites()).isEqualTo(2);
+        results.get(0).set(mock(ResultSet.class));
+        ListenableFuture<ResultSet> future = blocked.get(10, SECONDS);
+        assertThat(future.isDone()).isFalse();
+        assertThat(writeBatcher.getInFlightWrites()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFailEveryWriteInFailedBatch() throws Exception {
+        // given
+        RuntimeException exception = new RuntimeException("timed out");
+        writeBatcher = createWriteBatcher(statement -> {
+            executed.add(statement);
+            return Futures.immediateFailedFuture(exception);
+        }, 100);
+
+        // when
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(writeBatcher.add(statement(KEY_A)));
+        }
+
+        // then
+        for (ListenableFuture<ResultSet> future : futures) {
+            assertFailedWith(future, exception);
+        }
+        // failed batch is not re-sent as individual writes
+        assertThat(batchSizes()).containsExactly(3);
+        assertThat(writeBatcher.getInFlightWrites()).isZero();
+    }
+
+    @Test
+    public void shouldFailEveryWriteWhenExecuteThrows() throws Exception {
+        // given
+        RuntimeException exception = new RuntimeException("throttled");
+        writeBatcher = createWriteBatcher(statement -> {
+            throw exception;
+        }, 100);
+
+        // when
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        futures.add(writeBatcher.add(statement(KEY_A)));
+        futures.add(writeBatcher.add(statement(KEY_A)));
+
+        // then
+        for (ListenableFuture<ResultSet> future : futures) {
+            assertFailedWith(future, exception);
+        }
+        assertThat(writeBatcher.getInFlightWrites()).isZero();
+    }
+
+    @Test
+    public void shouldFallBackToIndividualWritesWhenBatchIsInvalid() throws Exception {
+        // given
+        Statement invalid = statement(KEY_A);
+        InvalidQueryException exception = new InvalidQueryException("bad statement");
+        writeBatcher = createWriteBatcher(statement -> {
+            executed.add(statement);
+            if (statement instanceof BatchStatement || statement == invalid) {
+                return Futures.immediateFailedFuture(exception);
+            }
+            return Futures.immediateFuture(mock(ResultSet.class));
+        }, 100);
+
+        // when
+        ListenableFuture<ResultSet> future1 = writeBatcher.add(statement(KEY_A));
+        ListenableFuture<ResultSet> future2 = writeBatcher.add(invalid);
+        ListenableFuture<ResultSet> future3 = writeBatcher.add(statement(KEY_A));
+
+        // then
+        assertFailedWith(future2, exception);
+        assertThat(future1.get(10, SECONDS)).isNotNull();
+        assertThat(future3.get(10, SECONDS)).isNotNull();
+        assertThat(batchSizes()).containsExactly(3, 1, 1, 1);
+        assertThat(writeBatcher.getInFlightWrites()).isZero();
+    }
+
+    private WriteBatcher createWriteBatcher(WriteExecutor writeExecutor, long lingerMillis) {
+        return createWriteBatcher(writeExecutor, lingerMillis, 10000);
+    }
+
+    private WriteBatcher createWriteBatcher(WriteExecutor writeExecutor, long lingerMillis,
+            int maxInFlightWrites) {
+        return new WriteBatcher(wrappedSession, "glowroot_unit_tests", writeExecutor,
+                mock(CassandraWriteMetrics.class), maxInFlightWrites, lingerMillis);
+    }
+
+    private ListenableFuture<ResultSet> succeed(Statement statement) {
+        executed.add(statement);
+        return Futures.immediateFuture(mock(ResultSet.class));
+    }
+
+    private List<Integer> batchSizes() {
+        List<Integer> batchSizes = new ArrayList<>();
+        synchronized (executed) {
+            for (Statement statement : executed) {
+                if (statement instanceof BatchStatement) {
+                    batchSizes.add(((BatchStatement) statement).size());
+                } else {
+                    batchSizes.add(1);
+                }
+            }
+        }
+        return batchSizes;
+    }
+
+    private static Statement statement(ByteBuffer routingKey) {
+        SimpleStatement statement = new SimpleStatement("insert into test (k) values (?)", 1);
+        if (routingKey != null) {
+            statement.setRoutingKey(routingKey);
+        }
+        return statement;
+    }
+
+    private static void waitForAll(List<ListenableFuture<ResultSet>> futures) throws Exception {
+        for (ListenableFuture<ResultSet> future : futures) {
+            future.get(10, SECONDS);
+        }
+    }
+
+    private static void assertFailedWith(ListenableFuture<ResultSet> future, Throwable t)
+            throws Exception {
+        try {
+            future.get(10, SECONDS);
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(t);
+        }
+    }
+}
@@ -47,6 +47,12 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // child nodes are matched by linear scan until there are this many of them
+    private static final int CHILD_NODE_INDEX_THRESHOLD = 8;
+
+    // enough to hold the ordinal of any Profile.LeafThreadState (including UNRECOGNIZED)
+    private static final int LEAF_THREAD_STATE_BITS = 3;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -58,7 +64,18 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
+    // frame ids are used as the lookup key for child nodes, so that merging a node only requires
+    // hashing a single int (instead of comparing all frame fields against each child node)
+    private final Map<Frame, Integer> frameIds = Maps.newHashMap();
+    private final List<Frame> frames = Lists.newArrayList();
+
+    // this avoids re-parsing the package and class name (and four separate name lookups) for
+    // stack trace elements that have already been seen, which is the common case when merging
+    // many stack trace samples
+    private final Map<StackTraceElement, Integer> stackTraceElementFrameIds = Maps.newHashMap();
+
     private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private @Nullable ChildNodeIndex rootNodeIndex;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
@@ -71,59 +88,39 @@ public class MutableProfile {
 
     public void merge(Profile profile) {
         Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        merger.merge(profile.getNodeList());
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
+        merge(stackTraceElements, threadState, 1);
+    }
+
+    // sampleCount is the number of identical samples being merged at once
+    public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState,
+            long sampleCount) {
         PeekingIterator<StackTraceElement> i =
                 Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
+        @Nullable
+        ProfileNode parentNode = null;
 
         boolean lookingForMatch = true;
         while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
-                            "<null method name>"), methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
+            int frameId = getFrameId(i.next());
             Profile.LeafThreadState leafThreadState =
                     i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+            int key = getNodeKey(frameId, leafThreadState);
 
             ProfileNode node = null;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = getChildNode(parentNode, key);
             }
             if (node == null) {
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                node = new ProfileNode(key, leafThreadState);
+                addChildNode(parentNode, node);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            node.sampleCount += sampleCount;
+            parentNode = node;
         }
     }
 
@@ -254,6 +251,96 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private int getFrameId(StackTraceElement stackTraceElement) {
+        Integer frameId = stackTraceElementFrameIds.get(stackTraceElement);
+        if (frameId != null) {
+            return frameId;
+        }
+        String fullClassName = stackTraceElement.getClassName();
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
+        }
+        int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
+        int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+        int methodNameIndex = getNameIndex(MoreObjects.firstNonNull(
+                stackTraceElement.getMethodName(), "<null method name>"), methodNameIndexes,
+                methodNames);
+        int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
+                fileNameIndexes, fileNames);
+        frameId = getFrameId(new Frame(packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, stackTraceElement.getLineNumber()));
+        stackTraceElementFrameIds.put(stackTraceElement, frameId);
+        return frameId;
+    }
+
+    private int getFrameId(Frame frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId == null) {
+            frameId = frames.size();
+            frames.add(frame);
+            frameIds.put(frame, frameId);
+        }
+        return frameId;
+    }
+
+    private @Nullable ProfileNode getChildNode(@Nullable ProfileNode parentNode, int key) {
+        List<ProfileNode> childNodes;
+        ChildNodeIndex childNodeIndex;
+        if (parentNode == null) {
+            childNodes = rootNodes;
+            childNodeIndex = rootNodeIndex;
+        } else {
+            childNodes = parentNode.childNodes;
+            childNodeIndex = parentNode.childNodeIndex;
+        }
+        int size = childNodes.size();
+        if (size < CHILD_NODE_INDEX_THRESHOLD) {
+            for (int i = 0; i < size; i++) {
+                ProfileNode childNode = childNodes.get(i);
+                if (childNode.key == key) {
+                    return childNode;
+                }
+            }
+            return null;
+        }
+        // the index size only differs from the list size when child nodes have been removed
+        // (by filtering or truncation) since the index was built
+        if (childNodeIndex == null || childNodeIndex.size != size) {
+            childNodeIndex = new ChildNodeIndex(childNodes);
+            if (parentNode == null) {
+                rootNodeIndex = childNodeIndex;
+            } else {
+                parentNode.childNodeIndex = childNodeIndex;
+            }
+        }
+        return childNodeIndex.get(key);
+    }
+
+    private void addChildNode(@Nullable ProfileNode parentNode, ProfileNode childNode) {
+        if (parentNode == null) {
+            rootNodes.add(childNode);
+            if (rootNodeIndex != null) {
+                rootNodeIndex.put(childNode);
+            }
+        } else {
+            parentNode.childNodes.add(childNode);
+            if (parentNode.childNodeIndex != null) {
+                parentNode.childNodeIndex.put(childNode);
+            }
+        }
+    }
+
+    private static int getNodeKey(int frameId, Profile.LeafThreadState leafThreadState) {
+        return (frameId << LEAF_THREAD_STATE_BITS) | leafThreadState.ordinal();
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -288,18 +375,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -318,18 +393,122 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
+    private static class Frame {
 
         private final int packageNameIndex;
         private final int classNameIndex;
         private final int methodNameIndex;
         private final int fileNameIndex;
         private final int lineNumber;
+
+        private Frame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber) {
+            this.packageNameIndex = packageNameIndex;
+            this.classNameIndex = classNameIndex;
+            this.methodNameIndex = methodNameIndex;
+            this.fileNameIndex = fileNameIndex;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof Frame)) {
+                return false;
+            }
+            Frame that = (Frame) obj;
+            // checking line number first since most likely to be different
+            return lineNumber == that.lineNumber
+                    && fileNameIndex == that.fileNameIndex
+                    && methodNameIndex == that.methodNameIndex
+                    && classNameIndex == that.classNameIndex
+                    && packageNameIndex == that.packageNameIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageNameIndex;
+            result = 31 * result + classNameIndex;
+            result = 31 * result + methodNameIndex;
+            result = 31 * result + fileNameIndex;
+            return 31 * result + lineNumber;
+        }
+    }
+
+    // open addressing (linear probing) map from node key to child node
+    private static class ChildNodeIndex {
+
+        private int[] keys;
+        private @Nullable ProfileNode[] nodes;
+        private int size;
+
+        private ChildNodeIndex(List<ProfileNode> childNodes) {
+            int capacity = Integer.highestOneBit(childNodes.size() * 4 - 1);
+            keys = new int[capacity];
+            nodes = new ProfileNode[capacity];
+            for (ProfileNode childNode : childNodes) {
+                put(childNode);
+            }
+        }
+
+        private @Nullable ProfileNode get(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            ProfileNode node;
+            while ((node = nodes[i]) != null) {
+                if (keys[i] == key) {
+                    return node;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private void put(ProfileNode node) {
+            if (size * 2 >= keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = mix(node.key) & mask;
+            while (nodes[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = node.key;
+            nodes[i] = node;
+            size++;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            @Nullable
+            ProfileNode[] oldNodes = nodes;
+            keys = new int[oldKeys.length * 2];
+            nodes = new ProfileNode[oldKeys.length * 2];
+            size = 0;
+            for (ProfileNode oldNode : oldNodes) {
+                if (oldNode != null) {
+                    put(oldNode);
+                }
+            }
+        }
+
+        // frame ids are sequential, so spread them out to avoid long probe sequences
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private class ProfileNode {
+
+        // frame id and leaf thread state
+        private final int key;
         private final Profile.LeafThreadState leafThreadState;
 
         private long sampleCount;
 
         private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        // only created once there are enough child nodes to make it worthwhile
+        private @Nullable ChildNodeIndex childNodeIndex;
 
         // these fields are only used for filtering
         private @Nullable String text;
@@ -337,28 +516,29 @@ public class MutableProfile {
         private boolean matched;
         private long ellipsedSampleCount;
 
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
+        private ProfileNode(int key, Profile.LeafThreadState leafThreadState) {
+            this.key = key;
             this.leafThreadState = leafThreadState;
         }
 
+        private Frame getFrame() {
+            return frames.get(key >>> LEAF_THREAD_STATE_BITS);
+        }
+
         private String getText() {
             if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
+                Frame frame = getFrame();
+                String packageName = packageNames.get(frame.packageNameIndex);
+                String className = classNames.get(frame.classNameIndex);
                 String fullClassName;
                 if (packageName.isEmpty()) {
                     fullClassName = className;
                 } else {
                     fullClassName = packageName + '.' + className;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+                text = new StackTraceElement(fullClassName,
+                        methodNames.get(frame.methodNameIndex),
+                        fileNames.get(frame.fileNameIndex), frame.lineNumber).toString();
             }
             return text;
         }
@@ -378,7 +558,8 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        // null (which cannot be pushed onto a Deque) is represented by an empty stack
+        private final Deque<ProfileNode> destinationStack = Queues.newArrayDeque();
 
         private Merger(Profile toBeMergedProfile) {
             packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
@@ -391,49 +572,38 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
         }
 
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
+        private void merge(List<Profile.ProfileNode> flatNodes) {
             PeekingIterator<Profile.ProfileNode> i =
                     Iterators.peekingIterator(flatNodes.iterator());
             while (i.hasNext()) {
                 Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
+                int destinationDepth = destinationStack.size();
                 for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
                     // TODO optimize: faster way to pop multiple elements at once
                     destinationStack.pop();
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
+                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.peek());
                 if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                    destinationStack.push(destinationNode);
                 }
             }
         }
 
         private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+                @Nullable ProfileNode destinationParentNode) {
+            int frameId = getFrameId(new Frame(
+                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber()));
+            Profile.LeafThreadState leafThreadState = toBeMergedNode.getLeafThreadState();
+            int key = getNodeKey(frameId, leafThreadState);
+            ProfileNode destinationNode = getChildNode(destinationParentNode, key);
+            if (destinationNode == null) {
+                destinationNode = new ProfileNode(key, leafThreadState);
+                addChildNode(destinationParentNode, destinationNode);
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
             merge(toBeMergedNode, destinationNode);
             return destinationNode;
         }
@@ -455,13 +625,14 @@ public class MutableProfile {
 
         @Override
         public List<ProfileNode> visit(ProfileNode node, int depth) {
+            Frame frame = node.getFrame();
             nodes.add(Profile.ProfileNode.newBuilder()
                     .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
+                    .setPackageNameIndex(frame.packageNameIndex)
+                    .setClassNameIndex(frame.classNameIndex)
+                    .setMethodNameIndex(frame.methodNameIndex)
+                    .setFileNameIndex(frame.fileNameIndex)
+                    .setLineNumber(frame.lineNumber)
                     .setLeafThreadState(node.leafThreadState)
                     .setSampleCount(node.sampleCount)
                     .build());
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,10 +23,13 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -107,6 +110,61 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingManyChildNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 20; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", j));
+                stackTraceElements
+                        .add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        MutableProfile mergedProfile = new MutableProfile();
+        // when
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.merge(profile.toProto());
+        // then
+        Profile proto = mergedProfile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(21);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(80);
+        for (int i = 1; i < 21; i++) {
+            assertThat(proto.getNode(i).getLineNumber()).isEqualTo(i - 1);
+            assertThat(proto.getNode(i).getSampleCount()).isEqualTo(4);
+        }
+    }
+
+    @Test
+    public void testMergingAfterFiltering() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int j = 0; j < 20; j++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", j));
+            stackTraceElements
+                    .add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        profile.filter(ImmutableList.of("Def.java:1"), ImmutableList.<String>of());
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 15));
+        stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        // when
+        profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        // then
+        Profile proto = profile.toProto();
+        // Def.java:1 and Def.java:10 through Def.java:19
+        assertThat(proto.getNodeCount()).isEqualTo(12);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(12);
+        for (int i = 1; i < 12; i++) {
+            Profile.ProfileNode node = proto.getNode(i);
+            assertThat(node.getSampleCount()).isEqualTo(node.getLineNumber() == 15 ? 2 : 1);
+        }
+    }
+
     @Test
     public void testMultipleRootNodes() throws IOException {
         // given